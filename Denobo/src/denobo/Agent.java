@@ -1,21 +1,44 @@
 package denobo;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
@@ -29,38 +52,120 @@ public class Agent implements RoutingWorkerListener {
      * A list of Agent instances connected to this one.
      */
     private final List<Agent> connectedAgents;
+    
+    /**
+     * The Agent instances connected to this one, indexed by name so that the
+     * next hop of a message can be found with a single lookup.
+     */
+    private final Map<String, Agent> connectedAgentsByName;
 
     /**
-     * The {@link BlockingQueue} that underlies this Agent.
+     * The {@link Mailbox} that underlies this Agent.
      */
-    private final BlockingQueue<Message> messageQueue;
+    private final Mailbox messageQueue;
 
     /**
      * Contains messages ready for dispatching that are awaiting routing.
      */
-    private final Map<String, List<String>> dispatchMap;
+    private final Map<String, List<PendingMessage>> dispatchMap;
+    
+    /**
+     * The names of recipients whose waiting messages are being submitted to 
+     * our mailbox, so that later messages to them wait their turn in the 
+     * dispatch map. Guarded by {@link #messageDispatchLock}.
+     */
+    private final Set<String> releasingRecipients;
     
     /**
      * Contains the names of Agents whose routes are currently being calculated.
      */
     private final Map<String, Long> awaitingRoutingMap;
     
+    /**
+     * Contains the route prefetches still waiting on routes, guarded by 
+     * {@link #messageDispatchLock}.
+     */
+    private final List<RoutePrefetch> prefetches;
+    
     /**
      * The message processing thread that underlies this Agent.
+     * <p>
+     * This variable is only initialised if this Agent is not running on a
+     * shared {@link AgentScheduler}.
      */
     private Thread underlyingThread;
+    
+    /**
+     * The thread currently draining this Agent's message queue, if any.
+     * <p>
+     * Used so that a message this Agent submits to itself from its own pump 
+     * never blocks waiting for space that only it could free.
+     */
+    private volatile Thread pumpThread;
+    
+    /**
+     * The shared scheduler this Agent runs its message pump on, or null if
+     * this Agent has a dedicated message processing thread.
+     */
+    private final AgentScheduler scheduler;
+    
+    /**
+     * Whether or not a message pump task for this Agent is currently submitted
+     * to the scheduler.
+     * <p>
+     * At most one pump task may be in flight at a time so that messages are
+     * processed in the order they were queued.
+     */
+    private final AtomicBoolean pumpScheduled;
+    
+    /**
+     * The number of messages currently being handled by cloned handlers on the
+     * scheduler's worker threads.
+     */
+    private final AtomicInteger activeCloneCount;
+    
+    /**
+     * Notified whenever the scheduled message pump or a cloned handler goes 
+     * idle so that a pending shutdown can check whether it may proceed.
+     */
+    private final Object pumpIdleLock;
+    
+    /**
+     * The configuration options for this Agent.
+     */
+    private final AgentConfiguration configuration;
 
     /**
      * The name of this Agent.
      */
     private final String name;
 
+    /**
+     * Whether or not this Agent is cloneable.
+     */
+    private final boolean cloneable;
+    
     /**
      * The thread pool service for handling cloneable Agent instances. 
      * <p>
-     * This variable is only initialised if this Agent is cloneable.
+     * This variable is only initialised if this Agent is cloneable and is not
+     * running on a shared {@link AgentScheduler}.
      */
     private final ExecutorService executorService;
+    
+    /**
+     * The executor that keeps messages sharing an ordering key in order when
+     * handled in parallel.
+     * <p>
+     * This variable is only initialised if this Agent is cloneable and uses
+     * keyed ordering.
+     */
+    private final KeyedExecutor keyedExecutor;
+    
+    /**
+     * Decides the ordering key of each message if keyed ordering is used.
+     */
+    private final MessageKeyExtractor messageKeyExtractor;
 
     /**
      * Whether or not this Agent has been shut down. 
@@ -71,6 +176,23 @@ public class Agent implements RoutingWorkerListener {
      */
     private volatile boolean shutdown;
     
+    /**
+     * Signals the message pump to stop once the message queue is empty.
+     * <p>
+     * This is only set once every producer that got past the shutdown check 
+     * has finished queueing, so that no message accepted before shutdown is 
+     * left behind.
+     */
+    private volatile boolean pumpStopRequested;
+    
+    /**
+     * The number of threads currently inside {@link #queueMessage}.
+     * <p>
+     * Producers register here before checking whether we've shut down, which
+     * lets shutdown wait for them without producers having to take a lock.
+     */
+    private final AtomicInteger activeProducerCount;
+    
     /**
      * Holding this lock will hold off a potential shutdown until released. 
      */
@@ -86,22 +208,124 @@ public class Agent implements RoutingWorkerListener {
      */
     private final RoutingTable routingTable;
     
+    /**
+     * The way this Agent addresses the messages it originates.
+     */
+    private final ForwardingMode forwardingMode;
+    
+    /**
+     * The way this Agent makes sure routes across links it loses stop being 
+     * used.
+     */
+    private final InvalidationMode invalidationMode;
+    
+    /**
+     * The names of destinations that a route-learning message has been sent
+     * to along the current route, so that the agents along the way can 
+     * forward route-less messages there.
+     * 
+     * @see ForwardingMode#NEXT_HOP
+     */
+    private final Set<String> primedDestinations;
+    
+    /**
+     * The most routes this Agent keeps to each destination.
+     */
+    private final int maximumRoutes;
+    
+    /**
+     * The way this Agent chooses between the routes it keeps to a destination.
+     */
+    private final MultipathPolicy multipathPolicy;
+    
+    /**
+     * Counts messages originated over several routes, used to take each route
+     * in turn under {@link MultipathPolicy#ROUND_ROBIN}.
+     */
+    private final AtomicInteger multipathCounter;
+    
+    /**
+     * Whether or not this Agent keeps a backup route to each destination it
+     * sends messages to.
+     */
+    private final boolean backupRoutes;
+    
+    /**
+     * The names of destinations that backup routes are currently being 
+     * calculated to, along with the time each calculation started.
+     */
+    private final Map<String, Long> awaitingBackupMap;
+    
     /**
      * A list of {@link MessageListener} objects observing Messages passed to the 
      * agent.
      */
     private final List<MessageListener> listeners;
     
+    /**
+     * A list of {@link BatchMessageListener} objects observing batches of 
+     * Messages passed to the agent.
+     */
+    private final List<BatchMessageListener> batchListeners;
+    
+    /**
+     * A list of {@link RouteFailureListener} objects notified when messages 
+     * sent by this agent are discarded for want of a route.
+     */
+    private final List<RouteFailureListener> routeFailureListeners;
+    
+    /**
+     * The names of recipients that could recently not be routed to.
+     */
+    private final NegativeRouteCache negativeRouteCache;
+    
+    /**
+     * The maximum number of messages taken from the message queue in one go.
+     */
+    private final int messageBatchSize;
+    
     /**
      * A ScheduledExecutorService instance that will execute a task on a scheduled 
      * interval and cleanup any messages that are awaiting for a route to be 
      * calculated where the route calculation has timed out.
      * <p>
      * A route calculation that has timed out should be assumed to currently not
-     * exist in the network.
+     * exist in the network. This variable is only initialised if this Agent is
+     * not running on a shared {@link AgentScheduler}, otherwise the
+     * scheduler's timer is used instead.
      */
     private final ScheduledExecutorService dispatchCleanupExecutorService;
     
+    /**
+     * The handle to the scheduled dispatch cleanup task, used to cancel it on
+     * shutdown.
+     */
+    private final ScheduledFuture<?> dispatchCleanupTask;
+    
+    /**
+     * The file this Agent keeps a snapshot of its routing table in, or null
+     * if it keeps none.
+     */
+    private final File routingTableSnapshotFile;
+    
+    /**
+     * The handle to the scheduled routing table snapshot task, or null if the
+     * routing table is only snapshotted on shutdown.
+     */
+    private final ScheduledFuture<?> routingTableSnapshotTask;
+    
+    /**
+     * Whether or not a routing table snapshot is currently submitted to the 
+     * scheduler, so that a slow write is never overtaken by the next one.
+     */
+    private final AtomicBoolean snapshotScheduled;
+    
+    /**
+     * Holding this lock will hold off any other routing table snapshot from
+     * being written.
+     */
+    private final Object snapshotLock;
+    
     
     /* ---------- */
     
@@ -118,6 +342,18 @@ public class Agent implements RoutingWorkerListener {
      */
     private static final long DISPATCH_CLEANUP_INTERVAL = 10000L;
     
+    /**
+     * The maximum number of messages a single scheduled pump task will process
+     * before yielding its worker thread to other agents.
+     */
+    private static final int PUMP_TASK_QUANTUM = 64;
+    
+    /**
+     * The interval in milliseconds at which a shutdown waiting on a scheduled 
+     * message pump rechecks whether the pump has gone idle.
+     */
+    private static final long PUMP_IDLE_CHECK_INTERVAL = 100L;
+    
     /**
      * The regular expression that is used to validate the names of Agents.
      * <p>
@@ -133,10 +369,11 @@ public class Agent implements RoutingWorkerListener {
     /**
      * Abstract constructor to initialise a new instance of an Agent.
      *
-     * @param name      the name of the Agent
-     * @param cloneable whether or not the Agent is cloneable
+     * @param name          the name of the Agent
+     * @param cloneable     whether or not the Agent is cloneable
+     * @param configuration the configuration options to use
      */
-    public Agent(String name, boolean cloneable) {
+    public Agent(String name, boolean cloneable, AgentConfiguration configuration) {
 
         // Check that the agent name is non-null and valid.
         this.name = Objects.requireNonNull(name, "The name of the Agent cannot"
@@ -145,36 +382,129 @@ public class Agent implements RoutingWorkerListener {
             throw new IllegalArgumentException("Invalid agent name '" + name + "'.");
         }
         
+        // Routes through us can now hold our name as an ID.
+        AgentNameRegistry.getId(name);
+        
+        this.configuration = Objects.requireNonNull(configuration, 
+                "Configuration cannot be null.");
+        this.cloneable = cloneable;
+        scheduler = configuration.getScheduler();
+        
         // Lock objects.
         shutdownLock = new Object();
         messageDispatchLock = new Object();
+        pumpIdleLock = new Object();
+        snapshotLock = new Object();
+        
+        // Scheduled pump state.
+        pumpScheduled = new AtomicBoolean(false);
+        snapshotScheduled = new AtomicBoolean(false);
+        activeCloneCount = new AtomicInteger(0);
+        activeProducerCount = new AtomicInteger(0);
 
-        // Only construct the thread pool if cloneable.
-        executorService = (cloneable ? Executors.newCachedThreadPool() : null);
+        /* 
+         * Only construct the thread pool if cloneable and we don't have a 
+         * scheduler to hand cloned handlers to. Keyed ordering needs a bounded
+         * pool, otherwise we give every message its own thread.
+         */
+        final boolean keyed = cloneable && configuration.getKeyedOrdering();
+        if (cloneable && scheduler == null) {
+            executorService = (keyed 
+                    ? Executors.newFixedThreadPool(configuration.getCloneConcurrency())
+                    : Executors.newCachedThreadPool());
+        } else {
+            executorService = null;
+        }
+        messageKeyExtractor = configuration.getMessageKeyExtractor();
+        keyedExecutor = (keyed ? new KeyedExecutor(scheduler != null 
+                ? scheduler : executorService) : null);
         
         // Initialise lists, maps and queues.
-        messageQueue = new LinkedBlockingQueue<>();
+        messageQueue = new Mailbox(configuration.getMailboxCapacity(), 
+                configuration.getMailboxOverflowPolicy(), 
+                configuration.getMailboxType());
         connectedAgents = new CopyOnWriteArrayList<>();
+        connectedAgentsByName = new ConcurrentHashMap<>();
         listeners = new CopyOnWriteArrayList<>();
+        batchListeners = new CopyOnWriteArrayList<>();
+        routeFailureListeners = new CopyOnWriteArrayList<>();
+        messageBatchSize = configuration.getMessageBatchSize();
         
         // Initialise routing data structures.
-        routingTable = new RoutingTable();
+        maximumRoutes = configuration.getMaximumRoutes();
+        multipathPolicy = configuration.getMultipathPolicy();
+        multipathCounter = new AtomicInteger(0);
+        backupRoutes = configuration.getBackupRoutes();
+        awaitingBackupMap = new ConcurrentHashMap<>();
+        negativeRouteCache = new NegativeRouteCache(configuration.getNegativeRouteCacheTtl(), 
+                configuration.getMaximumNegativeRouteCacheTtl());
+        routingTable = new RoutingTable(maximumRoutes, 
+                configuration.getMultipathCostTolerance());
+        forwardingMode = configuration.getForwardingMode();
+        invalidationMode = configuration.getInvalidationMode();
+        primedDestinations = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         dispatchMap = new HashMap<>();
+        releasingRecipients = new HashSet<>();
         awaitingRoutingMap = new HashMap<>();
+        prefetches = new ArrayList<>();
         
         // Initialize the scheduled dispatch cleanup task.
-        dispatchCleanupExecutorService = Executors.newSingleThreadScheduledExecutor();
-        dispatchCleanupExecutorService.scheduleAtFixedRate(new Runnable() {
+        final Runnable dispatchCleanup = new Runnable() {
             @Override
             public void run() {
                 cleanupDispatch(ROUTE_CALCULATION_TIMEOUT);
             }
-        }, DISPATCH_CLEANUP_INTERVAL, DISPATCH_CLEANUP_INTERVAL, TimeUnit.MILLISECONDS);
+        };
+        if (scheduler == null) {
+            dispatchCleanupExecutorService = Executors.newSingleThreadScheduledExecutor();
+            dispatchCleanupTask = dispatchCleanupExecutorService.scheduleAtFixedRate(
+                    dispatchCleanup, DISPATCH_CLEANUP_INTERVAL, 
+                    DISPATCH_CLEANUP_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            dispatchCleanupExecutorService = null;
+            dispatchCleanupTask = scheduler.scheduleAtFixedRate(dispatchCleanup, 
+                    DISPATCH_CLEANUP_INTERVAL);
+        }
+        
+        // Pick up where we left off if we keep routing table snapshots.
+        final File snapshotDirectory = configuration.getRoutingTableSnapshotDirectory();
+        routingTableSnapshotFile = (snapshotDirectory == null ? null 
+                : new File(snapshotDirectory, name + ".routes"));
+        final long snapshotInterval = configuration.getRoutingTableSnapshotInterval();
+        if (routingTableSnapshotFile != null) {
+            loadRoutingTable();
+        }
+        if (routingTableSnapshotFile != null && snapshotInterval > 0) {
+            final Runnable snapshot = new Runnable() {
+                @Override
+                public void run() {
+                    scheduleSnapshot();
+                }
+            };
+            routingTableSnapshotTask = (scheduler == null 
+                    ? dispatchCleanupExecutorService.scheduleAtFixedRate(snapshot, 
+                            snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS)
+                    : scheduler.scheduleAtFixedRate(snapshot, snapshotInterval));
+        } else {
+            routingTableSnapshotTask = null;
+        }
         
-        // Start message processing.
-        queueProcessThread();
+        // Start message processing if we need a thread of our own.
+        if (scheduler == null) {
+            queueProcessThread();
+        }
 
     }
+    
+    /**
+     * Initialises a new instance of an Agent with the default configuration.
+     *
+     * @param name      the name of the Agent
+     * @param cloneable whether or not the Agent is cloneable
+     */
+    public Agent(String name, boolean cloneable) {
+        this(name, cloneable, new AgentConfiguration());
+    }
 
     /**
      * Initialises a new instance of a non-cloneable Agent.
@@ -222,6 +552,60 @@ public class Agent implements RoutingWorkerListener {
                 + "to remove cannot be null."));
     }
     
+    /**
+     * Adds a {@link BatchMessageListener} to listen for batches of messages 
+     * passed to this Agent.
+     *
+     * @param listener   the {@link BatchMessageListener} to add as an observer
+     */
+    public void addBatchMessageListener(BatchMessageListener listener) {
+        batchListeners.add(Objects.requireNonNull(listener, "The batch message "
+                + "listener to add cannot be null."));
+    }
+
+    /**
+     * Removes a {@link BatchMessageListener} that is currently listening for
+     * batches of messages passed to this agent.
+     *
+     * @param listener the {@link BatchMessageListener} to remove as an observer
+     */
+    public void removeBatchMessageListener(BatchMessageListener listener) {
+        batchListeners.remove(Objects.requireNonNull(listener, "The batch "
+                + "message listener to remove cannot be null."));
+    }
+    
+    /**
+     * Adds a {@link RouteFailureListener} to be notified when messages sent by
+     * this Agent are discarded because no route could be found to their 
+     * recipient.
+     *
+     * @param listener   the {@link RouteFailureListener} to add as an observer
+     */
+    public void addRouteFailureListener(RouteFailureListener listener) {
+        routeFailureListeners.add(Objects.requireNonNull(listener, "The route "
+                + "failure listener to add cannot be null."));
+    }
+
+    /**
+     * Removes a {@link RouteFailureListener} that is currently listening for
+     * messages discarded by this agent.
+     *
+     * @param listener the {@link RouteFailureListener} to remove as an observer
+     */
+    public void removeRouteFailureListener(RouteFailureListener listener) {
+        routeFailureListeners.remove(Objects.requireNonNull(listener, "The route "
+                + "failure listener to remove cannot be null."));
+    }
+    
+    /**
+     * Gets the cache of recipients this Agent could recently not route to.
+     * 
+     * @return  the negative route cache for this Agent
+     */
+    public NegativeRouteCache getNegativeRouteCache() {
+        return negativeRouteCache;
+    }
+    
     /**
      * Gets the name of this Agent.
      *
@@ -246,7 +630,16 @@ public class Agent implements RoutingWorkerListener {
      * @return  true if this Agent is cloneable, otherwise false
      */
     public final boolean isCloneable() {
-        return executorService != null;
+        return cloneable;
+    }
+    
+    /**
+     * Gets the configuration options for this Agent.
+     * 
+     * @return  the configuration options for this Agent
+     */
+    public AgentConfiguration getConfiguration() {
+        return configuration;
     }
     
     /**
@@ -259,6 +652,35 @@ public class Agent implements RoutingWorkerListener {
         return shutdown;
     }
 
+    /**
+     * Gets the number of messages currently waiting in this Agent's mailbox.
+     * 
+     * @return  the number of messages waiting to be processed
+     */
+    public int getQueuedMessageCount() {
+        return messageQueue.size();
+    }
+    
+    /**
+     * Gets the number of messages this Agent's mailbox has refused because it
+     * was full.
+     * 
+     * @return  the number of messages refused
+     */
+    public long getRejectedMessageCount() {
+        return messageQueue.getRejectedCount();
+    }
+    
+    /**
+     * Gets the number of messages this Agent's mailbox has discarded because 
+     * it was full.
+     * 
+     * @return  the number of messages discarded
+     */
+    public long getDroppedMessageCount() {
+        return messageQueue.getDroppedCount();
+    }
+
     /**
      * Connects this Agent to another.
      *
@@ -313,14 +735,24 @@ public class Agent implements RoutingWorkerListener {
             
             agent.unregisterConnectedAgent(this);
           
-            /* 
-             * Spawn undertaker to crawl the local network and remove any routes
-             * involving this link.
-             */
-            final List<Agent> branches = Arrays.asList(new Agent[] {this, agent});  
-            final Undertaker undertaker = new Undertaker(branches, 
-                    Arrays.asList(new String[] {Agent.this.getName(), agent.getName()}));
-            undertaker.undertakeAsync();
+            if (invalidationMode == InvalidationMode.LAZY) {
+                
+                // Routes across the link will be dropped when next used.
+                LinkGenerations.linkBroken(name, agent.getName());
+                
+            } else {
+                
+                /* 
+                 * Spawn undertaker to crawl the local network and remove any routes
+                 * involving this link.
+                 */
+                final List<Agent> branches = Arrays.asList(new Agent[] {this, agent});  
+                final Undertaker undertaker = new Undertaker(branches, 
+                        Arrays.asList(new String[] {Agent.this.getName(), agent.getName()}),
+                        new HashSet<String>(), true);
+                undertaker.undertakeAsync();
+                
+            }
         
         }
 
@@ -345,8 +777,9 @@ public class Agent implements RoutingWorkerListener {
      * @return true if the agent was successfully registered, otherwise false
      */
     private boolean registerConnectedAgent(Agent agent) {
-        return connectedAgents.add(Objects.requireNonNull(agent, 
-                "Cannot register a connection to a null agent."));
+        Objects.requireNonNull(agent, "Cannot register a connection to a null agent.");
+        connectedAgentsByName.put(agent.getName(), agent);
+        return connectedAgents.add(agent);
     }
 
     /**
@@ -356,26 +789,48 @@ public class Agent implements RoutingWorkerListener {
      * @return true if the agent was successfully unregistered
      */
     private boolean unregisterConnectedAgent(Agent agent) {
-        invalidateAgentName(agent.getName());
+        invalidateLink(name, agent.getName());
+        connectedAgentsByName.remove(agent.getName(), agent);
         return connectedAgents.remove(agent);
     }
 
     
     /**
      * Adds a Message to this Agent's message queue.
+     * <p>
+     * If the message queue is full, the configured 
+     * {@link MailboxOverflowPolicy} decides whether the caller is blocked, or
+     * whether the message or an older one is discarded.
      *
      * @param message   the message to add
      * @return          true if the message was successfully submitted into the 
      *                  message queue, otherwise false
      */
     public boolean queueMessage(Message message) {
+        return queueMessage(message, true);
+    }
+    
+    /**
+     * Adds a Message to this Agent's message queue, refusing it rather than
+     * waiting if the message queue is full and the caller must not block.
+     *
+     * @param message   the message to add
+     * @param mayBlock  whether or not the caller may wait for room in a full 
+     *                  message queue
+     * @return          true if the message was successfully submitted into the 
+     *                  message queue, otherwise false
+     */
+    private boolean queueMessage(Message message, boolean mayBlock) {
         
         /* 
          * We need to make sure the thread won't be shut down between checking
          * if it has shutdown and adding the message to the queue - we want to
          * guarantee that if our message is added, that it will be processed.
+         * Registering as an active producer before the check means shutdown
+         * will wait for us, without us needing to take a lock.
          */
-        synchronized (shutdownLock) {
+        activeProducerCount.incrementAndGet();
+        try {
             
             /* 
              * Don't queue the message if we have shut down or we are in the 
@@ -383,36 +838,44 @@ public class Agent implements RoutingWorkerListener {
              */
             if (shutdown) { return false; }
             
-            /* 
-             * Make sure our message gets added to the queue as something 
-             * interrupting our thread could cause our message to be lost.
-             */
-            boolean added = false, interrupted = false;
-            do {
-                try {
-                    
-                    // Queue message for processing.
-                    messageQueue.put(message);
-                    added = true; 
-                    
-                } catch (InterruptedException ex) {
-                    
-                    interrupted = true;
-                    
-                }
-            } while (!added);
+            // Queue message for processing, subject to the overflow policy.
+            return enqueue(message, mayBlock);
             
-            /* 
-             * Remember to reset the interrupt flag for this thread for any 
-             * caller higher up the chain if we were interuppted.
-             */
-            if (interrupted) { Thread.currentThread().interrupt(); }
-            return added;
+        } finally {
+            
+            // The last producer out after a shutdown wakes it up.
+            if (activeProducerCount.decrementAndGet() == 0 && shutdown) {
+                synchronized (activeProducerCount) {
+                    activeProducerCount.notifyAll();
+                }
+            }
             
         }
         
     }
 
+    /**
+     * Submits a message to this Agent's mailbox, applying the configured 
+     * overflow policy, and makes sure a message pump will pick it up.
+     * 
+     * @param message   the message to submit
+     * @param mayBlock  whether or not the caller may wait for room in a full 
+     *                  mailbox
+     * @return          true if the message was queued, otherwise false
+     */
+    private boolean enqueue(Message message, boolean mayBlock) {
+        
+        /*
+         * Never block our own pump, nor a scheduler thread that pumps might 
+         * need to drain the mailbox we'd be waiting on.
+         */
+        final boolean added = messageQueue.offer(message, mayBlock
+                && Thread.currentThread() != pumpThread && !AgentScheduler.isSchedulerThread());
+        if (added) { schedulePump(); }
+        return added;
+        
+    }
+    
     /**
      * Starts the message processing on a new thread and places the handle into 
      * the underlyingThread field.
@@ -426,30 +889,25 @@ public class Agent implements RoutingWorkerListener {
             @Override
             public void run() {
                 
+                pumpThread = Thread.currentThread();
+                final List<Message> batch = new ArrayList<>(messageBatchSize);
+                
                 /* 
                  * Keep processing till we are given the signal to stop then 
                  * process everything until the queue is empty.
                  */
-                while (!shutdown || !messageQueue.isEmpty()) {
+                while (!pumpStopRequested || !messageQueue.isEmpty()) {
                     try {
-                        final Message message = messageQueue.take();
-
-                        if (!isCloneable()) {
-  
-                            // Handle message in this thread.
-                            handleMessage(message);
-
-                        } else {
-
-                            // Handle message on a seperate thread.
-                            executorService.execute(new Runnable() {
-                                @Override
-                                public void run() {
-                                    handleMessage(message);
-                                }
-                            });
-
-                        }
+                        
+                        /*
+                         * Wait for one message, then take whatever else is
+                         * already waiting up to our batch size.
+                         */
+                        batch.add(messageQueue.take());
+                        messageQueue.drainTo(batch, messageBatchSize - 1);
+                        dispatchBatch(batch);
+                        batch.clear();
+                        
                     } catch (InterruptedException ex) {
 
                         /* 
@@ -466,38 +924,282 @@ public class Agent implements RoutingWorkerListener {
         underlyingThread.start();
         
     }
-        
+    
     /**
-     * Prevents any more messages from being added to this Agent's message queue
-     * and processes any that remain. 
-     * <p>
-     * The queue is then shut down and all links to other agents are removed.
+     * Submits a message pump task to the scheduler if this Agent runs on one
+     * and a pump task is not already in flight.
      */
-    public void shutdown() {
+    private void schedulePump() {
         
-        /* 
-         * Set the signal to not accept any more messages into the queue and for
-         * the queue to finish processing any remaining messages. We need the
-         * lock in so we can guarantee that everything added to the queue before
-         * this point will be processed. 
-         */
-        synchronized (shutdownLock) {
-            shutdown = true;
-            underlyingThread.interrupt();
+        // Agents with a dedicated thread have nothing to schedule.
+        if (scheduler == null) { return; }
+        
+        if (pumpScheduled.compareAndSet(false, true)) {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runScheduledPump();
+                }
+            });
         }
         
-        // Wait for the queue thread to finish.
-        try {
-            underlyingThread.join();
-        } catch (InterruptedException ex) {
-            System.out.println("Thread was interrupted during message pump shutdown.");
+    }
+    
+    /**
+     * Processes a bounded number of queued messages on a scheduler worker 
+     * thread, resubmitting itself if there are still messages waiting so that
+     * other agents get a fair share of the scheduler.
+     */
+    private void runScheduledPump() {
+        
+        pumpThread = Thread.currentThread();
+        final List<Message> batch = new ArrayList<>(messageBatchSize);
+        int processed = 0;
+        while (processed < PUMP_TASK_QUANTUM) {
+            final int drained = messageQueue.drainTo(batch, 
+                    Math.min(messageBatchSize, PUMP_TASK_QUANTUM - processed));
+            if (drained == 0) { break; }
+            dispatchBatch(batch);
+            batch.clear();
+            processed += drained;
         }
+        pumpThread = null;
         
         /* 
-         * Shutdown the the thread pool if we are cloneable and wait till all 
-         * the threads are finished. 
+         * Release the pump before checking the queue again. A producer that 
+         * added a message after our last poll but before this point will have
+         * seen the pump as still scheduled, so we must pick its message up.
          */
-        if (executorService != null) {
+        pumpScheduled.set(false);
+        if (!messageQueue.isEmpty()) {
+            schedulePump();
+        } else {
+            synchronized (pumpIdleLock) {
+                pumpIdleLock.notifyAll();
+            }
+        }
+        
+    }
+    
+    /**
+     * Notifies any {@link BatchMessageListener} instances of a batch of 
+     * messages taken off the message queue, then dispatches each message in 
+     * the batch to be handled.
+     * 
+     * @param batch the messages taken off the message queue, in queue order
+     */
+    private void dispatchBatch(List<Message> batch) {
+        
+        if (!batchListeners.isEmpty()) {
+            
+            final List<Message> intercepted = Collections.unmodifiableList(
+                    new ArrayList<>(batch));
+            final List<Message> received = new ArrayList<>(batch.size());
+            for (Message current : batch) {
+                if (current.getRecipient().equals(name)) {
+                    received.add(current);
+                }
+            }
+            
+            for (BatchMessageListener current : batchListeners) {
+                current.messagesIntercepted(this, intercepted);
+                if (!received.isEmpty()) {
+                    current.messagesReceived(this, 
+                            Collections.unmodifiableList(received));
+                }
+            }
+            
+        }
+        
+        for (Message current : batch) {
+            dispatchMessage(current);
+        }
+        
+    }
+    
+    /**
+     * Hands a message taken off the message queue to be handled, either on the
+     * calling thread or on a separate thread if this Agent is cloneable.
+     * 
+     * @param message   the message to dispatch
+     */
+    private void dispatchMessage(final Message message) {
+        
+        if (!isCloneable()) {
+
+            // Handle message in this thread.
+            handleMessage(message);
+
+        } else if (scheduler == null && keyedExecutor == null) {
+
+            // Handle message on a seperate thread.
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleMessage(message);
+                }
+            });
+
+        } else {
+            
+            /*
+             * Handle message on another worker thread, keeping count so that 
+             * a scheduled shutdown knows when every clone has finished.
+             */
+            activeCloneCount.incrementAndGet();
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handleMessage(message);
+                    } finally {
+                        cloneFinished();
+                    }
+                }
+            };
+            
+            // Keep messages that share a key in order if asked to.
+            try {
+                if (keyedExecutor != null) {
+                    keyedExecutor.execute(getMessageKey(message), task);
+                } else {
+                    scheduler.execute(task);
+                }
+            } catch (RejectedExecutionException ex) {
+                System.out.println("Agent [" + name + "] could not hand message ["
+                        + message.getId() + "] to a worker: " + ex.getMessage());
+                cloneFinished();
+            }
+            
+        }
+        
+    }
+    
+    /**
+     * Records that a cloned handler has finished, waking a scheduled shutdown
+     * if it was the last one.
+     */
+    private void cloneFinished() {
+        if (activeCloneCount.decrementAndGet() == 0) {
+            synchronized (pumpIdleLock) {
+                pumpIdleLock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Gets the ordering key of a message for keyed ordering, falling back to 
+     * its originator if the configured extractor fails or gives no key.
+     * 
+     * @param message   the message to get the key of
+     * @return          the ordering key of the message, never null
+     */
+    private Object getMessageKey(Message message) {
+        
+        Object key = null;
+        try {
+            key = messageKeyExtractor.getKey(message);
+        } catch (RuntimeException ex) {
+            System.out.println("Message key extractor for agent [" + name 
+                    + "] threw an exception: " + ex.getMessage());
+        }
+        if (key == null) {
+            key = MessageKeyExtractor.ORIGINATOR.getKey(message);
+        }
+        return (key == null ? name : key);
+        
+    }
+    
+    /**
+     * Blocks until the scheduled message pump has emptied the message queue 
+     * and every cloned handler has finished.
+     * <p>
+     * This must only be called once shutdown has been signalled so that no 
+     * new messages can be queued.
+     */
+    private void awaitScheduledPumpIdle() {
+        
+        synchronized (pumpIdleLock) {
+            while (pumpScheduled.get() || !messageQueue.isEmpty() 
+                    || activeCloneCount.get() > 0) {
+                
+                // Make sure anything left in the queue has a pump to drain it.
+                schedulePump();
+                try {
+                    pumpIdleLock.wait(PUMP_IDLE_CHECK_INTERVAL);
+                } catch (InterruptedException ex) {
+                    System.out.println("Thread was interrupted during message pump shutdown.");
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        
+    }
+        
+    /**
+     * Prevents any more messages from being added to this Agent's message queue
+     * and processes any that remain. 
+     * <p>
+     * The queue is then shut down and all links to other agents are removed.
+     */
+    public void shutdown() {
+        
+        /* 
+         * Set the signal to not accept any more messages into the queue and for
+         * the queue to finish processing any remaining messages. We need the
+         * lock in so we can guarantee that everything added to the queue before
+         * this point will be processed. 
+         */
+        synchronized (shutdownLock) {
+            shutdown = true;
+        }
+        
+        /*
+         * Wait for any producers that got past the shutdown check to finish
+         * queueing. The pump is still running so even a producer blocked on a
+         * full mailbox will get through.
+         */
+        boolean interrupted = false;
+        synchronized (activeProducerCount) {
+            while (activeProducerCount.get() > 0) {
+                try {
+                    activeProducerCount.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        pumpStopRequested = true;
+        if (underlyingThread != null) {
+            underlyingThread.interrupt();
+        }
+        
+        if (underlyingThread != null) {
+            
+            // Wait for the queue thread to finish.
+            try {
+                underlyingThread.join();
+            } catch (InterruptedException ex) {
+                System.out.println("Thread was interrupted during message pump shutdown.");
+            }
+            
+        } else {
+            
+            // Wait for the scheduled pump to drain the queue.
+            awaitScheduledPumpIdle();
+            
+        }
+        
+        /* 
+         * Shutdown the the thread pool if we are cloneable and wait till all 
+         * the threads are finished. 
+         */
+        if (executorService != null) {
             try {
                 executorService.shutdown();
                 executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
@@ -507,6 +1209,12 @@ public class Agent implements RoutingWorkerListener {
             }
         }
 
+        // Snapshot our routing table while our links are still in place.
+        if (routingTableSnapshotTask != null) {
+            routingTableSnapshotTask.cancel(false);
+        }
+        saveRoutingTable();
+        
         final ArrayList<Agent> branches = new ArrayList<>(connectedAgents.size());
         final ArrayList<String> agentNames = new ArrayList<>(connectedAgents.size());
         
@@ -516,248 +1224,1111 @@ public class Agent implements RoutingWorkerListener {
             agentNames.add(current.getName());
         }
         
-        // Remove all links to other Agents.
-        for (Agent agent : connectedAgents) {
-            unregisterConnectedAgent(agent);
-            agent.unregisterConnectedAgent(this);
+        // Remove all links to other Agents.
+        for (Agent agent : connectedAgents) {
+            unregisterConnectedAgent(agent);
+            agent.unregisterConnectedAgent(this);
+        }
+        
+        if (invalidationMode == InvalidationMode.LAZY) {
+            for (String current : agentNames) {
+                LinkGenerations.linkBroken(name, current);
+            }
+        } else {
+            final Undertaker undertaker = new Undertaker(branches, agentNames);
+            undertaker.undertakeAsync();
+        }
+        
+        // Stop the scheduled dispatch cleaner task
+        dispatchCleanupTask.cancel(false);
+        if (dispatchCleanupExecutorService != null) {
+            dispatchCleanupExecutorService.shutdown();
+        }
+        
+        // Clear all data.
+        messageQueue.clear();
+        connectedAgents.clear();
+        connectedAgentsByName.clear();
+        synchronized (messageDispatchLock) {
+            for (RoutePrefetch current : prefetches) {
+                current.abandon();
+            }
+            prefetches.clear();
+        }
+        awaitingRoutingMap.clear();
+        dispatchMap.clear();
+        releasingRecipients.clear();
+        routingTable.clear();
+        listeners.clear();
+        batchListeners.clear();
+        routeFailureListeners.clear();
+
+    }
+
+    /**
+     * Sends a message from this Agent to another.
+     * 
+     * @param recipientName the name of the recipient Agent
+     * @param data          the data to attach to the message
+     */
+    public void sendMessage(String recipientName, String data) {
+        sendMessage(recipientName, data, null);
+    }
+
+    /**
+     * Sends a message from this Agent to another as part of a flow.
+     * <p>
+     * If this Agent keeps several routes to the recipient, every message sent
+     * with an equal flow key takes the same one for as long as it is kept, so
+     * messages within a flow arrive in the order they were sent.
+     * 
+     * @param recipientName the name of the recipient Agent
+     * @param data          the data to attach to the message
+     * @param flowKey       the key of the flow the message belongs to, or null
+     *                      if it belongs to none
+     * @see AgentConfiguration#setMaximumRoutes
+     */
+    public void sendMessage(String recipientName, String data, Object flowKey) {
+
+        Objects.requireNonNull(recipientName, "The recipient of a message cannot be null.");
+        
+        /*
+         * Anyone else holding this lock will prevent any messages been dispatched
+         * or processed until it is released.
+         */
+        final List<Message> outgoing = new ArrayList<>(1);
+        final RoutingWorker worker;
+        final boolean turnedAway;
+        synchronized (messageDispatchLock) {
+
+            // If we can send the message right away, we're done.
+            if (releasingRecipients.contains(recipientName)) {
+                
+                // Earlier messages are still being sent, so go after them.
+                awaitRouting(recipientName, data, flowKey);
+                turnedAway = false;
+                worker = null;
+                
+            } else if (originate(recipientName, data, flowKey, outgoing)) {
+                turnedAway = false;
+                worker = null;
+            } else if (!awaitingRoutingMap.containsKey(recipientName) 
+                    && negativeRouteCache.isUnreachable(recipientName)) {
+                
+                /*
+                 * Don't search the network again for a recipient we recently 
+                 * couldn't find, unless we're already searching for it anyway.
+                 */
+                turnedAway = true;
+                worker = null;
+            } else {
+                
+                /*
+                 * We need to route first, then send the message when the routing 
+                 * worker calls back.
+                 */
+                System.out.println("Awaiting routing to Agent [" + recipientName + "]...");
+                turnedAway = false;
+                awaitRouting(recipientName, data, flowKey);
+                worker = calculateRoute(recipientName);
+                
+            }
+
+        }
+        
+        // Hand the message to our mailbox, now we've let go of the lock.
+        submit(outgoing);
+        
+        // Tell the sender if we turned the message away.
+        if (turnedAway) {
+            notifyRouteFailed(recipientName, Collections.singletonList(data));
+        }
+        
+        /*
+         * Start routing outside of the lock, since a busy routing executor may
+         * run the worker on this thread.
+         */
+        if (worker != null) {
+            worker.mapRouteAsync();
+        }
+        
+    }
+    
+    /**
+     * Finds the routes to several recipients ahead of sending them anything.
+     * <p>
+     * Every recipient without a route is sought by a single search of the 
+     * local network, and any not found locally are asked about together 
+     * through each SocketAgent the search comes across. Messages sent to the
+     * recipients in the meantime wait on these routes rather than starting 
+     * searches of their own.
+     * <p>
+     * The future returned completes once the route to every recipient is 
+     * known or the search for it has failed. It maps each recipient to its 
+     * route, or to null if none could be found.
+     * 
+     * @param recipientNames    the names of the recipient Agents
+     * @return                  a future that completes once every route is 
+     *                          known
+     * @see denobo.socket.SocketAgentConfiguration#setBatchesRouteRequests
+     */
+    public Future<Map<String, Route>> prefetchRoutes(Collection<String> recipientNames) {
+        
+        final RoutePrefetch prefetch = new RoutePrefetch(recipientNames);
+        final RoutingWorker worker;
+        synchronized (messageDispatchLock) {
+            
+            final List<String> unresolved = new ArrayList<>();
+            for (String current : recipientNames) {
+                
+                final Route route = (current.equals(name) ? null 
+                        : routingTable.getRoute(resolveRoutes(current)));
+                if (route != null) {
+                    prefetch.resolve(current, route);
+                } else if (awaitingRoutingMap.containsKey(current)) {
+                    
+                    // We're already searching for this one, so wait on that.
+                    continue;
+                    
+                } else if (current.equals(name) || negativeRouteCache.isUnreachable(current)) {
+                    prefetch.resolve(current, null);
+                } else if (!unresolved.contains(current)) {
+                    awaitingRoutingMap.put(current, Long.valueOf(System.currentTimeMillis()));
+                    unresolved.add(current);
+                }
+                
+            }
+            
+            if (!prefetch.isDone()) {
+                prefetches.add(prefetch);
+            }
+            if (unresolved.isEmpty()) {
+                worker = null;
+            } else {
+                worker = new RoutingWorker(this, unresolved);
+                worker.setMaximumRoutes(maximumRoutes);
+                worker.addRoutingWorkerListener(this);
+            }
+            
+        }
+        
+        /*
+         * Search outside of the lock, since a busy routing executor may run 
+         * the worker on this thread. Recipients the search finds can't be 
+         * reached fail straight away rather than waiting to time out.
+         */
+        if (worker != null) {
+            RoutingExecutor.getShared().execute(RoutingExecutor.TaskType.ROUTING, 
+                    new Runnable() {
+                @Override
+                public void run() {
+                    worker.run();
+                    routesUnreachable(worker.getUnreachableDestinations());
+                }
+            });
+        }
+        return prefetch;
+        
+    }
+    
+    /**
+     * Gives up on the routes to recipients that a search found can't be 
+     * reached.
+     * 
+     * @param recipientNames    the names of the recipient Agents
+     */
+    private void routesUnreachable(Set<String> recipientNames) {
+        
+        final Map<String, List<String>> discarded = new HashMap<>();
+        synchronized (messageDispatchLock) {
+            for (String current : recipientNames) {
+                if (awaitingRoutingMap.remove(current) != null) {
+                    abandonRouting(current, discarded);
+                }
+            }
+        }
+        
+        // Tell the senders, now we've let go of the lock.
+        for (Entry<String, List<String>> current : discarded.entrySet()) {
+            notifyRouteFailed(current.getKey(), current.getValue());
+        }
+        
+    }
+    
+    /**
+     * Clears away everything waiting on a route to a recipient that will not
+     * be found, once it has been removed from {@link #awaitingRoutingMap}.
+     * <p>
+     * The caller must hold {@link #messageDispatchLock}.
+     * 
+     * @param recipientName the name of the recipient Agent
+     * @param discarded     populated with the data of any messages discarded,
+     *                      keyed by recipient name
+     */
+    private void abandonRouting(String recipientName, Map<String, List<String>> discarded) {
+        
+        /**
+         * The calculation to this route has failed so we will clear any 
+         * waiting messages that were waiting to be dispatched to this 
+         * destination
+         */
+        final List<PendingMessage> waitingMessages = dispatchMap.remove(recipientName);
+        if (waitingMessages != null) {
+            System.out.println("Cleared " + waitingMessages.size() 
+                    + " messages intended for " + recipientName 
+                    + " due to routing failure.");
+            final List<String> data = new ArrayList<>(waitingMessages.size());
+            for (PendingMessage current : waitingMessages) {
+                data.add(current.data);
+            }
+            discarded.put(recipientName, data);
+        }
+
+        // Turn away messages to the destination for a while.
+        negativeRouteCache.routeFailed(recipientName);
+        
+        resolvePrefetches(recipientName, null);
+        
+    }
+    
+    /**
+     * Tells any route prefetches waiting on a route to a recipient that it is
+     * known.
+     * <p>
+     * The caller must hold {@link #messageDispatchLock}.
+     * 
+     * @param recipientName the name of the recipient Agent
+     * @param route         the route to the recipient, or null if none could 
+     *                      be found
+     */
+    private void resolvePrefetches(String recipientName, Route route) {
+        final Iterator<RoutePrefetch> iterator = prefetches.iterator();
+        while (iterator.hasNext()) {
+            final RoutePrefetch current = iterator.next();
+            current.resolve(recipientName, route);
+            if (current.isDone()) {
+                iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * Originates a message from this Agent along the route stored in its
+     * routing table for the recipient.
+     * <p>
+     * The message is added to a list rather than straight into the mailbox. 
+     * The caller must hold {@link #messageDispatchLock}, and 
+     * {@link #submit} the list once it has released it.
+     * 
+     * @param recipientName the name of the recipient Agent
+     * @param data          the data to attach to the message
+     * @param flowKey       the key of the flow the message belongs to, or null
+     * @param outgoing      the list to add the message to
+     * @return              true if message sending was successful, otherwise
+     *                      false
+     */
+    private boolean originate(String recipientName, String data, Object flowKey,
+            List<Message> outgoing) {
+        
+        final String routingKey = resolveRoutes(recipientName);
+        
+        // Check and retrieve if there is a route to the specified recipient.
+        final Route route = (maximumRoutes > 1 ? selectRoute(routingKey, flowKey) 
+                : routingTable.getRoute(routingKey));
+        if (route == null) {
+            // No route.
+            return false;
+        }
+
+        final Message message;
+        if (route.getZone() != null) {
+            
+            // The route ends at the gateway to the recipient's zone.
+            message = new Message(UniqueIdFactory.getId(), name, recipientName, route, data);
+            message.getRoute().next();
+            
+        } else if (forwardingMode == ForwardingMode.NEXT_HOP 
+                && primedDestinations.contains(recipientName)) {
+            
+            // The agents along the route know the way, so send it bare.
+            message = new Message(name, recipientName, data);
+            
+        } else {
+            
+            /*
+             * Create message and attach route, asking the agents along the way
+             * to learn from it if we're going to send bare messages after it.
+             */
+            message = new Message(UniqueIdFactory.getId(), route, data, 
+                    forwardingMode == ForwardingMode.NEXT_HOP 
+                    && primedDestinations.add(recipientName));
+
+            // The first entry in the routing queue is this agent. Discard this entry.
+            message.getRoute().next();
+            
+        }
+
+        // Queue the message here for processing once the lock is released.
+        outgoing.add(message);
+
+        // Message sent, success.
+        return true;
+
+    }
+    
+    /**
+     * Chooses which of the routes kept to a recipient a message should take.
+     * 
+     * @param recipientName the name of the recipient Agent
+     * @param flowKey       the key of the flow the message belongs to, or null
+     * @return              the route to take, or null if there is none
+     */
+    private Route selectRoute(String recipientName, Object flowKey) {
+        
+        final List<Route> routes = routingTable.getRoutes(recipientName);
+        if (routes.size() < 2) {
+            return routes.isEmpty() ? null : routes.get(0);
+        }
+        
+        /*
+         * Pin flows to a route by the name of its next agent, so that a flow 
+         * only moves if the route it was on goes.
+         */
+        if (flowKey != null) {
+            Route pinned = null;
+            int highest = 0;
+            for (Route current : routes) {
+                final int score = mix(flowKey.hashCode() * 31 
+                        + current.getPath().get(1).hashCode());
+                if (pinned == null || score > highest) {
+                    pinned = current;
+                    highest = score;
+                }
+            }
+            return pinned;
+        }
+        
+        switch (multipathPolicy) {
+            
+            case LEAST_QUEUE_DEPTH:
+                
+                Route shallowest = null;
+                int lowest = 0;
+                for (Route current : routes) {
+                    final Agent nextAgent = connectedAgentsByName.get(current.getPath().get(1));
+                    final int depth = (nextAgent == null ? Integer.MAX_VALUE 
+                            : nextAgent.getQueuedMessageCount());
+                    if (shallowest == null || depth < lowest) {
+                        shallowest = current;
+                        lowest = depth;
+                    }
+                }
+                return shallowest;
+                
+            default:
+                
+                return routes.get((multipathCounter.getAndIncrement() & Integer.MAX_VALUE) 
+                        % routes.size());
+                
+        }
+        
+    }
+    
+    /**
+     * Scrambles the bits of a hash code.
+     * 
+     * @param hash  the hash code
+     * @return      the scrambled hash code
+     */
+    private static int mix(int hash) {
+        final int scrambled = hash * 0x9E3779B9;
+        return scrambled ^ (scrambled >>> 16);
+    }
+    
+    /**
+     * Takes a recipient name/message data pair and stores it while it awaits
+     * calculation of a route to the recipient.
+     * 
+     * @param recipientName the name of the recipient Agent
+     * @param data          the data to attach to the message
+     * @param flowKey       the key of the flow the message belongs to, or null
+     */
+    private void awaitRouting(String recipientName, String data, Object flowKey) {
+        awaitRouting(recipientName, new PendingMessage(data, flowKey));
+    }
+    
+    /**
+     * Stores a message while it awaits calculation of a route to its 
+     * recipient.
+     * 
+     * @param recipientName the name of the recipient Agent
+     * @param pending       the message waiting
+     */
+    private void awaitRouting(String recipientName, PendingMessage pending) {
+        
+        List<PendingMessage> messageList = dispatchMap.get(recipientName);
+        if (messageList == null) {
+            messageList = new ArrayList<>();
+            dispatchMap.put(recipientName, messageList);
+        }
+        messageList.add(pending);
+
+    }
+
+    /**
+     * Prepares a routing worker to calculate the route to the agent with the 
+     * specified name. When complete, the worker calls back on the 
+     * {@link #routeCalculationSucceeded} method.
+     * 
+     * @param agentName the name of the agent to route to
+     * @return          the routing worker to start, or null if we are already
+     *                  waiting on a route to that agent
+     */
+    private RoutingWorker calculateRoute(String agentName) {
+        
+        /* 
+         * If we're already waiting on a route to this agent. don't start trying
+         * to calculate it again.
+         */
+        if (awaitingRoutingMap.containsKey(agentName)) {
+            return null;
+        }
+        
+        awaitingRoutingMap.put(agentName, Long.valueOf(System.currentTimeMillis()));
+        final RoutingWorker worker = new RoutingWorker(this, agentName);
+        worker.setMaximumRoutes(maximumRoutes);
+        worker.addRoutingWorkerListener(this);
+        return worker;
+        
+    }
+    
+    @Override
+    public void routeCalculationSucceeded(String destinationAgentName, Route route) {
+    
+        System.out.println("Routing to Agent [" + destinationAgentName + "] complete:");
+        System.out.println(route.toString()); 
+        
+        /* 
+         * Hold off any messages being dispatched until we dispatch any waiting
+         * because it might be important that any waiting messages should be 
+         * dispatched first so that the other agent receives all messages in the
+         * order they were originally sent.
+         */
+        final List<Message> outgoing = new ArrayList<>();
+        final Set<String> released = new HashSet<>();
+        synchronized (messageDispatchLock) {
+        
+            // Add to routing table, under its zone if it leads into one.
+            final String zone = route.getZone();
+            final String routingKey = (zone == null ? destinationAgentName 
+                    : RoutingTable.zoneKey(zone));
+            routingTable.addRoute(routingKey, route);
+            
+            /*
+             * A route into a zone reaches every recipient in it, so anything 
+             * waiting on any of them can go now too.
+             */
+            final Set<String> reached = new LinkedHashSet<>();
+            reached.add(destinationAgentName);
+            if (zone != null) {
+                for (String current : awaitingRoutingMap.keySet()) {
+                    if (current.startsWith(zone)) { reached.add(current); }
+                }
+                for (String current : dispatchMap.keySet()) {
+                    if (current.startsWith(zone)) { reached.add(current); }
+                }
+            }
+            
+            for (String recipientName : reached) {
+                
+                // Remove from awaiting list.
+                awaitingRoutingMap.remove(recipientName);
+                negativeRouteCache.routeFound(recipientName);
+                resolvePrefetches(recipientName, routingTable.getRoute(routingKey));
+                
+                // The route may have changed, so teach the agents along it again.
+                primedDestinations.remove(recipientName);
+
+                /*
+                 * Any messages waiting for this route are now free to be sent.
+                 */
+                final int waitingCount = releasePending(recipientName, outgoing);
+                if (waitingCount > 0) {
+                    System.out.println("Found " + waitingCount + " messages waiting.");
+                    released.add(recipientName);
+                }
+                
+            }
+
+        }
+        
+        // Hand any waiting messages to our mailbox, now we've let go of the lock.
+        submit(outgoing);
+        finishReleasing(released);
+        
+        // Look for a way around the route, outside of the lock.
+        if (backupRoutes && routingTable.getBackupRoute(destinationAgentName) == null) {
+            calculateBackupRoute(destinationAgentName);
+        }
+        
+    }
+    
+    /**
+     * Sends the messages waiting on a recipient, marking it as being released
+     * so that any messages sent to it before they're submitted wait behind 
+     * them.
+     * <p>
+     * The caller must hold {@link #messageDispatchLock}, {@link #submit} the 
+     * list once it has released it, and then {@link #finishReleasing}.
+     * 
+     * @param recipientName the name of the recipient
+     * @param outgoing      the list to add the messages to
+     * @return              the number of messages that were waiting
+     */
+    private int releasePending(String recipientName, List<Message> outgoing) {
+        
+        final List<PendingMessage> waitingMessages = dispatchMap.remove(recipientName);
+        if (waitingMessages == null) {
+            releasingRecipients.remove(recipientName);
+            return 0;
+        }
+        
+        releasingRecipients.add(recipientName);
+        for (PendingMessage current : waitingMessages) {
+            if (current.relayed != null) {
+                forward(current.relayed, outgoing);
+            } else {
+                originate(recipientName, current.data, current.flowKey, outgoing);
+            }
+        }
+        return waitingMessages.size();
+        
+    }
+    
+    /**
+     * Sends any messages that queued up behind those released to recipients,
+     * until none are left and the recipients can be sent to directly again.
+     * <p>
+     * This must be called without holding {@link #messageDispatchLock}.
+     * 
+     * @param released  the names of the recipients released
+     */
+    private void finishReleasing(Set<String> released) {
+        
+        while (!released.isEmpty()) {
+            final List<Message> outgoing = new ArrayList<>();
+            synchronized (messageDispatchLock) {
+                final Iterator<String> iterator = released.iterator();
+                while (iterator.hasNext()) {
+                    if (releasePending(iterator.next(), outgoing) == 0) {
+                        iterator.remove();
+                    }
+                }
+            }
+            submit(outgoing);
+        }
+        
+    }
+    
+    /**
+     * Removes any pending messages from the dispatch map that have been there
+     * longer than the specified timeout.
+     * <p>
+     * We can assume that if messages are not delivered by a certain timeout,
+     * the destination does not exist so to prevent us leaking memory we will
+     * need to cleanup any messages that we will not be dispatching.
+     * 
+     * @param timeout the timeout in milliseconds
+     */
+    private void cleanupDispatch(long timeout) {
+        
+        /* 
+         * Hold off any messages been dispatched so we can safely operate on any
+         * data structures used by the dispatch process.
+         */ 
+        final Map<String, List<String>> discarded = new HashMap<>();
+        synchronized (messageDispatchLock) {
+            
+            /*
+             * Go through every destination entry we are currently trying to find a
+             * route to.
+             */
+                   
+            final Iterator<Entry<String, Long>> routingEntry = 
+                                            awaitingRoutingMap.entrySet().iterator();
+            while (routingEntry.hasNext()) {
+                final Entry<String, Long> currentEntry = routingEntry.next();
+
+                /* 
+                 * Check if the current destination to route has still not been
+                 * calculated before the specified timeout.
+                 */
+                if ((System.currentTimeMillis() - currentEntry.getValue()) >= timeout) {
+
+                    // Remove the routing entry from the awaitingRoutingMap
+                    routingEntry.remove();
+                    
+                    // Then clear away anything waiting on it.
+                    abandonRouting(currentEntry.getKey(), discarded);
+
+                }
+
+            }
+            
+            negativeRouteCache.purge();
+            
+        }
+        
+        // Tell the senders, now we've let go of the lock.
+        for (Entry<String, List<String>> current : discarded.entrySet()) {
+            notifyRouteFailed(current.getKey(), current.getValue());
+        }
+
+    }
+    
+    /**
+     * Notifies any {@link RouteFailureListener} objects that messages have been
+     * discarded for want of a route.
+     * 
+     * @param destinationAgentName  the name of the recipient of the messages
+     * @param data                  the data attached to the messages
+     */
+    private void notifyRouteFailed(String destinationAgentName, List<String> data) {
+        final List<String> readOnlyData = Collections.unmodifiableList(data);
+        for (RouteFailureListener current : routeFailureListeners) {
+            current.routeFailed(this, destinationAgentName, readOnlyData);
+        }
+    }
+    
+    /**
+     * Invalidates a name from this agent's routing table.
+     * <p>
+     * Every route in this agent's routing table starts with this agent, so 
+     * its own name is ignored. The lost link is identified by the name at its
+     * other end, which is always invalidated alongside it.
+     * 
+     * @param agentName the name of the agent to invalidate
+     */
+    public void invalidateAgentName(String agentName) {
+        
+        if (agentName.equals(name)) {
+            return;
+        }
+        
+        final Set<String> unprotected = routingTable.invalidateAgent(agentName);
+        primedDestinations.clear();
+        
+        // Replace any backup routes that were used or lost.
+        if (backupRoutes) {
+            for (String current : unprotected) {
+                calculateBackupRoute(current);
+            }
+        }
+        
+    }
+    
+    /**
+     * Invalidates the link between two agents from this agent's routing table.
+     * <p>
+     * Only routes that cross the link are removed, so routes through either 
+     * agent that don't use the link are kept.
+     * 
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     */
+    public void invalidateLink(String agentName, String otherAgentName) {
+        
+        final Set<String> unprotected = routingTable.invalidateLink(agentName, otherAgentName);
+        primedDestinations.clear();
+        
+        // Replace any backup routes that were used or lost.
+        if (backupRoutes) {
+            for (String current : unprotected) {
+                calculateBackupRoute(current);
+            }
+        }
+        
+    }
+    
+    /**
+     * Starts calculating a backup route to a destination around the route in
+     * this agent's routing table, unless one is already being calculated.
+     * 
+     * @param agentName the name of the destination agent
+     */
+    private void calculateBackupRoute(final String agentName) {
+        
+        // There's no way around the gateway to a zone.
+        final Route route = routingTable.getRoute(agentName);
+        if (route == null || route.size() < 2 || route.getZone() != null) {
+            return;
+        }
+        
+        // Give up on any earlier calculation that's taken too long.
+        final long now = System.currentTimeMillis();
+        final Long started = awaitingBackupMap.get(agentName);
+        if (started != null && now - started < ROUTE_CALCULATION_TIMEOUT) {
+            return;
+        }
+        awaitingBackupMap.put(agentName, now);
+        
+        /*
+         * Avoid every agent between us and the destination. If there are none
+         * the cheapest route found will be the one we already have, so ask 
+         * for the next cheapest too, however much more it costs.
+         */
+        final RoutingWorker worker = new RoutingWorker(this, agentName);
+        worker.avoid(route.getPath().subList(1, route.size() - 1));
+        worker.setMaximumRoutes(2);
+        worker.setMultipathCostTolerance(Double.POSITIVE_INFINITY);
+        worker.setUsesBacktracking(false);
+        worker.addRoutingWorkerListener(new RoutingWorkerListener() {
+            @Override
+            public void routeCalculationSucceeded(String destinationAgentName, Route route) {
+                if (routingTable.setBackupRoute(destinationAgentName, route)) {
+                    awaitingBackupMap.remove(destinationAgentName);
+                }
+            }
+        });
+        worker.mapRouteAsync();
+        
+    }
+    
+    /**
+     * Clears this agent's routing table.
+     */
+    public void clearRoutingTable() {
+        routingTable.clear();
+        primedDestinations.clear();
+        awaitingBackupMap.clear();
+    }
+    
+    /**
+     * Gets the name of the next agent a message should be forwarded to.
+     * <p>
+     * This is the next agent on the message's route if it has one, otherwise
+     * the next hop to its recipient in this Agent's routing table.
+     * 
+     * @param message   the message to forward
+     * @return          the name of the next agent, or null if there is none
+     */
+    protected String getNextHop(Message message) {
+        final Route route = message.getRoute();
+        if (route != null) {
+            return route.peek();
+        }
+        validateRoutes(message.getRecipient());
+        return routingTable.getNextHop(message.getRecipient());
+    }
+    
+    /**
+     * Finds the first link along a route from this Agent that is no longer in
+     * place, as far as can be seen from this process.
+     * <p>
+     * The route is followed from agent to agent for as long as it stays in 
+     * this process. Once it crosses a connection to a remote agent, the rest 
+     * of it is taken on trust.
+     * 
+     * @param route the route to check
+     * @return      the names of the agents at the ends of the broken link, or
+     *              null if none was found
+     */
+    private String[] findBrokenLink(Route route) {
+        
+        final List<String> path = route.getPath();
+        Agent current = this;
+        for (int i = 1; i < path.size(); i++) {
+            final Agent next = current.connectedAgentsByName.get(path.get(i));
+            if (next == null) {
+                return current.hasRemoteLink(path.get(i)) ? null 
+                        : new String[] {current.getName(), path.get(i)};
+            }
+            current = next;
+        }
+        return null;
+        
+    }
+    
+    /**
+     * Gets whether or not this Agent has a link to an agent in another 
+     * process.
+     * 
+     * @param agentName the name of the remote agent
+     * @return          true if this Agent is linked to the remote agent, 
+     *                  otherwise false
+     */
+    protected boolean hasRemoteLink(String agentName) {
+        return false;
+    }
+    
+    /**
+     * Writes a snapshot of this Agent's routing table, handing the write to 
+     * a scheduler worker if this Agent runs on a scheduler so that its timer 
+     * thread is never held up by file I/O.
+     */
+    private void scheduleSnapshot() {
+        
+        // Agents with a dedicated thread write from their own timer thread.
+        if (scheduler == null) {
+            saveRoutingTable();
+            return;
         }
         
-        final Undertaker undertaker = new Undertaker(branches, agentNames);
-        undertaker.undertakeAsync();
-        
-        // Stop the scheduled dispatch cleaner task
-        dispatchCleanupExecutorService.shutdown();
+        if (snapshotScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            saveRoutingTable();
+                        } finally {
+                            snapshotScheduled.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                snapshotScheduled.set(false);
+                System.out.println("Agent [" + name + "] could not hand routing "
+                        + "table snapshot to a worker: " + ex.getMessage());
+            }
+        }
         
-        // Clear all data.
-        messageQueue.clear();
-        connectedAgents.clear();
-        awaitingRoutingMap.clear();
-        dispatchMap.clear();
-        routingTable.clear();
-        listeners.clear();
-
     }
-
+    
     /**
-     * Sends a message from this Agent to another.
+     * Writes a snapshot of this Agent's routing table to its snapshot file, 
+     * if it keeps one.
+     * <p>
+     * The snapshot is written alongside the file first and then moved into 
+     * place, so a snapshot cut short never replaces a good one. Only one 
+     * snapshot is written at a time.
      * 
-     * @param recipientName the name of the recipient Agent
-     * @param data          the data to attach to the message
+     * @see AgentConfiguration#setRoutingTableSnapshotDirectory
      */
-    public void sendMessage(String recipientName, String data) {
-
-        Objects.requireNonNull(recipientName, "The recipient of a message cannot be null.");
+    public void saveRoutingTable() {
         
-        /*
-         * Anyone else holding this lock will prevent any messages been dispatched
-         * or processed until it is released.
-         */
-        synchronized (messageDispatchLock) {
-
-            // If we can't send the message right away because a route is missing.
-            if (!originate(recipientName, data)) {
-
-                /*
-                 * We need to route first, then send the message when the routing 
-                 * worker calls back.
-                 */
-                System.out.println("Awaiting routing to Agent [" + recipientName + "]...");
-                awaitRouting(recipientName, data);
-                calculateRoute(recipientName);
-
+        if (routingTableSnapshotFile == null) { return; }
+        
+        final File temporaryFile = new File(routingTableSnapshotFile.getPath() + ".tmp");
+        synchronized (snapshotLock) {
+            try {
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(temporaryFile), StandardCharsets.UTF_8))) {
+                    routingTable.writeSnapshot(writer);
+                }
+                Files.move(temporaryFile.toPath(), routingTableSnapshotFile.toPath(), 
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                System.out.println("Could not save routing table snapshot for " 
+                        + name + ": " + ex.getMessage());
             }
-
         }
         
     }
     
     /**
-     * Originates a message from this Agent along the route stored in its
-     * routing table for the recipient.
+     * Reloads this Agent's routing table from its snapshot file, if there is
+     * one.
      * <p>
-     * If the routing table has no entry to the recipient, an exception will
-     * be thrown.
-     * 
-     * @param recipientName the name of the recipient Agent
-     * @param data          the data to attach to the message
-     * @return              true if message sending was successful, otherwise
-     *                      false
+     * Every route reloaded is provisional until it is first used.
      */
-    private boolean originate(String recipientName, String data) {
+    private void loadRoutingTable() {
         
-        // Check and retrieve if there is a route to the specified recipient.
-        final Route route = routingTable.getRoute(recipientName);
-        if (route == null) {
-            // No route.
-            return false;
+        if (!routingTableSnapshotFile.isFile()) { return; }
+        
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(routingTableSnapshotFile), StandardCharsets.UTF_8))) {
+            final int count = routingTable.readSnapshot(reader, name);
+            System.out.println("Reloaded " + count + " routes for " + name 
+                    + " from routing table snapshot.");
+        } catch (IOException ex) {
+            System.out.println("Could not load routing table snapshot for " 
+                    + name + ": " + ex.getMessage());
         }
-
-        // Create message and attach route
-        final Message message = new Message(route, data);
         
-        // The first entry in the routing queue is this agent. Discard this entry.
-        message.getRoute().next();
-
-        // Queue the message here for processing.
-        messageQueue.add(message);
-
-        // Message sent, success.
-        return true;
-
     }
     
     /**
-     * Takes a recipient name/message data pair and stores it while it awaits
-     * calculation of a route to the recipient.
+     * Drops any routes this Agent keeps to a recipient that cross a link lost
+     * since they were calculated.
+     * <p>
+     * This is cheap unless a link has been lost somewhere since the routes 
+     * were last checked.
      * 
-     * @param recipientName the name of the recipient Agent
-     * @param data          the data to attach to the message
+     * @param recipientName the name of the recipient
+     * @see                 LinkGenerations
      */
-    private void awaitRouting(String recipientName, String data) {
+    private void validateRoutes(String recipientName) {
         
-        List<String> messageList = dispatchMap.get(recipientName);
-        if (messageList == null) {
-            messageList = new ArrayList<>();
-            dispatchMap.put(recipientName, messageList);
+        // Check any routes reloaded from a snapshot the first time they're used.
+        if (routingTable.confirm(recipientName)) {
+            for (Route current : routingTable.getRoutes(recipientName)) {
+                final String[] broken = findBrokenLink(current);
+                if (broken != null) {
+                    System.out.println("Dropping reloaded route " + current 
+                            + " that no longer holds.");
+                    invalidateLink(broken[0], broken[1]);
+                }
+            }
+        }
+        
+        String[] lost;
+        while ((lost = routingTable.findLostLink(recipientName)) != null) {
+            invalidateLink(lost[0], lost[1]);
         }
-        messageList.add(data);
-
     }
-
+    
     /**
-     * Calculates the route to the agent with the specified name. When complete,
-     * calls back on the {@link #routeCalculationSucceeded} method.
+     * Gets the key the routes to a recipient are kept under in this Agent's
+     * routing table, dropping any routes on the way that no longer hold.
      * 
-     * @param agentName the name of the agent to route to
+     * @param recipientName the name of the recipient
+     * @return              the key of the routes to the recipient, or its 
+     *                      name if there are none
+     * @see                 RoutingTable#resolve
      */
-    private void calculateRoute(String agentName) {
+    private String resolveRoutes(String recipientName) {
         
-        /* 
-         * If we're already waiting on a route to this agent. don't start trying
-         * to calculate it again.
-         */
-        if (!awaitingRoutingMap.containsKey(agentName)) {
-            awaitingRoutingMap.put(agentName, Long.valueOf(System.currentTimeMillis()));
-            final RoutingWorker worker = new RoutingWorker(this, agentName);
-            worker.addRoutingWorkerListener(this);
-            worker.mapRouteAsync();                
+        validateRoutes(recipientName);
+        String routingKey;
+        while (!(routingKey = routingTable.resolve(recipientName)).equals(recipientName)) {
+            
+            // Fall back on a wider zone if the routes into this one are lost.
+            validateRoutes(routingKey);
+            if (routingTable.hasRoute(routingKey)) {
+                break;
+            }
+            
         }
+        return routingKey;
         
     }
     
-    @Override
-    public void routeCalculationSucceeded(String destinationAgentName, Route route) {
-    
-        System.out.println("Routing to Agent [" + destinationAgentName + "] complete:");
-        System.out.println(route.toString()); 
+    /**
+     * Relays a message that has reached the end of its route here, at the 
+     * gateway to its recipient's zone, on towards its recipient.
+     * <p>
+     * If there is no route to the recipient yet, the message waits while one 
+     * is found just as if it had been sent from here.
+     * 
+     * @param message   the message to relay
+     * @return          true if the message was relayed or is waiting on a 
+     *                  route, otherwise false
+     */
+    private boolean relay(Message message) {
         
-        /* 
-         * Hold off any messages being dispatched until we dispatch any waiting
-         * because it might be important that any waiting messages should be 
-         * dispatched first so that the other agent receives all messages in the
-         * order they were originally sent.
-         */
+        final String recipientName = message.getRecipient();
+        final List<Message> outgoing = new ArrayList<>(1);
+        final RoutingWorker worker;
         synchronized (messageDispatchLock) {
-        
-            // Remove from awaiting list.
-            awaitingRoutingMap.remove(destinationAgentName);
-
-            // Add to routing table.
-            routingTable.addRoute(destinationAgentName, route);
-
-            /*
-             * Any messages waiting for this route are now free to be sent.
-             */
-            final List<String> waitingMessages = dispatchMap.get(destinationAgentName);
-            if (waitingMessages != null) {
-
-                System.out.println("Found " + waitingMessages.size() + " messages waiting.");
-
-                // Send all waiting messages.
-                for (String current : waitingMessages) {
-                    originate(destinationAgentName, current);
-                }
-                dispatchMap.remove(destinationAgentName);
-
+            
+            if (releasingRecipients.contains(recipientName)) {
+                awaitRouting(recipientName, new PendingMessage(message));
+                worker = null;
+            } else if (forward(message, outgoing)) {
+                worker = null;
+            } else if (!awaitingRoutingMap.containsKey(recipientName) 
+                    && negativeRouteCache.isUnreachable(recipientName)) {
+                
+                // Don't search again for a recipient we recently couldn't find.
+                return false;
+                
+            } else {
+                awaitRouting(recipientName, new PendingMessage(message));
+                worker = calculateRoute(recipientName);
             }
-
+            
+        }
+        
+        submit(outgoing);
+        if (worker != null) {
+            worker.mapRouteAsync();
         }
+        return true;
         
     }
     
     /**
-     * Removes any pending messages from the dispatch map that have been there
-     * longer than the specified timeout.
+     * Sends a message being relayed on from this Agent along the route 
+     * stored in its routing table for the recipient.
      * <p>
-     * We can assume that if messages are not delivered by a certain timeout,
-     * the destination does not exist so to prevent us leaking memory we will
-     * need to cleanup any messages that we will not be dispatching.
+     * The caller must hold {@link #messageDispatchLock}, and {@link #submit}
+     * the list once it has released it.
      * 
-     * @param timeout the timeout in milliseconds
+     * @param message   the message to forward
+     * @param outgoing  the list to add the relayed message to
+     * @return          true if there was a route to send the message along,
+     *                  otherwise false
      */
-    private void cleanupDispatch(long timeout) {
+    private boolean forward(Message message, List<Message> outgoing) {
         
-        /* 
-         * Hold off any messages been dispatched so we can safely operate on any
-         * data structures used by the dispatch process.
-         */ 
-        synchronized (messageDispatchLock) {
-            
-            /*
-             * Go through every destination entry we are currently trying to find a
-             * route to.
-             */
-                   
-            final Iterator<Entry<String, Long>> routingEntry = 
-                                            awaitingRoutingMap.entrySet().iterator();
-            while (routingEntry.hasNext()) {
-                final Entry<String, Long> currentEntry = routingEntry.next();
-
-                /* 
-                 * Check if the current destination to route has still not been
-                 * calculated before the specified timeout.
-                 */
-                if ((System.currentTimeMillis() - currentEntry.getValue()) >= timeout) {
-
-                    /**
-                     * The calculation to this route has timed out so we will
-                     * clear any waiting messages that were waiting to be 
-                     * dispatched to this destination
-                     */
-                    final List<String> waitingMessages = dispatchMap.get(currentEntry.getKey());
-                    if (waitingMessages != null) {
-                        System.out.println("Cleared " + waitingMessages.size() 
-                                + " messages intended for " + currentEntry.getKey() 
-                                + " due to routing timeout.");
-                        waitingMessages.clear();
-                        dispatchMap.remove(currentEntry.getKey());
-                    }
-
-                    // Remove the routing entry from the awaitingRoutingMap
-                    routingEntry.remove();
-
-                }
-
-            }
-            
+        final Route route = routingTable.getRoute(resolveRoutes(message.getRecipient()));
+        if (route == null) {
+            return false;
         }
-
+        
+        final Message relayed = new Message(message.getId(), message.getOriginator(), 
+                message.getRecipient(), route, message.getData());
+        relayed.getRoute().next();
+        return outgoing.add(relayed);
+        
     }
     
     /**
-     * Invalidates a name from this agent's routing table.
+     * Submits messages sent or relayed under {@link #messageDispatchLock} to 
+     * this Agent's mailbox, in the order they were sent.
+     * <p>
+     * This must be called without holding {@link #messageDispatchLock}, as 
+     * submitting a message may block until the mailbox has room, and the 
+     * pump making room may need the lock. Messages this Agent sent that its
+     * mailbox turns away are reported to its route failure listeners before
+     * this returns.
      * 
-     * @param agentName the name of the agent to invalidate
+     * @param outgoing  the messages to submit
      */
-    public void invalidateAgentName(String agentName) {
-        routingTable.invalidateAgent(agentName);
+    private void submit(List<Message> outgoing) {
+        
+        for (Message current : outgoing) {
+            if (!enqueue(current, true) && current.getOriginator().equals(name)) {
+                notifyRouteFailed(current.getRecipient(), 
+                        Collections.singletonList(current.getData()));
+            }
+        }
+        
     }
     
     /**
-     * Clears this agent's routing table.
+     * Learns the routes to the originator and recipient of a route-learning 
+     * message from the part of its route either side of this Agent.
+     * 
+     * @param message   the message to learn from
+     * @see             ForwardingMode#NEXT_HOP
      */
-    public void clearRoutingTable() {
-        routingTable.clear();
+    private void learnRoutes(Message message) {
+        
+        // We're the agent just before the next one on the route.
+        final List<String> path = message.getRoute().getPath();
+        final int index = message.getRoute().getPosition() - 1;
+        if (index < 0 || !path.get(index).equals(name)) { return; }
+        
+        // Learn the way onward to the recipient.
+        if (index < path.size() - 1) {
+            final Route onward = new Route();
+            for (int i = index; i < path.size(); i++) {
+                onward.append(path.get(i));
+            }
+            routingTable.addRoute(message.getRecipient(), onward);
+        }
+        
+        // And the way back to the originator.
+        if (index > 0) {
+            final Route back = new Route();
+            for (int i = index; i >= 0; i--) {
+                back.append(path.get(i));
+            }
+            routingTable.addRoute(message.getOriginator(), back);
+        }
+        
     }
 
     /**
@@ -784,6 +2355,11 @@ public class Agent implements RoutingWorkerListener {
             handler.messageIntercepted(this, message);
         }
         
+        // Learn the way to both ends if the message asks us to.
+        if (message.getRoute() != null && message.getLearnsRoute()) {
+            learnRoutes(message);
+        }
+        
         /* 
          * If this agent is the intended recipient of the message, alert each
          * registered message listener.
@@ -795,13 +2371,37 @@ public class Agent implements RoutingWorkerListener {
             return true;
         } else {
             
-            // Otherwise, forward to next agent in route.
-            final String nextRecipient = message.getRoute().next();
-            for (Agent current : connectedAgents) {
-                if (current.getName().equals(nextRecipient)) {
-                    current.queueMessage(message);
+            /*
+             * Otherwise, forward to next agent in route, or the next hop in our
+             * routing table if the message doesn't carry one.
+             */
+            final Route route = message.getRoute();
+            if (route == null) {
+                validateRoutes(message.getRecipient());
+            } else if (!route.hasNext()) {
+                
+                // The route ends here at the gateway to the recipient's zone.
+                return relay(message);
+                
+            }
+            final String nextAgentName = (route != null ? route.next() 
+                    : routingTable.getNextHop(message.getRecipient()));
+            final Agent nextAgent = (nextAgentName == null ? null 
+                    : connectedAgentsByName.get(nextAgentName));
+            if (nextAgent != null) {
+                
+                /*
+                 * Never wait on the next agent's mailbox, as it may be waiting
+                 * on ours. A message it can't take now is undeliverable.
+                 */
+                if (nextAgent.queueMessage(message, false)) {
                     return true;
                 }
+                System.out.println("Agent [" + name + "] could not forward message ["
+                        + message.getId() + "] to Agent [" + nextAgentName 
+                        + "], dropping it.");
+                return false;
+                
             }
             
         }
@@ -813,5 +2413,176 @@ public class Agent implements RoutingWorkerListener {
         return false;
         
     }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Represents a message waiting for a route to its recipient.
+     */
+    private static class PendingMessage {
+        
+        /**
+         * The data to attach to the message.
+         */
+        private final String data;
+        
+        /**
+         * The key of the flow the message belongs to, or null.
+         */
+        private final Object flowKey;
+        
+        /**
+         * The message being relayed on into a zone, or null if the message 
+         * is yet to be originated here.
+         */
+        private final Message relayed;
+        
+        /**
+         * Initialises a new instance of a message waiting for a route.
+         * 
+         * @param data      the data to attach to the message
+         * @param flowKey   the key of the flow the message belongs to, or null
+         */
+        public PendingMessage(String data, Object flowKey) {
+            this.data = data;
+            this.flowKey = flowKey;
+            relayed = null;
+        }
+        
+        /**
+         * Initialises a new instance of a message being relayed into a zone
+         * that is waiting for a route.
+         * 
+         * @param relayed   the message being relayed
+         */
+        public PendingMessage(Message relayed) {
+            data = relayed.getData();
+            flowKey = null;
+            this.relayed = relayed;
+        }
+        
+    }
+
+    /**
+     * Represents the routes being found to several recipients ahead of 
+     * sending them anything.
+     * 
+     * @see Agent#prefetchRoutes
+     */
+    private static class RoutePrefetch implements Future<Map<String, Route>> {
+        
+        /**
+         * The routes known so far, or null for those that could not be found.
+         */
+        private final Map<String, Route> routes;
+        
+        /**
+         * The names of the recipients whose routes are not yet known.
+         */
+        private final Set<String> remaining;
+        
+        /**
+         * Whether or not this prefetch has been cancelled.
+         */
+        private boolean cancelled;
+        
+        /**
+         * Initialises a new instance of a route prefetch.
+         * 
+         * @param recipientNames    the names of the recipients to find routes 
+         *                          to
+         */
+        public RoutePrefetch(Collection<String> recipientNames) {
+            routes = new LinkedHashMap<>();
+            remaining = new HashSet<>(recipientNames);
+            cancelled = false;
+        }
+        
+        /**
+         * Records the route to a recipient, if this prefetch is waiting on it.
+         * 
+         * @param recipientName the name of the recipient
+         * @param route         the route to the recipient, or null if none 
+         *                      could be found
+         */
+        public synchronized void resolve(String recipientName, Route route) {
+            if (remaining.remove(recipientName)) {
+                routes.put(recipientName, route);
+                if (remaining.isEmpty()) {
+                    notifyAll();
+                }
+            }
+        }
+        
+        /**
+         * Gives up on every route this prefetch is still waiting on.
+         */
+        public synchronized void abandon() {
+            for (String current : remaining) {
+                routes.put(current, null);
+            }
+            remaining.clear();
+            notifyAll();
+        }
+        
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            notifyAll();
+            return true;
+        }
+        
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+        
+        @Override
+        public synchronized boolean isDone() {
+            return cancelled || remaining.isEmpty();
+        }
+        
+        @Override
+        public synchronized Map<String, Route> get() throws InterruptedException {
+            while (!isDone()) {
+                wait();
+            }
+            return result();
+        }
+        
+        @Override
+        public synchronized Map<String, Route> get(long timeout, TimeUnit unit) 
+                throws InterruptedException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isDone()) {
+                final long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    throw new TimeoutException("Routes were not all found in time.");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return result();
+        }
+        
+        /**
+         * Gets the routes found once this prefetch is done.
+         * <p>
+         * The caller must hold the monitor of this prefetch.
+         * 
+         * @return  the routes found
+         */
+        private Map<String, Route> result() {
+            if (cancelled) {
+                throw new CancellationException("Route prefetch was cancelled.");
+            }
+            return Collections.unmodifiableMap(new LinkedHashMap<>(routes));
+        }
+        
+    }
 
 }
@@ -0,0 +1,618 @@
+package denobo;
+
+import java.io.File;
+
+/**
+ * A class for holding all the configuration options for an Agent.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class AgentConfiguration {
+
+    /**
+     * The shared scheduler that agents operating under this configuration will
+     * run their message pumps on, or null if each agent should be given a
+     * dedicated thread.
+     */
+    private AgentScheduler scheduler;
+    
+    /**
+     * The maximum number of messages an agent operating under this 
+     * configuration will hold in its mailbox.
+     */
+    private int mailboxCapacity;
+    
+    /**
+     * The policy applied to messages submitted to a full mailbox by agents
+     * operating under this configuration.
+     */
+    private MailboxOverflowPolicy mailboxOverflowPolicy;
+    
+    /**
+     * The queue implementation underlying the mailbox of agents operating 
+     * under this configuration.
+     */
+    private MailboxType mailboxType;
+    
+    /**
+     * The maximum number of messages an agent operating under this 
+     * configuration will take from its mailbox in one go.
+     */
+    private int messageBatchSize;
+    
+    /**
+     * Whether or not cloneable agents operating under this configuration 
+     * handle messages sharing an ordering key in order.
+     */
+    private boolean keyedOrdering;
+    
+    /**
+     * Decides the ordering key of each message when keyed ordering is used.
+     */
+    private MessageKeyExtractor messageKeyExtractor;
+    
+    /**
+     * The maximum number of messages a cloneable agent operating under this
+     * configuration handles at once when keyed ordering is used.
+     */
+    private int cloneConcurrency;
+    
+    /**
+     * The way agents operating under this configuration address the messages
+     * they originate.
+     */
+    private ForwardingMode forwardingMode;
+    
+    /**
+     * The cost added to a link for each message waiting in the mailbox of the
+     * agent at the far end of it when routes are calculated.
+     */
+    private double queueDepthCostWeight;
+    
+    /**
+     * The most routes to each destination agents operating under this 
+     * configuration will keep.
+     */
+    private int maximumRoutes;
+    
+    /**
+     * How much more than the cheapest route to a destination, as a fraction 
+     * of its cost, other routes kept to it by agents operating under this 
+     * configuration may cost.
+     */
+    private double multipathCostTolerance;
+    
+    /**
+     * The way agents operating under this configuration choose between the 
+     * routes they keep to a destination.
+     */
+    private MultipathPolicy multipathPolicy;
+    
+    /**
+     * Whether or not agents operating under this configuration keep a backup 
+     * route to each destination they send messages to.
+     */
+    private boolean backupRoutes;
+    
+    /**
+     * The time in milliseconds that agents operating under this configuration
+     * turn away messages to a recipient after routing to it first fails, or 
+     * zero if they never do.
+     */
+    private long negativeRouteCacheTtl;
+    
+    /**
+     * The longest time in milliseconds that agents operating under this 
+     * configuration turn away messages to a recipient that repeatedly cannot
+     * be routed to.
+     */
+    private long maximumNegativeRouteCacheTtl;
+    
+    /**
+     * The way agents operating under this configuration make sure routes 
+     * across links they lose stop being used.
+     */
+    private InvalidationMode invalidationMode;
+    
+    /**
+     * The directory agents operating under this configuration keep snapshots 
+     * of their routing tables in, or null if they keep none.
+     */
+    private File routingTableSnapshotDirectory;
+    
+    /**
+     * The interval in milliseconds at which agents operating under this 
+     * configuration snapshot their routing tables, or zero to only snapshot
+     * them on shutdown.
+     */
+    private long routingTableSnapshotInterval;
+
+    /**
+     * Initialises a new instance of an agent configuration class.
+     */
+    public AgentConfiguration() {
+        scheduler = null;
+        mailboxCapacity = Mailbox.UNBOUNDED;
+        mailboxOverflowPolicy = MailboxOverflowPolicy.BLOCK;
+        mailboxType = MailboxType.LINKED;
+        messageBatchSize = 1;
+        keyedOrdering = false;
+        messageKeyExtractor = MessageKeyExtractor.ORIGINATOR;
+        cloneConcurrency = Runtime.getRuntime().availableProcessors();
+        forwardingMode = ForwardingMode.SOURCE_ROUTED;
+        queueDepthCostWeight = 0;
+        maximumRoutes = 1;
+        multipathCostTolerance = 0;
+        multipathPolicy = MultipathPolicy.ROUND_ROBIN;
+        backupRoutes = false;
+        negativeRouteCacheTtl = 0L;
+        maximumNegativeRouteCacheTtl = 80000L;
+        invalidationMode = InvalidationMode.EAGER;
+        routingTableSnapshotDirectory = null;
+        routingTableSnapshotInterval = 60000L;
+    }
+
+    /**
+     * Gets the shared scheduler that agents operating under this configuration
+     * will run their message pumps on.
+     *
+     * @return  the shared scheduler or null if each agent is given a dedicated
+     *          message processing thread
+     */
+    public AgentScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Sets the shared scheduler that agents operating under this configuration
+     * will run their message pumps on.
+     * <p>
+     * Agents that share a scheduler do not own a thread of their own. Instead,
+     * each agent's message queue is drained in order by a short-lived task
+     * submitted to the scheduler whenever messages are waiting. Passing null
+     * gives each agent its own dedicated message processing thread.
+     *
+     * @param scheduler the shared scheduler to use, or null for a dedicated
+     *                  thread per agent
+     */
+    public void setScheduler(AgentScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Gets the maximum number of messages an agent operating under this
+     * configuration will hold in its mailbox.
+     * 
+     * @return  the mailbox capacity
+     */
+    public int getMailboxCapacity() {
+        return mailboxCapacity;
+    }
+
+    /**
+     * Sets the maximum number of messages an agent operating under this
+     * configuration will hold in its mailbox.
+     * 
+     * @param mailboxCapacity   the mailbox capacity, or 
+     *                          {@link Mailbox#UNBOUNDED} for no limit
+     */
+    public void setMailboxCapacity(int mailboxCapacity) {
+        this.mailboxCapacity = (mailboxCapacity < 1 ? 1 : mailboxCapacity);
+    }
+
+    /**
+     * Gets the policy applied to messages submitted to a full mailbox by
+     * agents operating under this configuration.
+     * 
+     * @return  the mailbox overflow policy
+     */
+    public MailboxOverflowPolicy getMailboxOverflowPolicy() {
+        return mailboxOverflowPolicy;
+    }
+
+    /**
+     * Sets the policy applied to messages submitted to a full mailbox by
+     * agents operating under this configuration.
+     * 
+     * @param mailboxOverflowPolicy the mailbox overflow policy
+     */
+    public void setMailboxOverflowPolicy(MailboxOverflowPolicy mailboxOverflowPolicy) {
+        this.mailboxOverflowPolicy = mailboxOverflowPolicy;
+    }
+
+    /**
+     * Gets the queue implementation underlying the mailbox of agents operating
+     * under this configuration.
+     * 
+     * @return  the mailbox type
+     */
+    public MailboxType getMailboxType() {
+        return mailboxType;
+    }
+
+    /**
+     * Sets the queue implementation underlying the mailbox of agents operating
+     * under this configuration.
+     * 
+     * @param mailboxType   the mailbox type
+     */
+    public void setMailboxType(MailboxType mailboxType) {
+        this.mailboxType = mailboxType;
+    }
+
+    /**
+     * Gets the maximum number of messages an agent operating under this
+     * configuration will take from its mailbox in one go.
+     * 
+     * @return  the maximum message batch size
+     */
+    public int getMessageBatchSize() {
+        return messageBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of messages an agent operating under this
+     * configuration will take from its mailbox in one go.
+     * <p>
+     * Draining several messages per wakeup reduces the per-message overhead
+     * of the message pump, and lets any {@link BatchMessageListener} instances
+     * process the whole batch at once.
+     * 
+     * @param messageBatchSize  the maximum message batch size
+     */
+    public void setMessageBatchSize(int messageBatchSize) {
+        this.messageBatchSize = (messageBatchSize < 1 ? 1 : messageBatchSize);
+    }
+
+    /**
+     * Gets whether or not cloneable agents operating under this configuration
+     * handle messages sharing an ordering key in order.
+     * 
+     * @return  true if keyed ordering is used, otherwise false
+     */
+    public boolean getKeyedOrdering() {
+        return keyedOrdering;
+    }
+
+    /**
+     * Sets whether or not cloneable agents operating under this configuration
+     * handle messages sharing an ordering key in order.
+     * <p>
+     * Without keyed ordering, a cloneable agent hands every message to its own
+     * thread with no ordering at all. With keyed ordering, messages are 
+     * handled by a bounded pool of {@link #getCloneConcurrency} workers, and 
+     * messages with the same key (see {@link #setMessageKeyExtractor}) are 
+     * handled one at a time in the order they were queued. This setting has no
+     * effect on agents that are not cloneable.
+     * 
+     * @param keyedOrdering whether or not to use keyed ordering
+     */
+    public void setKeyedOrdering(boolean keyedOrdering) {
+        this.keyedOrdering = keyedOrdering;
+    }
+
+    /**
+     * Gets the extractor that decides the ordering key of each message when 
+     * keyed ordering is used.
+     * 
+     * @return  the message key extractor
+     */
+    public MessageKeyExtractor getMessageKeyExtractor() {
+        return messageKeyExtractor;
+    }
+
+    /**
+     * Sets the extractor that decides the ordering key of each message when 
+     * keyed ordering is used.
+     * <p>
+     * By default messages are keyed by {@link MessageKeyExtractor#ORIGINATOR},
+     * which is also used if null is given.
+     * 
+     * @param messageKeyExtractor   the message key extractor
+     */
+    public void setMessageKeyExtractor(MessageKeyExtractor messageKeyExtractor) {
+        this.messageKeyExtractor = (messageKeyExtractor == null 
+                ? MessageKeyExtractor.ORIGINATOR : messageKeyExtractor);
+    }
+
+    /**
+     * Gets the maximum number of messages a cloneable agent operating under 
+     * this configuration handles at once when keyed ordering is used.
+     * 
+     * @return  the clone concurrency
+     */
+    public int getCloneConcurrency() {
+        return cloneConcurrency;
+    }
+
+    /**
+     * Sets the maximum number of messages a cloneable agent operating under 
+     * this configuration handles at once when keyed ordering is used.
+     * <p>
+     * Agents running on a shared {@link AgentScheduler} are bounded by the
+     * scheduler's threads instead.
+     * 
+     * @param cloneConcurrency  the clone concurrency
+     */
+    public void setCloneConcurrency(int cloneConcurrency) {
+        this.cloneConcurrency = (cloneConcurrency < 1 ? 1 : cloneConcurrency);
+    }
+
+    /**
+     * Gets the way agents operating under this configuration address the 
+     * messages they originate.
+     * 
+     * @return  the forwarding mode
+     */
+    public ForwardingMode getForwardingMode() {
+        return forwardingMode;
+    }
+
+    /**
+     * Sets the way agents operating under this configuration address the 
+     * messages they originate.
+     * <p>
+     * Agents forward messages they receive according to how those messages 
+     * are addressed, whatever this is set to.
+     * 
+     * @param forwardingMode    the forwarding mode
+     */
+    public void setForwardingMode(ForwardingMode forwardingMode) {
+        this.forwardingMode = forwardingMode;
+    }
+
+    /**
+     * Gets the cost added to a link for each message waiting in the mailbox of
+     * the agent at the far end of it when agents operating under this 
+     * configuration calculate routes.
+     * 
+     * @return  the queue depth cost weight
+     */
+    public double getQueueDepthCostWeight() {
+        return queueDepthCostWeight;
+    }
+
+    /**
+     * Sets the cost added to a link for each message waiting in the mailbox of
+     * the agent at the far end of it when agents operating under this 
+     * configuration calculate routes.
+     * <p>
+     * A link between two agents normally costs {@link Route#DEFAULT_LINK_COST}.
+     * Giving this a positive weight steers new routes around agents with a 
+     * backlog of messages. The default of zero ignores queue depth.
+     * 
+     * @param queueDepthCostWeight  the queue depth cost weight
+     */
+    public void setQueueDepthCostWeight(double queueDepthCostWeight) {
+        this.queueDepthCostWeight = (queueDepthCostWeight < 0 ? 0 : queueDepthCostWeight);
+    }
+
+    /**
+     * Gets the most routes to each destination agents operating under this 
+     * configuration will keep.
+     * 
+     * @return  the maximum number of routes per destination
+     */
+    public int getMaximumRoutes() {
+        return maximumRoutes;
+    }
+
+    /**
+     * Sets the most routes to each destination agents operating under this 
+     * configuration will keep.
+     * <p>
+     * With more than one route, messages an agent originates are spread over
+     * every route it knows to their recipient according to the multipath 
+     * policy, unless they are sent with a flow key. Messages spread over 
+     * several routes may arrive out of order. Only messages carrying their
+     * route are spread, so this has no effect on route-less messages sent 
+     * under {@link ForwardingMode#NEXT_HOP}. The default of one keeps only the
+     * cheapest route.
+     * 
+     * @param maximumRoutes the maximum number of routes per destination
+     */
+    public void setMaximumRoutes(int maximumRoutes) {
+        this.maximumRoutes = (maximumRoutes < 1 ? 1 : maximumRoutes);
+    }
+
+    /**
+     * Gets how much more than the cheapest route to a destination, as a 
+     * fraction of its cost, other routes kept to it by agents operating under
+     * this configuration may cost.
+     * 
+     * @return  the multipath cost tolerance
+     */
+    public double getMultipathCostTolerance() {
+        return multipathCostTolerance;
+    }
+
+    /**
+     * Sets how much more than the cheapest route to a destination, as a 
+     * fraction of its cost, other routes kept to it by agents operating under
+     * this configuration may cost.
+     * <p>
+     * For example, 0.25 keeps routes costing up to a quarter more than the 
+     * cheapest. The default of zero keeps only routes of equal cost.
+     * 
+     * @param multipathCostTolerance    the multipath cost tolerance
+     */
+    public void setMultipathCostTolerance(double multipathCostTolerance) {
+        this.multipathCostTolerance = (multipathCostTolerance < 0 ? 0 : multipathCostTolerance);
+    }
+
+    /**
+     * Gets the way agents operating under this configuration choose between 
+     * the routes they keep to a destination.
+     * 
+     * @return  the multipath policy
+     */
+    public MultipathPolicy getMultipathPolicy() {
+        return multipathPolicy;
+    }
+
+    /**
+     * Sets the way agents operating under this configuration choose between 
+     * the routes they keep to a destination.
+     * 
+     * @param multipathPolicy   the multipath policy
+     */
+    public void setMultipathPolicy(MultipathPolicy multipathPolicy) {
+        this.multipathPolicy = multipathPolicy;
+    }
+
+    /**
+     * Gets whether or not agents operating under this configuration keep a 
+     * backup route to each destination they send messages to.
+     * 
+     * @return  true if backup routes are kept, otherwise false
+     */
+    public boolean getBackupRoutes() {
+        return backupRoutes;
+    }
+
+    /**
+     * Sets whether or not agents operating under this configuration keep a 
+     * backup route to each destination they send messages to.
+     * <p>
+     * Once a route to a destination has been found, a second route sharing no
+     * agents with it other than its ends is sought in the background. If a 
+     * link on the first route is lost, the backup route is used straight away
+     * instead of holding messages back while a new route is calculated, and
+     * another backup route is sought. This costs an extra route calculation 
+     * for every destination and every link lost.
+     * 
+     * @param backupRoutes  whether or not to keep backup routes
+     */
+    public void setBackupRoutes(boolean backupRoutes) {
+        this.backupRoutes = backupRoutes;
+    }
+
+    /**
+     * Gets the time in milliseconds that agents operating under this 
+     * configuration turn away messages to a recipient after routing to it
+     * first fails.
+     * 
+     * @return  the negative route cache time-to-live
+     * @see     NegativeRouteCache
+     */
+    public long getNegativeRouteCacheTtl() {
+        return negativeRouteCacheTtl;
+    }
+
+    /**
+     * Sets the time in milliseconds that agents operating under this 
+     * configuration turn away messages to a recipient after routing to it
+     * first fails.
+     * <p>
+     * Each further failure to route to the same recipient doubles this, up to
+     * the maximum negative route cache time-to-live. Messages turned away are
+     * passed to any {@link RouteFailureListener} instead of searching the 
+     * network again. Zero, the default, turns nothing away.
+     * 
+     * @param negativeRouteCacheTtl the negative route cache time-to-live
+     * @see                         NegativeRouteCache
+     */
+    public void setNegativeRouteCacheTtl(long negativeRouteCacheTtl) {
+        this.negativeRouteCacheTtl = (negativeRouteCacheTtl < 0 ? 0 : negativeRouteCacheTtl);
+    }
+
+    /**
+     * Gets the longest time in milliseconds that agents operating under this
+     * configuration turn away messages to a recipient that repeatedly cannot
+     * be routed to.
+     * 
+     * @return  the maximum negative route cache time-to-live
+     */
+    public long getMaximumNegativeRouteCacheTtl() {
+        return maximumNegativeRouteCacheTtl;
+    }
+
+    /**
+     * Sets the longest time in milliseconds that agents operating under this
+     * configuration turn away messages to a recipient that repeatedly cannot
+     * be routed to.
+     * 
+     * @param maximumNegativeRouteCacheTtl  the maximum negative route cache 
+     *                                      time-to-live
+     */
+    public void setMaximumNegativeRouteCacheTtl(long maximumNegativeRouteCacheTtl) {
+        this.maximumNegativeRouteCacheTtl = (maximumNegativeRouteCacheTtl < 0 ? 0 
+                : maximumNegativeRouteCacheTtl);
+    }
+
+    /**
+     * Gets the way agents operating under this configuration make sure routes
+     * across links they lose stop being used.
+     * 
+     * @return  the invalidation mode
+     */
+    public InvalidationMode getInvalidationMode() {
+        return invalidationMode;
+    }
+
+    /**
+     * Sets the way agents operating under this configuration make sure routes
+     * across links they lose stop being used.
+     * <p>
+     * Whichever mode an agent uses, routes across links lost in 
+     * {@link InvalidationMode#LAZY} mode are dropped when they are next used.
+     * 
+     * @param invalidationMode  the invalidation mode
+     */
+    public void setInvalidationMode(InvalidationMode invalidationMode) {
+        this.invalidationMode = invalidationMode;
+    }
+
+    /**
+     * Gets the directory agents operating under this configuration keep 
+     * snapshots of their routing tables in.
+     * 
+     * @return  the snapshot directory, or null if no snapshots are kept
+     */
+    public File getRoutingTableSnapshotDirectory() {
+        return routingTableSnapshotDirectory;
+    }
+
+    /**
+     * Sets the directory agents operating under this configuration keep 
+     * snapshots of their routing tables in.
+     * <p>
+     * Each agent keeps its snapshot in a file named after it, and reloads it
+     * when it is next created. Routes reloaded from a snapshot are checked 
+     * the first time they're used, as far as the agent can see, and dropped
+     * if they no longer hold.
+     * 
+     * @param routingTableSnapshotDirectory the snapshot directory, or null to
+     *                                      keep no snapshots
+     */
+    public void setRoutingTableSnapshotDirectory(File routingTableSnapshotDirectory) {
+        this.routingTableSnapshotDirectory = routingTableSnapshotDirectory;
+    }
+
+    /**
+     * Gets the interval in milliseconds at which agents operating under this
+     * configuration snapshot their routing tables.
+     * 
+     * @return  the snapshot interval in milliseconds, or zero if routing 
+     *          tables are only snapshotted on shutdown
+     */
+    public long getRoutingTableSnapshotInterval() {
+        return routingTableSnapshotInterval;
+    }
+
+    /**
+     * Sets the interval in milliseconds at which agents operating under this
+     * configuration snapshot their routing tables.
+     * <p>
+     * This has no effect unless a snapshot directory is set.
+     * 
+     * @param routingTableSnapshotInterval  the snapshot interval in 
+     *                                      milliseconds, or zero to only 
+     *                                      snapshot on shutdown
+     */
+    public void setRoutingTableSnapshotInterval(long routingTableSnapshotInterval) {
+        this.routingTableSnapshotInterval = (routingTableSnapshotInterval < 0 ? 0 
+                : routingTableSnapshotInterval);
+    }
+
+}
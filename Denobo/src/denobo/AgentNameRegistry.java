@@ -0,0 +1,121 @@
+package denobo;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents the process-wide mapping between agent names and the small 
+ * integer IDs that routes store in place of them.
+ * <p>
+ * Each agent created in this process, and each remote agent a SocketAgent 
+ * connects to, is given an ID and keeps that ID for the lifetime of the 
+ * process. Looking a name up is a single hash lookup, and looking an ID up is
+ * a single array access.
+ * <p>
+ * Since IDs are never given back, names that only appear in routes or reports
+ * received from remote processes are never given one, as a peer could 
+ * otherwise grow this registry without limit. Routes hold such names as they
+ * are instead.
+ * 
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class AgentNameRegistry {
+    
+    /**
+     * The map of names to their IDs.
+     */
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    
+    /**
+     * The names indexed by their IDs. Only ever replaced with a larger copy
+     * while holding the class monitor.
+     */
+    private static volatile String[] names = new String[64];
+    
+    /**
+     * The number of IDs given out so far, guarded by the class monitor.
+     */
+    private static int nameCount = 0;
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Prevents this class from being instantiated.
+     */
+    private AgentNameRegistry() {
+        
+        // Nothing to do.
+        
+    }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Gets the ID of an agent name, giving it one if it has none yet.
+     * <p>
+     * This should only be called with the names of agents in this process or
+     * connected to it, and {@link #findId} used for any other name.
+     * 
+     * @param name  the agent name
+     * @return      the ID of the agent name
+     */
+    public static int getId(String name) {
+        
+        // The common case, we've seen this name before.
+        final Integer existing = ids.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        
+        synchronized (AgentNameRegistry.class) {
+            
+            // Someone might have beaten us to it.
+            final Integer raced = ids.get(name);
+            if (raced != null) {
+                return raced;
+            }
+            
+            // Make room for the new name if need be.
+            final int id = nameCount++;
+            String[] current = names;
+            if (id == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[id] = name;
+            names = current;
+            
+            // Only publish the ID once the name can be found from it.
+            ids.put(name, id);
+            return id;
+            
+        }
+        
+    }
+    
+    /**
+     * Gets the ID of an agent name without giving it one if it has none.
+     * 
+     * @param name  the agent name
+     * @return      the ID of the agent name, or -1 if it has none
+     */
+    public static int findId(String name) {
+        final Integer existing = ids.get(name);
+        return existing != null ? existing : -1;
+    }
+    
+    /**
+     * Gets the agent name that was given an ID.
+     * 
+     * @param id    the ID
+     * @return      the agent name that was given the ID
+     */
+    public static String getName(int id) {
+        return names[id];
+    }
+    
+}
@@ -0,0 +1,225 @@
+package denobo;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Represents a shared pool of threads that the message pumps of many agents
+ * can be multiplexed onto.
+ * <p>
+ * Agents running on a scheduler do not own a thread each. Their message queues
+ * are instead drained by tasks submitted to a fixed number of worker threads,
+ * and their periodic housekeeping runs on a single shared timer thread. Each
+ * agent only ever has one pump task in flight at a time, so the messages it
+ * receives are still processed in the order they were queued.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class AgentScheduler implements Executor {
+
+    /**
+     * The worker threads that message pump tasks are executed on.
+     */
+    private final ExecutorService workerExecutorService;
+
+    /**
+     * The single timer thread that periodic agent housekeeping runs on.
+     */
+    private final ScheduledExecutorService timerExecutorService;
+
+    /**
+     * The number of worker threads in this scheduler.
+     */
+    private final int threadCount;
+
+    /**
+     * The lazily-created scheduler shared by the whole process.
+     */
+    private static AgentScheduler sharedInstance;
+
+
+    /* ---------- */
+
+
+    /**
+     * Initialises a new instance of a scheduler backed by the specified number
+     * of worker threads.
+     *
+     * @param threadCount   the number of worker threads to run message pumps on
+     */
+    public AgentScheduler(int threadCount) {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("A scheduler needs at least one"
+                    + " worker thread.");
+        }
+        this.threadCount = threadCount;
+
+        workerExecutorService = Executors.newFixedThreadPool(threadCount,
+                new SchedulerThreadFactory("denobo-agent-worker"));
+        timerExecutorService = Executors.newSingleThreadScheduledExecutor(
+                new SchedulerThreadFactory("denobo-agent-timer"));
+
+    }
+
+    /**
+     * Initialises a new instance of a scheduler backed by one worker thread per
+     * available processor.
+     */
+    public AgentScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Gets the scheduler shared by the whole process, creating it if it does
+     * not yet exist.
+     *
+     * @return  the scheduler shared by the whole process
+     */
+    public static synchronized AgentScheduler getShared() {
+        if (sharedInstance == null) {
+            sharedInstance = new AgentScheduler();
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * Gets the number of worker threads in this scheduler.
+     *
+     * @return  the number of worker threads in this scheduler
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Executes a task on one of this scheduler's worker threads.
+     *
+     * @param task  the task to execute
+     */
+    @Override
+    public void execute(Runnable task) {
+        workerExecutorService.execute(task);
+    }
+
+    /**
+     * Schedules a task to run periodically on this scheduler's timer thread.
+     * <p>
+     * Tasks run on the timer thread should be short as they hold up every
+     * other periodic task sharing this scheduler.
+     *
+     * @param task      the task to schedule
+     * @param period    the interval in milliseconds between each run
+     * @return          a future that can be used to cancel the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long period) {
+        return timerExecutorService.scheduleAtFixedRate(task, period, period,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a task to run once on this scheduler's timer thread after a
+     * delay.
+     *
+     * @param task      the task to schedule
+     * @param delay     the delay in milliseconds before the task runs
+     * @return          a future that can be used to cancel the task
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return timerExecutorService.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Shuts this scheduler down.
+     * <p>
+     * Any agents still running on this scheduler should be shut down first.
+     */
+    public void shutdown() {
+        timerExecutorService.shutdown();
+        workerExecutorService.shutdown();
+    }
+
+    /**
+     * Gets whether or not the calling thread belongs to a scheduler.
+     * <p>
+     * Scheduler threads must never block waiting on an agent's mailbox, since 
+     * every one of them might end up waiting on mailboxes that only they 
+     * could drain.
+     *
+     * @return  true if the calling thread is a worker or timer thread of any
+     *          scheduler, otherwise false
+     */
+    public static boolean isSchedulerThread() {
+        return Thread.currentThread() instanceof SchedulerThread;
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Represents a thread underlying a scheduler.
+     */
+    private static class SchedulerThread extends Thread {
+
+        /**
+         * Initialises a new instance of a scheduler thread.
+         *
+         * @param runnable  the task the thread runs
+         * @param name      the name of the thread
+         */
+        public SchedulerThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+
+    }
+
+    /**
+     * Creates the named daemon threads that underlie a scheduler.
+     * <p>
+     * Scheduler threads are daemon threads so that a process is not kept alive
+     * by an idle shared pool.
+     */
+    private static class SchedulerThreadFactory implements ThreadFactory {
+
+        /**
+         * The prefix given to the name of each created thread.
+         */
+        private final String namePrefix;
+
+        /**
+         * The number of threads created so far.
+         */
+        private final AtomicInteger createdCount;
+
+        /**
+         * Initialises a new instance of a scheduler thread factory.
+         *
+         * @param namePrefix    the prefix given to the name of each thread
+         */
+        public SchedulerThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+            createdCount = new AtomicInteger();
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new SchedulerThread(runnable,
+                    namePrefix + "-" + createdCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
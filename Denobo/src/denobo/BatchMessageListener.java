@@ -0,0 +1,40 @@
+package denobo;
+
+import java.util.List;
+
+/**
+ * Represents a message listener that is passed the Messages processed by an 
+ * agent in batches rather than one at a time.
+ * <p>
+ * Listeners that do expensive work per notification, such as writing to a
+ * database, can use this to amortise that work across every message an agent
+ * drained from its queue in one go. The size of each batch is bounded by
+ * {@link AgentConfiguration#getMessageBatchSize}.
+ * 
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public interface BatchMessageListener {
+
+    /**
+     * Called when an Agent takes a batch of Messages from its queue. 
+     * <p>
+     * The Messages might not be addressed to the Agent. Those that are will 
+     * then be passed to {@link #messagesReceived} straight after.
+     * 
+     * @param agent     the Agent who intercepted the Messages
+     * @param messages  the read-only list of Messages intercepted, in the order
+     *                  they were queued
+     */
+    public void messagesIntercepted(Agent agent, List<Message> messages);
+    
+    /**
+     * Called when an Agent takes a batch of Messages from its queue containing
+     * one or more Messages intended for it.
+     * 
+     * @param agent     the Agent who received the Messages
+     * @param messages  the read-only list of Messages received, in the order
+     *                  they were queued
+     */
+    public void messagesReceived(Agent agent, List<Message> messages);
+    
+}
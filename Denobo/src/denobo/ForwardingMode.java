@@ -0,0 +1,29 @@
+package denobo;
+
+/**
+ * An enum of the ways an Agent can address the messages it originates.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public enum ForwardingMode {
+
+    /**
+     * Every message carries the full route to its recipient, and each agent 
+     * along the way forwards it to the next agent named in that route.
+     */
+    SOURCE_ROUTED,
+
+    /**
+     * Messages carry only their originator and recipient, and each agent along
+     * the way forwards them to the next hop stored in its own routing table.
+     * <p>
+     * The first message sent along a newly calculated route still carries the
+     * full route and asks each agent it passes through to learn the routes
+     * onward to the recipient and back to the originator from it. Agents 
+     * without a route to the recipient cannot forward route-less messages, so
+     * every agent on the path should be running a version that understands 
+     * them.
+     */
+    NEXT_HOP
+
+}
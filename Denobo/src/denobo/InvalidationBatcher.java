@@ -0,0 +1,210 @@
+package denobo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents a queue that holds invalidations back for a short window and 
+ * merges those submitted within it, so that several links dropping at once 
+ * (such as a SocketAgent losing every connection to a host) are invalidated 
+ * with a single crawl of the local network and a single packet to each peer.
+ * <p>
+ * Only {@link Undertaker}s that were told the same agents had already been 
+ * visited are merged, since an agent that one of them may skip may still need
+ * to be visited for the other.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class InvalidationBatcher {
+    
+    /**
+     * The default time in milliseconds invalidations are held back for.
+     */
+    public static final long DEFAULT_WINDOW = 10;
+    
+    /**
+     * The time in milliseconds invalidations are held back for.
+     */
+    private final long window;
+    
+    /**
+     * The executor merged invalidations are run on.
+     */
+    private final RoutingExecutor executor;
+    
+    /**
+     * The invalidations waiting for the window to close, keyed by the agent
+     * names they were told had already been visited.
+     */
+    private final Map<Set<String>, Undertaker> pending;
+    
+    /**
+     * The number of invalidations submitted.
+     */
+    private final AtomicLong submittedCount;
+    
+    /**
+     * The number of crawls run for the invalidations submitted.
+     */
+    private final AtomicLong crawlCount;
+    
+    /**
+     * The lazily-created batcher shared by the whole process.
+     */
+    private static InvalidationBatcher sharedInstance;
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Initialises a new instance of an invalidation batcher.
+     * 
+     * @param window    the time in milliseconds to hold invalidations back 
+     *                  for, or zero to run each one straight away
+     * @param executor  the executor to run merged invalidations on
+     */
+    public InvalidationBatcher(long window, RoutingExecutor executor) {
+        this.window = Math.max(0, window);
+        this.executor = executor;
+        pending = new HashMap<>();
+        submittedCount = new AtomicLong();
+        crawlCount = new AtomicLong();
+    }
+    
+    /**
+     * Initialises a new instance of an invalidation batcher that runs merged
+     * invalidations on the shared {@link RoutingExecutor}.
+     * 
+     * @param window    the time in milliseconds to hold invalidations back 
+     *                  for, or zero to run each one straight away
+     */
+    public InvalidationBatcher(long window) {
+        this(window, RoutingExecutor.getShared());
+    }
+    
+    /**
+     * Initialises a new instance of an invalidation batcher with the default
+     * window that runs merged invalidations on the shared 
+     * {@link RoutingExecutor}.
+     */
+    public InvalidationBatcher() {
+        this(DEFAULT_WINDOW);
+    }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Gets the invalidation batcher shared by the whole process, creating it 
+     * if it does not yet exist.
+     * 
+     * @return  the invalidation batcher shared by the whole process
+     */
+    public static synchronized InvalidationBatcher getShared() {
+        if (sharedInstance == null) {
+            sharedInstance = new InvalidationBatcher();
+        }
+        return sharedInstance;
+    }
+    
+    /**
+     * Submits an invalidation to be run once the current window closes, 
+     * merged with any others submitted within it.
+     * 
+     * @param undertaker    the invalidation to submit
+     */
+    public void submit(Undertaker undertaker) {
+        
+        submittedCount.incrementAndGet();
+        if (window == 0) {
+            run(undertaker);
+            return;
+        }
+        
+        synchronized (pending) {
+            
+            // Start a new window if this is the first invalidation in it.
+            if (pending.isEmpty()) {
+                AgentScheduler.getShared().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, window);
+            }
+            
+            final Set<String> key = undertaker.getAlreadyVisitedAgentNames();
+            final Undertaker existing = pending.get(key);
+            if (existing == null) {
+                pending.put(key, undertaker);
+            } else {
+                existing.merge(undertaker);
+            }
+            
+        }
+        
+    }
+    
+    /**
+     * Runs every invalidation waiting for the current window to close.
+     */
+    public void flush() {
+        
+        final List<Undertaker> batch;
+        synchronized (pending) {
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        
+        for (Undertaker current : batch) {
+            run(current);
+        }
+        
+    }
+    
+    /**
+     * Runs an invalidation on the executor.
+     * 
+     * @param undertaker    the invalidation to run
+     */
+    private void run(Undertaker undertaker) {
+        crawlCount.incrementAndGet();
+        executor.execute(RoutingExecutor.TaskType.INVALIDATION, undertaker);
+    }
+    
+    /**
+     * Gets the time in milliseconds invalidations are held back for.
+     * 
+     * @return  the window of this batcher
+     */
+    public long getWindow() {
+        return window;
+    }
+    
+    /**
+     * Gets the number of invalidations submitted to this batcher.
+     * 
+     * @return  the number of invalidations submitted
+     */
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+    
+    /**
+     * Gets the number of crawls this batcher has run for the invalidations 
+     * submitted to it, which is fewer than the number submitted when 
+     * invalidations have been merged.
+     * 
+     * @return  the number of crawls run
+     */
+    public long getCrawlCount() {
+        return crawlCount.get();
+    }
+    
+}
@@ -0,0 +1,24 @@
+package denobo;
+
+/**
+ * An enum of the ways an Agent can make sure routes across a link it loses 
+ * stop being used.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public enum InvalidationMode {
+
+    /**
+     * An {@link Undertaker} visits every agent reachable from the link and 
+     * removes routes across it from their routing tables straight away.
+     */
+    EAGER,
+
+    /**
+     * The generation of the link is advanced in {@link LinkGenerations}, and
+     * each routing table drops routes across it the next time they are used.
+     * Losing a link costs the same however large the network is.
+     */
+    LAZY
+
+}
@@ -0,0 +1,243 @@
+package denobo;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents an executor that runs tasks submitted under the same key one at a
+ * time in submission order, while running tasks with different keys in 
+ * parallel on an underlying executor.
+ * <p>
+ * Each key with pending tasks occupies at most one thread of the underlying
+ * executor at a time, so the parallelism is bounded by that executor. Keys are
+ * spread across a fixed number of independently locked stripes so that 
+ * submissions under different keys rarely contend.
+ * 
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class KeyedExecutor {
+    
+    /**
+     * The number of independently locked stripes keys are spread across.
+     */
+    private static final int STRIPE_COUNT = 16;
+    
+    /**
+     * The maximum number of tasks a key runs before handing its thread back to
+     * the underlying executor, so that a busy key can't starve the others.
+     */
+    private static final int MAX_TASKS_PER_RUN = 32;
+    
+    /**
+     * The logger that failed tasks are reported to.
+     */
+    private static final Logger LOGGER = Logger.getLogger(KeyedExecutor.class.getName());
+    
+    /**
+     * The executor that underlies this keyed executor.
+     */
+    private final Executor executor;
+    
+    /**
+     * The stripes, each mapping the keys that currently have pending tasks to
+     * their queues. Each map is guarded by its own monitor.
+     */
+    private final Map<Object, KeyQueue>[] stripes;
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Initialises a new instance of a keyed executor.
+     * 
+     * @param executor  the executor to run tasks on
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public KeyedExecutor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor, "Executor cannot be null.");
+        stripes = new Map[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new HashMap<>();
+        }
+    }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Submits a task to run after any tasks previously submitted under the 
+     * same key.
+     * <p>
+     * If the underlying executor rejects the task, the key is made idle again
+     * and the rejection is passed on to the caller. Any tasks that joined the
+     * key in the meantime are discarded along with it.
+     * 
+     * @param key   the ordering key of the task
+     * @param task  the task to run
+     * @throws RejectedExecutionException   if the underlying executor refuses
+     *                                      to run the task
+     */
+    public void execute(Object key, Runnable task) {
+        
+        Objects.requireNonNull(key, "Key cannot be null.");
+        Objects.requireNonNull(task, "Task cannot be null.");
+        
+        final Map<Object, KeyQueue> stripe = stripeFor(key);
+        final KeyQueue keyQueue;
+        synchronized (stripe) {
+            
+            // Join the existing queue for this key if there is one.
+            final KeyQueue existing = stripe.get(key);
+            if (existing != null) {
+                existing.tasks.add(task);
+                return;
+            }
+            
+            // Otherwise this key is idle, so we start draining it.
+            keyQueue = new KeyQueue(key);
+            keyQueue.tasks.add(task);
+            stripe.put(key, keyQueue);
+            
+        }
+        
+        try {
+            executor.execute(keyQueue);
+        } catch (RejectedExecutionException ex) {
+            synchronized (stripe) {
+                stripe.remove(key);
+            }
+            throw ex;
+        }
+        
+    }
+    
+    /**
+     * Gets the stripe that a key belongs to.
+     * 
+     * @param key   the key
+     * @return      the stripe the key belongs to
+     */
+    private Map<Object, KeyQueue> stripeFor(Object key) {
+        final int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+    }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Represents the tasks pending for a single key, and the task that drains
+     * them in order.
+     */
+    private class KeyQueue implements Runnable {
+        
+        /**
+         * The key these tasks were submitted under.
+         */
+        private final Object key;
+        
+        /**
+         * The tasks waiting to run, guarded by the monitor of the stripe this
+         * key belongs to.
+         */
+        private final Queue<Runnable> tasks;
+        
+        /**
+         * Initialises a new instance of a queue of tasks for a key.
+         * 
+         * @param key   the key the tasks were submitted under
+         */
+        public KeyQueue(Object key) {
+            this.key = key;
+            tasks = new ArrayDeque<>();
+        }
+        
+        @Override
+        public void run() {
+            
+            final Map<Object, KeyQueue> stripe = stripeFor(key);
+            int ran = 0;
+            while (true) {
+                
+                // Give other keys a turn, carrying on here if we can't.
+                if (ran == MAX_TASKS_PER_RUN) {
+                    try {
+                        executor.execute(this);
+                        return;
+                    } catch (RejectedExecutionException ex) {
+                        ran = 0;
+                    }
+                }
+                
+                final Runnable next;
+                synchronized (stripe) {
+                    next = tasks.poll();
+                    
+                    // Nothing left, this key is idle again.
+                    if (next == null) {
+                        stripe.remove(key);
+                        return;
+                    }
+                }
+                
+                ran++;
+                boolean finished = false;
+                try {
+                    next.run();
+                    finished = true;
+                } catch (RuntimeException ex) {
+                    
+                    // Don't let one failed task stall the rest of the key.
+                    LOGGER.log(Level.WARNING, "Task for key [" + key 
+                            + "] threw an exception.", ex);
+                    finished = true;
+                    
+                } finally {
+                    
+                    // Anything worse ends this thread, so pass the key on.
+                    if (!finished) {
+                        handOff(stripe);
+                    }
+                    
+                }
+                
+            }
+            
+        }
+        
+        /**
+         * Hands the rest of this key's tasks to another thread of the 
+         * underlying executor, or makes the key idle again if it refuses.
+         * 
+         * @param stripe    the stripe this key belongs to
+         */
+        private void handOff(Map<Object, KeyQueue> stripe) {
+            
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                final int dropped;
+                synchronized (stripe) {
+                    dropped = tasks.size();
+                    tasks.clear();
+                    stripe.remove(key);
+                }
+                LOGGER.log(Level.SEVERE, "Dropped " + dropped + " tasks for key [" 
+                        + key + "] as no thread would take them.", ex);
+            }
+            
+        }
+        
+    }
+    
+}
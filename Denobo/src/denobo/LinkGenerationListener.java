@@ -0,0 +1,27 @@
+package denobo;
+
+/**
+ * Implemented by classes that wish to be notified when a link between two 
+ * agents moves on to a new generation.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public interface LinkGenerationListener {
+
+    /**
+     * Called when a link between two agents is lost, or a remote process
+     * reports that it was.
+     * 
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     * @param origin            the origin of the process that counted the 
+     *                          generation
+     * @param generation        the new generation of the link
+     * @param source            whatever reported the loss, or null if it was
+     *                          lost in this process
+     * @see LinkGenerations
+     */
+    void linkBroken(String agentName, String otherAgentName, long origin, 
+            long generation, Object source);
+
+}
@@ -0,0 +1,308 @@
+package denobo;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents the process-wide record of the links between agents that have
+ * been lost, so that routes across them can be found and dropped when they
+ * are next used rather than searched out across the whole network.
+ * <p>
+ * Each link has a generation that moves on every time it is lost, and the
+ * process has a topology epoch that moves on every time any link is lost. A
+ * route remembers the epoch it was calculated in. While the epoch hasn't
+ * moved on, the route is known to be current without looking at its links.
+ * Otherwise, it is current only if none of its links have been lost since.
+ * <p>
+ * Generations are counted separately for each process that reports them, 
+ * since a process that restarts starts counting again from one. Each process
+ * tells others its generations along with a random origin chosen when it 
+ * starts.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ * @see     InvalidationMode#LAZY
+ */
+public class LinkGenerations {
+
+    /**
+     * The topology epoch, which moves on every time a link is lost.
+     */
+    private static final AtomicLong epoch = new AtomicLong();
+
+    /**
+     * The random origin this process reports its generations under, which is
+     * never zero.
+     */
+    private static final long origin = createOrigin();
+
+    /**
+     * The generation of each link that has been lost, keyed by the key of the
+     * link, then by the origin of the process that counted it. Guarded by its
+     * own monitor.
+     */
+    private static final Map<Object, Map<Long, Long>> generations = new HashMap<>();
+
+    /**
+     * The epoch in which each link was last lost, keyed by the key of the 
+     * link.
+     */
+    private static final Map<Object, Long> lostEpochs = new ConcurrentHashMap<>();
+
+    /**
+     * The listeners to notify when a link is lost.
+     */
+    private static final List<LinkGenerationListener> listeners = new CopyOnWriteArrayList<>();
+
+
+    /* ---------- */
+
+
+    /**
+     * Prevents this class from being instantiated.
+     */
+    private LinkGenerations() {
+
+        // Nothing to do.
+
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Builds the key a link is stored under, which is the same whichever way
+     * round its ends are given.
+     *
+     * @param id        the ID of the agent at one end of the link
+     * @param otherId   the ID of the agent at the other end
+     * @return          the key of the link
+     */
+    private static long keyFor(int id, int otherId) {
+        return ((long) Math.min(id, otherId) << 32) | (Math.max(id, otherId) & 0xffffffffL);
+    }
+
+    /**
+     * Builds the key a link is stored under.
+     * <p>
+     * Links between agents that both have an ID in the 
+     * {@link AgentNameRegistry} are keyed by their IDs. Others are keyed by 
+     * their names, so that reports from remote processes don't give IDs to
+     * names we otherwise have no use for.
+     *
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     * @return                  the key of the link
+     */
+    private static Object keyFor(String agentName, String otherAgentName) {
+        final int id = AgentNameRegistry.findId(agentName);
+        final int otherId = AgentNameRegistry.findId(otherAgentName);
+        if (id != -1 && otherId != -1) {
+            return keyFor(id, otherId);
+        }
+        return (agentName.compareTo(otherAgentName) < 0 
+                ? agentName + ' ' + otherAgentName : otherAgentName + ' ' + agentName);
+    }
+
+    /**
+     * Chooses the random origin of this process.
+     *
+     * @return  the origin of this process
+     */
+    private static long createOrigin() {
+        long created;
+        do {
+            created = UUID.randomUUID().getMostSignificantBits();
+        } while (created == 0);
+        return created;
+    }
+
+    /**
+     * Gets the origin this process reports the generations it counts under.
+     *
+     * @return  the origin of this process
+     */
+    public static long getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Gets the generation of a link counted by a process.
+     * <p>
+     * The caller must hold the monitor of {@link #generations}.
+     *
+     * @param key           the key of the link
+     * @param linkOrigin    the origin of the process that counted it
+     * @return              the generation of the link, which is zero if that
+     *                      process has never reported it lost
+     */
+    private static long generationOf(Object key, long linkOrigin) {
+        final Map<Long, Long> byOrigin = generations.get(key);
+        final Long generation = (byOrigin == null ? null : byOrigin.get(linkOrigin));
+        return generation == null ? 0 : generation;
+    }
+
+    /**
+     * Records the generation of a link counted by a process and moves the 
+     * topology epoch on.
+     * <p>
+     * The caller must hold the monitor of {@link #generations}.
+     *
+     * @param key           the key of the link
+     * @param linkOrigin    the origin of the process that counted it
+     * @param generation    the generation the link has moved on to
+     */
+    private static void record(Object key, long linkOrigin, long generation) {
+        Map<Long, Long> byOrigin = generations.get(key);
+        if (byOrigin == null) {
+            byOrigin = new HashMap<>();
+            generations.put(key, byOrigin);
+        }
+        byOrigin.put(linkOrigin, generation);
+        lostEpochs.put(key, epoch.incrementAndGet());
+    }
+
+    /**
+     * Gets the current topology epoch.
+     *
+     * @return  the topology epoch
+     */
+    public static long getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Gets the generation of a link as counted by this process.
+     *
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     * @return                  the generation of the link, which is zero if it
+     *                          has never been lost in this process
+     */
+    public static long getGeneration(String agentName, String otherAgentName) {
+        synchronized (generations) {
+            return generationOf(keyFor(agentName, otherAgentName), origin);
+        }
+    }
+
+    /**
+     * Records that a link in this process has been lost.
+     *
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     * @return                  the new generation of the link
+     */
+    public static long linkBroken(String agentName, String otherAgentName) {
+
+        final Object key = keyFor(agentName, otherAgentName);
+        final long generation;
+        synchronized (generations) {
+            generation = generationOf(key, origin) + 1;
+            record(key, origin, generation);
+        }
+
+        notifyLinkBroken(agentName, otherAgentName, origin, generation, null);
+        return generation;
+
+    }
+
+    /**
+     * Records that a link has been lost, as reported by a remote process.
+     * <p>
+     * Reports of generations already recorded for the same origin are 
+     * ignored, so the same report reaching this process more than once only 
+     * counts the first time.
+     *
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     * @param linkOrigin        the origin of the process that counted the 
+     *                          generation, or zero if it is not known
+     * @param generation        the generation the link has moved on to
+     * @param source            whatever passed the report on
+     * @return                  true if the report was new, otherwise false
+     */
+    public static boolean linkBroken(String agentName, String otherAgentName,
+            long linkOrigin, long generation, Object source) {
+
+        final Object key = keyFor(agentName, otherAgentName);
+        synchronized (generations) {
+            if (generation <= generationOf(key, linkOrigin)) {
+                return false;
+            }
+            record(key, linkOrigin, generation);
+        }
+
+        notifyLinkBroken(agentName, otherAgentName, linkOrigin, generation, source);
+        return true;
+
+    }
+
+    /**
+     * Gets whether a link has been lost since an epoch.
+     *
+     * @param id        the ID of the agent at one end of the link
+     * @param otherId   the ID of the agent at the other end
+     * @param since     the epoch
+     * @return          true if the link was lost after the epoch, otherwise
+     *                  false
+     */
+    static boolean lostSince(int id, int otherId, long since) {
+        final Long lost = lostEpochs.get(keyFor(id, otherId));
+        return lost != null && lost > since;
+    }
+
+    /**
+     * Gets whether a link has been lost since an epoch.
+     *
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     * @param since             the epoch
+     * @return                  true if the link was lost after the epoch, 
+     *                          otherwise false
+     */
+    static boolean lostSince(String agentName, String otherAgentName, long since) {
+        final Long lost = lostEpochs.get(keyFor(agentName, otherAgentName));
+        return lost != null && lost > since;
+    }
+
+    /**
+     * Notifies each listener that a link has been lost.
+     *
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     * @param linkOrigin        the origin of the process that counted the 
+     *                          generation
+     * @param generation        the new generation of the link
+     * @param source            whatever reported the loss, or null
+     */
+    private static void notifyLinkBroken(String agentName, String otherAgentName,
+            long linkOrigin, long generation, Object source) {
+        for (LinkGenerationListener current : listeners) {
+            current.linkBroken(agentName, otherAgentName, linkOrigin, generation, source);
+        }
+    }
+
+    /**
+     * Adds a listener to be notified when a link is lost.
+     *
+     * @param listener  the listener to add
+     */
+    public static void addListener(LinkGenerationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener  the listener to remove
+     */
+    public static void removeListener(LinkGenerationListener listener) {
+        listeners.remove(listener);
+    }
+
+}
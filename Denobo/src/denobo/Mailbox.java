@@ -0,0 +1,305 @@
+package denobo;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents the queue of messages waiting to be processed by an Agent.
+ * <p>
+ * A mailbox may be given a capacity, in which case a
+ * {@link MailboxOverflowPolicy} decides what happens to messages submitted
+ * while it is full. Every message refused or discarded because of the policy
+ * is counted.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class Mailbox {
+
+    /**
+     * The capacity given to mailboxes that have no limit.
+     */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+    
+    /**
+     * The capacity given to ring buffer mailboxes that were asked to have no 
+     * limit, since a ring buffer is always bounded.
+     */
+    public static final int DEFAULT_RING_BUFFER_CAPACITY = 4096;
+
+    /**
+     * The queue that underlies this mailbox.
+     */
+    private final BlockingQueue<Message> queue;
+
+    /**
+     * The maximum number of messages this mailbox can hold.
+     */
+    private final int capacity;
+
+    /**
+     * The policy applied to messages submitted while this mailbox is full.
+     */
+    private final MailboxOverflowPolicy overflowPolicy;
+
+    /**
+     * The number of messages refused by this mailbox.
+     */
+    private final AtomicLong rejectedCount;
+
+    /**
+     * The number of messages discarded by this mailbox.
+     */
+    private final AtomicLong droppedCount;
+
+
+    /* ---------- */
+
+
+    /**
+     * Initialises a new instance of a mailbox.
+     *
+     * @param capacity          the maximum number of messages the mailbox can
+     *                          hold
+     * @param overflowPolicy    the policy applied to messages submitted while
+     *                          the mailbox is full
+     * @param type              the queue implementation to use
+     */
+    public Mailbox(int capacity, MailboxOverflowPolicy overflowPolicy, MailboxType type) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Mailbox capacity must be at "
+                    + "least 1.");
+        }
+
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy,
+                "Overflow policy cannot be null.");
+        
+        switch (Objects.requireNonNull(type, "Mailbox type cannot be null.")) {
+            
+            case RING_BUFFER:
+                
+                final RingBufferQueue<Message> ringBuffer = new RingBufferQueue<>(
+                        capacity == UNBOUNDED ? DEFAULT_RING_BUFFER_CAPACITY : capacity);
+                this.capacity = ringBuffer.capacity();
+                queue = ringBuffer;
+                break;
+                
+            default:
+                
+                this.capacity = capacity;
+                queue = new LinkedBlockingQueue<>(capacity);
+                break;
+                
+        }
+        
+        rejectedCount = new AtomicLong();
+        droppedCount = new AtomicLong();
+
+    }
+    
+    /**
+     * Initialises a new instance of a mailbox backed by a linked queue.
+     *
+     * @param capacity          the maximum number of messages the mailbox can
+     *                          hold
+     * @param overflowPolicy    the policy applied to messages submitted while
+     *                          the mailbox is full
+     */
+    public Mailbox(int capacity, MailboxOverflowPolicy overflowPolicy) {
+        this(capacity, overflowPolicy, MailboxType.LINKED);
+    }
+
+    /**
+     * Initialises a new instance of an unbounded mailbox.
+     */
+    public Mailbox() {
+        this(UNBOUNDED, MailboxOverflowPolicy.BLOCK);
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Submits a message to this mailbox, applying the overflow policy if the
+     * mailbox is full.
+     *
+     * @param message   the message to submit
+     * @param mayBlock  whether or not the calling thread may be blocked to
+     *                  wait for space; this must be false if the calling
+     *                  thread is the one that drains this mailbox, or any 
+     *                  thread a pump might need to run on
+     * @return          true if the message was queued, otherwise false
+     */
+    public boolean offer(Message message, boolean mayBlock) {
+
+        Objects.requireNonNull(message, "Message to queue cannot be null.");
+
+        // The common case, there is room.
+        if (queue.offer(message)) { return true; }
+
+        switch (overflowPolicy) {
+
+            case BLOCK:
+
+                // Waiting on ourselves would never end, so refuse instead.
+                if (!mayBlock) {
+                    return reject(message);
+                }
+
+                /*
+                 * Make sure our message gets added to the queue as something
+                 * interrupting our thread could cause our message to be lost.
+                 */
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        queue.put(message);
+                        break;
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+
+                /*
+                 * Remember to reset the interrupt flag for this thread for any
+                 * caller higher up the chain if we were interuppted.
+                 */
+                if (interrupted) { Thread.currentThread().interrupt(); }
+                return true;
+
+            case DROP_OLDEST:
+
+                // Keep making room until our message fits.
+                do {
+                    if (queue.poll() != null) {
+                        droppedCount.incrementAndGet();
+                    }
+                } while (!queue.offer(message));
+                return true;
+
+            case DROP_NEWEST:
+
+                droppedCount.incrementAndGet();
+                return false;
+
+            default:
+
+                return reject(message);
+
+        }
+
+    }
+
+    /**
+     * Counts and reports a message refused by this mailbox.
+     *
+     * @param message   the message refused
+     * @return          false, so callers can return the result directly
+     */
+    private boolean reject(Message message) {
+        rejectedCount.incrementAndGet();
+        System.out.println("Mailbox full, rejected message [" + message.getId()
+                + "] intended for " + message.getRecipient() + ".");
+        return false;
+    }
+
+    /**
+     * Retrieves and removes the next message in this mailbox, waiting if
+     * necessary until one becomes available.
+     *
+     * @return                      the next message in this mailbox
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Message take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /**
+     * Retrieves and removes the next message in this mailbox.
+     *
+     * @return  the next message in this mailbox, or null if it is empty
+     */
+    public Message poll() {
+        return queue.poll();
+    }
+
+    /**
+     * Removes up to the specified number of waiting messages from this mailbox
+     * and adds them, in order, to the given collection.
+     * 
+     * @param collection    the collection to transfer messages into
+     * @param maxMessages   the maximum number of messages to transfer
+     * @return              the number of messages transferred
+     */
+    public int drainTo(Collection<Message> collection, int maxMessages) {
+        return queue.drainTo(collection, maxMessages);
+    }
+    
+    /**
+     * Gets whether or not this mailbox is empty.
+     *
+     * @return  true if this mailbox is empty, otherwise false
+     */
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Gets the number of messages waiting in this mailbox.
+     *
+     * @return  the number of messages waiting in this mailbox
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Discards every message waiting in this mailbox.
+     */
+    public void clear() {
+        queue.clear();
+    }
+
+    /**
+     * Gets the maximum number of messages this mailbox can hold.
+     *
+     * @return  the maximum number of messages this mailbox can hold
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the policy applied to messages submitted while this mailbox is
+     * full.
+     *
+     * @return  the policy applied to messages submitted while this mailbox is
+     *          full
+     */
+    public MailboxOverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Gets the number of messages refused by this mailbox so far.
+     *
+     * @return  the number of messages refused by this mailbox
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Gets the number of messages discarded by this mailbox so far.
+     *
+     * @return  the number of messages discarded by this mailbox
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+}
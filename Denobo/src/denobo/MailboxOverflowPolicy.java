@@ -0,0 +1,42 @@
+package denobo;
+
+/**
+ * An enum of policies that decide what happens to a {@link Message} submitted
+ * to an Agent whose {@link Mailbox} is already full.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public enum MailboxOverflowPolicy {
+
+    /**
+     * The submitting thread is blocked until space becomes available in the
+     * mailbox.
+     * <p>
+     * If the submitting thread is the one that drains the mailbox, blocking
+     * would never end so the message is rejected instead. The same goes for 
+     * threads belonging to an {@link AgentScheduler}, since a worker blocked 
+     * waiting on a full mailbox may be the one its pump needs to run on.
+     * Agents forwarding a message along its route never block either, since 
+     * two agents forwarding to each other could otherwise wait on each other
+     * forever, so a message forwarded into a full mailbox is dropped.
+     */
+    BLOCK,
+
+    /**
+     * The message is refused, the submitter is told that it was not queued and
+     * the rejection is counted and reported.
+     */
+    REJECT,
+
+    /**
+     * The oldest message waiting in the mailbox is discarded to make room for
+     * the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * The new message is silently discarded.
+     */
+    DROP_NEWEST
+
+}
@@ -0,0 +1,27 @@
+package denobo;
+
+/**
+ * An enum of the queue implementations that can underlie an Agent's 
+ * {@link Mailbox}.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public enum MailboxType {
+
+    /**
+     * A linked queue guarded by locks. 
+     * <p>
+     * This can be unbounded and suits agents with few producers.
+     */
+    LINKED,
+
+    /**
+     * A lock-free, array-backed ring buffer.
+     * <p>
+     * This suits hub agents that many neighbours and connections submit
+     * messages to at once, as producers never contend on a lock. A ring buffer
+     * is always bounded; its capacity is rounded up to a power of two.
+     */
+    RING_BUFFER
+
+}
@@ -24,10 +24,17 @@ public class Message {
     private final String originator;
     
     /**
-     * The route this message should take to reach its destination Actor.
+     * The route this message should take to reach its destination Actor, or
+     * null if it is forwarded hop by hop.
      */
     private final Route route;
     
+    /**
+     * Whether or not the agents this message passes through should learn 
+     * routes to its originator and recipient from its route.
+     */
+    private final boolean learnsRoute;
+    
     /**
      * The Message data.
      */
@@ -41,16 +48,49 @@ public class Message {
      * Initialises a new instance of a Message.
      * 
      * @param id            the unique identifier for the new Message
+     * @param originator    the name of the originating Actor
+     * @param recipient     the name of the recipient Actor
      * @param route         the route this message should take to reach its 
-     *                      destination Actor
+     *                      destination Actor, or null if it is forwarded hop 
+     *                      by hop
      * @param data          the Message data
+     * @param learnsRoute   whether or not the agents this message passes 
+     *                      through should learn routes from its route
      */
-    public Message(String id, Route route, String data) {
+    private Message(String id, String originator, String recipient, Route route, 
+            String data, boolean learnsRoute) {
         this.id = id;
         this.route = route;
-        this.recipient = route.last();
-        this.originator = route.first();
+        this.recipient = recipient;
+        this.originator = originator;
         this.data = data;
+        this.learnsRoute = learnsRoute;
+    }
+    
+    /**
+     * Initialises a new instance of a Message.
+     * 
+     * @param id            the unique identifier for the new Message
+     * @param route         the route this message should take to reach its 
+     *                      destination Actor
+     * @param data          the Message data
+     * @param learnsRoute   whether or not the agents this message passes 
+     *                      through should learn routes from its route
+     */
+    public Message(String id, Route route, String data, boolean learnsRoute) {
+        this(id, route.first(), route.last(), route, data, learnsRoute);
+    }
+    
+    /**
+     * Initialises a new instance of a Message.
+     * 
+     * @param id            the unique identifier for the new Message
+     * @param route         the route this message should take to reach its 
+     *                      destination Actor
+     * @param data          the Message data
+     */
+    public Message(String id, Route route, String data) {
+        this(id, route, data, false);
     }
      
     /**
@@ -64,6 +104,53 @@ public class Message {
         this(UniqueIdFactory.getId(), route, data);
     }
     
+    /**
+     * Initialises a new instance of a Message whose route need not start at 
+     * its originator or end at its recipient.
+     * <p>
+     * This is the case for a message sent into a zone, whose route ends at 
+     * the gateway to the zone, and for the same message relayed on from the
+     * gateway.
+     * 
+     * @param id            the unique identifier for the new Message
+     * @param originator    the name of the originating Actor
+     * @param recipient     the name of the recipient Actor
+     * @param route         the route this message should take
+     * @param data          the Message data
+     * @see                 Route#getZone
+     */
+    public Message(String id, String originator, String recipient, Route route, 
+            String data) {
+        this(id, originator, recipient, route, data, false);
+    }
+    
+    /**
+     * Initialises a new instance of a Message that carries no route and is 
+     * forwarded hop by hop.
+     * 
+     * @param id            the unique identifier for the new Message
+     * @param originator    the name of the originating Actor
+     * @param recipient     the name of the recipient Actor
+     * @param data          the Message data
+     * @see                 ForwardingMode#NEXT_HOP
+     */
+    public Message(String id, String originator, String recipient, String data) {
+        this(id, originator, recipient, null, data, false);
+    }
+    
+    /**
+     * Initialises a new instance of a Message that carries no route and is 
+     * forwarded hop by hop.
+     * 
+     * @param originator    the name of the originating Actor
+     * @param recipient     the name of the recipient Actor
+     * @param data          the Message data
+     * @see                 ForwardingMode#NEXT_HOP
+     */
+    public Message(String originator, String recipient, String data) {
+        this(UniqueIdFactory.getId(), originator, recipient, data);
+    }
+    
     /**
      * Initialises a new instance of a Message that is a clone of the given
      * Message.
@@ -71,7 +158,8 @@ public class Message {
      * @param message   the Message instance to clone.
      */
     public Message(Message message) {
-        this(message.getId(), message.getRoute(), message.getData());
+        this(message.getId(), message.getOriginator(), message.getRecipient(), 
+                message.getRoute(), message.getData(), message.getLearnsRoute());
     }
 
     
@@ -118,12 +206,23 @@ public class Message {
      * Gets the route this message should take to reach its destination Actor.
      * 
      * @return  the route this message should take to reach its destination 
-     *          Actor
+     *          Actor, or null if it is forwarded hop by hop
      */
     public final Route getRoute() {
         return route;
     }
     
+    /**
+     * Gets whether or not the agents this message passes through should learn
+     * routes to its originator and recipient from its route.
+     * 
+     * @return  true if agents should learn routes from this message, 
+     *          otherwise false
+     */
+    public final boolean getLearnsRoute() {
+        return learnsRoute;
+    }
+    
     /**
      * Returns a serialised representation of this message.
      * 
@@ -132,7 +231,23 @@ public class Message {
     public String serialize() {
         final QueryString queryString = new QueryString();
         queryString.add("id", getId());
-        queryString.add("route", getRoute().serialize());
+        if (route != null) {
+            queryString.add("route", route.serialize());
+            if (learnsRoute) {
+                queryString.addAsBoolean("learn", true);
+            }
+            
+            // Only say who the message is between if the route doesn't.
+            if (!originator.equals(route.first())) {
+                queryString.add("from", getOriginator());
+            }
+            if (!recipient.equals(route.last())) {
+                queryString.add("to", getRecipient());
+            }
+        } else {
+            queryString.add("from", getOriginator());
+            queryString.add("to", getRecipient());
+        }
         queryString.add("data",  getData());
         return queryString.toString();
     }
@@ -145,8 +260,16 @@ public class Message {
      */
     public static Message deserialize(String string) {
         final QueryString queryString = new QueryString(string);
-        return new Message(queryString.get("id"), 
-                Route.deserialize(queryString.get("route")), queryString.get("data"));
+        if (queryString.has("route")) {
+            final Route route = Route.deserialize(queryString.get("route"));
+            return new Message(queryString.get("id"), 
+                    queryString.has("from") ? queryString.get("from") : route.first(), 
+                    queryString.has("to") ? queryString.get("to") : route.last(), 
+                    route, queryString.get("data"),
+                    queryString.has("learn") && queryString.getAsBoolean("learn"));
+        }
+        return new Message(queryString.get("id"), queryString.get("from"), 
+                queryString.get("to"), queryString.get("data"));
     } 
     
 }
@@ -0,0 +1,34 @@
+package denobo;
+
+/**
+ * Implemented by classes that decide which ordering key a {@link Message} 
+ * belongs to when a cloneable agent processes messages in parallel.
+ * <p>
+ * Messages that share a key are handled one at a time in the order they were
+ * queued, while messages with different keys may be handled at the same time.
+ * 
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ * @see     AgentConfiguration#setKeyedOrdering
+ */
+public interface MessageKeyExtractor {
+    
+    /**
+     * A key extractor that keys messages by the name of their originating 
+     * agent, so that messages from each sender are handled in order.
+     */
+    public static final MessageKeyExtractor ORIGINATOR = new MessageKeyExtractor() {
+        @Override
+        public Object getKey(Message message) {
+            return message.getOriginator();
+        }
+    };
+    
+    /**
+     * Gets the ordering key of a message.
+     * 
+     * @param message   the message to get the key of
+     * @return          the ordering key of the message, which must not be null
+     */
+    public Object getKey(Message message);
+    
+}
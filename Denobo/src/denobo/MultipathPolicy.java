@@ -0,0 +1,22 @@
+package denobo;
+
+/**
+ * An enum of the ways an Agent can choose between several routes it knows to
+ * the same recipient when originating a message.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public enum MultipathPolicy {
+
+    /**
+     * Each message takes the next route in turn.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Each message takes the route whose next agent has the fewest messages 
+     * waiting in its mailbox, preferring the cheaper route on a tie.
+     */
+    LEAST_QUEUE_DEPTH
+
+}
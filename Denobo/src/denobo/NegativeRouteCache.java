@@ -0,0 +1,218 @@
+package denobo;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents a cache of the names of agents that could recently not be routed
+ * to, so that messages sent to them can be turned away without searching the
+ * network for them again.
+ * <p>
+ * A name stays in the cache for a time-to-live that doubles each time routing
+ * to it fails again, up to a limit. Once that time has passed, the next
+ * message sent to the name is allowed to search for it once more. Finding a
+ * route to the name forgets its failures.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class NegativeRouteCache {
+
+    /**
+     * The time in milliseconds a name stays in the cache after routing to it
+     * first fails.
+     */
+    private final long timeToLive;
+
+    /**
+     * The longest time in milliseconds a name can stay in the cache after
+     * routing to it fails repeatedly.
+     */
+    private final long maximumTimeToLive;
+
+    /**
+     * The map of agent names to their cache entries, guarded by its own
+     * monitor.
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * The number of times a name has been found in the cache.
+     */
+    private final AtomicLong hitCount;
+
+    /**
+     * The number of times routing to a name has failed.
+     */
+    private final AtomicLong failureCount;
+
+
+    /* ---------- */
+
+
+    /**
+     * Initialises a new instance of a negative route cache.
+     *
+     * @param timeToLive        the time in milliseconds a name stays in the
+     *                          cache after routing to it first fails, or zero
+     *                          to never cache names
+     * @param maximumTimeToLive the longest time in milliseconds a name can
+     *                          stay in the cache after routing to it fails
+     *                          repeatedly
+     */
+    public NegativeRouteCache(long timeToLive, long maximumTimeToLive) {
+        this.timeToLive = (timeToLive < 0 ? 0 : timeToLive);
+        this.maximumTimeToLive = Math.max(this.timeToLive, maximumTimeToLive);
+        entries = new HashMap<>();
+        hitCount = new AtomicLong();
+        failureCount = new AtomicLong();
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Gets whether routing to an agent recently failed and should not be
+     * tried again yet.
+     * <p>
+     * Every call that returns true counts as a hit.
+     *
+     * @param agentName the name of the agent
+     * @return          true if the agent is in the cache, otherwise false
+     */
+    public boolean isUnreachable(String agentName) {
+
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+            final Entry entry = entries.get(agentName);
+            if (entry == null || now >= entry.expiryTime) {
+                return false;
+            }
+        }
+
+        hitCount.incrementAndGet();
+        return true;
+
+    }
+
+    /**
+     * Records that routing to an agent has failed, putting it in the cache.
+     *
+     * @param agentName the name of the agent
+     * @return          the time in milliseconds the agent will stay in the
+     *                  cache
+     */
+    public long routeFailed(String agentName) {
+
+        failureCount.incrementAndGet();
+        if (timeToLive == 0) {
+            return 0;
+        }
+
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+
+            // Back off exponentially if it failed last time too.
+            final Entry previous = entries.get(agentName);
+            final long lifetime = (previous == null ? timeToLive
+                    : Math.min(previous.lifetime * 2, maximumTimeToLive));
+            entries.put(agentName, new Entry(lifetime, now + lifetime));
+            return lifetime;
+
+        }
+
+    }
+
+    /**
+     * Removes an agent from the cache and forgets any failures to route to it.
+     *
+     * @param agentName the name of the agent
+     */
+    public void routeFound(String agentName) {
+        synchronized (entries) {
+            entries.remove(agentName);
+        }
+    }
+
+    /**
+     * Forgets the failures of any agents that have been out of the cache for
+     * longer than the maximum time-to-live, so they start backing off afresh.
+     */
+    public void purge() {
+
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                if (now - iterator.next().expiryTime > maximumTimeToLive) {
+                    iterator.remove();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Clears this cache.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Gets the number of times a name has been found in this cache.
+     *
+     * @return  the number of hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets the number of times routing to a name has failed.
+     *
+     * @return  the number of failures
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Represents the record of an agent that could not be routed to.
+     */
+    private static class Entry {
+
+        /**
+         * The time in milliseconds the agent was put in the cache for.
+         */
+        private final long lifetime;
+
+        /**
+         * The time in milliseconds at which the agent leaves the cache.
+         */
+        private final long expiryTime;
+
+        /**
+         * Initialises a new instance of a negative route cache entry.
+         *
+         * @param lifetime      the time in milliseconds the agent was put in
+         *                      the cache for
+         * @param expiryTime    the time in milliseconds at which the agent
+         *                      leaves the cache
+         */
+        public Entry(long lifetime, long expiryTime) {
+            this.lifetime = lifetime;
+            this.expiryTime = expiryTime;
+        }
+
+    }
+
+}
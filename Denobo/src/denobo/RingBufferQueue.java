@@ -0,0 +1,376 @@
+package denobo;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Represents a bounded, lock-free queue backed by a ring buffer, intended for
+ * many producer threads and a single consumer thread.
+ * <p>
+ * Each slot in the ring carries a sequence number that producers and the 
+ * consumer claim with a compare-and-set, so neither side ever takes a lock.
+ * A consumer waiting in {@link #take} is parked and is unparked by the next
+ * producer to publish an element. Producers that find the ring full in 
+ * {@link #put} back off briefly and retry.
+ * <p>
+ * Only one thread may wait in {@link #take} or the timed {@link #poll} at a
+ * time. Iteration works over a weakly consistent snapshot.
+ *
+ * @param <E>   the type of elements held in this queue
+ * @author      Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /**
+     * The time in nanoseconds a producer waits before retrying to insert into
+     * a full ring.
+     */
+    private static final long PRODUCER_BACKOFF = 50000L;
+
+    /**
+     * The slots of the ring.
+     */
+    private final Object[] buffer;
+
+    /**
+     * The sequence number of each slot in the ring.
+     * <p>
+     * A slot whose sequence equals a producer's position is free to be written
+     * at that position; a slot whose sequence is one past the consumer's 
+     * position holds an element ready to be read at that position.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The mask used to map a position onto a slot index.
+     */
+    private final int mask;
+
+    /**
+     * The position the next element will be written at.
+     */
+    private final AtomicLong enqueuePosition;
+
+    /**
+     * The position the next element will be read from.
+     */
+    private final AtomicLong dequeuePosition;
+
+    /**
+     * The consumer thread currently parked waiting for an element, if any.
+     */
+    private volatile Thread waitingConsumer;
+
+
+    /* ---------- */
+
+
+    /**
+     * Initialises a new instance of a ring buffer queue.
+     *
+     * @param capacity  the minimum number of elements the queue can hold, which
+     *                  is rounded up to the next power of two
+     */
+    public RingBufferQueue(int capacity) {
+
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Ring buffer capacity out of "
+                    + "range: " + capacity);
+        }
+
+        final int size = (capacity == 1 ? 1 
+                : Integer.highestOneBit(capacity - 1) << 1);
+        buffer = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        enqueuePosition = new AtomicLong();
+        dequeuePosition = new AtomicLong();
+
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Gets the number of elements this queue can hold.
+     *
+     * @return  the number of elements this queue can hold
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    @Override
+    public boolean offer(E element) {
+
+        Objects.requireNonNull(element, "Element cannot be null.");
+
+        long position = enqueuePosition.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            final long difference = sequences.get(index) - position;
+            if (difference == 0) {
+
+                // The slot is free, try to claim it.
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = enqueuePosition.get();
+
+            } else if (difference < 0) {
+
+                // The consumer has not yet freed this slot, the ring is full.
+                return false;
+
+            } else {
+
+                // Another producer beat us to it, try again further on.
+                position = enqueuePosition.get();
+
+            }
+        }
+
+        // Write the element then publish it to the consumer.
+        buffer[index] = element;
+        sequences.set(index, position + 1);
+
+        // Wake the consumer if it is waiting.
+        final Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+
+        long position = dequeuePosition.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            final long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+
+                // The slot holds a published element, try to claim it.
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = dequeuePosition.get();
+
+            } else if (difference < 0) {
+
+                // Nothing has been published here yet, the ring is empty.
+                return null;
+
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+
+        // Read the element then hand the slot back to the producers.
+        final E element = (E) buffer[index];
+        buffer[index] = null;
+        sequences.set(index, position + mask + 1);
+        return element;
+
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        final long position = dequeuePosition.get();
+        final int index = (int) (position & mask);
+        return (sequences.get(index) == position + 1) ? (E) buffer[index] : null;
+    }
+
+    @Override
+    public void put(E element) throws InterruptedException {
+        while (!offer(element)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(this, PRODUCER_BACKOFF);
+        }
+    }
+
+    @Override
+    public boolean offer(E element, long timeout, TimeUnit unit) 
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(element)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, PRODUCER_BACKOFF);
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E element;
+        while ((element = awaitElement(0L)) == null) {
+            // Spurious wakeup, wait again.
+        }
+        return element;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E element = poll();
+        while (element == null) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            element = awaitElement(remaining);
+        }
+        return element;
+    }
+
+    /**
+     * Parks the calling consumer until an element is published, the timeout 
+     * elapses or the thread is interrupted, then tries once to take an 
+     * element.
+     *
+     * @param timeout               the maximum time to park in nanoseconds, or
+     *                              0 to park indefinitely
+     * @return                      the element taken, or null if none was
+     *                              available on waking
+     * @throws InterruptedException if the consumer was interrupted
+     */
+    private E awaitElement(long timeout) throws InterruptedException {
+
+        E element = poll();
+        if (element != null) { return element; }
+
+        /*
+         * Advertise that we're waiting before checking once more, so that a
+         * producer publishing in between is guaranteed to see us and unpark
+         * us.
+         */
+        waitingConsumer = Thread.currentThread();
+        try {
+            element = poll();
+            if (element != null) { return element; }
+            if (timeout > 0) {
+                LockSupport.parkNanos(this, timeout);
+            } else {
+                LockSupport.park(this);
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        return poll();
+
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return buffer.length - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        Objects.requireNonNull(collection, "Collection cannot be null.");
+        int drained = 0;
+        E element;
+        while (drained < maxElements && (element = poll()) != null) {
+            collection.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public int size() {
+
+        /*
+         * Read the consumer's position first so that the producer's position
+         * can only have moved further on, never behind it.
+         */
+        final long dequeued = dequeuePosition.get();
+        final long enqueued = enqueuePosition.get();
+        final long size = enqueued - dequeued;
+        return (int) Math.max(0, Math.min(size, buffer.length));
+
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    @Override
+    public void clear() {
+        while (poll() != null) {
+            // Discard everything.
+        }
+    }
+
+    /**
+     * Returns a weakly consistent iterator over a snapshot of the elements in
+     * this queue, in the order they would be taken.
+     * <p>
+     * The snapshot is taken without locking, so it may miss elements added or
+     * taken while it is being built, but will never return an element twice.
+     * The iterator does not support removal.
+     *
+     * @return  an iterator over a snapshot of this queue
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<E> iterator() {
+
+        final List<E> snapshot = new ArrayList<>();
+        final long end = enqueuePosition.get();
+        for (long position = dequeuePosition.get(); position < end; position++) {
+            
+            // Only read slots that are published for this position, and check
+            // afterwards that the consumer didn't take it while we were reading.
+            final int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1) {
+                continue;
+            }
+            final E element = (E) buffer[index];
+            if (element != null && sequences.get(index) == position + 1) {
+                snapshot.add(element);
+            }
+            
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+
+    }
+
+}
@@ -3,11 +3,12 @@
 import denobo.exceptions.DuplicateAgentNameException;
 import denobo.exceptions.InvalidQueryStringException;
 import denobo.exceptions.EndOfRouteException;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collections;
-import static java.util.Collections.unmodifiableList;
 import java.util.List;
 import static java.util.Objects.requireNonNull;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a route that should be taken by a message to reach its
@@ -24,15 +25,76 @@ public class Route {
     private static final String[] PROPERTY_NAMES = new String[] {"path", "position"};
     
     /**
-     * The ordered list of agent names in the route.
+     * The optional property name the cost of a route is serialised under.
      */
-    private List<String> path;
+    private static final String COST_PROPERTY_NAME = "cost";
+    
+    /**
+     * The name of the optional property that holds the zone a route leads 
+     * into.
+     */
+    private static final String ZONE_PROPERTY_NAME = "zone";
+    
+    /**
+     * The cost given to a link between two agents when nothing better is 
+     * known about it, such as a link between two agents in the same process.
+     */
+    public static final long DEFAULT_LINK_COST = 1L;
+    
+    /**
+     * The number of agents a route can hold before a membership check builds
+     * a hash of its agent IDs rather than scanning them.
+     */
+    private static final int LINEAR_SEARCH_LIMIT = 8;
+    
+    /**
+     * The ID held in place of an agent name that has no ID, such as the name
+     * of an agent in a remote process that we're not connected to. The name 
+     * itself is held alongside.
+     */
+    private static final int FOREIGN_ID = -1;
+    
+    /**
+     * The buffer of agent IDs that underlies this route, possibly shared with
+     * other routes that have the same prefix.
+     */
+    private IdBuffer buffer;
+    
+    /**
+     * The number of agent IDs from the buffer that belong to this route.
+     */
+    private int length;
 
     /**
      * The position we're currently at in our route.
      */
     private int position;
     
+    /**
+     * The total cost of the links between the agents in this route.
+     */
+    private long cost;
+    
+    /**
+     * The topology epoch this route was calculated in, or last found to be
+     * current in.
+     * 
+     * @see LinkGenerations
+     */
+    private volatile long epoch;
+    
+    /**
+     * The name prefix of the zone this route leads into, or null if it leads
+     * to a single agent.
+     */
+    private String zone;
+    
+    /**
+     * An open-addressed hash set of the agent IDs in this route offset by one
+     * so that zero means empty, or null if one has not been needed yet.
+     */
+    private int[] lookup;
+    
     
     /* ---------- */
     
@@ -45,26 +107,38 @@ public class Route {
      */
     private Route(List<String> path, int position) {
         requireNonNull(path, "List of agent names cannot be null.");
-        this.path = path;
+        buffer = new IdBuffer(Math.max(IdBuffer.MINIMUM_CAPACITY, path.size()));
+        length = 0;
         this.position = position;
+        epoch = LinkGenerations.getEpoch();
+        for (String current : path) {
+            appendId(AgentNameRegistry.findId(current), current, DEFAULT_LINK_COST);
+        }
     }
     
     /**
      * Initialises a new instance of a route.
      */
     public Route() {
-        this(new ArrayList(), 0);
+        this(Collections.<String>emptyList(), 0);
     }
     
     /**
      * Initialises a new instance of a route.
+     * <p>
+     * The clone shares its agent IDs with the original until either of them is
+     * appended to, so cloning does not copy the route.
      * 
      * @param route  the route to clone
      */
     public Route(Route route) {
         requireNonNull(route, "Route to clone cannot be null.");
-        path = new ArrayList(route.path);
+        buffer = route.buffer;
+        length = route.length;
         position = route.position;
+        cost = route.cost;
+        epoch = route.epoch;
+        zone = route.zone;
     }
     
     
@@ -77,30 +151,141 @@ public class Route {
      * @return  the list of agent names that underlies this instance
      */
     public List<String> getPath() {
-        return unmodifiableList(path);
+        final IdBuffer shared = buffer;
+        final int size = length;
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index 
+                            + ", Size: " + size);
+                }
+                return nameAt(shared, index);
+            }
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
     
     /**
-     * Appends an agent to the end of this route.
+     * Appends an agent to the end of this route over a link of the default 
+     * cost.
      * 
      * @param actor the agent to append
      */
     public final void append(Agent actor) {
+        append(actor, DEFAULT_LINK_COST);
+    }
+    
+    /**
+     * Appends an agent to the end of this route over a link of the specified
+     * cost.
+     * 
+     * @param actor     the agent to append
+     * @param linkCost  the cost of the link from the current end of the route
+     *                  to the agent, ignored if the route is empty
+     */
+    public final void append(Agent actor, long linkCost) {
         requireNonNull(actor, "Agent to append cannot be null.");
-        path.add(actor.getName());
+        appendId(AgentNameRegistry.getId(actor.getName()), actor.getName(), linkCost);
     }
     
     /**
-     * Appends an actor name to the end of this route.
+     * Appends an actor name to the end of this route over a link of the 
+     * default cost.
      * 
      * @param name  the actor name to append
      */
     public final void append(String name) {
+        append(name, DEFAULT_LINK_COST);
+    }
+    
+    /**
+     * Appends an actor name to the end of this route over a link of the 
+     * specified cost.
+     * 
+     * @param name      the actor name to append
+     * @param linkCost  the cost of the link from the current end of the route
+     *                  to the actor, ignored if the route is empty
+     */
+    public final void append(String name, long linkCost) {
         requireNonNull(name, "Agent name to append cannot be null.");
-        if (path.contains(name)) {
+        final int id = AgentNameRegistry.findId(name);
+        if ((id != FOREIGN_ID && hasId(id)) || hasForeign(name)) {
             throw new DuplicateAgentNameException(this);
         }
-        path.add(name);
+        appendId(id, name, linkCost);
+    }
+    
+    /**
+     * Appends an agent ID to the end of this route.
+     * <p>
+     * If no other route has claimed the slot after our last ID in the shared 
+     * buffer, we claim it and write in place. Otherwise the IDs are copied 
+     * into a buffer of our own first.
+     * 
+     * @param id        the agent ID to append, or {@link #FOREIGN_ID} if the 
+     *                  agent name has none
+     * @param name      the agent name, which is only kept if it has no ID
+     * @param linkCost  the cost of the link from the current end of the route
+     *                  to the agent, ignored if the route is empty
+     */
+    private void appendId(int id, String name, long linkCost) {
+        
+        if (!buffer.claim(length)) {
+            final IdBuffer copy = new IdBuffer(Math.max(IdBuffer.MINIMUM_CAPACITY, 
+                    length * 2));
+            System.arraycopy(buffer.ids, 0, copy.ids, 0, length);
+            if (buffer.names != null) {
+                copy.names = Arrays.copyOf(buffer.names, copy.ids.length);
+            }
+            copy.claimed.set(length);
+            copy.claim(length);
+            buffer = copy;
+        }
+        if (length > 0) {
+            cost += linkCost;
+        }
+        if (id == FOREIGN_ID) {
+            if (buffer.names == null) {
+                buffer.names = new String[buffer.ids.length];
+            }
+            buffer.names[length] = name;
+        }
+        buffer.ids[length++] = id;
+        
+        // Keep the membership hash up to date if we have one.
+        if (lookup != null && id != FOREIGN_ID) {
+            if (length * 2 > lookup.length) {
+                lookup = null;
+            } else {
+                insert(lookup, id);
+            }
+        }
+        
+    }
+    
+    /**
+     * Gets the total cost of the links between the agents in this route.
+     * <p>
+     * Unless links were appended with a cost of their own, this is one less 
+     * than the number of agents in the route.
+     * 
+     * @return  the total cost of this route
+     */
+    public long getCost() {
+        return cost;
+    }
+    
+    /**
+     * Gets the position we're currently at in this route.
+     * 
+     * @return  the index of the next entry in this route
+     */
+    public int getPosition() {
+        return position;
     }
     
     /**
@@ -109,7 +294,7 @@ public class Route {
      * @return  true if the route has another entry, otherwise false
      */
     public boolean hasNext() {
-        return position < path.size();
+        return position < length;
     }
     
     /**
@@ -122,7 +307,7 @@ public class Route {
         if (!hasNext()) {
             throw new EndOfRouteException(this);
         }
-        return path.get(position++);
+        return nameAt(buffer, position++);
     }
     
     /**
@@ -133,7 +318,7 @@ public class Route {
      *          the route has been reached
      */
     public String peek() {
-        return hasNext() ? path.get(position) : null;
+        return hasNext() ? nameAt(buffer, position) : null;
     }
 
     /**
@@ -143,7 +328,7 @@ public class Route {
      * @return      true if the agent is in the route, otherwise false
      */
     public boolean has(Agent agent) {
-        return path.contains(agent.getName());
+        return has(agent.getName());
     }
     
     /**
@@ -153,7 +338,95 @@ public class Route {
      * @return          true if the agent name is in the route, otherwise false
      */
     public boolean has(String agentName) {
-        return path.contains(agentName);
+        
+        if (agentName == null) {
+            return false;
+        }
+        
+        // The name may have been given an ID since it was appended without.
+        final int id = AgentNameRegistry.findId(agentName);
+        return (id != FOREIGN_ID && hasId(id)) || hasForeign(agentName);
+        
+    }
+    
+    /**
+     * Checks to see if this route already contains the specified agent name 
+     * that has no ID.
+     * 
+     * @param agentName the name of the agent to check for
+     * @return          true if the agent name is in the route, otherwise false
+     */
+    private boolean hasForeign(String agentName) {
+        
+        final String[] names = buffer.names;
+        if (names == null) {
+            return false;
+        }
+        final int[] ids = buffer.ids;
+        for (int i = 0; i < length; i++) {
+            if (ids[i] == FOREIGN_ID && agentName.equals(names[i])) { return true; }
+        }
+        return false;
+        
+    }
+    
+    /**
+     * Checks to see if this route already contains the specified agent ID.
+     * 
+     * @param id    the agent ID to check for
+     * @return      true if the agent ID is in the route, otherwise false
+     */
+    private boolean hasId(int id) {
+        
+        // Short routes are quicker to scan than to hash.
+        final int[] ids = buffer.ids;
+        if (length <= LINEAR_SEARCH_LIMIT) {
+            for (int i = 0; i < length; i++) {
+                if (ids[i] == id) { return true; }
+            }
+            return false;
+        }
+        
+        // Build the hash the first time we need it.
+        if (lookup == null) {
+            final int[] table = new int[Integer.highestOneBit(length) << 2];
+            for (int i = 0; i < length; i++) {
+                if (ids[i] != FOREIGN_ID) { insert(table, ids[i]); }
+            }
+            lookup = table;
+        }
+        
+        final int mask = lookup.length - 1;
+        for (int slot = mix(id) & mask; lookup[slot] != 0; slot = (slot + 1) & mask) {
+            if (lookup[slot] == id + 1) { return true; }
+        }
+        return false;
+        
+    }
+    
+    /**
+     * Inserts an agent ID into a membership hash.
+     * 
+     * @param table the membership hash
+     * @param id    the agent ID to insert
+     */
+    private static void insert(int[] table, int id) {
+        final int mask = table.length - 1;
+        int slot = mix(id) & mask;
+        while (table[slot] != 0 && table[slot] != id + 1) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+    
+    /**
+     * Spreads the bits of an agent ID for use as a hash.
+     * 
+     * @param id    the agent ID
+     * @return      the hash of the agent ID
+     */
+    private static int mix(int id) {
+        return id * 0x9E3779B9;
     }
     
     /**
@@ -171,7 +444,7 @@ public class Route {
      * @return  the number of agents in the route
      */
     public int size() {
-        return path.size();
+        return length;
     }
     
     /**
@@ -181,7 +454,7 @@ public class Route {
      *          empty
      */
     public String first() {
-        return isEmpty() ? null : path.get(0);
+        return isEmpty() ? null : nameAt(buffer, 0);
     }
     
     /**
@@ -191,18 +464,91 @@ public class Route {
      *          empty
      */
     public String last() {
-        return isEmpty() ? null : path.get(size() - 1);
+        return isEmpty() ? null : nameAt(buffer, length - 1);
+    }
+    
+    /**
+     * Finds a link in this route that has been lost since the route was 
+     * calculated.
+     * <p>
+     * If the topology epoch hasn't moved on since the route was calculated or
+     * last checked, this doesn't look at any links. If no link has been lost, 
+     * the route is marked as current in the new epoch.
+     * 
+     * @return  the names of the agents at the ends of the lost link, or null 
+     *          if no link in this route has been lost
+     * @see     LinkGenerations
+     */
+    public String[] findLostLink() {
+        
+        final long current = LinkGenerations.getEpoch();
+        final long calculated = epoch;
+        if (calculated == current) {
+            return null;
+        }
+        
+        final int[] ids = buffer.ids;
+        for (int i = 1; i < length; i++) {
+            
+            // Links to agents without an ID are kept by name.
+            final boolean lost = (ids[i - 1] == FOREIGN_ID || ids[i] == FOREIGN_ID
+                    ? LinkGenerations.lostSince(nameAt(buffer, i - 1), 
+                            nameAt(buffer, i), calculated)
+                    : LinkGenerations.lostSince(ids[i - 1], ids[i], calculated));
+            if (lost) {
+                return new String[] {nameAt(buffer, i - 1), nameAt(buffer, i)};
+            }
+            
+        }
+        
+        epoch = current;
+        return null;
+        
+    }
+    
+    /**
+     * Gets the name prefix of the zone this route leads into.
+     * <p>
+     * A route into a zone ends at the SocketAgent that is the gateway to it 
+     * rather than at any one agent, and stands for the way to every agent 
+     * whose name starts with the prefix.
+     * 
+     * @return  the name prefix of the zone, or null if this route leads to a
+     *          single agent
+     * @see     denobo.socket.SocketAgentConfiguration#setZonePrefix
+     */
+    public String getZone() {
+        return zone;
+    }
+    
+    /**
+     * Sets the name prefix of the zone this route leads into.
+     * 
+     * @param zone  the name prefix of the zone, or null if this route leads 
+     *              to a single agent
+     */
+    public void setZone(String zone) {
+        this.zone = zone;
     }
     
     /**
      * Returns a reversed copy of this route.
+     * <p>
+     * The copy leads back to a single agent, so it is never into a zone.
      * 
      * @return  a reversed copy of this route
      */
     public Route reverse() {
-        final ArrayList copy = new ArrayList(path);
-        Collections.reverse(copy);
-        return new Route(copy, position);
+        final Route reversed = new Route();
+        reversed.position = position;
+        for (int i = length - 1; i >= 0; i--) {
+            reversed.appendId(buffer.ids[i], nameAt(buffer, i), 0L);
+        }
+        
+        // We assume links cost the same in both directions.
+        reversed.cost = cost;
+        reversed.epoch = epoch;
+        return reversed;
     }
     
     /**
@@ -212,8 +558,12 @@ public class Route {
      */
     public String serialize() {
         final QueryString queryString = new QueryString();
-        queryString.addAsCollection(PROPERTY_NAMES[0], path);
+        queryString.addAsCollection(PROPERTY_NAMES[0], getPath());
         queryString.add(PROPERTY_NAMES[1], Integer.toString(position));
+        queryString.add(COST_PROPERTY_NAME, Long.toString(cost));
+        if (zone != null) {
+            queryString.add(ZONE_PROPERTY_NAME, zone);
+        }
         return queryString.toString();
     }
     
@@ -229,11 +579,19 @@ public class Route {
             try {
                 final Route route = new Route(queryString.getAsList(PROPERTY_NAMES[0]), 
                         Integer.parseInt(queryString.get(PROPERTY_NAMES[1])));
+                
+                // Routes from older agents don't carry a cost.
+                if (queryString.has(COST_PROPERTY_NAME)) {
+                    route.cost = Long.parseLong(queryString.get(COST_PROPERTY_NAME));
+                }
+                if (queryString.has(ZONE_PROPERTY_NAME)) {
+                    route.zone = queryString.get(ZONE_PROPERTY_NAME);
+                }
                 return route;
             } catch (NumberFormatException ex) {
                 throw new InvalidQueryStringException("A route could not be"
-                        + " deserialised from this query string. Invalid position.",
-                        queryString);
+                        + " deserialised from this query string. Invalid position"
+                        + " or cost.", queryString);
             }
         } else {
             throw new InvalidQueryStringException("A route could not be"
@@ -245,10 +603,80 @@ public class Route {
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
-        for (String current : path) {
-            sb.append(current).append(!current.equals(last()) ? " -> " : "");
+        for (int i = 0; i < length; i++) {
+            sb.append(i > 0 ? " -> " : "").append(nameAt(buffer, i));
         }
         return sb.toString();
     }
     
+    /**
+     * Gets the agent name held at an index of a buffer of agent IDs.
+     * 
+     * @param buffer    the buffer of agent IDs
+     * @param index     the index
+     * @return          the agent name held at the index
+     */
+    private static String nameAt(IdBuffer buffer, int index) {
+        final int id = buffer.ids[index];
+        return id == FOREIGN_ID ? buffer.names[index] : AgentNameRegistry.getName(id);
+    }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Represents a buffer of agent IDs that can be shared by several routes 
+     * with a common prefix.
+     * <p>
+     * Each slot is claimed at most once, by whichever route sharing the buffer
+     * appends to it first. Every other route must copy the buffer before 
+     * appending, so the IDs a route can see never change underneath it.
+     */
+    private static class IdBuffer {
+        
+        /**
+         * The capacity given to the smallest buffers.
+         */
+        private static final int MINIMUM_CAPACITY = 8;
+        
+        /**
+         * The agent IDs held in this buffer.
+         */
+        private final int[] ids;
+        
+        /**
+         * The names held in slots whose agent names have no ID, or null if 
+         * there are none yet.
+         */
+        private volatile String[] names;
+        
+        /**
+         * The number of slots in this buffer claimed so far.
+         */
+        private final AtomicInteger claimed;
+        
+        /**
+         * Initialises a new instance of a buffer of agent IDs.
+         * 
+         * @param capacity  the number of IDs the buffer can hold
+         */
+        public IdBuffer(int capacity) {
+            ids = new int[capacity];
+            claimed = new AtomicInteger();
+        }
+        
+        /**
+         * Attempts to claim the slot at the specified index.
+         * 
+         * @param index the index of the slot to claim
+         * @return      true if the slot was claimed, otherwise false if it has
+         *              already been claimed or is out of bounds
+         */
+        public boolean claim(int index) {
+            return index < ids.length && claimed.compareAndSet(index, index + 1);
+        }
+        
+    }
+    
 }
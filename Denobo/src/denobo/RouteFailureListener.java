@@ -0,0 +1,32 @@
+package denobo;
+
+import java.util.List;
+
+/**
+ * Implemented by classes that wish to be notified when an agent gives up on
+ * sending messages because no route could be found to their recipient, or 
+ * because its own mailbox turned them away.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public interface RouteFailureListener {
+
+    /**
+     * Called when an agent discards messages because no route could be found
+     * to their recipient.
+     * <p>
+     * This is called either once routing to the recipient has timed out, or
+     * straight away when a message is sent to a recipient that recently could
+     * not be routed to. It is also called for a message the agent's full 
+     * mailbox refused or dropped.
+     *
+     * @param agent                 the agent that discarded the messages
+     * @param destinationAgentName  the name of the recipient
+     * @param data                  the read-only list of data attached to the
+     *                              discarded messages, in the order they were
+     *                              sent
+     * @see NegativeRouteCache
+     */
+    void routeFailed(Agent agent, String destinationAgentName, List<String> data);
+
+}
@@ -0,0 +1,320 @@
+package denobo;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents a bounded pool of threads that routing and route invalidation 
+ * tasks are run on.
+ * <p>
+ * Rather than each {@link RoutingWorker} and {@link Undertaker} starting a
+ * thread of its own, tasks are queued for a fixed number of worker threads. 
+ * Once the queue is full, tasks are run on the thread that submitted them, 
+ * which slows down whoever is producing work faster than it can be done 
+ * instead of creating ever more threads. The number of active, queued and 
+ * completed tasks of each type is counted. Tasks submitted after shutdown are
+ * refused with a {@link RejectedExecutionException}.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class RoutingExecutor {
+    
+    /**
+     * An enum of the types of task run on a routing executor.
+     */
+    public enum TaskType {
+        
+        /**
+         * A task searching for a route, such as a {@link RoutingWorker}.
+         */
+        ROUTING,
+        
+        /**
+         * A task invalidating routes, such as an {@link Undertaker}.
+         */
+        INVALIDATION,
+        
+        /**
+         * A task measuring the round-trip time of a connection.
+         */
+        LINK_PROBE,
+        
+        /**
+         * A task exchanging routes with the peers of a SocketAgent ahead of 
+         * time.
+         */
+        ROUTE_PROPAGATION
+        
+    }
+    
+    /**
+     * The default maximum number of tasks waiting for a worker thread.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    
+    /**
+     * The pool of threads that underlies this executor.
+     */
+    private final ThreadPoolExecutor executor;
+    
+    /**
+     * The number of tasks of each type currently running.
+     */
+    private final AtomicInteger[] activeCounts;
+    
+    /**
+     * The number of tasks of each type waiting for a worker thread.
+     */
+    private final AtomicInteger[] queuedCounts;
+    
+    /**
+     * The number of tasks of each type that have finished.
+     */
+    private final AtomicLong[] completedCounts;
+    
+    /**
+     * The number of tasks that were run on the submitting thread because the
+     * queue was full.
+     */
+    private final AtomicLong callerRunCount;
+    
+    /**
+     * The number of tasks that were refused because this executor was shut 
+     * down.
+     */
+    private final AtomicLong rejectedCount;
+    
+    /**
+     * The lazily-created executor shared by the whole process.
+     */
+    private static RoutingExecutor sharedInstance;
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Initialises a new instance of a routing executor.
+     * 
+     * @param threadCount   the number of worker threads to run tasks on
+     * @param queueCapacity the maximum number of tasks waiting for a worker
+     *                      thread
+     */
+    public RoutingExecutor(int threadCount, int queueCapacity) {
+        
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("A routing executor needs at "
+                    + "least one worker thread.");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("A routing executor needs a "
+                    + "queue capacity of at least 1.");
+        }
+        
+        final int typeCount = TaskType.values().length;
+        activeCounts = new AtomicInteger[typeCount];
+        queuedCounts = new AtomicInteger[typeCount];
+        completedCounts = new AtomicLong[typeCount];
+        for (int i = 0; i < typeCount; i++) {
+            activeCounts[i] = new AtomicInteger();
+            queuedCounts[i] = new AtomicInteger();
+            completedCounts[i] = new AtomicLong();
+        }
+        callerRunCount = new AtomicLong();
+        rejectedCount = new AtomicLong();
+        
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity),
+                new RoutingThreadFactory(), 
+                new CallerRunsCountingPolicy());
+        
+        // Don't keep idle threads around for a quiet network.
+        executor.allowCoreThreadTimeOut(true);
+        
+    }
+    
+    /**
+     * Initialises a new instance of a routing executor with one worker thread 
+     * per available processor (and at least two) and the default queue 
+     * capacity.
+     */
+    public RoutingExecutor() {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors()), 
+                DEFAULT_QUEUE_CAPACITY);
+    }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Gets the routing executor shared by the whole process, creating it if it
+     * does not yet exist.
+     * 
+     * @return  the routing executor shared by the whole process
+     */
+    public static synchronized RoutingExecutor getShared() {
+        if (sharedInstance == null) {
+            sharedInstance = new RoutingExecutor();
+        }
+        return sharedInstance;
+    }
+    
+    /**
+     * Executes a task on one of this executor's worker threads, or on the 
+     * calling thread if the queue is full.
+     * 
+     * @param type  the type of the task
+     * @param task  the task to execute
+     * @throws RejectedExecutionException   if this executor has been shut down
+     */
+    public void execute(final TaskType type, final Runnable task) {
+        
+        final int index = type.ordinal();
+        queuedCounts[index].incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queuedCounts[index].decrementAndGet();
+                    activeCounts[index].incrementAndGet();
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        System.out.println("A " + type + " task threw an exception: "
+                                + ex.getMessage());
+                    } finally {
+                        activeCounts[index].decrementAndGet();
+                        completedCounts[index].incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            
+            // It will never run, so it isn't queued any more.
+            queuedCounts[index].decrementAndGet();
+            throw ex;
+            
+        }
+        
+    }
+    
+    /**
+     * Gets the number of tasks of a type currently running.
+     * 
+     * @param type  the type of task
+     * @return      the number of tasks of that type currently running
+     */
+    public int getActiveCount(TaskType type) {
+        return activeCounts[type.ordinal()].get();
+    }
+    
+    /**
+     * Gets the number of tasks of a type waiting for a worker thread.
+     * 
+     * @param type  the type of task
+     * @return      the number of tasks of that type waiting to run
+     */
+    public int getQueuedCount(TaskType type) {
+        return queuedCounts[type.ordinal()].get();
+    }
+    
+    /**
+     * Gets the number of tasks of a type that have finished so far.
+     * 
+     * @param type  the type of task
+     * @return      the number of tasks of that type that have finished
+     */
+    public long getCompletedCount(TaskType type) {
+        return completedCounts[type.ordinal()].get();
+    }
+    
+    /**
+     * Gets the number of tasks that were run on the submitting thread so far 
+     * because the queue was full.
+     * 
+     * @return  the number of tasks run on the submitting thread
+     */
+    public long getCallerRunCount() {
+        return callerRunCount.get();
+    }
+    
+    /**
+     * Gets the number of tasks that were refused so far because this executor
+     * was shut down.
+     * 
+     * @return  the number of tasks refused after shutdown
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+    
+    /**
+     * Gets the number of worker threads in this executor.
+     * 
+     * @return  the number of worker threads in this executor
+     */
+    public int getThreadCount() {
+        return executor.getMaximumPoolSize();
+    }
+    
+    /**
+     * Shuts this executor down once every queued task has finished.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Runs tasks that could not be queued on the submitting thread, counting
+     * each time it does so, and refuses tasks once the executor is shut down.
+     */
+    private class CallerRunsCountingPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                rejectedCount.incrementAndGet();
+                System.out.println("Routing executor refused a task because "
+                        + "it has been shut down.");
+                throw new RejectedExecutionException("Routing executor has "
+                        + "been shut down.");
+            }
+            callerRunCount.incrementAndGet();
+            task.run();
+        }
+        
+    }
+    
+    /**
+     * Creates the named daemon threads that underlie a routing executor.
+     */
+    private static class RoutingThreadFactory implements ThreadFactory {
+        
+        /**
+         * The number of threads created so far.
+         */
+        private final AtomicInteger createdCount = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, 
+                    "denobo-routing-" + createdCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+        
+    }
+    
+}
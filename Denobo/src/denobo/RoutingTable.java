@@ -1,32 +1,127 @@
 package denobo;
 
+import denobo.exceptions.DuplicateAgentNameException;
+import denobo.exceptions.InvalidQueryStringException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a table of destination actors and optimal routes that should be
  * taken by messages to reach them.
+ * <p>
+ * Routes are looked up without locking. Alongside the table, an index is kept
+ * from every agent name to the destinations whose routes pass through that 
+ * agent, so invalidating an agent only has to touch the routes it affects.
+ * <p>
+ * A table may keep several routes to each destination, cheapest first, so 
+ * long as they cost no more than a given tolerance above the cheapest. It may
+ * also keep a backup route to each destination that shares no agents with the
+ * cheapest route other than its ends, which takes over straight away if every
+ * other route to the destination is invalidated.
+ * <p>
+ * Routes into a zone are kept under a key of their own made from the zone's
+ * name prefix, and serve every destination whose name starts with it that 
+ * the table has no routes of its own to.
  * 
  * @author  Saul Johnson, Alex Mullen, Lee Oliver
  */
 public class RoutingTable {
     
+    /**
+     * The character that ends the key the routes into a zone are kept under, 
+     * which can never appear in an agent name.
+     */
+    private static final String ZONE_KEY_SUFFIX = "*";
+    
     /**
      * The map of actors names to routes.
      */
-    private final Map<String, Route> table;
+    private final Map<String, RouteSet> table;
+    
+    /**
+     * The map of agent names to the names of the destinations whose routes 
+     * pass through them, guarded by {@link #writeLock}.
+     */
+    private final Map<String, Set<String>> reverseIndex;
+    
+    /**
+     * The lock that every change to this table is made under.
+     */
+    private final Object writeLock;
+    
+    /**
+     * The most routes this table will keep to each destination.
+     */
+    private final int maximumRoutes;
+    
+    /**
+     * How much more than the cheapest route to a destination, as a fraction of
+     * its cost, other routes kept to it may cost.
+     */
+    private final double costTolerance;
+    
+    /**
+     * The names of the destinations whose routes were reloaded from a 
+     * snapshot and have not been checked since.
+     */
+    private final Set<String> provisional;
     
     
     /* ---------- */
     
     
     /**
-     * Initialises a new instance of a routing table.
+     * Initialises a new instance of a routing table that keeps only the 
+     * cheapest route to each destination.
      */
     public RoutingTable() {
-        table = Collections.synchronizedMap(new HashMap<String, Route>());
+        this(1, 0);
+    }
+    
+    /**
+     * Initialises a new instance of a routing table.
+     * 
+     * @param maximumRoutes the most routes to keep to each destination
+     * @param costTolerance how much more than the cheapest route to a 
+     *                      destination, as a fraction of its cost, other 
+     *                      routes kept to it may cost
+     */
+    public RoutingTable(int maximumRoutes, double costTolerance) {
+        table = new ConcurrentHashMap<>();
+        reverseIndex = new HashMap<>();
+        writeLock = new Object();
+        this.maximumRoutes = (maximumRoutes < 1 ? 1 : maximumRoutes);
+        this.costTolerance = (costTolerance < 0 ? 0 : costTolerance);
+        provisional = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Gets whether a route costs near enough the same as the cheapest route to
+     * the same destination to be kept alongside it.
+     * 
+     * @param cost          the cost of the route
+     * @param cheapestCost  the cost of the cheapest route
+     * @param tolerance     how much more than the cheapest route, as a 
+     *                      fraction of its cost, the route may cost
+     * @return              true if the route costs near enough the same, 
+     *                      otherwise false
+     */
+    static boolean isNearEqualCost(long cost, long cheapestCost, double tolerance) {
+        return cost - cheapestCost <= cheapestCost * tolerance;
     }
     
     
@@ -49,65 +144,509 @@ public class RoutingTable {
         return table.containsKey(actorName);
     }
     
+    /**
+     * Gets the key the routes into a zone are kept under.
+     * 
+     * @param zone  the name prefix of the zone
+     * @return      the key of the zone
+     * @see         Route#getZone
+     */
+    public static String zoneKey(String zone) {
+        return zone + ZONE_KEY_SUFFIX;
+    }
+    
+    /**
+     * Gets the key the routes that reach an actor are kept under.
+     * <p>
+     * This is the name of the actor if the table has routes to it, otherwise
+     * the key of the zone with the longest name prefix the actor's name 
+     * starts with that the table has routes into.
+     * 
+     * @param actorName the name of the destination actor
+     * @return          the key of the routes to the actor, or the name of the
+     *                  actor if the table has none
+     */
+    public String resolve(String actorName) {
+        if (table.containsKey(actorName)) {
+            return actorName;
+        }
+        for (int i = actorName.length(); i > 0; i--) {
+            final String key = zoneKey(actorName.substring(0, i));
+            if (table.containsKey(key)) {
+                return key;
+            }
+        }
+        return actorName;
+    }
+    
     /**
      * Adds a route to the table.
+     * <p>
+     * A route cheaper than every other to its destination becomes the route
+     * returned by {@link #getRoute}, and any routes no longer near enough its
+     * cost are dropped. Otherwise the route is kept alongside the others if it
+     * is near enough the cost of the cheapest and there is room for it, or it
+     * is cheaper than the most costly route kept.
      * 
      * @param actorName the name of the destination actor
      * @param queue     the routing queue that represents the route to the actor 
      */
     public void addRoute(String actorName, Route queue) {
         
-        synchronized (table) {
-            /* 
-             * Remove any previous, less efficient routes or stop right now if the
-             * proposed new route is less efficient
-             */ 
-            if (hasRoute(actorName)) {
-                if (table.get(actorName).size() <= queue.size()) {
-                    return;
+        synchronized (writeLock) {
+            
+            final RouteSet existing = table.get(actorName);
+            if (existing == null) {
+                replaceRoutes(actorName, null, 
+                        new RouteSet(new Route[] {new Route(queue)}, null));
+                return;
+            }
+            
+            // Leave out any route we already have along the same path.
+            final List<Route> routes = new ArrayList<>(existing.routes.length + 1);
+            for (Route current : existing.routes) {
+                if (current.getPath().equals(queue.getPath())) {
+                    if (current.getCost() <= queue.getCost()) {
+                        return;
+                    }
                 } else {
-                    table.remove(actorName);
+                    routes.add(current);
                 }
             }
-
-            table.put(actorName, queue);
+            
+            // Slot the new route in by cost, after any that cost the same.
+            int insertAt = 0;
+            while (insertAt < routes.size() && routes.get(insertAt).getCost() <= queue.getCost()) {
+                insertAt++;
+            }
+            routes.add(insertAt, new Route(queue));
+            
+            /* 
+             * Drop the most costly routes beyond the ones we're allowed to 
+             * keep. Stop right now if that includes the proposed new route.
+             */
+            final long cheapestCost = routes.get(0).getCost();
+            int keep = Math.min(routes.size(), maximumRoutes);
+            while (keep > 1 && !isNearEqualCost(routes.get(keep - 1).getCost(), 
+                    cheapestCost, costTolerance)) {
+                keep--;
+            }
+            if (insertAt >= keep) {
+                return;
+            }
+            
+            // Keep the backup route only while it's still a way around the cheapest.
+            final Route backup = (existing.backup != null 
+                    && isDisjoint(routes.get(0), existing.backup) ? existing.backup : null);
+            replaceRoutes(actorName, existing, 
+                    new RouteSet(routes.subList(0, keep).toArray(new Route[keep]), backup));
+            
         }
         
     }
     
+    /**
+     * Removes the route to a destination along the same path as the specified
+     * route, whatever its cost.
+     * <p>
+     * If that leaves the destination with no routes, its backup route takes 
+     * over if it has one.
+     * 
+     * @param actorName the name of the destination actor
+     * @param queue     a route along the path to remove
+     * @return          true if a route was removed, otherwise false
+     */
+    public boolean removeRoute(String actorName, Route queue) {
+        
+        synchronized (writeLock) {
+            
+            final RouteSet existing = table.get(actorName);
+            if (existing == null) {
+                return false;
+            }
+            
+            final List<Route> routes = new ArrayList<>(existing.routes.length);
+            for (Route current : existing.routes) {
+                if (!current.getPath().equals(queue.getPath())) {
+                    routes.add(current);
+                }
+            }
+            if (routes.size() == existing.routes.length) {
+                return false;
+            }
+            
+            // Fall back on the backup route if that was the last one.
+            if (routes.isEmpty()) {
+                replaceRoutes(actorName, existing, existing.backup == null ? null
+                        : new RouteSet(new Route[] {existing.backup}, null));
+            } else {
+                replaceRoutes(actorName, existing, new RouteSet(
+                        routes.toArray(new Route[routes.size()]), existing.backup));
+            }
+            return true;
+            
+        }
+        
+    }
+    
+    /**
+     * Sets the backup route to a destination.
+     * <p>
+     * The route is only kept if the table already has a route to the 
+     * destination that it shares no agents with other than its ends, and 
+     * there is no cheaper backup route already.
+     * 
+     * @param actorName the name of the destination actor
+     * @param queue     the backup route to the actor
+     * @return          true if the route was kept, otherwise false
+     */
+    public boolean setBackupRoute(String actorName, Route queue) {
+        
+        synchronized (writeLock) {
+            
+            final RouteSet existing = table.get(actorName);
+            if (existing == null || !isDisjoint(existing.routes[0], queue)
+                    || (existing.backup != null 
+                    && existing.backup.getCost() <= queue.getCost())) {
+                return false;
+            }
+            
+            replaceRoutes(actorName, existing, 
+                    new RouteSet(existing.routes, new Route(queue)));
+            return true;
+            
+        }
+        
+    }
+    
+    /**
+     * Gets whether two routes share no agents other than the ones at their 
+     * ends.
+     * 
+     * @param route the first route
+     * @param other the second route
+     * @return      true if the routes share no agents other than their ends, 
+     *              otherwise false
+     */
+    private static boolean isDisjoint(Route route, Route other) {
+        if (route.getPath().equals(other.getPath())) {
+            return false;
+        }
+        final List<String> interior = route.getPath();
+        for (int i = 1; i < interior.size() - 1; i++) {
+            final int index = other.getPath().indexOf(interior.get(i));
+            if (index > 0 && index < other.size() - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     /**
      * Removes any route that contains the specified agent name in it's path.
+     * <p>
+     * If that leaves a destination with no routes but a backup route that 
+     * doesn't contain the agent name, the backup route takes over.
      * 
      * @param agentName the name of the agent
+     * @return          the names of the destinations that still have a route 
+     *                  but no longer have a backup route as a result
      */
-    public void invalidateAgent(String agentName) {
+    public Set<String> invalidateAgent(String agentName) {
 
-        synchronized (table) {
+        synchronized (writeLock) {
             
             // Remove any routes that are a destination to the given agent
-            table.remove(agentName);
+            removeRoute(agentName);
 
             /*
-             * Go through each Route entry and if any route has the given agent name
-             * in its path then remove that route.
+             * Remove every route the index tells us passes through the given 
+             * agent, keeping any others to the same destinations.
              */
-            final Iterator<Route> routeIterator = table.values().iterator();
-            while (routeIterator.hasNext()) {
-                final Route currentRoute = routeIterator.next();
-                if (currentRoute.has(agentName)) {
-                    routeIterator.remove();
+            return removeRoutesThrough(agentName, null);
+            
+        }
+
+    }
+    
+    /**
+     * Removes any route that crosses the link between two agents.
+     * <p>
+     * Routes through either agent that don't use the link are kept. If that 
+     * leaves a destination with no routes but a backup route that doesn't 
+     * cross the link, the backup route takes over.
+     * 
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     * @return                  the names of the destinations that still have a
+     *                          route but no longer have a backup route as a 
+     *                          result
+     */
+    public Set<String> invalidateLink(String agentName, String otherAgentName) {
+        
+        if (agentName == null || otherAgentName == null) {
+            return Collections.emptySet();
+        }
+        
+        synchronized (writeLock) {
+            return removeRoutesThrough(agentName, otherAgentName);
+        }
+        
+    }
+    
+    /**
+     * Removes every route that passes through an agent, or only those that go
+     * straight between it and another agent, failing over to backup routes 
+     * where needed.
+     * <p>
+     * The caller must hold {@link #writeLock}.
+     * 
+     * @param agentName         the name of the agent
+     * @param otherAgentName    the name of the agent at the other end of the 
+     *                          link to remove routes across, or null to remove
+     *                          every route through the agent
+     * @return                  the names of the destinations that still have a
+     *                          route but no longer have a backup route as a 
+     *                          result
+     */
+    private Set<String> removeRoutesThrough(String agentName, String otherAgentName) {
+        
+        // We copy the set since changing routes changes it.
+        final Set<String> unprotected = new HashSet<>();
+        final Set<String> affected = reverseIndex.get(agentName);
+        if (affected == null) {
+            return unprotected;
+        }
+        
+        for (String destination : affected.toArray(new String[affected.size()])) {
+
+            final RouteSet existing = table.get(destination);
+            final List<Route> remaining = new ArrayList<>(existing.routes.length);
+            for (Route current : existing.routes) {
+                if (!passesThrough(current, agentName, otherAgentName)) {
+                    remaining.add(current);
                 }
             }
+            Route backup = (existing.backup != null 
+                    && !passesThrough(existing.backup, agentName, otherAgentName) 
+                    ? existing.backup : null);
             
-        }
+            // Nothing changed for this destination.
+            if (remaining.size() == existing.routes.length && backup == existing.backup) {
+                continue;
+            }
+
+            // Fail over to the backup route if we have nothing else.
+            if (remaining.isEmpty() && backup != null) {
+                remaining.add(backup);
+                backup = null;
+            }
 
+            if (remaining.isEmpty()) {
+                replaceRoutes(destination, existing, null);
+            } else {
+                replaceRoutes(destination, existing, new RouteSet(
+                        remaining.toArray(new Route[remaining.size()]), backup));
+                if (backup == null) {
+                    unprotected.add(destination);
+                }
+            }
+
+        }
+        return unprotected;
+        
+    }
+    
+    /**
+     * Gets whether a route passes through an agent, or goes straight between 
+     * it and another agent.
+     * 
+     * @param route             the route
+     * @param agentName         the name of the agent
+     * @param otherAgentName    the name of the other agent, or null if any 
+     *                          route through the agent counts
+     * @return                  true if the route passes through the agent, or
+     *                          crosses the link, otherwise false
+     */
+    private static boolean passesThrough(Route route, String agentName, String otherAgentName) {
+        if (otherAgentName == null) {
+            return route.has(agentName);
+        }
+        final List<String> path = route.getPath();
+        final int index = path.indexOf(agentName);
+        return index >= 0 
+                && ((index > 0 && path.get(index - 1).equals(otherAgentName))
+                || (index < path.size() - 1 && path.get(index + 1).equals(otherAgentName)));
+    }
+    
+    /**
+     * Replaces the routes to a destination, updating the index to match.
+     * <p>
+     * The caller must hold {@link #writeLock}.
+     * 
+     * @param actorName the name of the destination actor
+     * @param existing  the routes currently in the table to the destination,
+     *                  or null if there are none
+     * @param routes    the routes to replace them with, or null to remove the
+     *                  destination
+     */
+    private void replaceRoutes(String actorName, RouteSet existing, RouteSet routes) {
+        if (existing != null) {
+            unindex(actorName, existing);
+        }
+        if (routes == null) {
+            table.remove(actorName);
+            return;
+        }
+        table.put(actorName, routes);
+        index(actorName, routes);
+    }
+    
+    /**
+     * Removes the route to a destination along with its index entries.
+     * <p>
+     * The caller must hold {@link #writeLock}.
+     * 
+     * @param actorName the name of the destination actor
+     */
+    private void removeRoute(String actorName) {
+        final RouteSet removed = table.remove(actorName);
+        if (removed != null) {
+            unindex(actorName, removed);
+        }
+    }
+    
+    /**
+     * Records that the routes to a destination pass through each agent on them.
+     * <p>
+     * The caller must hold {@link #writeLock}.
+     * 
+     * @param actorName the name of the destination actor
+     * @param routes    the routes to the destination
+     */
+    private void index(String actorName, RouteSet routes) {
+        for (String current : routes.getAgentNames()) {
+            Set<String> destinations = reverseIndex.get(current);
+            if (destinations == null) {
+                destinations = new HashSet<>();
+                reverseIndex.put(current, destinations);
+            }
+            destinations.add(actorName);
+        }
+    }
+    
+    /**
+     * Forgets that the routes to a destination pass through each agent on them.
+     * <p>
+     * The caller must hold {@link #writeLock}.
+     * 
+     * @param actorName the name of the destination actor
+     * @param routes    the routes to the destination
+     */
+    private void unindex(String actorName, RouteSet routes) {
+        for (String current : routes.getAgentNames()) {
+            final Set<String> destinations = reverseIndex.get(current);
+            if (destinations != null) {
+                destinations.remove(actorName);
+                if (destinations.isEmpty()) {
+                    reverseIndex.remove(current);
+                }
+            }
+        }
     }
     
     /**
      * Clears this routing table.
      */
     public void clear() {
-        table.clear();
+        synchronized (writeLock) {
+            table.clear();
+            reverseIndex.clear();
+            provisional.clear();
+        }
+    }
+    
+    /**
+     * Writes a snapshot of the routes in this table, one serialized route to 
+     * a line.
+     * <p>
+     * Backup routes are left out, as they're worked out again once a route is
+     * in use.
+     * 
+     * @param writer        the writer to write the snapshot to
+     * @throws IOException  if the snapshot could not be written
+     */
+    public void writeSnapshot(Writer writer) throws IOException {
+        for (RouteSet current : table.values()) {
+            for (Route route : current.routes) {
+                writer.write(route.serialize());
+                writer.write('\n');
+            }
+        }
+    }
+    
+    /**
+     * Reads the routes in a snapshot into this table, marking the 
+     * destinations they lead to as provisional.
+     * <p>
+     * Lines that aren't routes from the given origin are skipped.
+     * 
+     * @param reader        the reader to read the snapshot from
+     * @param originName    the name of the agent this table belongs to, which 
+     *                      every route must start with
+     * @return              the number of routes read
+     * @throws IOException  if the snapshot could not be read
+     * @see                 #confirm
+     */
+    public int readSnapshot(BufferedReader reader, String originName) throws IOException {
+        
+        int count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            
+            final Route route;
+            try {
+                route = Route.deserialize(line.trim());
+            } catch (InvalidQueryStringException | DuplicateAgentNameException ex) {
+                continue;
+            }
+            if (route.size() < 2 || !route.first().equals(originName)) {
+                continue;
+            }
+            
+            final String key = (route.getZone() == null ? route.last() 
+                    : zoneKey(route.getZone()));
+            addRoute(key, route);
+            provisional.add(key);
+            count++;
+            
+        }
+        return count;
+        
+    }
+    
+    /**
+     * Gets whether or not the routes to an actor were reloaded from a 
+     * snapshot and have not been checked since.
+     * 
+     * @param actorName the name of the destination actor
+     * @return          true if the routes to the actor are provisional, 
+     *                  otherwise false
+     */
+    public boolean isProvisional(String actorName) {
+        return provisional.contains(actorName);
+    }
+    
+    /**
+     * Marks the routes to an actor as no longer provisional, ahead of them
+     * being checked.
+     * 
+     * @param actorName the name of the destination actor
+     * @return          true if the routes to the actor were provisional and
+     *                  need checking, otherwise false
+     */
+    public boolean confirm(String actorName) {
+        return provisional.remove(actorName);
     }
     
     /**
@@ -119,25 +658,146 @@ public class RoutingTable {
      * @return          the route to the actor
      */
     public Route getRoute(String actorName) {
+        final RouteSet foundRoutes = table.get(actorName);
+        return foundRoutes != null ? new Route(foundRoutes.routes[0]) : null;
+    }
+    
+    /**
+     * Gets the backup route to an actor.
+     * <p>
+     * This method returns a clone of a master route instance.
+     * 
+     * @param actorName the name of the actor to get the backup route to
+     * @return          the backup route to the actor, or null if there is none
+     */
+    public Route getBackupRoute(String actorName) {
+        final RouteSet foundRoutes = table.get(actorName);
+        return foundRoutes != null && foundRoutes.backup != null 
+                ? new Route(foundRoutes.backup) : null;
+    }
+    
+    /**
+     * Gets every route kept to an actor, cheapest first.
+     * <p>
+     * This method returns clones of the master route instances.
+     * 
+     * @param actorName the name of the actor to get the routes to
+     * @return          the routes to the actor, which will be empty if there 
+     *                  are none
+     */
+    public List<Route> getRoutes(String actorName) {
+        final RouteSet foundRoutes = table.get(actorName);
+        if (foundRoutes == null) {
+            return Collections.emptyList();
+        }
+        final Route[] clones = new Route[foundRoutes.routes.length];
+        for (int i = 0; i < clones.length; i++) {
+            clones[i] = new Route(foundRoutes.routes[i]);
+        }
+        return Arrays.asList(clones);
+    }
+    
+    /**
+     * Finds a link that has been lost since it was calculated in any route 
+     * kept to an actor.
+     * 
+     * @param actorName the name of the destination actor
+     * @return          the names of the agents at the ends of the lost link,
+     *                  or null if every route kept to the actor is current
+     * @see             Route#findLostLink
+     */
+    public String[] findLostLink(String actorName) {
         
-        synchronized (table) {
-            final Route foundRoute = table.get(actorName);
-            return foundRoute != null ? new Route(foundRoute) : null;
+        final RouteSet foundRoutes = table.get(actorName);
+        if (foundRoutes == null) {
+            return null;
         }
+        for (Route current : foundRoutes.routes) {
+            final String[] lost = current.findLostLink();
+            if (lost != null) {
+                return lost;
+            }
+        }
+        return foundRoutes.backup == null ? null : foundRoutes.backup.findLostLink();
         
     }
     
+    /**
+     * Gets the name of the next agent on the route to an actor.
+     * <p>
+     * Every route in a table starts with the agent the table belongs to, so 
+     * the next hop is the second agent on the route.
+     * 
+     * @param actorName the name of the actor to get the next hop to
+     * @return          the name of the next agent on the route to the actor,
+     *                  or null if there is no route to it
+     */
+    public String getNextHop(String actorName) {
+        final RouteSet foundRoutes = table.get(actorName);
+        return foundRoutes != null && foundRoutes.routes[0].size() > 1 
+                ? foundRoutes.routes[0].getPath().get(1) : null;
+    }
+    
     @Override
     public String toString() {
         
         final StringBuilder sb = new StringBuilder();
-        
-        synchronized (table) {
-            for (Route currentRoute : table.values()) {
+        for (RouteSet currentRoutes : table.values()) {
+            for (Route currentRoute : currentRoutes.routes) {
                 sb.append(currentRoute.toString()).append("\n");
             }
         }
-        
         return sb.toString();
+        
     }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Represents the routes kept to a single destination. Instances are never
+     * changed once they are in the table.
+     */
+    private static class RouteSet {
+        
+        /**
+         * The routes to the destination, cheapest first.
+         */
+        private final Route[] routes;
+        
+        /**
+         * The backup route to the destination, or null if there is none.
+         */
+        private final Route backup;
+        
+        /**
+         * Initialises a new instance of a set of routes to a destination.
+         * 
+         * @param routes    the routes to the destination, cheapest first
+         * @param backup    the backup route to the destination, or null
+         */
+        public RouteSet(Route[] routes, Route backup) {
+            this.routes = routes;
+            this.backup = backup;
+        }
+        
+        /**
+         * Gets the names of every agent on any of these routes.
+         * 
+         * @return  the names of every agent on any of these routes
+         */
+        public Set<String> getAgentNames() {
+            final Set<String> names = new HashSet<>();
+            for (Route current : routes) {
+                names.addAll(current.getPath());
+            }
+            if (backup != null) {
+                names.addAll(backup.getPath());
+            }
+            return names;
+        }
+        
+    }
+    
 }
@@ -3,30 +3,33 @@ package denobo;
 import denobo.exceptions.RouteToSelfException;
 import denobo.socket.SocketAgent;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a worker that will calculate the optimal route to an actor.
+ * <p>
+ * A worker can also seek several actors at once, finding the routes to all of
+ * them with a single search of the local network and asking each SocketAgent 
+ * it comes across about any it could not find locally all together.
  * 
  * @author  Saul Johnson, Alex Mullen, Lee Oliver
  */
 public class RoutingWorker implements Runnable {
 
     /**
-     * The thread that underlies this worker.
-     */
-    private Thread underlyingThread;
-    
-    /**
-     * The potential routes returned by the recursive algorithm.
-     */
-    private List<Route> routes;
-    
-    /**
-     * Any SocketAgent instances encountered during the recursive crawl of the 
-     * local network along with routes to them from the origin.
+     * Any SocketAgent instances encountered during the search of the local 
+     * network along with the shortest routes to them from the origin.
      * 
      * @see #origin
      */
@@ -38,15 +41,16 @@ public class RoutingWorker implements Runnable {
     private final Agent origin;
     
     /**
-     * The name of the actor that the routing algorithm is seeking.
+     * The names of the actors that the routing algorithm is seeking.
      */
-    private final String destination;
+    private final Set<String> destinations;
     
     /**
-     * An instance of the destination actor, if found during the last routing
-     * task.
+     * The names of the actors sought that the last routing task found could 
+     * not be reached, because they were not in the local network and there 
+     * were no SocketAgents to ask about them.
      */
-    private Agent destinationInstance;
+    private final Set<String> unreachableDestinations;
     
     /**
      * The listening observers that will be notified when optimal route
@@ -66,6 +70,45 @@ public class RoutingWorker implements Runnable {
      */
     private boolean usesBacktracking = false;
     
+    /**
+     * The cost of the link from the end of the initial route to the origin.
+     */
+    private final long initialLinkCost;
+    
+    /**
+     * The cost added to a link for each message waiting at its far end.
+     */
+    private final double queueDepthCostWeight;
+    
+    /**
+     * The most routes to the destination this worker will report.
+     */
+    private int maximumRoutes;
+    
+    /**
+     * How much more than the cheapest route, as a fraction of its cost, any
+     * further routes reported may cost.
+     */
+    private double multipathCostTolerance;
+    
+    /**
+     * The names of agents this worker must find a route around.
+     */
+    private final Set<String> avoidedNames;
+    
+    /**
+     * The ID of the remote route request this worker is continuing, or null
+     * if any remote requests it makes are new.
+     */
+    private String requestId;
+    
+    /**
+     * The number of connections between SocketAgents any remote route request
+     * made by this worker may still cross, or -1 to use the hop limit of the
+     * SocketAgent making it.
+     */
+    private int hopsRemaining;
+    
     
     /* ---------- */
     
@@ -90,10 +133,66 @@ public class RoutingWorker implements Runnable {
      * @see #getUsesBacktracking
      */
     public RoutingWorker(Agent origin, String destination, Route initialRoute, boolean usesBacktracking) {
+        this(origin, destination, initialRoute, usesBacktracking, Route.DEFAULT_LINK_COST);
+    }
+    
+    /**
+     * Initialises a new instance of a routing worker continuing a route that
+     * reached the origin over a link of known cost.
+     *
+     * @param origin            the actor from which this worker will start
+     * @param destination       the name of the destination actor
+     * @param initialRoute      the existing route to append to
+     * @param usesBacktracking  whether or not this worker uses backtracking
+     * @param initialLinkCost   the cost of the link from the end of the 
+     *                          initial route to the origin
+     * @see #getUsesBacktracking
+     */
+    public RoutingWorker(Agent origin, String destination, Route initialRoute, 
+            boolean usesBacktracking, long initialLinkCost) {
+        this(origin, Collections.singleton(destination), initialRoute, usesBacktracking, 
+                initialLinkCost);
+    }
+    
+    /**
+     * Initialises a new instance of a routing worker that uses backtracking
+     * and seeks several actors at once.
+     * 
+     * @param origin        the actor from which this worker will start
+     * @param destinations  the names of the destination actors
+     */
+    public RoutingWorker(Agent origin, Collection<String> destinations) {
+        this(origin, destinations, new Route(), true, Route.DEFAULT_LINK_COST);
+    }
+    
+    /**
+     * Initialises a new instance of a routing worker that seeks several actors
+     * at once, continuing a route that reached the origin over a link of 
+     * known cost.
+     *
+     * @param origin            the actor from which this worker will start
+     * @param destinations      the names of the destination actors
+     * @param initialRoute      the existing route to append to
+     * @param usesBacktracking  whether or not this worker uses backtracking
+     * @param initialLinkCost   the cost of the link from the end of the 
+     *                          initial route to the origin
+     * @see #getUsesBacktracking
+     */
+    public RoutingWorker(Agent origin, Collection<String> destinations, Route initialRoute, 
+            boolean usesBacktracking, long initialLinkCost) {
         this.origin = origin;
-        this.destination = destination;
+        this.destinations = new LinkedHashSet<>(destinations);
+        unreachableDestinations = Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>());
         this.initialRoute = initialRoute;
         this.usesBacktracking = usesBacktracking;
+        this.initialLinkCost = initialLinkCost;
+        queueDepthCostWeight = origin.getConfiguration().getQueueDepthCostWeight();
+        multipathCostTolerance = origin.getConfiguration().getMultipathCostTolerance();
+        maximumRoutes = 1;
+        avoidedNames = new HashSet<>();
+        requestId = null;
+        hopsRemaining = -1;
         listeners = new ArrayList<>();
     }
     
@@ -109,6 +208,30 @@ public class RoutingWorker implements Runnable {
         return origin;
     }
     
+    /**
+     * Gets the names of the actors this routing worker seeks.
+     * 
+     * @return  the names of the destination actors
+     */
+    public Set<String> getDestinations() {
+        return Collections.unmodifiableSet(destinations);
+    }
+    
+    /**
+     * Gets the names of the actors sought that this routing worker found could
+     * not be reached.
+     * <p>
+     * These were not in the local network and there were no SocketAgents to
+     * ask about them, so no route to them will ever be reported. Any actor 
+     * sought that is neither reported nor in here may still be found through
+     * a remote network.
+     * 
+     * @return  the names of the unreachable destination actors
+     */
+    public Set<String> getUnreachableDestinations() {
+        return Collections.unmodifiableSet(unreachableDestinations);
+    }
+    
     /**
      * Gets whether or not this routing worker uses backtracking.
      * <p>
@@ -135,6 +258,97 @@ public class RoutingWorker implements Runnable {
         this.usesBacktracking = useBacktracking;
     }
     
+    /**
+     * Gets the most routes to the destination this routing worker will report.
+     * 
+     * @return  the maximum number of routes
+     */
+    public int getMaximumRoutes() {
+        return maximumRoutes;
+    }
+    
+    /**
+     * Sets the most routes to the destination this routing worker will report.
+     * <p>
+     * Listeners are told about the cheapest route first, followed by any 
+     * others leaving the origin by a different link whose cost is within the
+     * origin's configured multipath cost tolerance of it. By default only the
+     * cheapest route is reported.
+     * 
+     * @param maximumRoutes the maximum number of routes
+     */
+    public void setMaximumRoutes(int maximumRoutes) {
+        this.maximumRoutes = (maximumRoutes < 1 ? 1 : maximumRoutes);
+    }
+    
+    /**
+     * Gets how much more than the cheapest route, as a fraction of its cost, 
+     * any further routes reported by this routing worker may cost.
+     * 
+     * @return  the multipath cost tolerance
+     */
+    public double getMultipathCostTolerance() {
+        return multipathCostTolerance;
+    }
+    
+    /**
+     * Sets how much more than the cheapest route, as a fraction of its cost, 
+     * any further routes reported by this routing worker may cost.
+     * <p>
+     * This defaults to the origin's configured multipath cost tolerance.
+     * 
+     * @param multipathCostTolerance    the multipath cost tolerance
+     */
+    public void setMultipathCostTolerance(double multipathCostTolerance) {
+        this.multipathCostTolerance = (multipathCostTolerance < 0 ? 0 : multipathCostTolerance);
+    }
+    
+    /**
+     * Gets the names of agents this routing worker must find a route around.
+     * 
+     * @return  the names of the agents to avoid
+     */
+    public Set<String> getAvoidedNames() {
+        return Collections.unmodifiableSet(avoidedNames);
+    }
+    
+    /**
+     * Adds to the names of agents this routing worker must find a route 
+     * around.
+     * <p>
+     * The names are passed on with any request made for a route through a 
+     * remote network, so it is avoided there too.
+     * 
+     * @param agentNames    the names of the agents to avoid
+     */
+    public void avoid(Collection<String> agentNames) {
+        avoidedNames.addAll(agentNames);
+    }
+    
+    /**
+     * Gets the ID of the remote route request this routing worker is 
+     * continuing.
+     * 
+     * @return  the request ID, or null if any remote requests made are new
+     */
+    public String getRequestId() {
+        return requestId;
+    }
+    
+    /**
+     * Sets the remote route request this routing worker is continuing, so that
+     * any request it makes through a remote network is recognised as the same
+     * one and its hop budget carries on running down.
+     * 
+     * @param requestId     the ID of the request
+     * @param hopsRemaining the number of connections between SocketAgents the
+     *                      request may still cross
+     */
+    public void continueRequest(String requestId, int hopsRemaining) {
+        this.requestId = requestId;
+        this.hopsRemaining = hopsRemaining;
+    }
+    
     /**
      * Adds a listener to this routing worker.
      * 
@@ -158,116 +372,348 @@ public class RoutingWorker implements Runnable {
     }
     
     /**
-     * Recursive function to map routes to the destination node.
+     * Searches the local network for the cheapest routes to the destination
+     * nodes.
+     * <p>
+     * Agents are expanded cheapest first, so the first time a destination 
+     * is taken from the frontier it is known to be along a cheapest route. 
+     * While links all cost the same this visits agents in the same order as a
+     * breadth-first search. Each agent may be settled once for every 
+     * neighbour of the origin it can be reached through, up to 
+     * {@link #maximumRoutes} times, so that further routes to a destination
+     * leave the origin by different links. The search stops once every 
+     * destination has been settled as many times as it can be. Every 
+     * SocketAgent settled on the way is remembered in case no local route 
+     * exists.
      * 
-     * @param agent the agent we're currently routing from
-     * @param route the currently accumulated routing queue
+     * @param excludedNames the names of agents that must not be passed through
+     * @param socketAgents  populated with the cheapest way found to every 
+     *                      SocketAgent settled
+     * @return              the ways found to each destination, cheapest first
      */
-    private void route(Agent agent, Route route) {
+    private Map<String, List<Candidate>> search(Set<String> excludedNames, 
+            Map<SocketAgent, Candidate> socketAgents) {
         
-        /*
-         * Remember any SocketAgents we might need to check if we cannot find a
-         * local route.
-         */ 
-        if (agent instanceof SocketAgent) {
-            socketAgentRoutePairs.put((SocketAgent) agent, route);
+        final Map<String, List<Candidate>> found = new LinkedHashMap<>();
+        for (String current : destinations) {
+            found.put(current, new ArrayList<Candidate>());
         }
-
-        // For each agent connected to our originator.
-        for (Agent current : agent.getConnectedAgents()) {
-
-            // An optimal route will never take us through the same node twice.
-            if (route.has(current)) {
+        int remaining = destinations.size();
+        
+        final Map<Agent, Set<Agent>> settled = new HashMap<>();
+        final PriorityQueue<Candidate> frontier = new PriorityQueue<>();
+        long sequence = 0;
+        frontier.add(new Candidate(origin, 0L, sequence++, null, null));
+        excludedNames.add(origin.getName());
+        
+        while (!frontier.isEmpty()) {
+            
+            final Candidate candidate = frontier.poll();
+            final Agent agent = candidate.agent;
+            
+            // Skip anything we've already settled more cheaply this way.
+            if (!settle(settled, candidate)) {
                 continue;
             }
             
-            // Clone route, append this agent.
-            final Route newQueue = new Route(route);
-            newQueue.append(current);
+            // The first time we settle a destination is the cheapest way.
+            final List<Candidate> foundForAgent = found.get(agent.getName());
+            if (foundForAgent != null) {
+                foundForAgent.add(candidate);
+                if (foundForAgent.size() == maximumRoutes && --remaining == 0) {
+                    break;
+                }
+                
+                // Other destinations may lie beyond this one.
+                if (destinations.size() == 1) {
+                    continue;
+                }
+            }
+            
+            /*
+             * Remember any SocketAgents we might need to check if we cannot 
+             * find a local route.
+             */ 
+            if (agent instanceof SocketAgent && !socketAgents.containsKey(agent)) {
+                socketAgents.put((SocketAgent) agent, candidate);
+            }
             
-            // If this agent is our destination, put our route into the array.
-            if (current.getName().equals(destination)) {
-                routes.add(newQueue);
-                destinationInstance = current;
-            } else {
-                // Otherwise continue recursing through the tree.
-                route(current, newQueue);
+            // For each agent connected to the one we're expanding.
+            for (Agent current : agent.getConnectedAgents()) {
+                
+                // An optimal route will never take us through the same node twice.
+                if (excludedNames.contains(current.getName())
+                        || !canSettle(settled, current, candidate.firstHop)) {
+                    continue;
+                }
+                
+                frontier.add(new Candidate(current, candidate.cost + linkCost(current), 
+                        sequence++, candidate, 
+                        candidate.firstHop != null ? candidate.firstHop : current));
+                
             }
             
         }
         
+        return found;
+        
+    }
+    
+    /**
+     * Settles an agent along the way a candidate reached it, if that is 
+     * allowed.
+     * 
+     * @param settled   the neighbours of the origin through which each agent 
+     *                  has been settled so far
+     * @param candidate the candidate to settle
+     * @return          true if the candidate was settled, otherwise false
+     */
+    private boolean settle(Map<Agent, Set<Agent>> settled, Candidate candidate) {
+        if (!canSettle(settled, candidate.agent, candidate.firstHop)) {
+            return false;
+        }
+        Set<Agent> firstHops = settled.get(candidate.agent);
+        if (firstHops == null) {
+            firstHops = new HashSet<>();
+            settled.put(candidate.agent, firstHops);
+        }
+        return firstHops.add(candidate.firstHop);
+    }
+    
+    /**
+     * Gets whether an agent may still be settled through a neighbour of the 
+     * origin.
+     * 
+     * @param settled   the neighbours of the origin through which each agent 
+     *                  has been settled so far
+     * @param agent     the agent to settle
+     * @param firstHop  the neighbour of the origin the agent would be reached
+     *                  through
+     * @return          true if the agent may be settled, otherwise false
+     */
+    private boolean canSettle(Map<Agent, Set<Agent>> settled, Agent agent, Agent firstHop) {
+        final Set<Agent> firstHops = settled.get(agent);
+        return firstHops == null 
+                || (firstHops.size() < maximumRoutes && !firstHops.contains(firstHop));
+    }
+    
+    /**
+     * Gets the cost of a link leading to an agent.
+     * 
+     * @param agent the agent at the far end of the link
+     * @return      the cost of the link
+     */
+    private long linkCost(Agent agent) {
+        if (queueDepthCostWeight <= 0) {
+            return Route.DEFAULT_LINK_COST;
+        }
+        return Route.DEFAULT_LINK_COST 
+                + (long) (queueDepthCostWeight * agent.getQueuedMessageCount());
+    }
+    
+    /**
+     * Builds the route from the origin to an agent reached during a search.
+     * 
+     * @param candidate the way the agent was reached
+     * @return          the route from the origin to the agent, appended to the
+     *                  initial route
+     */
+    private Route buildRoute(Candidate candidate) {
+        
+        // Walk back to the origin.
+        final ArrayList<Candidate> hops = new ArrayList<>();
+        for (Candidate current = candidate; current != null; current = current.parent) {
+            hops.add(current);
+        }
+        
+        // Then lay the hops out the right way round.
+        final Route route = new Route(initialRoute);
+        route.append(origin, initialLinkCost);
+        for (int i = hops.size() - 2; i >= 0; i--) {
+            route.append(hops.get(i).agent, hops.get(i).cost - hops.get(i + 1).cost);
+        }
+        return route;
+        
     }
     
     @Override
     public void run() {
         
-        // Initialise our array of routes.
-        routes = new ArrayList<>();
         socketAgentRoutePairs = new HashMap<>();
-        destinationInstance = null;
+        unreachableDestinations.clear();
         
         /* 
          * Check if we're trying to route to ourself because this is illegal
          * and should not be happening in the first place.
          */
-        if (origin.getName().equals(destination)) {
+        if (destinations.contains(origin.getName())) {
             throw new RouteToSelfException(this);
         }
         
-        // Recursively map routes to destination.
-        final Route queue = new Route(initialRoute);
-        queue.append(origin);    
-        route(origin, queue);
+        /*
+         * Agents already on the initial route must not be visited again, nor
+         * may any we've been asked to avoid.
+         */
+        final Set<String> excludedNames = new HashSet<>(initialRoute.getPath());
+        excludedNames.addAll(avoidedNames);
+        final Map<SocketAgent, Candidate> socketAgents = new LinkedHashMap<>();
+        
+        // Search for the cheapest routes to the destinations.
+        final Map<String, List<Candidate>> found = search(excludedNames, socketAgents);
         
-        // Get shortest route from all possible routes.        
-        Route shortestRoute = null;
-        for (Route current : routes) {
-            if (shortestRoute == null || shortestRoute.size() > current.size()) {
-                shortestRoute = current;
+        /* 
+         * Notify listeners that route calculation is complete for every 
+         * destination we found a local route to.
+         */
+        final List<String> unresolved = new ArrayList<>();
+        for (Entry<String, List<Candidate>> current : found.entrySet()) {
+            if (current.getValue().isEmpty()) {
+                unresolved.add(current.getKey());
+            } else {
+                routesFound(current.getKey(), current.getValue());
             }
         }
+        if (unresolved.isEmpty()) {
+            return;
+        }
         
+        /*
+         * With nowhere else to look, the destinations we didn't find can't be 
+         * reached.
+         */
+        if (socketAgents.isEmpty()) {
+            unreachableDestinations.addAll(unresolved);
+            return;
+        }
+            
         /* 
-         * Notify listeners that route calculation is complete if we found a 
-         * local route.
+         * We didn't find a local route so we'll check with any SocketAgent
+         * instances we encountered. We're now passing off the listeners to
+         * the SocketAgent. Routing is no longer our responsibility.
          */
-        if (shortestRoute != null) {
-            for (RoutingWorkerListener current : listeners) {
-                current.routeCalculationSucceeded(destination, shortestRoute);
+        for (Entry<SocketAgent, Candidate> current : socketAgents.entrySet()) {
+            socketAgentRoutePairs.put(current.getKey(), buildRoute(current.getValue()));
+        }
+        for (Entry<SocketAgent, Route> current : socketAgentRoutePairs.entrySet()) {
+            if (destinations.size() == 1) {
+                current.getKey().routeToRemote(unresolved.get(0), current.getValue(), 
+                        listeners, usesBacktracking, avoidedNames, requestId, hopsRemaining);
+            } else {
+                current.getKey().routeToRemote(unresolved, current.getValue(), 
+                        listeners, usesBacktracking, avoidedNames, requestId, hopsRemaining);
             }
-            /*
-             * Check if backtracking is enabled and the destination wasn't the
-             * origin.
-             */
-            if (usesBacktracking && destinationInstance != null) {
-                destinationInstance.routeCalculationSucceeded(origin.getName(), 
-                        shortestRoute.reverse());
+        }
+        
+    }
+    
+    /**
+     * Notifies listeners of the routes found to a destination in the local 
+     * network.
+     * 
+     * @param destination   the name of the destination actor
+     * @param found         the ways found to the destination, cheapest first
+     */
+    private void routesFound(String destination, List<Candidate> found) {
+        
+        final Agent destinationInstance = found.get(0).agent;
+        final Route shortestRoute = buildRoute(found.get(0));
+        for (RoutingWorkerListener current : listeners) {
+            current.routeCalculationSucceeded(destination, shortestRoute);
+        }
+
+        // Then any alternatives close enough in cost to be worth keeping.
+        for (int i = 1; i < found.size(); i++) {
+            final Route alternative = buildRoute(found.get(i));
+            if (!RoutingTable.isNearEqualCost(alternative.getCost(), 
+                    shortestRoute.getCost(), multipathCostTolerance)) {
+                break;
             }
-        } else {
-            
-            /* 
-             * We didn't find a local route so we'll check with any SocketAgent
-             * instances we encountered. We're now passing off the listeners to
-             * the SocketAgent. Routing is no longer our responsibility.
-             */
-            for (Entry<SocketAgent, Route> current : socketAgentRoutePairs.entrySet()) {
-                current.getKey().routeToRemote(destination, current.getValue(), 
-                        listeners, usesBacktracking);
+            for (RoutingWorkerListener current : listeners) {
+                current.routeCalculationSucceeded(destination, alternative);
             }
-            
+        }
+
+        // Check if backtracking is enabled.
+        if (usesBacktracking) {
+            destinationInstance.routeCalculationSucceeded(origin.getName(), 
+                    shortestRoute.reverse());
         }
         
     }
     
     /**
-     * Maps this route on another thread.
+     * Maps this route on the shared {@link RoutingExecutor}.
      * <p>
      * Registered {@link RoutingWorkerListener} instances will be notified when
      * route calculation is complete.
      */
     public void mapRouteAsync() {
-        underlyingThread = new Thread(this);
-        underlyingThread.start();
+        RoutingExecutor.getShared().execute(RoutingExecutor.TaskType.ROUTING, this);
+    }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Represents an agent waiting on the search frontier along with the cost
+     * and way of reaching it.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+        
+        /**
+         * The agent reached.
+         */
+        private final Agent agent;
+        
+        /**
+         * The cost of reaching the agent.
+         */
+        private final long cost;
+        
+        /**
+         * The order the agent was reached in, used to break ties so that 
+         * equally cheap agents are expanded first come first served.
+         */
+        private final long sequence;
+        
+        /**
+         * The candidate the agent was reached from, or null for the origin.
+         */
+        private final Candidate parent;
+        
+        /**
+         * The neighbour of the origin the agent was reached through, or null
+         * for the origin.
+         */
+        private final Agent firstHop;
+        
+        /**
+         * Initialises a new instance of a search frontier candidate.
+         * 
+         * @param agent     the agent reached
+         * @param cost      the cost of reaching the agent
+         * @param sequence  the order the agent was reached in
+         * @param parent    the candidate the agent was reached from
+         * @param firstHop  the neighbour of the origin the agent was reached
+         *                  through
+         */
+        public Candidate(Agent agent, long cost, long sequence, Candidate parent, Agent firstHop) {
+            this.agent = agent;
+            this.cost = cost;
+            this.sequence = sequence;
+            this.parent = parent;
+            this.firstHop = firstHop;
+        }
+        
+        @Override
+        public int compareTo(Candidate other) {
+            if (cost != other.cost) {
+                return cost < other.cost ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+        
     }
     
 }
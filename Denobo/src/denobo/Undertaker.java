@@ -2,7 +2,12 @@ package denobo;
 
 import denobo.socket.SocketAgent;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -13,16 +18,19 @@ import java.util.Set;
  * The purpose of this is so that it can crawl the local network and invalidate
  * every entry in every routing table that contained either one of the agents that
  * were involved in the link that no longer exists.
+ * <p>
+ * An Undertaker invalidating a single link can instead remove only the routes
+ * that actually cross that link, leaving any other routes through the agents
+ * at either end of it in place.
+ * <p>
+ * Undertakers submitted around the same time are merged by the 
+ * {@link InvalidationBatcher}, so several links dropping at once are 
+ * invalidated with a single crawl.
  *
  * @author  Saul Johnson, Alex Mullen, Lee Oliver
  */
 public class Undertaker implements Runnable {
 
-    /**
-     * The thread that underlies this Undertaker worker.
-     */
-    private Thread underlyingThread;
-    
     /**
      * The list of Agent's that were disconnected from each other. In most cases
      * this should contain the two Agent's that formed the link.
@@ -30,15 +38,27 @@ public class Undertaker implements Runnable {
     private final List<Agent> branches;
     
     /**
-     * A list of agent names that have been invalidated.
+     * The names of the agents every route through which is invalidated.
+     */
+    private final Set<String> invalidatedAgentNames;
+    
+    /**
+     * The links only routes crossing which are invalidated, each as the names
+     * of the agents at its ends in alphabetical order.
      */
-    private final List<String> invalidatedAgentNames;
+    private final Set<List<String>> invalidatedLinks;
     
     /**
      * A Set of agent names that this Undertaker has already visited.
      */
     private final Set<String> visitedAgentNames;
     
+    /**
+     * The agent names this Undertaker was told had already been visited before
+     * it started.
+     */
+    private final Set<String> alreadyVisitedAgentNames;
+    
     /**
      * A list of SocketAgent's that this Undertaker has visited.
      */
@@ -57,9 +77,54 @@ public class Undertaker implements Runnable {
      * @param alreadyVisitedNodes   A set of agent names that don't need to be visited
      */
     public Undertaker(List<Agent> branches, List<String> invalidatedAgentNames, Set<String> alreadyVisitedNodes) {
-        this.branches = branches;
-        this.invalidatedAgentNames = invalidatedAgentNames;
-        this.visitedAgentNames = alreadyVisitedNodes;
+        this(branches, invalidatedAgentNames, alreadyVisitedNodes, false);
+    }
+    
+    /**
+     * Initialises a new instance of an Undertaker with a list of visited agents
+     * that it does not need to visit.
+     * 
+     * @param branches              A list of Agent's that formed the link
+     * @param invalidatedAgentNames A set of agent names that have been invalidated
+     * @param alreadyVisitedNodes   A set of agent names that don't need to be visited
+     * @param invalidatesLink       Whether the two invalidated agent names are
+     *                              the ends of a single link, only routes 
+     *                              crossing which should be invalidated
+     */
+    public Undertaker(List<Agent> branches, List<String> invalidatedAgentNames, 
+            Set<String> alreadyVisitedNodes, boolean invalidatesLink) {
+        this(branches, 
+                invalidatesLink && invalidatedAgentNames.size() == 2 
+                        ? Collections.<String>emptyList() : invalidatedAgentNames,
+                invalidatesLink && invalidatedAgentNames.size() == 2 
+                        ? Collections.singletonList(invalidatedAgentNames.toArray(new String[2]))
+                        : Collections.<String[]>emptyList(),
+                alreadyVisitedNodes);
+    }
+    
+    /**
+     * Initialises a new instance of an Undertaker that invalidates any number
+     * of agents and links at once, with a list of visited agents that it does
+     * not need to visit.
+     * 
+     * @param branches              A list of Agent's to start crawling from
+     * @param invalidatedAgentNames A collection of agent names every route 
+     *                              through which should be invalidated
+     * @param invalidatedLinks      A collection of links, each given as the 
+     *                              names of the two agents at its ends, only 
+     *                              routes crossing which should be invalidated
+     * @param alreadyVisitedNodes   A set of agent names that don't need to be visited
+     */
+    public Undertaker(List<Agent> branches, Collection<String> invalidatedAgentNames, 
+            Collection<String[]> invalidatedLinks, Set<String> alreadyVisitedNodes) {
+        this.branches = new ArrayList<>(branches);
+        this.invalidatedAgentNames = new LinkedHashSet<>(invalidatedAgentNames);
+        this.invalidatedLinks = new LinkedHashSet<>();
+        for (String[] current : invalidatedLinks) {
+            addLink(current[0], current[1]);
+        }
+        this.visitedAgentNames = new HashSet<>(alreadyVisitedNodes);
+        this.alreadyVisitedAgentNames = new HashSet<>(alreadyVisitedNodes);
         this.visitedSocketAgents = new ArrayList<>();
     }
     
@@ -77,6 +142,48 @@ public class Undertaker implements Runnable {
     /* ---------- */
     
     
+    /**
+     * Adds a link to those this Undertaker invalidates.
+     * 
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     */
+    private void addLink(String agentName, String otherAgentName) {
+        invalidatedLinks.add(agentName.compareTo(otherAgentName) <= 0 
+                ? Arrays.asList(agentName, otherAgentName) 
+                : Arrays.asList(otherAgentName, agentName));
+    }
+    
+    /**
+     * Gets the agent names this Undertaker was told had already been visited
+     * before it started.
+     * <p>
+     * Only Undertakers that have been told the same agents were visited can be
+     * merged, since an agent that can be skipped for one may not be for the 
+     * other.
+     * 
+     * @return  the agent names already visited
+     */
+    Set<String> getAlreadyVisitedAgentNames() {
+        return Collections.unmodifiableSet(alreadyVisitedAgentNames);
+    }
+    
+    /**
+     * Adds the agents, links and branches of another Undertaker to this one,
+     * so that a single crawl invalidates both.
+     * 
+     * @param undertaker    the Undertaker to merge into this one
+     */
+    void merge(Undertaker undertaker) {
+        for (Agent current : undertaker.branches) {
+            if (!branches.contains(current)) {
+                branches.add(current);
+            }
+        }
+        invalidatedAgentNames.addAll(undertaker.invalidatedAgentNames);
+        invalidatedLinks.addAll(undertaker.invalidatedLinks);
+    }
+    
     /**
      * Recursive method to crawl through every Agent locally.
      * 
@@ -97,10 +204,13 @@ public class Undertaker implements Runnable {
             visitedSocketAgents.add((SocketAgent) agent);
         }
             
-        // Invalidate the agents in the current agent's routing table.
+        // Invalidate the agents and links in the current agent's routing table.
         for (String currentAgentName : invalidatedAgentNames) {
             agent.invalidateAgentName(currentAgentName);
         }
+        for (List<String> currentLink : invalidatedLinks) {
+            agent.invalidateLink(currentLink.get(0), currentLink.get(1));
+        }
 
         // For each agent connected to the current agent.
         for (Agent currentAgent : agent.getConnectedAgents()) {
@@ -120,9 +230,38 @@ public class Undertaker implements Runnable {
     @Override
     public void run() {
         
+        /* 
+         * Links with an end that is being invalidated entirely don't need 
+         * invalidating separately.
+         */
+        final Iterator<List<String>> iterator = invalidatedLinks.iterator();
+        while (iterator.hasNext()) {
+            final List<String> current = iterator.next();
+            if (invalidatedAgentNames.contains(current.get(0)) 
+                    || invalidatedAgentNames.contains(current.get(1))) {
+                iterator.remove();
+            }
+        }
+        if (invalidatedAgentNames.isEmpty() && invalidatedLinks.isEmpty()) {
+            return;
+        }
+        
         // Go through each branch and invalidate the link that was removed.
         for (Agent currentBranch : branches) {
-            undertake(currentBranch);
+            if (!visitedAgentNames.contains(currentBranch.getName())) {
+                undertake(currentBranch);
+            }
+        }
+        
+        /*
+         * Remote SocketAgents only need to know which SocketAgents we visited
+         * to avoid sending the invalidation back round in a loop, since they 
+         * can't reach any other agent we visited without going through one.
+         * This keeps the list from growing with the size of the network.
+         */
+        final Set<String> forwardedAgentNames = new HashSet<>(alreadyVisitedAgentNames);
+        for (SocketAgent currentSocketAgent : visitedSocketAgents) {
+            forwardedAgentNames.add(currentSocketAgent.getName());
         }
         
         /*
@@ -130,18 +269,25 @@ public class Undertaker implements Runnable {
          * crawl their local networks and invalidate the link between the
          * specified agents.
          */
+        final List<String[]> links = new ArrayList<>(invalidatedLinks.size());
+        for (List<String> current : invalidatedLinks) {
+            links.add(current.toArray(new String[2]));
+        }
         for (SocketAgent currentSocketAgent : visitedSocketAgents) {
-            currentSocketAgent.invalidateRemote(invalidatedAgentNames, visitedAgentNames);
+            currentSocketAgent.invalidateRemote(invalidatedAgentNames, links, 
+                    forwardedAgentNames);
         }
         
     }
     
     /**
-     * Performs this task on another thread.
+     * Performs this task on the shared {@link RoutingExecutor}, together with
+     * any other invalidations submitted around the same time.
+     * 
+     * @see InvalidationBatcher
      */
     public void undertakeAsync() {
-        underlyingThread = new Thread(this);
-        underlyingThread.start();
+        InvalidationBatcher.getShared().submit(this);
     }
 
 }
@@ -0,0 +1,204 @@
+package denobo.socket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents a summary of the agent names reachable through a connection,
+ * made up of one {@link BloomFilter} for each number of SocketAgents that must
+ * be passed through to reach them.
+ * <p>
+ * A SocketAgent builds the summary it advertises to a peer from the names
+ * reachable locally, at level zero, and the summaries its other peers have
+ * advertised to it, each pushed one level further away. Names further away
+ * than the depth of the summary drop off the end, so names that stop being
+ * reachable are forgotten after a few rounds of advertisements even when
+ * summaries go round a loop of SocketAgents.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class AttenuatedBloomFilter {
+
+    /**
+     * The default number of levels in a summary.
+     */
+    public static final int DEFAULT_DEPTH = 4;
+
+    /**
+     * The filters of this summary, nearest first.
+     */
+    private final BloomFilter[] levels;
+
+
+    /* ---------- */
+
+
+    /**
+     * Initialises a new instance of an empty attenuated Bloom filter.
+     *
+     * @param depth     the number of levels in the summary
+     * @param size      the number of bits in each level
+     * @param hashCount the number of bits set in a level for each name added
+     */
+    public AttenuatedBloomFilter(int depth, int size, int hashCount) {
+        levels = new BloomFilter[Math.max(1, depth)];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new BloomFilter(size, hashCount);
+        }
+    }
+
+    /**
+     * Initialises a new instance of an empty attenuated Bloom filter with the
+     * default depth, size and hash count.
+     */
+    public AttenuatedBloomFilter() {
+        this(DEFAULT_DEPTH, BloomFilter.DEFAULT_SIZE, BloomFilter.DEFAULT_HASH_COUNT);
+    }
+
+    /**
+     * Initialises a new instance of an attenuated Bloom filter that is a copy
+     * of another.
+     *
+     * @param filter    the filter to copy
+     */
+    public AttenuatedBloomFilter(AttenuatedBloomFilter filter) {
+        levels = new BloomFilter[filter.levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new BloomFilter(filter.levels[i]);
+        }
+    }
+
+    /**
+     * Initialises a new instance of an attenuated Bloom filter from its
+     * levels.
+     *
+     * @param levels    the filters of the summary, nearest first
+     */
+    private AttenuatedBloomFilter(BloomFilter[] levels) {
+        this.levels = levels;
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Adds the name of an agent reachable without passing through another
+     * SocketAgent.
+     *
+     * @param name  the name to add
+     */
+    public void add(String name) {
+        levels[0].add(name);
+    }
+
+    /**
+     * Adds the names in a summary advertised by a peer, one level further away
+     * than the peer advertised them.
+     * <p>
+     * Summaries that do not have the same size and hash count as this one are
+     * ignored.
+     *
+     * @param filter    the summary advertised by the peer
+     */
+    public void addAttenuated(AttenuatedBloomFilter filter) {
+
+        if (filter.levels[0].getSize() != levels[0].getSize()
+                || filter.getHashCount() != getHashCount()) {
+            return;
+        }
+
+        final int depth = Math.min(levels.length - 1, filter.levels.length);
+        for (int i = 0; i < depth; i++) {
+            levels[i + 1].addAll(filter.levels[i]);
+        }
+
+    }
+
+    /**
+     * Gets how many SocketAgents away an agent might be.
+     *
+     * @param name  the name of the agent
+     * @return      the nearest level that might contain the name, or -1 if the
+     *              agent is definitely not reachable
+     */
+    public int distanceTo(String name) {
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i].mightContain(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets whether or not an agent might be reachable.
+     *
+     * @param name  the name of the agent
+     * @return      false if the agent is definitely not reachable, otherwise
+     *              true
+     */
+    public boolean mightReach(String name) {
+        return distanceTo(name) != -1;
+    }
+
+    /**
+     * Gets the number of levels in this summary.
+     *
+     * @return  the depth of this summary
+     */
+    public int getDepth() {
+        return levels.length;
+    }
+
+    /**
+     * Gets the number of bits set in a level for each name added.
+     *
+     * @return  the hash count of this summary
+     */
+    public int getHashCount() {
+        return levels[0].getHashCount();
+    }
+
+    /**
+     * Serializes each level of this summary, nearest first.
+     *
+     * @return  the serialized levels
+     */
+    public List<String> serialize() {
+        final List<String> serialized = new ArrayList<>();
+        for (BloomFilter current : levels) {
+            serialized.add(current.serialize());
+        }
+        return serialized;
+    }
+
+    /**
+     * Deserializes a summary from its serialized levels.
+     *
+     * @param levels    the serialized levels, nearest first
+     * @param hashCount the number of bits set in a level for each name added
+     * @return          the deserialized summary
+     * @throws IllegalArgumentException if the levels are not serialized
+     *                                  filters of the same size
+     */
+    public static AttenuatedBloomFilter deserialize(List<String> levels, int hashCount) {
+
+        if (levels.isEmpty()) {
+            throw new IllegalArgumentException("Attenuated Bloom filter must have "
+                    + "at least one level.");
+        }
+
+        final BloomFilter[] filters = new BloomFilter[levels.size()];
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = BloomFilter.deserialize(levels.get(i), hashCount);
+            if (filters[i].getSize() != filters[0].getSize()) {
+                throw new IllegalArgumentException("Attenuated Bloom filter "
+                        + "levels must all be the same size.");
+            }
+        }
+        return new AttenuatedBloomFilter(filters);
+
+    }
+
+}
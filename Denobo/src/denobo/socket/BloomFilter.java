@@ -0,0 +1,232 @@
+package denobo.socket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Represents a Bloom filter of agent names, a compact set that can say for
+ * certain that a name was never added but may wrongly say that one was.
+ * <p>
+ * Names are hashed with 64-bit FNV-1a, split into two halves that are
+ * combined to give as many bit positions as the filter uses, so filters built
+ * by different processes agree as long as they have the same size and hash
+ * count.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class BloomFilter {
+
+    /**
+     * The default number of bits in a filter.
+     */
+    public static final int DEFAULT_SIZE = 2048;
+
+    /**
+     * The default number of bits set for each name added to a filter.
+     */
+    public static final int DEFAULT_HASH_COUNT = 3;
+
+    /**
+     * The FNV-1a 64-bit offset basis.
+     */
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    /**
+     * The FNV-1a 64-bit prime.
+     */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The bits of this filter.
+     */
+    private final long[] bits;
+
+    /**
+     * The number of bits set for each name added to this filter.
+     */
+    private final int hashCount;
+
+
+    /* ---------- */
+
+
+    /**
+     * Initialises a new instance of an empty Bloom filter.
+     *
+     * @param size      the number of bits in the filter, rounded up to a
+     *                  multiple of 64
+     * @param hashCount the number of bits set for each name added
+     */
+    public BloomFilter(int size, int hashCount) {
+        bits = new long[Math.max(1, (size + 63) / 64)];
+        this.hashCount = (hashCount < 1 ? 1 : hashCount);
+    }
+
+    /**
+     * Initialises a new instance of an empty Bloom filter with the default
+     * size and hash count.
+     */
+    public BloomFilter() {
+        this(DEFAULT_SIZE, DEFAULT_HASH_COUNT);
+    }
+
+    /**
+     * Initialises a new instance of a Bloom filter that is a copy of another.
+     *
+     * @param filter    the filter to copy
+     */
+    public BloomFilter(BloomFilter filter) {
+        bits = Arrays.copyOf(filter.bits, filter.bits.length);
+        hashCount = filter.hashCount;
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Hashes a name with 64-bit FNV-1a.
+     *
+     * @param name  the name to hash
+     * @return      the hash of the name
+     */
+    private static long hash(String name) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte current : name.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (current & 0xff);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Gets the position of one of the bits that represents a name.
+     *
+     * @param hash  the hash of the name
+     * @param i     which of the name's bits to get
+     * @return      the position of the bit
+     */
+    private int position(long hash, int i) {
+        final int combined = (int) hash + i * (int) (hash >>> 32);
+        return (combined & Integer.MAX_VALUE) % getSize();
+    }
+
+    /**
+     * Adds a name to this filter.
+     *
+     * @param name  the name to add
+     */
+    public void add(String name) {
+        final long hash = hash(name);
+        for (int i = 0; i < hashCount; i++) {
+            final int position = position(hash, i);
+            bits[position / 64] |= (1L << (position % 64));
+        }
+    }
+
+    /**
+     * Gets whether or not a name might have been added to this filter.
+     *
+     * @param name  the name to look for
+     * @return      false if the name was definitely never added, otherwise
+     *              true
+     */
+    public boolean mightContain(String name) {
+        final long hash = hash(name);
+        for (int i = 0; i < hashCount; i++) {
+            final int position = position(hash, i);
+            if ((bits[position / 64] & (1L << (position % 64))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds every name in another filter to this one.
+     *
+     * @param filter    the filter to add the names of
+     * @throws IllegalArgumentException if the filters differ in size or hash
+     *                                  count
+     */
+    public void addAll(BloomFilter filter) {
+        if (filter.bits.length != bits.length || filter.hashCount != hashCount) {
+            throw new IllegalArgumentException("Bloom filters must have the same "
+                    + "size and hash count to be combined.");
+        }
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] |= filter.bits[i];
+        }
+    }
+
+    /**
+     * Gets whether or not this filter is empty.
+     *
+     * @return  true if no names have been added to this filter, otherwise false
+     */
+    public boolean isEmpty() {
+        for (long current : bits) {
+            if (current != 0) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of bits in this filter.
+     *
+     * @return  the size of this filter in bits
+     */
+    public int getSize() {
+        return bits.length * 64;
+    }
+
+    /**
+     * Gets the number of bits set for each name added to this filter.
+     *
+     * @return  the hash count of this filter
+     */
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * Serializes the bits of this filter as a hexadecimal string.
+     *
+     * @return  the serialized filter
+     */
+    public String serialize() {
+        final byte[] bytes = new byte[bits.length * 8];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (bits[i / 8] >>> ((i % 8) * 8));
+        }
+        return DatatypeConverter.printHexBinary(bytes);
+    }
+
+    /**
+     * Deserializes a filter from a hexadecimal string.
+     *
+     * @param string    the serialized filter
+     * @param hashCount the number of bits set for each name added to the
+     *                  filter
+     * @return          the deserialized filter
+     * @throws IllegalArgumentException if the string is not a serialized
+     *                                  filter
+     */
+    public static BloomFilter deserialize(String string, int hashCount) {
+
+        final byte[] bytes = DatatypeConverter.parseHexBinary(string);
+        if (bytes.length == 0 || bytes.length % 8 != 0) {
+            throw new IllegalArgumentException("Serialized Bloom filter has an "
+                    + "invalid length.");
+        }
+
+        final BloomFilter filter = new BloomFilter(bytes.length * 8, hashCount);
+        for (int i = 0; i < bytes.length; i++) {
+            filter.bits[i / 8] |= ((long) (bytes[i] & 0xff)) << ((i % 8) * 8);
+        }
+        return filter;
+
+    }
+
+}
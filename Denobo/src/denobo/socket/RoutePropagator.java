@@ -0,0 +1,459 @@
+package denobo.socket;
+
+import denobo.Agent;
+import denobo.Route;
+import denobo.RoutingExecutor;
+import denobo.socket.connection.DenoboConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents the proactive routing state of a {@link SocketAgent}, which
+ * exchanges routes with its peers ahead of time so that remote route requests
+ * can be answered without flooding the network.
+ * <p>
+ * Each peer advertises the best route it knows to each agent, as a path
+ * starting with itself, and withdraws routes it no longer has. The best route
+ * to each agent is whichever of the local network and the routes advertised by
+ * peers reaches it most cheaply. Only changes are advertised, and routes are
+ * never advertised to a peer they already pass through, so updates die out
+ * once the network settles. Routes that pass through the receiving
+ * SocketAgent are ignored, so no route can loop.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class RoutePropagator {
+
+    /**
+     * The fraction by which the cost of a route must change before the change
+     * is advertised, so that jitter in round-trip times doesn't cause a
+     * constant stream of updates.
+     */
+    private static final double COST_CHANGE_THRESHOLD = 0.25;
+
+    /**
+     * The most agents a route may pass through to be used or advertised.
+     */
+    private static final int MAXIMUM_PATH_LENGTH = 32;
+
+    /**
+     * The SocketAgent whose routing state this is.
+     */
+    private final SocketAgent gateway;
+
+    /**
+     * The routes advertised by each connection keyed by destination name,
+     * guarded by its own monitor.
+     */
+    private final Map<DenoboConnection, Map<String, Route>> receivedRoutes;
+
+    /**
+     * The routes last advertised to each connection keyed by destination name,
+     * guarded by its own monitor, which is also held while propagating.
+     */
+    private final Map<DenoboConnection, Map<String, Route>> sentRoutes;
+
+    /**
+     * The best route from the gateway to each agent it knows of.
+     */
+    private volatile Map<String, Route> bestRoutes;
+
+    /**
+     * Whether or not a propagation is waiting to run.
+     */
+    private final AtomicBoolean propagationPending;
+
+    /**
+     * The number of routes advertised to peers.
+     */
+    private final AtomicLong advertisedCount;
+
+    /**
+     * The number of routes withdrawn from peers.
+     */
+    private final AtomicLong withdrawnCount;
+
+
+    /* ---------- */
+
+
+    /**
+     * Initialises a new instance of a route propagator.
+     *
+     * @param gateway   the SocketAgent whose routing state this is
+     */
+    public RoutePropagator(SocketAgent gateway) {
+        this.gateway = gateway;
+        receivedRoutes = new HashMap<>();
+        sentRoutes = new HashMap<>();
+        bestRoutes = Collections.emptyMap();
+        propagationPending = new AtomicBoolean();
+        advertisedCount = new AtomicLong();
+        withdrawnCount = new AtomicLong();
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Gets the best known route from the gateway to an agent.
+     *
+     * @param destinationAgentName  the name of the agent
+     * @return                      the route, starting with the gateway, or
+     *                              null if no route is known
+     */
+    public Route getRoute(String destinationAgentName) {
+        return bestRoutes.get(destinationAgentName);
+    }
+
+    /**
+     * Gets the best known routes from the gateway to every agent it knows of.
+     *
+     * @return  the read-only map of agent names to routes
+     */
+    public Map<String, Route> getRoutes() {
+        return Collections.unmodifiableMap(bestRoutes);
+    }
+
+    /**
+     * Records routes advertised by a peer, replacing any it advertised before
+     * to the same agents.
+     *
+     * @param connection    the connection to the peer
+     * @param routes        the routes advertised, each starting with the peer
+     */
+    public void routesAdvertised(DenoboConnection connection, List<Route> routes) {
+
+        synchronized (receivedRoutes) {
+            Map<String, Route> received = receivedRoutes.get(connection);
+            if (received == null) {
+                received = new HashMap<>();
+                receivedRoutes.put(connection, received);
+            }
+            for (Route current : routes) {
+
+                /*
+                 * A peer can only tell us about routes that start with itself,
+                 * and that don't visit any agent twice.
+                 */
+                if (!current.isEmpty()
+                        && current.first().equals(connection.getRemoteAgentName())
+                        && new HashSet<>(current.getPath()).size() == current.size()) {
+                    received.put(current.last(), current);
+                }
+
+            }
+        }
+
+        schedule();
+
+    }
+
+    /**
+     * Records that a peer no longer has routes to some agents.
+     *
+     * @param connection            the connection to the peer
+     * @param destinationAgentNames the names of the agents
+     */
+    public void routesWithdrawn(DenoboConnection connection,
+            Collection<String> destinationAgentNames) {
+
+        synchronized (receivedRoutes) {
+            final Map<String, Route> received = receivedRoutes.get(connection);
+            if (received != null) {
+                received.keySet().removeAll(destinationAgentNames);
+            }
+        }
+
+        schedule();
+
+    }
+
+    /**
+     * Forgets everything a closed connection advertised.
+     *
+     * @param connection    the connection that closed
+     */
+    public void connectionClosed(DenoboConnection connection) {
+
+        synchronized (receivedRoutes) {
+            receivedRoutes.remove(connection);
+        }
+        synchronized (sentRoutes) {
+            sentRoutes.remove(connection);
+        }
+
+        schedule();
+
+    }
+
+    /**
+     * Arranges for the best routes to be worked out again and any changes
+     * advertised on the shared {@link RoutingExecutor}, unless that is already
+     * waiting to happen.
+     */
+    public void schedule() {
+
+        if (!propagationPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            RoutingExecutor.getShared().execute(RoutingExecutor.TaskType.ROUTE_PROPAGATION,
+                    new Runnable() {
+                @Override
+                public void run() {
+                    propagationPending.set(false);
+                    propagate();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+
+            // The next change or periodic round will try again.
+            propagationPending.set(false);
+
+        }
+
+    }
+
+    /**
+     * Works out the best routes again, installs them in the gateway's routing
+     * table and, if the gateway advertises routes, tells each peer what has
+     * changed since it was last told.
+     */
+    public void propagate() {
+
+        synchronized (sentRoutes) {
+
+            final Map<String, Route> previous = bestRoutes;
+            final Map<String, Route> local = findLocalRoutes();
+            final Map<String, Route> current = new HashMap<>(local);
+            addAdvertisedRoutes(current);
+            bestRoutes = current;
+            updateRoutingTable(previous, current, local.keySet());
+
+            if (gateway.getConfiguration().getRouteAdvertisementInterval() <= 0) {
+                return;
+            }
+
+            for (DenoboConnection connection : gateway.getAuthenticatedConnections()) {
+                advertiseChanges(connection, current);
+            }
+
+        }
+
+    }
+
+    /**
+     * Works out a route from the gateway to each agent in the local network,
+     * which can be reached without crossing a connection.
+     *
+     * @return  the map of agent names to the routes to them
+     */
+    private Map<String, Route> findLocalRoutes() {
+
+        final Map<String, Route> best = new HashMap<>();
+        final Route start = new Route();
+        start.append(gateway);
+        best.put(gateway.getName(), start);
+        final List<Agent> queue = new ArrayList<>();
+        queue.add(gateway);
+        for (int i = 0; i < queue.size(); i++) {
+            final Agent agent = queue.get(i);
+            for (Agent neighbour : agent.getConnectedAgents()) {
+                if (!best.containsKey(neighbour.getName())) {
+                    final Route route = new Route(best.get(agent.getName()));
+                    route.append(neighbour);
+                    best.put(neighbour.getName(), route);
+                    queue.add(neighbour);
+                }
+            }
+        }
+        return best;
+
+    }
+
+    /**
+     * Adds the cheapest route advertised by a peer to each agent not already
+     * routed to.
+     *
+     * @param best  the map of agent names to the best routes to them
+     */
+    private void addAdvertisedRoutes(Map<String, Route> best) {
+
+        synchronized (receivedRoutes) {
+            for (Map.Entry<DenoboConnection, Map<String, Route>> entry : receivedRoutes.entrySet()) {
+                final long linkCost = entry.getKey().getLinkCost();
+                for (Route advertised : entry.getValue().values()) {
+
+                    if (advertised.has(gateway.getName())
+                            || advertised.size() >= MAXIMUM_PATH_LENGTH) {
+                        continue;
+                    }
+
+                    final long cost = linkCost + advertised.getCost();
+                    final Route existing = best.get(advertised.last());
+                    if (existing == null || cost < existing.getCost()) {
+                        best.put(advertised.last(), extend(advertised, cost));
+                    }
+
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Builds a route from the gateway that continues along a route advertised
+     * by a peer.
+     * <p>
+     * Only the total cost of the advertised route is known, so the link to
+     * the peer carries all of it.
+     *
+     * @param advertised    the route advertised by the peer
+     * @param cost          the total cost of the route from the gateway
+     * @return              the route from the gateway
+     */
+    private Route extend(Route advertised, long cost) {
+
+        final Route route = new Route();
+        route.append(gateway);
+        final List<String> path = advertised.getPath();
+        for (int i = 0; i < path.size(); i++) {
+            route.append(path.get(i), i == 0 ? cost : 0L);
+        }
+        return route;
+
+    }
+
+    /**
+     * Keeps the gateway's routing table in step with the best routes to
+     * agents beyond its connections.
+     * <p>
+     * Routes within the local network are left to the gateway's own routing
+     * workers, which weigh up local links more carefully.
+     *
+     * @param previous      the best routes before they were last worked out
+     * @param current       the best routes now
+     * @param localNames    the names of the agents in the local network
+     */
+    private void updateRoutingTable(Map<String, Route> previous, Map<String, Route> current,
+            Set<String> localNames) {
+
+        for (Map.Entry<String, Route> entry : current.entrySet()) {
+            final Route before = previous.get(entry.getKey());
+            if (localNames.contains(entry.getKey()) || (before != null
+                    && before.getPath().equals(entry.getValue().getPath())
+                    && before.getCost() == entry.getValue().getCost())) {
+                continue;
+            }
+            
+            /*
+             * Take out the route we installed last time first, otherwise a 
+             * cheaper but dead route there would win over the new one.
+             */
+            if (before != null) {
+                gateway.getRoutingTable().removeRoute(entry.getKey(), before);
+            }
+            gateway.getRoutingTable().addRoute(entry.getKey(), entry.getValue());
+        }
+
+        for (String destination : previous.keySet()) {
+            if (!current.containsKey(destination)) {
+                gateway.getRoutingTable().invalidateAgent(destination);
+            }
+        }
+
+    }
+
+    /**
+     * Advertises to a peer any routes that are new or have changed since it
+     * was last told, and withdraws any it can no longer use.
+     * <p>
+     * The caller must hold the monitor of {@link #sentRoutes}.
+     *
+     * @param connection    the connection to the peer
+     * @param best          the best routes from the gateway
+     */
+    private void advertiseChanges(DenoboConnection connection, Map<String, Route> best) {
+
+        final String peerName = connection.getRemoteAgentName();
+        Map<String, Route> sent = sentRoutes.get(connection);
+        if (sent == null) {
+            sent = new HashMap<>();
+            sentRoutes.put(connection, sent);
+        }
+
+        // Never tell a peer about routes that go through it.
+        final List<Route> advertised = new ArrayList<>();
+        final Set<String> usable = new HashSet<>();
+        for (Map.Entry<String, Route> entry : best.entrySet()) {
+            final Route route = entry.getValue();
+            if (route.has(peerName) || route.size() >= MAXIMUM_PATH_LENGTH) {
+                continue;
+            }
+            usable.add(entry.getKey());
+            if (hasChanged(sent.get(entry.getKey()), route)) {
+                advertised.add(route);
+                sent.put(entry.getKey(), route);
+            }
+        }
+
+        final Set<String> withdrawn = new HashSet<>(sent.keySet());
+        withdrawn.removeAll(usable);
+        sent.keySet().removeAll(withdrawn);
+
+        if (!advertised.isEmpty()) {
+            connection.advertiseRoutes(advertised);
+            advertisedCount.addAndGet(advertised.size());
+        }
+        if (!withdrawn.isEmpty()) {
+            connection.withdrawRoutes(withdrawn);
+            withdrawnCount.addAndGet(withdrawn.size());
+        }
+
+    }
+
+    /**
+     * Gets whether a route differs enough from the one last advertised to be
+     * advertised again.
+     *
+     * @param sent  the route last advertised, or null if there wasn't one
+     * @param route the route now
+     * @return      true if the route should be advertised, otherwise false
+     */
+    private static boolean hasChanged(Route sent, Route route) {
+        return sent == null
+                || !sent.getPath().equals(route.getPath())
+                || Math.abs(route.getCost() - sent.getCost())
+                        > sent.getCost() * COST_CHANGE_THRESHOLD;
+    }
+
+    /**
+     * Gets the number of routes advertised to peers.
+     *
+     * @return  the number of routes advertised
+     */
+    public long getAdvertisedCount() {
+        return advertisedCount.get();
+    }
+
+    /**
+     * Gets the number of routes withdrawn from peers.
+     *
+     * @return  the number of routes withdrawn
+     */
+    public long getWithdrawnCount() {
+        return withdrawnCount.get();
+    }
+
+}
@@ -0,0 +1,671 @@
+package denobo.socket;
+
+import denobo.Route;
+import denobo.RoutingWorkerListener;
+import denobo.UniqueIdFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents a process-wide register of remote route requests in flight, so 
+ * that concurrent searches for the same destination through the same gateway
+ * {@link SocketAgent} share a single request across the network.
+ * <p>
+ * The first caller to ask a gateway for a route to a destination floods the
+ * request out as normal. Anyone else asking the same gateway for the same 
+ * destination while that request is still outstanding simply waits on it. 
+ * When a route comes back, each waiter is given a route built from its own 
+ * local route to the gateway followed by the part of the found route beyond 
+ * the gateway, so every waiter gets a route that is correct for its origin.
+ * <p>
+ * A caller that must avoid different agents to those avoided by the request
+ * in flight still sends its own request, but waits on both, so any route 
+ * found by either that avoids what it must is offered to it.
+ * <p>
+ * Requests are matched to the routes sent back for them by request ID, and
+ * are forgotten once the route request timeout of their gateway has passed or
+ * once too many newer requests are in flight. Routes sent back by older
+ * SocketAgents, which carry no request ID, go to the latest request for their
+ * destination.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class RouteRequestCoalescer {
+    
+    /**
+     * The default time in milliseconds that an unanswered request can be 
+     * joined by new callers before a fresh request is sent instead.
+     */
+    public static final long DEFAULT_REQUEST_TIMEOUT = 5000L;
+    
+    /**
+     * The most requests that will be remembered at once.
+     */
+    private static final int MAXIMUM_REQUESTS = 4096;
+    
+    /**
+     * The requests in flight keyed by gateway and request ID, oldest first, 
+     * guarded by its own monitor.
+     */
+    private final Map<String, RemoteRouteRequest> requests;
+    
+    /**
+     * The latest request for each destination keyed by gateway and 
+     * destination name, guarded by the monitor of {@link #requests}.
+     */
+    private final Map<String, RemoteRouteRequest> latestRequests;
+    
+    /**
+     * The time in milliseconds that an unanswered request can be joined.
+     */
+    private final long requestTimeout;
+    
+    /**
+     * The number of requests sent out so far.
+     */
+    private final AtomicLong requestCount;
+    
+    /**
+     * The number of callers that waited on a request already in flight rather
+     * than sending their own.
+     */
+    private final AtomicLong coalescedCount;
+    
+    /**
+     * The number of requests forgotten without a route ever being found.
+     */
+    private final AtomicLong expiredCount;
+    
+    /**
+     * The number of routes sent back that no request was waiting on.
+     */
+    private final AtomicLong unmatchedCount;
+    
+    /**
+     * The lazily-created coalescer shared by the whole process.
+     */
+    private static RouteRequestCoalescer sharedInstance;
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Initialises a new instance of a route request coalescer.
+     * 
+     * @param requestTimeout    the time in milliseconds that an unanswered 
+     *                          request can be joined by new callers
+     */
+    public RouteRequestCoalescer(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+        requests = new LinkedHashMap<>();
+        latestRequests = new HashMap<>();
+        requestCount = new AtomicLong();
+        coalescedCount = new AtomicLong();
+        expiredCount = new AtomicLong();
+        unmatchedCount = new AtomicLong();
+    }
+    
+    /**
+     * Initialises a new instance of a route request coalescer with the default
+     * request timeout.
+     */
+    public RouteRequestCoalescer() {
+        this(DEFAULT_REQUEST_TIMEOUT);
+    }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Gets the coalescer shared by the whole process, creating it if it does 
+     * not yet exist.
+     * 
+     * @return  the coalescer shared by the whole process
+     */
+    public static synchronized RouteRequestCoalescer getShared() {
+        if (sharedInstance == null) {
+            sharedInstance = new RouteRequestCoalescer();
+        }
+        return sharedInstance;
+    }
+    
+    /**
+     * Builds the key a request is stored under.
+     * 
+     * @param gateway   the gateway the request is sent from
+     * @param name      the request ID or the name of the destination agent
+     * @return          the key of the request
+     */
+    private static String keyFor(SocketAgent gateway, String name) {
+        
+        // Agent names cannot contain a colon so this can't be ambiguous.
+        return gateway.getName() + ":" + name;
+        
+    }
+    
+    /**
+     * Gets the ID a route to a destination sought by a batched request is 
+     * sent back under.
+     * <p>
+     * Each destination in a batched request is treated as a request of its 
+     * own, with an ID every SocketAgent the request passes through works out
+     * the same way.
+     * 
+     * @param batchId       the ID of the batched request
+     * @param destination   the name of the destination agent
+     * @return              the ID of the request for the destination
+     */
+    public static String batchRequestId(String batchId, String destination) {
+        return batchId + "/" + destination;
+    }
+    
+    /**
+     * Registers a caller's interest in a route to a destination through a 
+     * gateway.
+     * 
+     * @param gateway           the gateway the route must be sought through
+     * @param destination       the name of the destination agent
+     * @param localRoute        the caller's route to the gateway
+     * @param listeners         the listeners to notify when a route is found
+     * @param usesBacktracking  whether or not the caller uses backtracking
+     * @param avoidedNames      the names of agents the route must avoid
+     * @param requestId         the ID of the request the caller is 
+     *                          continuing, or null if it is starting a new one
+     * @param hopsRemaining     the number of connections between SocketAgents
+     *                          the caller's request may still cross, or -1 
+     *                          for the gateway's hop limit
+     * @return                  the ID the caller must send the request out 
+     *                          under, or null if it will wait on a request 
+     *                          already in flight
+     */
+    public String join(SocketAgent gateway, String destination, Route localRoute, 
+            List<RoutingWorkerListener> listeners, boolean usesBacktracking, 
+            Set<String> avoidedNames, String requestId, int hopsRemaining) {
+        
+        final Waiter waiter = new Waiter(localRoute, listeners, usesBacktracking, 
+                avoidedNames, hopsRemaining);
+        final long now = System.currentTimeMillis();
+        
+        synchronized (requests) {
+            
+            purge(now);
+            
+            // Wait on a request in flight if there is one.
+            final RemoteRouteRequest existing = latestRequests.get(keyFor(gateway, destination));
+            if (existing != null && existing.isJoinable(now)) {
+                existing.waiters.add(waiter);
+                if (existing.avoidedNames.equals(avoidedNames)) {
+                    coalescedCount.incrementAndGet();
+                    return null;
+                }
+                
+                // It may not find a route we can use, so ask for our own too.
+                return start(gateway, destination, waiter, requestId, now, false);
+            }
+            
+            // Otherwise start a new one.
+            return start(gateway, destination, waiter, requestId, now, true);
+            
+        }
+        
+    }
+    
+    /**
+     * Registers a new request for a single waiter.
+     * <p>
+     * The caller must hold the monitor of {@link #requests}.
+     * 
+     * @param gateway       the gateway the request is sent from
+     * @param destination   the name of the destination agent
+     * @param waiter        the caller waiting on the request
+     * @param requestId     the ID to register the request under, or null to 
+     *                      create one
+     * @param now           the current time in milliseconds
+     * @param joinable      whether or not later callers can wait on the 
+     *                      request
+     * @return              the ID the request must be sent out under, or 
+     *                      null if a request with the given ID is already in
+     *                      flight and the waiter now waits on it
+     */
+    private String start(SocketAgent gateway, String destination, Waiter waiter, 
+            String requestId, long now, boolean joinable) {
+        
+        final String id = (requestId == null ? UniqueIdFactory.getId() : requestId);
+        final String key = keyFor(gateway, id);
+        
+        // A request we're already waiting on doesn't need to go out again.
+        final RemoteRouteRequest existing = requests.get(key);
+        if (existing != null) {
+            existing.waiters.add(waiter);
+            return null;
+        }
+        
+        final RemoteRouteRequest request = new RemoteRouteRequest(gateway, 
+                destination, waiter.avoidedNames, now, 
+                now + gateway.getConfiguration().getRouteRequestTimeout());
+        request.waiters.add(waiter);
+        waiter.sentOwnRequest = true;
+        requests.put(key, request);
+        if (joinable) {
+            latestRequests.put(keyFor(gateway, destination), request);
+        }
+        requestCount.incrementAndGet();
+        
+        // Forget the oldest requests if there are too many.
+        final Iterator<RemoteRouteRequest> iterator = requests.values().iterator();
+        while (requests.size() > MAXIMUM_REQUESTS && iterator.hasNext()) {
+            forget(iterator.next());
+            iterator.remove();
+        }
+        
+        return id;
+        
+    }
+    
+    /**
+     * Delivers a route found by a request to everyone waiting on it.
+     * 
+     * @param gateway       the gateway the route was found through
+     * @param requestId     the ID of the request the route answers, or null 
+     *                      to deliver it to the latest request for its 
+     *                      destination
+     * @param destination   the name of the destination agent
+     * @param route         the route found, starting with the local route of
+     *                      the caller that sent the request
+     * @return              true if a request was waiting on the route, 
+     *                      otherwise false
+     */
+    public boolean complete(SocketAgent gateway, String requestId, String destination, 
+            Route route) {
+        
+        final RemoteRouteRequest request;
+        synchronized (requests) {
+            
+            purge(System.currentTimeMillis());
+            request = (requestId == null ? latestRequests.get(keyFor(gateway, destination)) 
+                    : requests.get(keyFor(gateway, requestId)));
+            if (request == null || !request.destination.equals(destination)) {
+                unmatchedCount.incrementAndGet();
+                return false;
+            }
+            request.completed = true;
+            
+        }
+        
+        request.deliver(route);
+        return true;
+        
+    }
+    
+    /**
+     * Removes any requests that are too old to receive replies any more.
+     * <p>
+     * The caller must hold the monitor of {@link #requests}.
+     * 
+     * @param now   the current time in milliseconds
+     */
+    private void purge(long now) {
+        final Iterator<RemoteRouteRequest> iterator = requests.values().iterator();
+        while (iterator.hasNext()) {
+            final RemoteRouteRequest current = iterator.next();
+            if (now >= current.expiryTime) {
+                forget(current);
+                iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * Stops a request being found by destination, ahead of it being removed.
+     * <p>
+     * The caller must hold the monitor of {@link #requests}.
+     * 
+     * @param request   the request being removed
+     */
+    private void forget(RemoteRouteRequest request) {
+        
+        if (!request.completed) {
+            expiredCount.incrementAndGet();
+        }
+        
+        final String key = keyFor(request.gateway, request.destination);
+        if (latestRequests.get(key) == request) {
+            latestRequests.remove(key);
+        }
+        
+    }
+    
+    /**
+     * Gets the number of requests sent out so far.
+     * 
+     * @return  the number of requests sent out
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+    
+    /**
+     * Gets the number of callers that waited on a request already in flight 
+     * rather than sending their own.
+     * 
+     * @return  the number of coalesced callers
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+    
+    /**
+     * Gets the number of requests forgotten without a route ever being found.
+     * 
+     * @return  the number of requests that timed out
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+    
+    /**
+     * Gets the number of routes sent back that no request was waiting on.
+     * 
+     * @return  the number of unmatched routes
+     */
+    public long getUnmatchedCount() {
+        return unmatchedCount.get();
+    }
+    
+    /**
+     * Gets the number of requests currently remembered.
+     * 
+     * @return  the number of requests in flight
+     */
+    public int getPendingCount() {
+        synchronized (requests) {
+            return requests.size();
+        }
+    }
+    
+    
+    /* ---------- */
+    
+    
+    /**
+     * Represents a caller waiting on a remote route request.
+     */
+    private static class Waiter {
+        
+        /**
+         * The caller's route to the gateway.
+         */
+        private final Route localRoute;
+        
+        /**
+         * The listeners to notify when a route is found.
+         */
+        private final List<RoutingWorkerListener> listeners;
+        
+        /**
+         * Whether or not the caller uses backtracking.
+         */
+        private final boolean usesBacktracking;
+        
+        /**
+         * The names of agents the caller's route must avoid.
+         */
+        private final Set<String> avoidedNames;
+        
+        /**
+         * The number of connections between SocketAgents the caller's request
+         * may still cross, or -1 for the gateway's hop limit.
+         */
+        private final int hopsRemaining;
+        
+        /**
+         * Whether or not this waiter has a request of its own, rather than 
+         * only waiting on someone else's.
+         */
+        private boolean sentOwnRequest;
+        
+        /**
+         * Initialises a new instance of a waiter.
+         * 
+         * @param localRoute        the caller's route to the gateway
+         * @param listeners         the listeners to notify
+         * @param usesBacktracking  whether or not the caller uses backtracking
+         * @param avoidedNames      the names of agents the route must avoid
+         * @param hopsRemaining     the number of connections between 
+         *                          SocketAgents the caller's request may still
+         *                          cross
+         */
+        public Waiter(Route localRoute, List<RoutingWorkerListener> listeners, 
+                boolean usesBacktracking, Set<String> avoidedNames, int hopsRemaining) {
+            this.localRoute = localRoute;
+            this.listeners = listeners;
+            this.usesBacktracking = usesBacktracking;
+            this.avoidedNames = avoidedNames;
+            this.hopsRemaining = hopsRemaining;
+        }
+        
+    }
+    
+    /**
+     * Represents a single remote route request in flight and the callers 
+     * waiting on it.
+     */
+    private class RemoteRouteRequest {
+        
+        /**
+         * The gateway the request was sent from.
+         */
+        private final SocketAgent gateway;
+        
+        /**
+         * The name of the destination agent.
+         */
+        private final String destination;
+        
+        /**
+         * The names of agents the route sought by the request must avoid.
+         */
+        private final Set<String> avoidedNames;
+        
+        /**
+         * The time in milliseconds the request was sent.
+         */
+        private final long createdTime;
+        
+        /**
+         * The time in milliseconds after which routes sent back for the 
+         * request are no longer accepted.
+         */
+        private final long expiryTime;
+        
+        /**
+         * The callers waiting on this request, guarded by the monitor of 
+         * {@link RouteRequestCoalescer#requests}.
+         */
+        private final List<Waiter> waiters;
+        
+        /**
+         * Whether or not a route has been found by this request.
+         */
+        private boolean completed;
+        
+        /**
+         * Initialises a new instance of a remote route request.
+         * 
+         * @param gateway       the gateway the request was sent from
+         * @param destination   the name of the destination agent
+         * @param avoidedNames  the names of agents the route sought must avoid
+         * @param createdTime   the time in milliseconds the request was sent
+         * @param expiryTime    the time in milliseconds after which routes 
+         *                      sent back for the request are no longer 
+         *                      accepted
+         */
+        public RemoteRouteRequest(SocketAgent gateway, String destination, 
+                Set<String> avoidedNames, long createdTime, long expiryTime) {
+            this.gateway = gateway;
+            this.destination = destination;
+            this.avoidedNames = avoidedNames;
+            this.createdTime = createdTime;
+            this.expiryTime = expiryTime;
+            waiters = new ArrayList<>();
+        }
+        
+        /**
+         * Gets whether or not new callers can wait on this request.
+         * <p>
+         * Once a request has been answered, new callers send a fresh request
+         * so that they never get a route the network has since invalidated.
+         * 
+         * @param now   the current time in milliseconds
+         * @return      true if this request can be joined, otherwise false
+         */
+        public boolean isJoinable(long now) {
+            return !completed && now - createdTime <= requestTimeout && now < expiryTime;
+        }
+        
+        /**
+         * Delivers a found route to every waiter it is valid for.
+         * 
+         * @param route the route found, starting with the local route of the
+         *              caller that sent the request
+         */
+        public void deliver(Route route) {
+            
+            // Find where the gateway sits in the found route.
+            final List<String> path = route.getPath();
+            final int gatewayIndex = path.indexOf(gateway.getName());
+            
+            final List<Waiter> snapshot;
+            synchronized (requests) {
+                snapshot = new ArrayList<>(waiters);
+            }
+            
+            // Work out what the part of the route beyond the gateway costs.
+            final long remoteCost = (gatewayIndex < 0 ? 0 
+                    : route.getCost() - prefixCost(snapshot, path, gatewayIndex));
+            
+            for (Waiter current : snapshot) {
+                
+                /*
+                 * Splice the waiter's own route onto the remote part, unless 
+                 * that passes through an agent the waiter must avoid.
+                 */
+                final Route spliced = (gatewayIndex < 0 
+                        || avoidsAny(current, path, gatewayIndex) ? null 
+                        : splice(current.localRoute, path, gatewayIndex, remoteCost, 
+                        route.getZone()));
+                
+                if (spliced != null) {
+                    for (RoutingWorkerListener listener : current.listeners) {
+                        listener.routeCalculationSucceeded(destination, spliced);
+                    }
+                } else if (!current.sentOwnRequest) {
+                    
+                    /*
+                     * The remote part passes back through this waiter's own 
+                     * route or an agent it must avoid, so it needs a request 
+                     * of its own.
+                     */
+                    current.sentOwnRequest = true;
+                    final String id;
+                    synchronized (requests) {
+                        id = start(gateway, destination, current, null, 
+                                System.currentTimeMillis(), false);
+                    }
+                    gateway.floodRouteRequest(destination, current.localRoute, 
+                            current.usesBacktracking, current.avoidedNames, id, 
+                            current.hopsRemaining);
+                    
+                }
+                
+            }
+            
+        }
+        
+        /**
+         * Gets whether the part of a found route beyond the gateway passes 
+         * through any agent a waiter must avoid.
+         * 
+         * @param waiter        the waiter
+         * @param path          the found route
+         * @param gatewayIndex  the index of the gateway in the found route
+         * @return              true if the remote part passes through an 
+         *                      avoided agent, otherwise false
+         */
+        private boolean avoidsAny(Waiter waiter, List<String> path, int gatewayIndex) {
+            
+            if (waiter.avoidedNames == null || waiter.avoidedNames.isEmpty()) {
+                return false;
+            }
+            for (int i = gatewayIndex + 1; i < path.size(); i++) {
+                if (waiter.avoidedNames.contains(path.get(i))) { return true; }
+            }
+            return false;
+            
+        }
+        
+        /**
+         * Gets the cost of the part of a found route up to the gateway.
+         * <p>
+         * This is the cost of the local route of whichever waiter sent the
+         * request the route answers.
+         * 
+         * @param waiters       the waiters on this request
+         * @param path          the found route
+         * @param gatewayIndex  the index of the gateway in the found route
+         * @return              the cost of the found route up to the gateway
+         */
+        private long prefixCost(List<Waiter> waiters, List<String> path, int gatewayIndex) {
+            
+            for (Waiter current : waiters) {
+                if (current.localRoute.size() == gatewayIndex + 1 
+                        && current.localRoute.getPath().equals(path.subList(0, gatewayIndex + 1))) {
+                    return current.localRoute.getCost();
+                }
+            }
+            
+            // Fall back to the caller that started the request.
+            return waiters.isEmpty() ? 0 : waiters.get(0).localRoute.getCost();
+            
+        }
+        
+        /**
+         * Builds a waiter's route from its local route and the part of a found
+         * route beyond the gateway.
+         * 
+         * @param localRoute    the waiter's route to the gateway
+         * @param path          the found route
+         * @param gatewayIndex  the index of the gateway in the found route
+         * @param remoteCost    the cost of the found route beyond the gateway
+         * @param zone          the zone the found route leads into, or null
+         * @return              the spliced route, or null if it would visit an
+         *                      agent twice
+         */
+        private Route splice(Route localRoute, List<String> path, int gatewayIndex, 
+                long remoteCost, String zone) {
+            
+            /*
+             * We only know what the remote part costs as a whole, so the first
+             * remote link carries all of it.
+             */
+            final Route spliced = new Route(localRoute);
+            for (int i = gatewayIndex + 1; i < path.size(); i++) {
+                if (spliced.has(path.get(i))) { return null; }
+                spliced.append(path.get(i), i == gatewayIndex + 1 ? remoteCost : 0L);
+            }
+            spliced.setZone(zone);
+            return spliced;
+            
+        }
+        
+    }
+    
+}
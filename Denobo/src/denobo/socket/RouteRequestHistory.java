@@ -0,0 +1,223 @@
+package denobo.socket;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents a short-lived record of the route requests a {@link SocketAgent}
+ * has recently seen, so that copies of a request arriving by other paths
+ * through a mesh of SocketAgents can be dropped instead of flooded onward.
+ * <p>
+ * Request IDs are forgotten once they are older than the retention time, or
+ * once too many newer requests have been seen.
+ *
+ * @author  Saul Johnson, Alex Mullen, Lee Oliver
+ */
+public class RouteRequestHistory {
+
+    /**
+     * The default time in milliseconds that a request ID is remembered for.
+     */
+    public static final long DEFAULT_RETENTION = 30000L;
+
+    /**
+     * The most request IDs that will be remembered at once.
+     */
+    private static final int MAXIMUM_SIZE = 65536;
+
+    /**
+     * The time in milliseconds that a request ID is remembered for.
+     */
+    private final long retention;
+
+    /**
+     * The request IDs seen mapped to the time in milliseconds they were first
+     * seen, oldest first, guarded by its own monitor.
+     */
+    private final Map<String, Long> seen;
+
+    /**
+     * The number of requests received that had not been seen before.
+     */
+    private final AtomicLong acceptedCount;
+
+    /**
+     * The number of requests received that had already been seen and were
+     * dropped.
+     */
+    private final AtomicLong suppressedCount;
+
+    /**
+     * The number of requests that were not flooded onward because their hop
+     * budget was used up.
+     */
+    private final AtomicLong expiredCount;
+
+    /**
+     * The number of times a connection was not sent a request because its
+     * advertised reachability ruled the destination out.
+     */
+    private final AtomicLong skippedCount;
+
+
+    /* ---------- */
+
+
+    /**
+     * Initialises a new instance of a route request history.
+     *
+     * @param retention the time in milliseconds that a request ID is
+     *                  remembered for
+     */
+    public RouteRequestHistory(long retention) {
+        this.retention = retention;
+        seen = new BoundedMap();
+        acceptedCount = new AtomicLong();
+        suppressedCount = new AtomicLong();
+        expiredCount = new AtomicLong();
+        skippedCount = new AtomicLong();
+    }
+
+    /**
+     * Initialises a new instance of a route request history with the default
+     * retention time.
+     */
+    public RouteRequestHistory() {
+        this(DEFAULT_RETENTION);
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Records a route request received, unless it has been seen before.
+     *
+     * @param requestId the ID of the request
+     * @return          true if the request is new and should be handled, or
+     *                  false if it is a duplicate and should be dropped
+     */
+    public boolean accept(String requestId) {
+
+        if (!remember(requestId)) {
+            suppressedCount.incrementAndGet();
+            return false;
+        }
+
+        acceptedCount.incrementAndGet();
+        return true;
+
+    }
+
+    /**
+     * Records a route request being sent out, so that it is dropped if it
+     * finds its way back.
+     *
+     * @param requestId the ID of the request
+     * @return          true if the request had not been seen before,
+     *                  otherwise false
+     */
+    public boolean remember(String requestId) {
+
+        final long now = System.currentTimeMillis();
+        synchronized (seen) {
+
+            // Forget anything too old, which will all be at the front.
+            final Iterator<Long> iterator = seen.values().iterator();
+            while (iterator.hasNext() && now - iterator.next() > retention) {
+                iterator.remove();
+            }
+
+            if (seen.containsKey(requestId)) {
+                return false;
+            }
+            seen.put(requestId, now);
+            return true;
+
+        }
+
+    }
+
+    /**
+     * Records that a route request was not flooded onward because its hop
+     * budget was used up.
+     */
+    public void hopLimitReached() {
+        expiredCount.incrementAndGet();
+    }
+
+    /**
+     * Records that some connections were not sent a route request because
+     * their advertised reachability ruled the destination out.
+     *
+     * @param count the number of connections skipped
+     */
+    public void connectionsSkipped(int count) {
+        skippedCount.addAndGet(count);
+    }
+
+    /**
+     * Gets the number of route requests received that had not been seen
+     * before.
+     *
+     * @return  the number of requests accepted
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /**
+     * Gets the number of route requests received that had already been seen
+     * and were dropped.
+     *
+     * @return  the number of duplicate requests suppressed
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    /**
+     * Gets the number of route requests that were not flooded onward because
+     * their hop budget was used up.
+     *
+     * @return  the number of requests whose hop budget expired
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * Gets the number of times a connection was not sent a route request
+     * because its advertised reachability ruled the destination out.
+     *
+     * @return  the number of connections skipped
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+
+    /* ---------- */
+
+
+    /**
+     * Represents a map of request IDs to the time they were first seen that 
+     * forgets its oldest entry once it holds too many.
+     */
+    private static class BoundedMap extends LinkedHashMap<String, Long> {
+
+        /**
+         * The serialization version of this class.
+         */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAXIMUM_SIZE;
+        }
+
+    }
+
+}
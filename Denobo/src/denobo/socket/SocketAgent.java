@@ -3,10 +3,16 @@ package denobo.socket;
 import denobo.socket.connection.DenoboConnectionObserver;
 import denobo.socket.connection.DenoboConnection;
 import denobo.Agent;
+import denobo.AgentNameRegistry;
+import denobo.AgentScheduler;
 import denobo.Message;
 import denobo.Route;
 import denobo.RoutingWorkerListener;
+import denobo.InvalidationMode;
+import denobo.LinkGenerationListener;
+import denobo.LinkGenerations;
 import denobo.Undertaker;
+import denobo.UniqueIdFactory;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -14,13 +20,16 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -35,6 +44,13 @@ public class SocketAgent extends Agent {
      * SocketAgent.
      */
     private final List<DenoboConnection> connections;
+    
+    /**
+     * The authenticated DenoboConnection instances connected to this 
+     * SocketAgent, indexed by the name of the remote agent so that messages
+     * can be forwarded without scanning or locking {@link #connections}.
+     */
+    private final Map<String, DenoboConnection> connectionsByName;
 
     /**
      * A list of SocketAgentObserver instances observing events occurring for 
@@ -84,14 +100,48 @@ public class SocketAgent extends Agent {
      * options for this SocketAgent.
      */
     private final SocketAgentConfiguration configuration;
-
+    
+    /**
+     * The time in milliseconds to wait for a reply when measuring the 
+     * round-trip time of a connection.
+     */
+    private static final long LINK_PROBE_TIMEOUT = 2000L;
+    
+    /**
+     * The periodic task measuring the round-trip time of each connection, or
+     * null if round-trip times are not measured.
+     */
+    private final ScheduledFuture<?> linkProbeTask;
+    
+    /**
+     * The route requests this SocketAgent has recently seen.
+     */
+    private final RouteRequestHistory routeRequestHistory;
+    
     /**
-     * A map of RoutingWorkerListener instances that we notify if we find a 
-     * remote route to a destination.
+     * The periodic task advertising the agents reachable through this 
+     * SocketAgent to each connection, or null if reachability is not 
+     * advertised.
      */
-    public final Map<String, List<RoutingWorkerListener>> remoteRouteToCallbacks;
+    private final ScheduledFuture<?> reachabilityTask;
     
+    /**
+     * The routes this SocketAgent exchanges with its peers ahead of time.
+     */
+    private final RoutePropagator routePropagator;
+    
+    /**
+     * The periodic task checking for changes in the routes this SocketAgent
+     * advertises, or null if routes are not advertised.
+     */
+    private final ScheduledFuture<?> routeAdvertisementTask;
     
+    /**
+     * Passes on links lost in this process to our peers, or null if routes 
+     * are invalidated eagerly.
+     */
+    private final LinkGenerationListener linkGenerationListener;
+
     /* ---------- */
     
     
@@ -105,9 +155,10 @@ public class SocketAgent extends Agent {
      */
     public SocketAgent(String name, boolean cloneable, SocketAgentConfiguration configuration) {
         
-        super(name, cloneable);
+        super(name, cloneable, Objects.requireNonNull(configuration, 
+                "Configuration cannot be null."));
         
-        this.configuration = Objects.requireNonNull(configuration, "Configuration cannot be null.");
+        this.configuration = configuration;
 
         connectionsPermits = new Semaphore(configuration.getMaximumConnections(), false);
         
@@ -125,11 +176,70 @@ public class SocketAgent extends Agent {
          * 
          */
         connections = Collections.synchronizedList(new ArrayList<DenoboConnection>());
-        
+        connectionsByName = new ConcurrentHashMap<>();
         
         observers = new CopyOnWriteArrayList<>();
         connectionObserver = new SocketAgentDenoboConnectionObserver();
-        remoteRouteToCallbacks = new ConcurrentHashMap<>();
+        
+        routeRequestHistory = new RouteRequestHistory();
+        
+        // Measure the round-trip time of our connections if asked to.
+        if (configuration.getLinkProbeInterval() > 0) {
+            final AgentScheduler scheduler = (configuration.getScheduler() != null 
+                    ? configuration.getScheduler() : AgentScheduler.getShared());
+            linkProbeTask = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    probeConnections();
+                }
+            }, configuration.getLinkProbeInterval());
+        } else {
+            linkProbeTask = null;
+        }
+        
+        // Tell our peers what can be reached through us if asked to.
+        if (configuration.getReachabilityInterval() > 0) {
+            final AgentScheduler scheduler = (configuration.getScheduler() != null 
+                    ? configuration.getScheduler() : AgentScheduler.getShared());
+            reachabilityTask = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    advertiseReachability();
+                }
+            }, configuration.getReachabilityInterval());
+        } else {
+            reachabilityTask = null;
+        }
+        
+        // Keep our peers up to date with the routes we know if asked to.
+        routePropagator = new RoutePropagator(this);
+        if (configuration.getRouteAdvertisementInterval() > 0) {
+            final AgentScheduler scheduler = (configuration.getScheduler() != null 
+                    ? configuration.getScheduler() : AgentScheduler.getShared());
+            routeAdvertisementTask = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    routePropagator.schedule();
+                }
+            }, configuration.getRouteAdvertisementInterval());
+        } else {
+            routeAdvertisementTask = null;
+        }
+        
+        // Tell our peers about lost links if we invalidate routes lazily.
+        if (configuration.getInvalidationMode() == InvalidationMode.LAZY) {
+            linkGenerationListener = new LinkGenerationListener() {
+                @Override
+                public void linkBroken(String agentName, String otherAgentName, 
+                        long origin, long generation, Object source) {
+                    broadcastLostLink(agentName, otherAgentName, origin, 
+                            generation, source);
+                }
+            };
+            LinkGenerations.addListener(linkGenerationListener);
+        } else {
+            linkGenerationListener = null;
+        }
         
     }
     
@@ -170,20 +280,11 @@ public class SocketAgent extends Agent {
      * 
      * @return the configuration
      */
+    @Override
     public SocketAgentConfiguration getConfiguration() {
         return configuration;
     }
     
-    /**
-     * Gets a map of RoutingWorkerListener instances that we notify if we find a 
-     * remote route to a destination.
-     * 
-     * @return  a map of RoutingWorkerListener instances
-     */
-    public Map<String, List<RoutingWorkerListener>> getRemoteRouteToCallbacks() {
-        return remoteRouteToCallbacks;
-    }
-
     /**
      * Adds a {@link SocketAgentObserver} to the list of observers to be 
      * notified of events from this SocketAgent.
@@ -454,6 +555,88 @@ public class SocketAgent extends Agent {
         }
     }
 
+    /**
+     * Gets a snapshot of the connections to this SocketAgent whose remote 
+     * agent has been authenticated.
+     * 
+     * @return  the list of authenticated connections
+     */
+    List<DenoboConnection> getAuthenticatedConnections() {
+        return new ArrayList<>(connectionsByName.values());
+    }
+
+    /**
+     * Gets whether or not this SocketAgent is the gateway to the zone an 
+     * agent's name falls in.
+     * 
+     * @param agentName the name of the agent
+     * @return          true if this SocketAgent is the gateway to the agent's
+     *                  zone, otherwise false
+     * @see             SocketAgentConfiguration#setZonePrefix
+     */
+    public boolean isGatewayFor(String agentName) {
+        final String zonePrefix = configuration.getZonePrefix();
+        return zonePrefix != null && agentName.startsWith(zonePrefix) 
+                && !agentName.equals(getName());
+    }
+    
+    /**
+     * Answers a search for an agent in the zone this SocketAgent is the 
+     * gateway to with the route into the zone, unless the search started 
+     * here.
+     * 
+     * @param destinationAgentName  the name of the agent sought
+     * @param localRoute            the local route taken to reach this 
+     *                              SocketAgent instance
+     * @param listeners             the listeners to notify of the route
+     * @return                      true if the search was answered, otherwise
+     *                              false
+     */
+    private boolean routeIntoZone(String destinationAgentName, Route localRoute, 
+            List<RoutingWorkerListener> listeners) {
+        
+        // Our own searches inside the zone have to go and look.
+        if (!isGatewayFor(destinationAgentName) || localRoute.size() < 2) {
+            return false;
+        }
+        
+        final Route zoneRoute = new Route(localRoute);
+        zoneRoute.setZone(configuration.getZonePrefix());
+        for (RoutingWorkerListener current : listeners) {
+            current.routeCalculationSucceeded(destinationAgentName, zoneRoute);
+        }
+        return true;
+        
+    }
+
+    @Override
+    protected boolean hasRemoteLink(String agentName) {
+        return connectionsByName.containsKey(agentName);
+    }
+
+    /**
+     * Tells every authenticated connection but the one that reported it that a
+     * link has been lost.
+     * 
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     * @param origin            the origin of the process that counted the 
+     *                          generation
+     * @param generation        the generation the link has moved on to
+     * @param source            the connection that reported the loss, or null
+     *                          if it was lost in this process
+     */
+    private void broadcastLostLink(String agentName, String otherAgentName, 
+            long origin, long generation, Object source) {
+        final List<String> visited = Arrays.asList(new String[] {getName()});
+        for (DenoboConnection current : getAuthenticatedConnections()) {
+            if (current != source) {
+                current.invalidateLinkGeneration(agentName, otherAgentName, 
+                        origin, generation, visited);
+            }
+        }
+    }
+
     /**
      * Closes and removes any {@link DenoboConnection} instances that are
      * connected to this SocketAgent.
@@ -480,6 +663,7 @@ public class SocketAgent extends Agent {
              * CopyOnWriteArrayList.
              */
             connections.clear();    
+            connectionsByName.clear();
             
         }
             
@@ -507,6 +691,20 @@ public class SocketAgent extends Agent {
         
         // Stop anyone else from connecting.
         stopAdvertising();
+        
+        // Stop measuring our connections.
+        if (linkProbeTask != null) {
+            linkProbeTask.cancel(false);
+        }
+        if (reachabilityTask != null) {
+            reachabilityTask.cancel(false);
+        }
+        if (routeAdvertisementTask != null) {
+            routeAdvertisementTask.cancel(false);
+        }
+        if (linkGenerationListener != null) {
+            LinkGenerations.removeListener(linkGenerationListener);
+        }
 
         /* 
          * Remove any current connections so we don't receive any more messages
@@ -524,8 +722,95 @@ public class SocketAgent extends Agent {
         
     }
     
+    /**
+     * Starts measuring the round-trip time of every authenticated connection.
+     * <p>
+     * This never waits for a reply, each of which is measured as it arrives.
+     */
+    private void probeConnections() {
+        
+        for (DenoboConnection currentConnection : connectionsByName.values()) {
+            currentConnection.probe(LINK_PROBE_TIMEOUT);
+        }
+        
+    }
+    
+    /**
+     * Advertises the agents reachable through this SocketAgent to every 
+     * authenticated connection.
+     */
+    private void advertiseReachability() {
+        
+        final AttenuatedBloomFilter local = getLocalReachability();
+        for (DenoboConnection currentConnection : connectionsByName.values()) {
+            
+            /*
+             * Leave out what the connection itself told us, so that names
+             * aren't advertised straight back to where they came from.
+             */
+            final AttenuatedBloomFilter reachability = new AttenuatedBloomFilter(local);
+            for (DenoboConnection current : connectionsByName.values()) {
+                final AttenuatedBloomFilter remote = current.getRemoteReachability();
+                if (current != currentConnection && remote != null) {
+                    reachability.addAttenuated(remote);
+                }
+            }
+            currentConnection.advertiseReachability(reachability, 
+                    configuration.getReachabilityInterval());
+            
+        }
+        
+    }
+    
+    /**
+     * Builds a summary of the agents reachable from this SocketAgent without
+     * passing through any of its connections.
+     * <p>
+     * This includes what the connections of any other SocketAgents in the 
+     * local network have advertised to them.
+     * 
+     * @return  the summary of agents reachable locally
+     */
+    private AttenuatedBloomFilter getLocalReachability() {
+        
+        final AttenuatedBloomFilter reachability = new AttenuatedBloomFilter();
+        final Set<Agent> visited = new HashSet<>();
+        final List<Agent> queue = new ArrayList<>();
+        visited.add(this);
+        queue.add(this);
+        
+        for (int i = 0; i < queue.size(); i++) {
+            
+            final Agent current = queue.get(i);
+            reachability.add(current.getName());
+            
+            // Other SocketAgents can reach whatever their peers can.
+            if (current != this && current instanceof SocketAgent) {
+                for (DenoboConnection connection : ((SocketAgent) current).connectionsByName.values()) {
+                    final AttenuatedBloomFilter remote = connection.getRemoteReachability();
+                    if (remote != null) {
+                        reachability.addAttenuated(remote);
+                    }
+                }
+            }
+            
+            for (Agent neighbour : current.getConnectedAgents()) {
+                if (visited.add(neighbour)) {
+                    queue.add(neighbour);
+                }
+            }
+            
+        }
+        return reachability;
+        
+    }
+    
     /**
      * Searches for a route to a remote agent.
+     * <p>
+     * If a search for the same destination through this SocketAgent is 
+     * already in flight, no new request is sent out and the listeners are 
+     * notified when that search finds a route instead.
      * 
      * @param destinationAgentName  the name of the agent to route to
      * @param localRoute            the local route taken to reach this
@@ -534,12 +819,249 @@ public class SocketAgent extends Agent {
      * @param usesBacktracking      whether or not to use backtracking if a
      *                              route is found
      * @see                         denobo.RoutingWorker#getUsesBacktracking
+     * @see                         RouteRequestCoalescer
      */
     public void routeToRemote(String destinationAgentName, Route localRoute, 
             List<RoutingWorkerListener> listeners, boolean usesBacktracking) {
+        routeToRemote(destinationAgentName, localRoute, listeners, usesBacktracking, 
+                Collections.<String>emptySet());
+    }
+    
+    /**
+     * Searches for a route to a remote agent that avoids the specified agents.
+     * <p>
+     * If a search for the same destination through this SocketAgent avoiding
+     * the same agents is already in flight, no new request is sent out and the
+     * listeners are notified when that search finds a route instead.
+     * 
+     * @param destinationAgentName  the name of the agent to route to
+     * @param localRoute            the local route taken to reach this
+     *                              SocketAgent instance
+     * @param listeners             the listeners to notify if a route is found
+     * @param usesBacktracking      whether or not to use backtracking if a
+     *                              route is found
+     * @param avoidedNames          the names of agents the route must avoid
+     * @see                         denobo.RoutingWorker#getUsesBacktracking
+     * @see                         RouteRequestCoalescer
+     */
+    public void routeToRemote(String destinationAgentName, Route localRoute, 
+            List<RoutingWorkerListener> listeners, boolean usesBacktracking, 
+            Set<String> avoidedNames) {
+        routeToRemote(destinationAgentName, localRoute, listeners, usesBacktracking, 
+                avoidedNames, null, -1);
+    }
+    
+    /**
+     * Searches for a route to a remote agent that avoids the specified agents
+     * as part of an existing route request.
+     * 
+     * @param destinationAgentName  the name of the agent to route to
+     * @param localRoute            the local route taken to reach this
+     *                              SocketAgent instance
+     * @param listeners             the listeners to notify if a route is found
+     * @param usesBacktracking      whether or not to use backtracking if a
+     *                              route is found
+     * @param avoidedNames          the names of agents the route must avoid
+     * @param requestId             the ID of the request, or null to start a 
+     *                              new one
+     * @param hopsRemaining         the number of connections between 
+     *                              SocketAgents the request may still cross, 
+     *                              or -1 to use this SocketAgent's hop limit
+     * @see                         denobo.RoutingWorker#continueRequest
+     */
+    public void routeToRemote(String destinationAgentName, Route localRoute, 
+            List<RoutingWorkerListener> listeners, boolean usesBacktracking, 
+            Set<String> avoidedNames, String requestId, int hopsRemaining) {
+        
+        // Answer straight away if the destination is in our zone.
+        if (routeIntoZone(destinationAgentName, localRoute, listeners)) {
+            return;
+        }
+        
+        // Answer straight away if a peer has already told us the way.
+        final Route known = routePropagator.getRoute(destinationAgentName);
+        if (known != null && known.size() > 1) {
+            final Route spliced = splice(localRoute, known, avoidedNames);
+            if (spliced != null) {
+                for (RoutingWorkerListener current : listeners) {
+                    current.routeCalculationSucceeded(destinationAgentName, spliced);
+                }
+                return;
+            }
+        }
+        
+        final String id = RouteRequestCoalescer.getShared().join(this, 
+                destinationAgentName, localRoute, listeners, usesBacktracking, 
+                avoidedNames, requestId, hopsRemaining);
+        if (id != null) {
+            floodRouteRequest(destinationAgentName, localRoute, usesBacktracking, 
+                    avoidedNames, id, hopsRemaining);
+        }
+        
+    }
+    
+    /**
+     * Searches for routes to several remote agents at once that avoid the
+     * specified agents, as part of an existing route request.
+     * <p>
+     * Each destination is treated as a request of its own, so searches 
+     * already in flight for any of them are waited on as usual. The rest are
+     * sent out together in a single request to each connection if this 
+     * SocketAgent batches route requests, otherwise one at a time.
+     * 
+     * @param destinationAgentNames the names of the agents to route to
+     * @param localRoute            the local route taken to reach this
+     *                              SocketAgent instance
+     * @param listeners             the listeners to notify if a route is found
+     * @param usesBacktracking      whether or not to use backtracking if a
+     *                              route is found
+     * @param avoidedNames          the names of agents the route must avoid
+     * @param requestId             the ID of the batched request, or null to 
+     *                              start a new one
+     * @param hopsRemaining         the number of connections between 
+     *                              SocketAgents the request may still cross, 
+     *                              or -1 to use this SocketAgent's hop limit
+     * @see                         SocketAgentConfiguration#setBatchesRouteRequests
+     * @see                         RouteRequestCoalescer#batchRequestId
+     */
+    public void routeToRemote(Collection<String> destinationAgentNames, Route localRoute, 
+            List<RoutingWorkerListener> listeners, boolean usesBacktracking, 
+            Set<String> avoidedNames, String requestId, int hopsRemaining) {
+        
+        final String batchId = (requestId == null ? UniqueIdFactory.getId() : requestId);
+        final List<String> batch = new ArrayList<>();
+        for (String current : destinationAgentNames) {
+            
+            // Answer straight away if the destination is in our zone.
+            if (routeIntoZone(current, localRoute, listeners)) {
+                continue;
+            }
+            
+            // Answer straight away if a peer has already told us the way.
+            final Route known = routePropagator.getRoute(current);
+            if (known != null && known.size() > 1) {
+                final Route spliced = splice(localRoute, known, avoidedNames);
+                if (spliced != null) {
+                    for (RoutingWorkerListener listener : listeners) {
+                        listener.routeCalculationSucceeded(current, spliced);
+                    }
+                    continue;
+                }
+            }
+            
+            final String id = RouteRequestCoalescer.getShared().join(this, current, 
+                    localRoute, listeners, usesBacktracking, avoidedNames, 
+                    RouteRequestCoalescer.batchRequestId(batchId, current), 
+                    hopsRemaining);
+            if (id == null) {
+                continue;
+            }
+            if (configuration.getBatchesRouteRequests()) {
+                batch.add(current);
+            } else {
+                floodRouteRequest(current, localRoute, usesBacktracking, avoidedNames, 
+                        id, hopsRemaining);
+            }
+            
+        }
+        
+        if (!batch.isEmpty()) {
+            floodRouteRequest(batch, localRoute, usesBacktracking, avoidedNames, 
+                    batchId, hopsRemaining);
+        }
+        
+    }
+    
+    /**
+     * Builds a route that follows a local route to this SocketAgent and then
+     * a known route from it.
+     * 
+     * @param localRoute    the local route taken to reach this SocketAgent
+     * @param known         the known route, starting with this SocketAgent
+     * @param avoidedNames  the names of agents the route must avoid
+     * @return              the route, or null if it would visit an agent 
+     *                      twice or pass through an avoided agent
+     */
+    private static Route splice(Route localRoute, Route known, Set<String> avoidedNames) {
+        
+        final Route spliced = new Route(localRoute);
+        final List<String> path = known.getPath();
+        for (int i = 1; i < path.size(); i++) {
+            if (spliced.has(path.get(i)) || avoidedNames.contains(path.get(i))) { 
+                return null; 
+            }
+            
+            // Only the total cost is known, so the first link carries it all.
+            spliced.append(path.get(i), i == 1 ? known.getCost() : 0L);
+        }
+        return spliced;
+        
+    }
+    
+    /**
+     * Sends a request for a route to a remote agent to every connection that
+     * the local route has not already passed through.
+     * <p>
+     * Connections that have advertised their reachability are only sent the
+     * request if the destination might be reachable through them.
+     * 
+     * @param destinationAgentName  the name of the agent to route to
+     * @param localRoute            the local route taken to reach this
+     *                              SocketAgent instance
+     * @param usesBacktracking      whether or not to use backtracking if a
+     *                              route is found
+     * @param avoidedNames          the names of agents the route must avoid
+     * @param requestId             the ID of the request, or null to start a 
+     *                              new one
+     * @param hopsRemaining         the number of connections between 
+     *                              SocketAgents the request may still cross, 
+     *                              or -1 to use this SocketAgent's hop limit
+     */
+    void floodRouteRequest(String destinationAgentName, Route localRoute, 
+            boolean usesBacktracking, Set<String> avoidedNames, String requestId, 
+            int hopsRemaining) {
+        floodRouteRequest(Collections.singletonList(destinationAgentName), localRoute, 
+                usesBacktracking, avoidedNames, requestId, hopsRemaining);
+    }
+    
+    /**
+     * Sends a request for routes to one or more remote agents to every 
+     * connection that the local route has not already passed through.
+     * <p>
+     * Connections that have advertised their reachability are only sent the
+     * request if one of the destinations might be reachable through them. A
+     * request for more than one destination is sent as a single batched 
+     * request.
+     * 
+     * @param destinationAgentNames the names of the agents to route to
+     * @param localRoute            the local route taken to reach this
+     *                              SocketAgent instance
+     * @param usesBacktracking      whether or not to use backtracking if a
+     *                              route is found
+     * @param avoidedNames          the names of agents the route must avoid
+     * @param requestId             the ID of the request, or null to start a 
+     *                              new one
+     * @param hopsRemaining         the number of connections between 
+     *                              SocketAgents the request may still cross, 
+     *                              or -1 to use this SocketAgent's hop limit
+     */
+    private void floodRouteRequest(List<String> destinationAgentNames, Route localRoute, 
+            boolean usesBacktracking, Set<String> avoidedNames, String requestId, 
+            int hopsRemaining) {
         
-        remoteRouteToCallbacks.put(destinationAgentName, listeners);
+        // Don't send the request any further if it's used up its hop budget.
+        final int hops = (hopsRemaining < 0 ? configuration.getRouteRequestHopLimit() 
+                : hopsRemaining);
+        if (hops <= 0) {
+            routeRequestHistory.hopLimitReached();
+            return;
+        }
+        
+        // Remember the request so we drop it if it finds its way back to us.
+        final String id = (requestId == null ? UniqueIdFactory.getId() : requestId);
+        routeRequestHistory.remember(id);
         
+        final List<DenoboConnection> candidates = new ArrayList<>();
         synchronized (connections) {
             
             for (DenoboConnection currentConnection : connections) {
@@ -548,15 +1070,99 @@ public class SocketAgent extends Agent {
                  * connection in which case we don't need to and we shouldn't send
                  * a request to this connection otherwise a loop will occur.
                  */
-                if (localRoute.has(currentConnection.getRemoteAgentName())) { 
+                if (localRoute.has(currentConnection.getRemoteAgentName())
+                        || avoidedNames.contains(currentConnection.getRemoteAgentName())) { 
                     continue; 
                 }
-
-                currentConnection.routeToRemote(destinationAgentName, localRoute, usesBacktracking);
+                candidates.add(currentConnection);
             }
             
         }
         
+        /*
+         * Only ask connections whose advertised reachability says the 
+         * destination might be behind them, or that haven't advertised any. If
+         * every connection rules it out, the advertisements may just not have 
+         * caught up with the destination yet, so ask them all anyway.
+         */
+        final List<DenoboConnection> targets = new ArrayList<>();
+        for (DenoboConnection current : candidates) {
+            final AttenuatedBloomFilter reachability = current.getRemoteReachability();
+            if (reachability == null) {
+                targets.add(current);
+                continue;
+            }
+            for (String destination : destinationAgentNames) {
+                if (reachability.mightReach(destination)) {
+                    targets.add(current);
+                    break;
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            targets.addAll(candidates);
+        }
+        routeRequestHistory.connectionsSkipped(candidates.size() - targets.size());
+        
+        for (DenoboConnection current : targets) {
+            if (destinationAgentNames.size() == 1) {
+                current.routeToRemote(destinationAgentNames.get(0), localRoute, 
+                        usesBacktracking, avoidedNames, id, hops);
+            } else {
+                current.routeToRemote(destinationAgentNames, localRoute, 
+                        usesBacktracking, avoidedNames, id, hops);
+            }
+        }
+        
+    }
+    
+    /**
+     * Delivers a route to a remote agent, found by the latest request for it
+     * this SocketAgent sent out, to everyone waiting on it.
+     * 
+     * @param destinationAgentName  the name of the remote agent
+     * @param route                 the route found
+     * @return                      true if anyone was waiting on the route,
+     *                              otherwise false
+     */
+    public boolean remoteRouteFound(String destinationAgentName, Route route) {
+        return remoteRouteFound(null, destinationAgentName, route);
+    }
+    
+    /**
+     * Delivers a route to a remote agent, found by a request this SocketAgent
+     * sent out, to everyone waiting on it.
+     * 
+     * @param requestId             the ID of the request, or null for the 
+     *                              latest request for the remote agent
+     * @param destinationAgentName  the name of the remote agent
+     * @param route                 the route found
+     * @return                      true if anyone was waiting on the route,
+     *                              otherwise false
+     */
+    public boolean remoteRouteFound(String requestId, String destinationAgentName, 
+            Route route) {
+        return RouteRequestCoalescer.getShared().complete(this, requestId, 
+                destinationAgentName, route);
+    }
+    
+    /**
+     * Gets the routes this SocketAgent exchanges with its peers ahead of time.
+     * 
+     * @return  the route propagator of this SocketAgent
+     */
+    public RoutePropagator getRoutePropagator() {
+        return routePropagator;
+    }
+    
+    /**
+     * Gets the record of route requests this SocketAgent has recently seen, 
+     * along with counts of the requests it has dropped.
+     * 
+     * @return  the route request history of this SocketAgent
+     */
+    public RouteRequestHistory getRouteRequestHistory() {
+        return routeRequestHistory;
     }
     
     /**
@@ -568,6 +1174,47 @@ public class SocketAgent extends Agent {
      *                      routing tables updated
      */
     public void invalidateRemote(List<String> invalidatedAgentNames, Set<String> visitedNodes) {
+        invalidateRemote(invalidatedAgentNames, visitedNodes, false);
+    }
+    
+    /**
+     * Tells any remote SocketAgents connected to invalidate any routing table
+     * entries containing the specified two agents, or only those crossing the
+     * link between them.
+     * 
+     * @param invalidatedAgentNames the list of agent names that have been invalidated
+     * @param visitedNodes  a set of Agent names that have already had their
+     *                      routing tables updated
+     * @param invalidatesLink       whether only routes crossing the link 
+     *                              between the two agents are invalidated
+     */
+    public void invalidateRemote(List<String> invalidatedAgentNames, Set<String> visitedNodes, 
+            boolean invalidatesLink) {
+        if (invalidatesLink && invalidatedAgentNames.size() == 2) {
+            invalidateRemote(Collections.<String>emptyList(), 
+                    Collections.singletonList(invalidatedAgentNames.toArray(new String[2])), 
+                    visitedNodes);
+        } else {
+            invalidateRemote(invalidatedAgentNames, Collections.<String[]>emptyList(), 
+                    visitedNodes);
+        }
+    }
+    
+    /**
+     * Tells any remote SocketAgents connected to invalidate any routing table
+     * entries containing any of a number of agents, or crossing any of a 
+     * number of links, all in one packet.
+     * 
+     * @param invalidatedAgentNames the names of the agents every route through
+     *                              which is invalidated
+     * @param invalidatedLinks      the links, each given as the names of the 
+     *                              two agents at its ends, only routes crossing
+     *                              which are invalidated
+     * @param visitedNodes  a set of Agent names that have already had their
+     *                      routing tables updated
+     */
+    public void invalidateRemote(Collection<String> invalidatedAgentNames, 
+            Collection<String[]> invalidatedLinks, Set<String> visitedNodes) {
         
         synchronized (connections) {
             
@@ -581,7 +1228,8 @@ public class SocketAgent extends Agent {
                     continue; 
                 }
 
-                currentConnection.invalidateRemote(invalidatedAgentNames, visitedNodes);
+                currentConnection.invalidateRemote(invalidatedAgentNames, invalidatedLinks, 
+                        visitedNodes);
             }
             
         }
@@ -592,21 +1240,17 @@ public class SocketAgent extends Agent {
     public boolean handleMessage(Message message) {
         
         // Store the name of the next agent.
-        final String nextAgentName = message.getRoute().peek();
+        final String nextAgentName = getNextHop(message);
         
         // Handle the case that the agent is local.
         if (super.handleMessage(message)) { return true; } 
         
         // Handle the case that the agent is remote.
-        synchronized (connections) {
-            
-            for (DenoboConnection currentConnection : connections) {
-                if (currentConnection.getRemoteAgentName().equals(nextAgentName)) {
-                    currentConnection.send(message);
-                    return true;
-                }
-            }
-            
+        final DenoboConnection nextConnection = (nextAgentName == null ? null 
+                : connectionsByName.get(nextAgentName));
+        if (nextConnection != null) {
+            nextConnection.send(message);
+            return true;
         }
         
         return false;
@@ -622,9 +1266,18 @@ public class SocketAgent extends Agent {
         @Override
         public void connectionAuthenticated(DenoboConnection connection) {
 
+            // We now know who is on the other end, so index the connection.
+            connectionsByName.put(connection.getRemoteAgentName(), connection);
+            AgentNameRegistry.getId(connection.getRemoteAgentName());
+
             System.out.println("Authenticated remote agent at - [" + connection.getRemoteAddress() + ":" 
                     + connection.getRemotePort() + "]");
             
+            // Tell the new peer every route we know if we advertise routes.
+            if (configuration.getRouteAdvertisementInterval() > 0) {
+                routePropagator.schedule();
+            }
+            
         }
 
         @Override
@@ -635,17 +1288,33 @@ public class SocketAgent extends Agent {
 
             // Remove connection.
             connections.remove(connection);
+            final String remoteAgentName = connection.getRemoteAgentName();
+            if (remoteAgentName != null) {
+                connectionsByName.remove(remoteAgentName, connection);
+            }
+            routePropagator.connectionClosed(connection);
             
-            // Spawn an undertaker to invalidate any routes that were using this
-            // connection
-            final ArrayList<Agent> branches = new ArrayList<>(1);
-            branches.add(SocketAgent.this);
-        
-            final Undertaker undertaker = new Undertaker(branches, 
-                    Arrays.asList(new String[] {SocketAgent.this.getName(), 
-                        connection.getRemoteAgentName()}));
+            if (configuration.getInvalidationMode() == InvalidationMode.LAZY) {
+                
+                // Routes across the link will be dropped when next used.
+                if (remoteAgentName != null) {
+                    LinkGenerations.linkBroken(getName(), remoteAgentName);
+                }
+                
+            } else {
             
-            undertaker.undertakeAsync();
+                // Spawn an undertaker to invalidate any routes that were using this
+                // connection
+                final ArrayList<Agent> branches = new ArrayList<>(1);
+                branches.add(SocketAgent.this);
+
+                final Undertaker undertaker = new Undertaker(branches, 
+                        Arrays.asList(new String[] {SocketAgent.this.getName(), 
+                            connection.getRemoteAgentName()}), new HashSet<String>(), true);
+
+                undertaker.undertakeAsync();
+                
+            }
 
             
             // Notify any observers.
@@ -1,5 +1,7 @@
 package denobo.socket;
 
+import denobo.Agent;
+import denobo.AgentConfiguration;
 import denobo.compression.Compressor;
 import denobo.compression.DummyCompressor;
 import denobo.socket.connection.ConnectionCredentialsHandler;
@@ -11,7 +13,7 @@ import denobo.socket.connection.DummyConnectionCredentialsHandler;
  *
  * @author  Saul Johnson, Alex Mullen, Lee Oliver
  */
-public class SocketAgentConfiguration {
+public class SocketAgentConfiguration extends AgentConfiguration {
 
     /**
      * The maximum number of connections allowed for by this configuration.
@@ -41,15 +43,67 @@ public class SocketAgentConfiguration {
      * username and password.
      */
     private ConnectionCredentialsHandler credentialsHandler;
+    
+    /**
+     * The interval in milliseconds between measurements of the round-trip 
+     * time of each connection, or 0 if they are not measured.
+     */
+    private long linkProbeInterval;
+    
+    /**
+     * The most connections between SocketAgents that a route request from an
+     * agent operating under this configuration may cross.
+     */
+    private int routeRequestHopLimit;
+    
+    /**
+     * The time in milliseconds after which an agent operating under this 
+     * configuration stops waiting on a route request it sent out.
+     */
+    private long routeRequestTimeout;
+    
+    /**
+     * The interval in milliseconds at which an agent operating under this
+     * configuration advertises the agents reachable through it to its peers,
+     * or zero to never advertise them.
+     */
+    private long reachabilityInterval;
+    
+    /**
+     * The interval in milliseconds at which an agent operating under this
+     * configuration checks for changes to advertise to its peers in the 
+     * routes it knows, or zero to never advertise routes.
+     */
+    private long routeAdvertisementInterval;
+    
+    /**
+     * Whether or not an agent operating under this configuration asks its 
+     * peers about several destinations in a single route request.
+     */
+    private boolean batchesRouteRequests;
+    
+    /**
+     * The name prefix of the zone agents operating under this configuration 
+     * are the gateway to, or null if they are not gateways.
+     */
+    private String zonePrefix;
 
     /**
      * Initialises a new instance of a socket agent configuration class.
      */
     public SocketAgentConfiguration() {
+        super();
         maximumConnections = Integer.MAX_VALUE;
         compression = new DummyCompressor();
         isSecure = false;
         credentialsHandler = new DummyConnectionCredentialsHandler();
+        linkProbeInterval = 10000L;
+        routeRequestHopLimit = 16;
+        routeRequestTimeout = 60000L;
+        reachabilityInterval = 0L;
+        routeAdvertisementInterval = 0L;
+        batchesRouteRequests = false;
+        zonePrefix = null;
     }
     
     /**
@@ -153,4 +207,201 @@ public class SocketAgentConfiguration {
         this.credentialsHandler = credentialsHandler;
     }
     
+    /**
+     * Gets the interval in milliseconds between measurements of the round-trip
+     * time of each connection held by agents operating under this 
+     * configuration.
+     * 
+     * @return  the link probe interval in milliseconds, or 0 if round-trip 
+     *          times are not measured
+     */
+    public long getLinkProbeInterval() {
+        return linkProbeInterval;
+    }
+
+    /**
+     * Sets the interval in milliseconds between measurements of the round-trip
+     * time of each connection held by agents operating under this 
+     * configuration.
+     * <p>
+     * The measured round-trip time becomes the cost of routing across the 
+     * connection, so that routes prefer fast links to merely short ones.
+     * 
+     * @param linkProbeInterval the link probe interval in milliseconds, or 0 
+     *                          to stop measuring round-trip times
+     */
+    public void setLinkProbeInterval(long linkProbeInterval) {
+        this.linkProbeInterval = (linkProbeInterval < 0 ? 0 : linkProbeInterval);
+    }
+
+    /**
+     * Gets the most connections between SocketAgents that a route request from
+     * an agent operating under this configuration may cross.
+     * 
+     * @return  the route request hop limit
+     */
+    public int getRouteRequestHopLimit() {
+        return routeRequestHopLimit;
+    }
+
+    /**
+     * Sets the most connections between SocketAgents that a route request from
+     * an agent operating under this configuration may cross.
+     * <p>
+     * Requests passed on from remote SocketAgents keep whatever is left of the
+     * limit they were sent with, so the limit of the SocketAgent that first 
+     * sends a request out applies all the way along.
+     * 
+     * @param routeRequestHopLimit  the route request hop limit
+     */
+    public void setRouteRequestHopLimit(int routeRequestHopLimit) {
+        this.routeRequestHopLimit = (routeRequestHopLimit < 1 ? 1 : routeRequestHopLimit);
+    }
+
+    /**
+     * Gets the time in milliseconds after which an agent operating under this
+     * configuration stops waiting on a route request it sent out.
+     * 
+     * @return  the route request timeout in milliseconds
+     */
+    public long getRouteRequestTimeout() {
+        return routeRequestTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds after which an agent operating under this
+     * configuration stops waiting on a route request it sent out.
+     * <p>
+     * Routes sent back for a request after this time are ignored.
+     * 
+     * @param routeRequestTimeout   the route request timeout in milliseconds
+     */
+    public void setRouteRequestTimeout(long routeRequestTimeout) {
+        this.routeRequestTimeout = (routeRequestTimeout < 1 ? 1 : routeRequestTimeout);
+    }
+
+    /**
+     * Gets the interval in milliseconds at which an agent operating under 
+     * this configuration advertises the agents reachable through it to its
+     * peers.
+     * 
+     * @return  the reachability advertisement interval in milliseconds, or 
+     *          zero if reachability is never advertised
+     */
+    public long getReachabilityInterval() {
+        return reachabilityInterval;
+    }
+
+    /**
+     * Sets the interval in milliseconds at which an agent operating under 
+     * this configuration advertises the agents reachable through it to its
+     * peers.
+     * <p>
+     * Route requests are then only sent to peers whose advertisements say the
+     * destination might be reachable through them. Every peer must be able to
+     * understand advertisements before this is turned on, as older versions 
+     * drop connections that send them.
+     * 
+     * @param reachabilityInterval  the reachability advertisement interval in
+     *                              milliseconds, or zero to never advertise
+     *                              reachability
+     */
+    public void setReachabilityInterval(long reachabilityInterval) {
+        this.reachabilityInterval = (reachabilityInterval < 0 ? 0 : reachabilityInterval);
+    }
+
+    /**
+     * Gets the interval in milliseconds at which an agent operating under 
+     * this configuration checks for changes to advertise to its peers in the
+     * routes it knows.
+     * 
+     * @return  the route advertisement interval in milliseconds, or zero if 
+     *          routes are never advertised
+     */
+    public long getRouteAdvertisementInterval() {
+        return routeAdvertisementInterval;
+    }
+
+    /**
+     * Sets the interval in milliseconds at which an agent operating under 
+     * this configuration checks for changes to advertise to its peers in the
+     * routes it knows.
+     * <p>
+     * Changes caused by advertisements from peers are passed on straight 
+     * away, so this only bounds how long changes in the local network take to
+     * be noticed. Route requests for agents a SocketAgent has been told about
+     * are answered without asking the network. Every peer must be able to 
+     * understand advertisements before this is turned on, as older versions 
+     * drop connections that send them.
+     * 
+     * @param routeAdvertisementInterval    the route advertisement interval in
+     *                                      milliseconds, or zero to never 
+     *                                      advertise routes
+     */
+    public void setRouteAdvertisementInterval(long routeAdvertisementInterval) {
+        this.routeAdvertisementInterval = (routeAdvertisementInterval < 0 ? 0 
+                : routeAdvertisementInterval);
+    }
+
+    /**
+     * Gets whether or not agents operating under this configuration ask their
+     * peers about several destinations in a single route request.
+     * 
+     * @return  true if route requests are batched, otherwise false
+     */
+    public boolean getBatchesRouteRequests() {
+        return batchesRouteRequests;
+    }
+
+    /**
+     * Sets whether or not agents operating under this configuration ask their
+     * peers about several destinations in a single route request.
+     * <p>
+     * This only affects searches for several destinations at once, such as 
+     * those made by {@link denobo.Agent#prefetchRoutes}, which otherwise send
+     * a request for each destination. Every peer must be able to understand
+     * batched requests before this is turned on, as older versions only 
+     * answer for the first destination in them.
+     * 
+     * @param batchesRouteRequests  whether or not to batch route requests
+     */
+    public void setBatchesRouteRequests(boolean batchesRouteRequests) {
+        this.batchesRouteRequests = batchesRouteRequests;
+    }
+    
+    /**
+     * Gets the name prefix of the zone agents operating under this 
+     * configuration are the gateway to.
+     * 
+     * @return  the name prefix of the zone, or null if agents operating under
+     *          this configuration are not gateways
+     */
+    public String getZonePrefix() {
+        return zonePrefix;
+    }
+
+    /**
+     * Sets the name prefix of the zone agents operating under this 
+     * configuration are the gateway to.
+     * <p>
+     * A gateway answers route requests from outside its zone for any agent 
+     * whose name starts with the prefix with the route to itself, and relays
+     * the messages that arrive along it on to their recipients. Agents 
+     * elsewhere then keep one route into the whole zone instead of one to 
+     * every agent in it. The agents in the zone should only be reachable 
+     * through their gateway.
+     * 
+     * @param zonePrefix    the name prefix of the zone, or null if agents 
+     *                      operating under this configuration are not 
+     *                      gateways
+     * @throws IllegalArgumentException if the prefix is not the start of a 
+     *                                  valid agent name
+     */
+    public void setZonePrefix(String zonePrefix) {
+        if (zonePrefix != null && !Agent.isValidName(zonePrefix)) {
+            throw new IllegalArgumentException("Invalid zone prefix '" + zonePrefix + "'.");
+        }
+        this.zonePrefix = zonePrefix;
+    }
+
 }
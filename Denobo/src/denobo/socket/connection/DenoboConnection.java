@@ -3,7 +3,9 @@
 import denobo.Message;
 import denobo.QueryString;
 import denobo.Route;
+import denobo.UniqueIdFactory;
 import denobo.compression.Compressor;
+import denobo.socket.AttenuatedBloomFilter;
 import denobo.crypto.DiffieHellmanKeyGenerator;
 import denobo.crypto.RC4Drop4096CryptoAlgorithm;
 import denobo.socket.SocketAgent;
@@ -21,7 +23,11 @@ import java.io.StreamCorruptedException;
 import java.io.Writer;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
@@ -138,6 +144,25 @@ public class DenoboConnection {
      */
     private volatile DenoboConnectionState state;
     
+    /**
+     * The smoothed round-trip time of this connection in milliseconds, or -1 
+     * if it has not been measured yet.
+     */
+    private volatile long roundTripTime;
+    
+    /**
+     * The summary of agent names reachable through this connection last 
+     * advertised by the remote SocketAgent, or null if it has never advertised
+     * one.
+     */
+    private volatile AttenuatedBloomFilter remoteReachability;
+    
+    /**
+     * The time in milliseconds after which the last summary advertised by the
+     * remote SocketAgent is out of date.
+     */
+    private volatile long remoteReachabilityExpiry;
+    
     
     /* ---------- */
     
@@ -151,10 +176,18 @@ public class DenoboConnection {
      * @throws IOException  if an I/O error occurs whilst setting up the connection
      */
     public DenoboConnection(SocketAgent parent, Socket connection, InitialState initialState) throws IOException {
-        
+
         this.parentAgent = parent;
         this.connection = connection;
+        
+        /*
+         * Packets are small and often answered, so don't let Nagle's algorithm
+         * hold them back. This would also skew measured round-trip times.
+         */
+        connection.setTcpNoDelay(true);
+        
         this.observers = new CopyOnWriteArrayList<>();
+        roundTripTime = -1;
      
         switch (initialState) {
             
@@ -540,6 +573,129 @@ public class DenoboConnection {
         
     }
     
+    /**
+     * Starts measuring the round-trip time of this connection without waiting
+     * for the reply, which is folded into its smoothed round-trip time when it
+     * arrives.
+     * <p>
+     * If no reply is received before the timeout, the previous measurement is
+     * kept and the next probe is sent in its place.
+     * 
+     * @param timeout   the maximum time to wait for a reply in milliseconds
+     * @return          true if a probe was sent, or false if the last one is 
+     *                  still awaiting its reply
+     */
+    public boolean probe(long timeout) {
+        return state.handleSendProbe(timeout);
+    }
+    
+    /**
+     * Folds a measured round-trip time into the smoothed round-trip time of 
+     * this connection.
+     * 
+     * @param sample    the measured round-trip time in milliseconds
+     */
+    public void recordRoundTripTime(long sample) {
+        
+        final long previous = roundTripTime;
+        
+        // Weight new samples at a quarter so one blip doesn't reroute us.
+        roundTripTime = (previous < 0 ? sample : (previous * 3 + sample) / 4);
+        
+    }
+    
+    /**
+     * Gets the smoothed round-trip time of this connection.
+     * 
+     * @return  the smoothed round-trip time in milliseconds, or -1 if it has 
+     *          not been measured yet
+     */
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+    
+    /**
+     * Gets the cost of routing across this connection.
+     * <p>
+     * This is the smoothed round-trip time in milliseconds, but never less 
+     * than {@link Route#DEFAULT_LINK_COST}, which is also used until the 
+     * round-trip time has been measured.
+     * 
+     * @return  the cost of routing across this connection
+     */
+    public long getLinkCost() {
+        return Math.max(Route.DEFAULT_LINK_COST, roundTripTime);
+    }
+    
+    /**
+     * Gets the summary of agent names reachable through this connection last 
+     * advertised by the remote SocketAgent.
+     * 
+     * @return  the summary, or null if the remote SocketAgent has not 
+     *          advertised one recently
+     */
+    public AttenuatedBloomFilter getRemoteReachability() {
+        return (System.currentTimeMillis() < remoteReachabilityExpiry 
+                ? remoteReachability : null);
+    }
+    
+    /**
+     * Records a summary of agent names reachable through this connection 
+     * advertised by the remote SocketAgent.
+     * 
+     * @param reachability  the summary advertised
+     * @param lifetime      the time in milliseconds the summary stays up to 
+     *                      date for
+     */
+    public void setRemoteReachability(AttenuatedBloomFilter reachability, long lifetime) {
+        remoteReachability = reachability;
+        remoteReachabilityExpiry = System.currentTimeMillis() + lifetime;
+    }
+    
+    /**
+     * Advertises a summary of the agent names reachable through this 
+     * connection to the remote SocketAgent.
+     * 
+     * @param reachability  the summary to advertise
+     * @param interval      the time in milliseconds until the next summary 
+     *                      will be advertised
+     */
+    public void advertiseReachability(AttenuatedBloomFilter reachability, long interval) {
+        final QueryString query = new QueryString();
+        query.addAsCollection("levels", reachability.serialize());
+        query.add("hashes", Integer.toString(reachability.getHashCount()));
+        query.add("interval", Long.toString(interval));
+        send(new Packet(PacketCode.REACHABILITY, query.toString()));
+    }
+    
+    /**
+     * Advertises routes to the remote SocketAgent.
+     * 
+     * @param routes    the routes to advertise, each starting with the parent 
+     *                  SocketAgent
+     */
+    public void advertiseRoutes(List<Route> routes) {
+        final List<String> serialized = new ArrayList<>();
+        for (Route current : routes) {
+            serialized.add(current.serialize());
+        }
+        final QueryString query = new QueryString();
+        query.addAsCollection("routes", serialized);
+        send(new Packet(PacketCode.ROUTE_ADVERTISEMENT, query.toString()));
+    }
+    
+    /**
+     * Tells the remote SocketAgent that routes it was advertised to some 
+     * agents can no longer be used.
+     * 
+     * @param destinationAgentNames the names of the agents
+     */
+    public void withdrawRoutes(Collection<String> destinationAgentNames) {
+        final QueryString query = new QueryString();
+        query.addAsCollection("destinations", destinationAgentNames);
+        send(new Packet(PacketCode.ROUTE_WITHDRAWAL, query.toString()));
+    }
+    
     /**
      * Sends a request to this remote agent to try and find a route to the specified
      * agent.
@@ -552,6 +708,34 @@ public class DenoboConnection {
      * @see                         denobo.RoutingWorker#getUsesBacktracking
      */
     public void routeToRemote(String destinationAgentName, Route localRoute, boolean usesBacktracking) {
+        routeToRemote(destinationAgentName, localRoute, usesBacktracking, 
+                Collections.<String>emptySet(), UniqueIdFactory.getId(), 
+                parentAgent.getConfiguration().getRouteRequestHopLimit());
+    }
+    
+    /**
+     * Sends a request to this remote agent to try and find a route to the specified
+     * agent that avoids the specified agents.
+     * <p>
+     * The request carries an ID so that SocketAgents can drop copies of it that
+     * reach them by other paths, and a hop budget that limits how many more 
+     * connections between SocketAgents it may cross.
+     * 
+     * @param destinationAgentName  the name of the agent to route to
+     * @param localRoute            the local route taken to reach this SocketAgent
+     *                              instance
+     * @param usesBacktracking      whether or not to use backtracking if a
+     *                              route is found
+     * @param avoidedNames          the names of agents the route must avoid
+     * @param requestId             the ID of the request
+     * @param hopsRemaining         the number of connections between 
+     *                              SocketAgents the request may cross, 
+     *                              including this one
+     * @see                         denobo.RoutingWorker#getUsesBacktracking
+     */
+    public void routeToRemote(String destinationAgentName, Route localRoute, 
+            boolean usesBacktracking, Set<String> avoidedNames, String requestId, 
+            int hopsRemaining) {
         
         /* 
          * Pass the destination agent name and the route we have so far to the
@@ -561,6 +745,50 @@ public class DenoboConnection {
         query.add("to", destinationAgentName);
         query.add("localroute", localRoute.serialize());
         query.addAsBoolean("backtracks", usesBacktracking);
+        if (!avoidedNames.isEmpty()) {
+            query.addAsCollection("avoid", avoidedNames);
+        }
+        query.add("requestid", requestId);
+        query.add("ttl", Integer.toString(hopsRemaining));
+        
+        send(new Packet(PacketCode.ROUTE_TO, query.toString()));
+        
+    }
+    
+    /**
+     * Sends a single request to this remote agent to try and find routes to 
+     * several agents that avoid the specified agents.
+     * <p>
+     * Each route found is sent back under the ID given by 
+     * {@link denobo.socket.RouteRequestCoalescer#batchRequestId} for its
+     * destination. Older peers only understand the first destination.
+     * 
+     * @param destinationAgentNames the names of the agents to route to
+     * @param localRoute            the local route taken to reach this SocketAgent
+     *                              instance
+     * @param usesBacktracking      whether or not to use backtracking if a
+     *                              route is found
+     * @param avoidedNames          the names of agents the route must avoid
+     * @param requestId             the ID of the batched request
+     * @param hopsRemaining         the number of connections between 
+     *                              SocketAgents the request may cross, 
+     *                              including this one
+     * @see                         denobo.socket.SocketAgentConfiguration#setBatchesRouteRequests
+     */
+    public void routeToRemote(List<String> destinationAgentNames, Route localRoute, 
+            boolean usesBacktracking, Set<String> avoidedNames, String requestId, 
+            int hopsRemaining) {
+        
+        final QueryString query = new QueryString();
+        query.add("to", destinationAgentNames.get(0));
+        query.addAsCollection("toall", destinationAgentNames);
+        query.add("localroute", localRoute.serialize());
+        query.addAsBoolean("backtracks", usesBacktracking);
+        if (!avoidedNames.isEmpty()) {
+            query.addAsCollection("avoid", avoidedNames);
+        }
+        query.add("requestid", requestId);
+        query.add("ttl", Integer.toString(hopsRemaining));
         
         send(new Packet(PacketCode.ROUTE_TO, query.toString()));
         
@@ -575,11 +803,112 @@ public class DenoboConnection {
      *                      routing tables updated
      */
     public void invalidateRemote(List<String> invalidatedAgentNames, Set<String> visitedNodes) {
+        invalidateRemote(invalidatedAgentNames, visitedNodes, false);
+    }
+    
+    /**
+     * Tells this remote agent to invalidate any routing table entries containing
+     * the specified two agents, or only those crossing the link between them.
+     * <p>
+     * Older peers that don't understand link invalidation fall back to 
+     * invalidating every entry containing either agent.
+     * 
+     * @param invalidatedAgentNames a list of agent names that have been invalidated
+     * @param visitedNodes  a set of Agent names that have already had their
+     *                      routing tables updated
+     * @param invalidatesLink       whether only routes crossing the link 
+     *                              between the two agents are invalidated
+     */
+    public void invalidateRemote(List<String> invalidatedAgentNames, Set<String> visitedNodes, 
+            boolean invalidatesLink) {
         
         final QueryString query = new QueryString();
 
         query.addAsCollection("invalidatedagents", invalidatedAgentNames);
         query.addAsCollection("visitedagents", visitedNodes);
+        if (invalidatesLink) {
+            query.addAsBoolean("link", true);
+        }
+
+        send(new Packet(PacketCode.INVALIDATE_AGENTS, query.toString()));
+        
+    }
+    
+    /**
+     * Tells this remote agent to invalidate any routing table entries 
+     * containing any of a number of agents, or crossing any of a number of 
+     * links, all in one packet.
+     * <p>
+     * A single link, or agents on their own, are sent as usual. Otherwise the
+     * links are listed separately from the agents, and older peers that don't 
+     * understand this fall back to invalidating every entry containing an 
+     * agent at either end of any of the links.
+     * 
+     * @param invalidatedAgentNames the names of the agents every route through
+     *                              which is invalidated
+     * @param invalidatedLinks      the links, each given as the names of the 
+     *                              two agents at its ends, only routes crossing
+     *                              which are invalidated
+     * @param visitedNodes          a collection of Agent names that have 
+     *                              already had their routing tables updated
+     */
+    public void invalidateRemote(Collection<String> invalidatedAgentNames, 
+            Collection<String[]> invalidatedLinks, Collection<String> visitedNodes) {
+        
+        final List<String> linkEnds = new ArrayList<>(invalidatedLinks.size() * 2);
+        for (String[] current : invalidatedLinks) {
+            linkEnds.add(current[0]);
+            linkEnds.add(current[1]);
+        }
+        
+        final QueryString query = new QueryString();
+        
+        if (invalidatedAgentNames.isEmpty() && invalidatedLinks.size() == 1) {
+            query.addAsCollection("invalidatedagents", linkEnds);
+            query.addAsBoolean("link", true);
+        } else {
+            final Set<String> invalidated = new LinkedHashSet<>(invalidatedAgentNames);
+            invalidated.addAll(linkEnds);
+            if (invalidated.isEmpty()) {
+                return;
+            }
+            query.addAsCollection("invalidatedagents", invalidated);
+            if (!linkEnds.isEmpty()) {
+                query.addAsCollection("invalidatedlinks", linkEnds);
+            }
+        }
+        query.addAsCollection("visitedagents", visitedNodes);
+
+        send(new Packet(PacketCode.INVALIDATE_AGENTS, query.toString()));
+        
+    }
+    
+    /**
+     * Tells this remote agent that the link between two agents has been lost
+     * and has moved on to a new generation.
+     * <p>
+     * Peers that invalidate routes lazily record the generation and pass it 
+     * on only if it is new to them. Other peers invalidate the link as usual.
+     * 
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     * @param origin            the origin of the process that counted the 
+     *                          generation
+     * @param generation        the generation the link has moved on to
+     * @param visitedNodes      a collection of Agent names that have already 
+     *                          had their routing tables updated
+     */
+    public void invalidateLinkGeneration(String agentName, String otherAgentName, 
+            long origin, long generation, Collection<String> visitedNodes) {
+        
+        final QueryString query = new QueryString();
+
+        query.addAsCollection("invalidatedagents", 
+                Arrays.asList(new String[] {agentName, otherAgentName}));
+        query.addAsCollection("visitedagents", visitedNodes);
+        query.addAsBoolean("link", true);
+        query.add("origin", Long.toString(origin));
+        query.add("generation", Long.toString(generation));
 
         send(new Packet(PacketCode.INVALIDATE_AGENTS, query.toString()));
         
@@ -73,6 +73,24 @@ public enum PacketCode {
      */
     INVALIDATE_AGENTS   (304),
     
+    /**
+     * Sent by a peer to advertise a summary of the agents reachable through 
+     * it.
+     */
+    REACHABILITY        (305),
+    
+    /**
+     * Sent by a peer to advertise the best routes it knows to a set of 
+     * agents.
+     */
+    ROUTE_ADVERTISEMENT (306),
+    
+    /**
+     * Sent by a peer to specify that it no longer has routes to a set of 
+     * agents it previously advertised.
+     */
+    ROUTE_WITHDRAWAL    (307),
+    
     /**
      * A generic error code that can be sent by either peer.
      */
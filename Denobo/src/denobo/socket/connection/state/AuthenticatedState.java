@@ -1,19 +1,27 @@
 package denobo.socket.connection.state;
 
 import denobo.Agent;
+import denobo.InvalidationMode;
+import denobo.LinkGenerations;
 import denobo.Message;
 import denobo.QueryString;
 import denobo.Route;
 import denobo.RoutingWorker;
 import denobo.RoutingWorkerListener;
 import denobo.Undertaker;
+import denobo.exceptions.InvalidQueryStringException;
+import denobo.socket.AttenuatedBloomFilter;
+import denobo.socket.RouteRequestCoalescer;
+import denobo.socket.SocketAgent;
 import denobo.socket.connection.DenoboConnection;
 import denobo.socket.connection.DenoboConnectionObserver;
 import denobo.socket.connection.Packet;
 import denobo.socket.connection.PacketCode;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -40,6 +48,12 @@ public class AuthenticatedState extends DenoboConnectionState implements Routing
      * packet back.
      */
     private boolean pokeReturned;
+    
+    /**
+     * The time in nanoseconds at which the probe awaiting a reply was sent, or
+     * -1 if no probe is awaiting a reply. Guarded by the poke lock.
+     */
+    private long probeSentTime;
 
     
     /**
@@ -52,6 +66,7 @@ public class AuthenticatedState extends DenoboConnectionState implements Routing
         super(connection);
         
         pokeLock = new Object();
+        probeSentTime = -1;
         
         // Let observers know we've entered an authenticated state.
         for (DenoboConnectionObserver currentObserver : connection.getObservers()) {
@@ -90,21 +105,65 @@ public class AuthenticatedState extends DenoboConnectionState implements Routing
                         Route.deserialize(queryString.get("localroute"));                
                 final String destinationName = queryString.get("to");
                 final boolean usesBacktracking = queryString.getAsBoolean("backtracks");
+                final boolean batched = queryString.has("toall");
+                
+                /*
+                 * Drop the request if a copy of it has already reached us by
+                 * another path. Requests from older peers carry no ID and are 
+                 * always handled.
+                 */
+                final String requestId = (queryString.has("requestid") 
+                        ? queryString.get("requestid") : null);
+                if (requestId != null 
+                        && !connection.getParentAgent().getRouteRequestHistory().accept(requestId)) {
+                    return;
+                }
+                
+                /*
+                 * Batched requests seek several destinations at once, each 
+                 * answered under an ID of its own.
+                 */
+                if (batched && requestId != null) {
+                    routeToAll(queryString, localRoute, usesBacktracking, requestId);
+                    return;
+                }
                 
                 /*
                  * If we are the agent in question, we don't need to spawn a
                  * routing worker at all.
                  */
                 if (connection.getParentAgent().getName().equals(destinationName)) {
-                    localRoute.append(connection.getParentAgent().getName());
-                    this.routeCalculationSucceeded(destinationName, localRoute);
+                    localRoute.append(connection.getParentAgent().getName(), 
+                            connection.getLinkCost());
+                    sendRouteFound(requestId, destinationName, localRoute);
+                    return;
+                }
+                
+                // Nor do we if we are the gateway to the agent's zone.
+                if (connection.getParentAgent().isGatewayFor(destinationName)) {
+                    sendRouteFound(requestId, destinationName, routeIntoZone(localRoute));
                     return;
                 }
                 
                 // Route to destination agent.
                 final RoutingWorker worker = new RoutingWorker(this.connection.getParentAgent(), 
-                        destinationName, localRoute, usesBacktracking);
-                worker.addRoutingWorkerListener(this);
+                        destinationName, localRoute, usesBacktracking, 
+                        connection.getLinkCost());
+                if (queryString.has("avoid")) {
+                    worker.avoid(queryString.getAsSet("avoid"));
+                }
+                if (requestId != null) {
+                    worker.continueRequest(requestId, parseHopsRemaining(queryString));
+                }
+                
+                // Send the route back tagged with the request it answers.
+                worker.addRoutingWorkerListener(new RoutingWorkerListener() {
+                    @Override
+                    public void routeCalculationSucceeded(String destinationAgentName, 
+                            Route route) {
+                        sendRouteFound(requestId, destinationAgentName, route);
+                    }
+                });
                 worker.mapRouteAsync();
                 break;
                 
@@ -113,25 +172,20 @@ public class AuthenticatedState extends DenoboConnectionState implements Routing
                 // Parse query string passed back.
                 queryString = new QueryString(packet.getBody());
                 
-                // Get routing listeners for the agent we just got a route to.
+                // Hand the route to whoever is waiting on it.
                 final String destinationAgent = queryString.get("to");
-                final List<RoutingWorkerListener> listeners = 
-                        connection.getParentAgent().remoteRouteToCallbacks.get(destinationAgent);
-                
-                // Make sure a listener exists
-                if (listeners != null) {
-                    // Call back on those listeners. Route calculation success.
-                    final Route queue = Route.deserialize(queryString.get("route"));
-                    for (RoutingWorkerListener currentListener : listeners) {
-                        currentListener.routeCalculationSucceeded(destinationAgent, queue);
-                    }
-                } else {
+                final Route queue = Route.deserialize(queryString.get("route"));
+                final String answeredRequestId = (queryString.has("requestid") 
+                        ? queryString.get("requestid") : null);
+                if (!connection.getParentAgent().remoteRouteFound(answeredRequestId, 
+                        destinationAgent, queue)) {
                     /* 
-                     * We received a ROUTE_FOUND packet from this connection
-                     * for a route we never asked to find a route to so we will
-                     * just terminate the connection..
+                     * Nobody is waiting on this route any more, most likely
+                     * because the request timed out before it was answered, so
+                     * just drop it.
                      */
-                    connection.disconnect();
+                    System.out.println("Dropping route to " + destinationAgent 
+                            + " that no request is waiting on.");
                 }
                 break;
                 
@@ -146,6 +200,25 @@ public class AuthenticatedState extends DenoboConnectionState implements Routing
                 // Get the list of invalidated agent names
                 final List<String> invalidatedAgents = queryString.getAsList("invalidatedagents");
                 
+                /*
+                 * Lost links carrying a generation are recorded and dropped 
+                 * from our routes when they're next used, if we're set up to 
+                 * do so. The generation, counted by the process it came from,
+                 * lets us ignore any copies of the report reaching us along 
+                 * other paths. Otherwise we invalidate them eagerly as usual,
+                 * copies or not.
+                 */
+                final long generation = parseLong(queryString, "generation");
+                if (generation > 0 && invalidatedAgents.size() == 2) {
+                    LinkGenerations.linkBroken(invalidatedAgents.get(0), 
+                            invalidatedAgents.get(1), parseLong(queryString, "origin"), 
+                            generation, connection);
+                    if (connection.getParentAgent().getConfiguration()
+                            .getInvalidationMode() == InvalidationMode.LAZY) {
+                        break;
+                    }
+                }
+                
                 /*
                  * Add this SocketAgent instance as a branch for the Undertaker
                  * to crawl along.
@@ -153,29 +226,122 @@ public class AuthenticatedState extends DenoboConnectionState implements Routing
                 final ArrayList<Agent> branches = new ArrayList<>(1);
                 branches.add(connection.getParentAgent());
                 
+                /*
+                 * Links sent together with other invalidations are listed 
+                 * separately, and every other agent listed is invalidated 
+                 * entirely. A lone link is flagged instead.
+                 */
+                final List<String[]> invalidatedLinks = new ArrayList<>();
+                final Set<String> invalidatedNames = new LinkedHashSet<>(invalidatedAgents);
+                if (queryString.has("invalidatedlinks")) {
+                    final List<String> linkEnds = queryString.getAsList("invalidatedlinks");
+                    for (int i = 0; i + 1 < linkEnds.size(); i += 2) {
+                        invalidatedLinks.add(new String[] {linkEnds.get(i), linkEnds.get(i + 1)});
+                    }
+                    invalidatedNames.removeAll(linkEnds);
+                } else if (invalidatedAgents.size() == 2 && queryString.has("link") 
+                        && queryString.getAsBoolean("link")) {
+                    invalidatedLinks.add(invalidatedAgents.toArray(new String[2]));
+                    invalidatedNames.clear();
+                }
+                
                 /* 
                  * Start an asyncronous Undertaker instance to update our local 
                  * network.
                  */
-                final Undertaker undertaker = 
-                        new Undertaker(branches, invalidatedAgents, visitedAgents);
+                final Undertaker undertaker = new Undertaker(branches, invalidatedNames, 
+                        invalidatedLinks, visitedAgents);
                 undertaker.undertakeAsync();
                 
                 break;
                 
             case POKE:
 
+                /*
+                 * Newer peers mark their pokes as requests or replies, so 
+                 * both sides can poke at once without mistaking each other's
+                 * request for a reply. Unmarked pokes are from older peers.
+                 */
+                queryString = new QueryString(packet.getBody());
+                if (queryString.has("request")) {
+                    connection.send(new Packet(PacketCode.POKE, "reply=true"));
+                    break;
+                }
+                
                 // Send poke code synchronously.
                 synchronized (pokeLock) {
                     if (pokeSent) {
                         pokeReturned = true;
                         pokeLock.notify();
-                    } else {
+                    } else if (probeSentTime >= 0) {
+                        
+                        // This answers our probe, so measure it.
+                        connection.recordRoundTripTime(TimeUnit.NANOSECONDS
+                                .toMillis(System.nanoTime() - probeSentTime));
+                        probeSentTime = -1;
+                        
+                    } else if (!queryString.has("reply")) {
                         connection.send(new Packet(PacketCode.POKE));
                     }
                 }
                 break;
                 
+            case REACHABILITY:
+                
+                // Parse query string passed through.
+                queryString = new QueryString(packet.getBody());
+                
+                /*
+                 * Keep the summary until a few advertisements have gone 
+                 * missing, in case the remote SocketAgent stops sending them.
+                 */
+                if (!queryString.has(new String[] {"levels", "hashes", "interval"})) {
+                    break;
+                }
+                try {
+                    final AttenuatedBloomFilter reachability = AttenuatedBloomFilter.deserialize(
+                            queryString.getAsList("levels"), 
+                            Integer.parseInt(queryString.get("hashes")));
+                    connection.setRemoteReachability(reachability, 
+                            Long.parseLong(queryString.get("interval")) * 3);
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("Ignoring malformed reachability summary: " 
+                            + ex.getMessage());
+                }
+                break;
+                
+            case ROUTE_ADVERTISEMENT:
+                
+                // Parse query string passed through.
+                queryString = new QueryString(packet.getBody());
+                if (!queryString.has("routes")) {
+                    break;
+                }
+                
+                // Hand the routes over to be considered and passed on.
+                final List<Route> advertisedRoutes = new ArrayList<>();
+                for (String current : queryString.getAsList("routes")) {
+                    try {
+                        advertisedRoutes.add(Route.deserialize(current));
+                    } catch (InvalidQueryStringException ex) {
+                        System.out.println("Ignoring malformed route advertisement: " 
+                                + ex.getMessage());
+                    }
+                }
+                connection.getParentAgent().getRoutePropagator().routesAdvertised(
+                        connection, advertisedRoutes);
+                break;
+                
+            case ROUTE_WITHDRAWAL:
+                
+                // Parse query string passed through.
+                queryString = new QueryString(packet.getBody());
+                if (queryString.has("destinations")) {
+                    connection.getParentAgent().getRoutePropagator().routesWithdrawn(
+                            connection, queryString.getAsSet("destinations"));
+                }
+                break;
+                
             default:
 
                 // Bad packet code that we weren't expecting.
@@ -196,7 +362,7 @@ public class AuthenticatedState extends DenoboConnectionState implements Routing
             
             // Send a poke packet
             pokeSent = true;
-            connection.send(new Packet(PacketCode.POKE));
+            connection.send(new Packet(PacketCode.POKE, "request=true"));
 
             // Check if we have recieved a reply poke
             while (!pokeReturned) {
@@ -205,7 +371,11 @@ public class AuthenticatedState extends DenoboConnectionState implements Routing
                  * no reply.
                  */
                 if ((System.currentTimeMillis() - startTime) >= timeout) {
+                    
+                    // Don't mistake the next poke we receive for our reply.
+                    pokeSent = false;
                     throw new TimeoutException();
+                    
                 }
 
                 // Go to sleep until we are notified of a reply
@@ -227,8 +397,44 @@ public class AuthenticatedState extends DenoboConnectionState implements Routing
         
     }
     
+    @Override
+    public boolean handleSendProbe(long timeout) {
+        
+        synchronized (pokeLock) {
+            
+            // Give the last probe until its timeout to be answered.
+            if (probeSentTime >= 0) {
+                if (System.nanoTime() - probeSentTime 
+                        < TimeUnit.MILLISECONDS.toNanos(timeout)) {
+                    return false;
+                }
+                System.out.println("Link probe to " 
+                        + connection.getRemoteAgentName() + " timed out.");
+            }
+            
+            probeSentTime = System.nanoTime();
+            connection.send(new Packet(PacketCode.POKE, "request=true"));
+            return true;
+            
+        }
+        
+    }
+    
     @Override
     public void routeCalculationSucceeded(String destinationAgentName, Route route) {
+        sendRouteFound(null, destinationAgentName, route);
+    }
+    
+    /**
+     * Passes a route back to the remote SocketAgent that asked for it.
+     * 
+     * @param requestId             the ID of the request the route answers, or
+     *                              null if the request carried no ID
+     * @param destinationAgentName  the name of the destination agent
+     * @param route                 the route found
+     */
+    private void sendRouteFound(String requestId, String destinationAgentName, 
+            Route route) {
 
         /* 
          * Pass back a 303 (ROUTE_FOUND) packet containing our
@@ -237,8 +443,125 @@ public class AuthenticatedState extends DenoboConnectionState implements Routing
         final QueryString queryString = new QueryString();
         queryString.add("to", destinationAgentName);
         queryString.add("route", route.serialize());
+        if (requestId != null) {
+            queryString.add("requestid", requestId);
+        }
         connection.send(new Packet(PacketCode.ROUTE_FOUND, queryString.toString()));
 
     }
                     
+    /**
+     * Searches for routes to every destination in a batched route request
+     * with a single routing worker, sending each route found back under the 
+     * ID of its own destination.
+     * 
+     * @param queryString       the query string of the route request
+     * @param localRoute        the route the request has taken so far
+     * @param usesBacktracking  whether or not the request uses backtracking
+     * @param batchId           the ID of the batched request
+     */
+    private void routeToAll(QueryString queryString, Route localRoute, 
+            boolean usesBacktracking, final String batchId) {
+        
+        final SocketAgent parent = connection.getParentAgent();
+        final List<String> destinations = new ArrayList<>();
+        for (String current : queryString.getAsList("toall")) {
+            
+            // If we are one of the agents in question, we can answer for it now.
+            if (parent.getName().equals(current)) {
+                final Route found = new Route(localRoute);
+                found.append(parent.getName(), connection.getLinkCost());
+                sendRouteFound(RouteRequestCoalescer.batchRequestId(batchId, current), 
+                        current, found);
+            } else if (parent.isGatewayFor(current)) {
+                sendRouteFound(RouteRequestCoalescer.batchRequestId(batchId, current), 
+                        current, routeIntoZone(localRoute));
+            } else {
+                destinations.add(current);
+            }
+            
+        }
+        if (destinations.isEmpty()) {
+            return;
+        }
+        
+        // Route to the rest of the destination agents.
+        final RoutingWorker worker = new RoutingWorker(parent, destinations, localRoute, 
+                usesBacktracking, connection.getLinkCost());
+        if (queryString.has("avoid")) {
+            worker.avoid(queryString.getAsSet("avoid"));
+        }
+        worker.continueRequest(batchId, parseHopsRemaining(queryString));
+        worker.addRoutingWorkerListener(new RoutingWorkerListener() {
+            @Override
+            public void routeCalculationSucceeded(String destinationAgentName, 
+                    Route route) {
+                sendRouteFound(RouteRequestCoalescer.batchRequestId(batchId, 
+                        destinationAgentName), destinationAgentName, route);
+            }
+        });
+        worker.mapRouteAsync();
+        
+    }
+    
+    /**
+     * Builds the route into the zone our parent SocketAgent is the gateway 
+     * to, on the end of the route a request has taken so far.
+     * 
+     * @param localRoute    the route the request has taken so far
+     * @return              the route into the zone
+     */
+    private Route routeIntoZone(Route localRoute) {
+        final SocketAgent parent = connection.getParentAgent();
+        final Route zoneRoute = new Route(localRoute);
+        zoneRoute.append(parent.getName(), connection.getLinkCost());
+        zoneRoute.setZone(parent.getConfiguration().getZonePrefix());
+        return zoneRoute;
+    }
+    
+    /**
+     * Gets the number of connections between SocketAgents a route request may
+     * still cross once it has crossed the connection it arrived on.
+     * 
+     * @param queryString   the query string of the route request
+     * @return              the number of hops remaining, or -1 if the request
+     *                      did not say how many it may cross
+     */
+    private static int parseHopsRemaining(QueryString queryString) {
+        
+        if (!queryString.has("ttl")) {
+            return -1;
+        }
+        
+        try {
+            return Math.max(0, Integer.parseInt(queryString.get("ttl")) - 1);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+        
+    }
+    
+    /**
+     * Parses a number from a field of an invalidation packet, such as the 
+     * generation a lost link has moved on to.
+     * 
+     * @param queryString   the query string of the packet
+     * @param key           the name of the field
+     * @return              the number, or zero if the packet doesn't carry a
+     *                      valid one
+     */
+    private static long parseLong(QueryString queryString, String key) {
+        
+        if (!queryString.has(key)) {
+            return 0;
+        }
+        
+        try {
+            return Long.parseLong(queryString.get(key));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+        
+    }
+    
 }    
@@ -80,5 +80,26 @@ public abstract class DenoboConnectionState {
        return -1;
        
    }
+   
+   /**
+    * Sends a POKE packet to the remote peer connected to this connection 
+    * without waiting for the reply, which is measured when it arrives and 
+    * folded into the round-trip time of the connection.
+    * <p>
+    * A probe still awaiting its reply is given up on once the timeout has 
+    * passed.
+    * 
+    * @param timeout   the time in milliseconds after which an unanswered 
+    *                  probe is given up on
+    * @return          true if a probe was sent, or false if the last one is 
+    *                  still awaiting its reply or the current state does not
+    *                  allow a POKE to be sent
+    */
+   public boolean handleSendProbe(long timeout) {
+       
+       // By default, no probe is sent.
+       return false;
+       
+   }
 
 }
\ No newline at end of file
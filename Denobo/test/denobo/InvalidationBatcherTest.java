@@ -0,0 +1,147 @@
+package denobo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Represents a unit test for {@link InvalidationBatcher}.
+ * 
+ * @author Saul Johnson
+ */
+public class InvalidationBatcherTest {
+    
+    /**
+     * Initialises a new instance of a unit test for {@link InvalidationBatcher}.
+     */
+    public InvalidationBatcherTest() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before this unit test.
+     */
+    @BeforeClass
+    public static void setUpClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after this unit test.
+     */
+    @AfterClass
+    public static void tearDownClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before each test case.
+     */
+    @Before
+    public void setUp() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after each test case.
+     */
+    @After
+    public void tearDown() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Creates an Undertaker invalidating a single link.
+     * 
+     * @param agentName         the name of the agent at one end of the link
+     * @param otherAgentName    the name of the agent at the other end
+     * @param visited           the names of the agents already visited
+     * @return                  the new Undertaker
+     */
+    private static Undertaker linkUndertaker(String agentName, String otherAgentName, 
+            String... visited) {
+        return new Undertaker(Collections.<Agent>emptyList(), 
+                Arrays.asList(agentName, otherAgentName), 
+                new HashSet<>(Arrays.asList(visited)), true);
+    }
+
+    /**
+     * Test of {@link InvalidationBatcher#submit} method, of class 
+     * {@link InvalidationBatcher}.
+     */
+    @Test
+    public void testSubmitMerges() {
+        
+        final InvalidationBatcher instance = new InvalidationBatcher(60000, 
+                new RoutingExecutor(1, 16));
+        
+        instance.submit(linkUndertaker("a", "b"));
+        instance.submit(linkUndertaker("b", "c"));
+        instance.submit(linkUndertaker("c", "d"));
+        assertEquals(3, instance.getSubmittedCount());
+        assertEquals(0, instance.getCrawlCount());
+        
+        instance.flush();
+        assertEquals(1, instance.getCrawlCount());
+        
+        // Nothing is left to run.
+        instance.flush();
+        assertEquals(1, instance.getCrawlCount());
+        
+    }
+    
+    /**
+     * Test of {@link InvalidationBatcher#submit} method with invalidations 
+     * that were told different agents had already been visited, of class 
+     * {@link InvalidationBatcher}.
+     */
+    @Test
+    public void testSubmitKeepsVisitedApart() {
+        
+        final InvalidationBatcher instance = new InvalidationBatcher(60000, 
+                new RoutingExecutor(1, 16));
+        
+        instance.submit(linkUndertaker("a", "b", "x"));
+        instance.submit(linkUndertaker("b", "c", "x"));
+        instance.submit(linkUndertaker("c", "d", "y"));
+        instance.submit(linkUndertaker("d", "e"));
+        
+        instance.flush();
+        assertEquals(3, instance.getCrawlCount());
+        
+    }
+    
+    /**
+     * Test of {@link InvalidationBatcher#submit} method with no window, of 
+     * class {@link InvalidationBatcher}.
+     */
+    @Test
+    public void testSubmitWithoutWindow() {
+        
+        final InvalidationBatcher instance = new InvalidationBatcher(0, 
+                new RoutingExecutor(1, 16));
+        
+        instance.submit(linkUndertaker("a", "b"));
+        instance.submit(linkUndertaker("b", "c"));
+        assertEquals(2, instance.getCrawlCount());
+        
+    }
+    
+}
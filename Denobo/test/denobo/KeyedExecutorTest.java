@@ -0,0 +1,201 @@
+package denobo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Represents a unit test for {@link KeyedExecutor}.
+ * 
+ * @author Saul Johnson
+ */
+public class KeyedExecutorTest {
+    
+    /**
+     * The executor underlying the keyed executor under test.
+     */
+    private ExecutorService executor;
+    
+    /**
+     * Initialises a new instance of a unit test for {@link KeyedExecutor}.
+     */
+    public KeyedExecutorTest() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before this unit test.
+     */
+    @BeforeClass
+    public static void setUpClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after this unit test.
+     */
+    @AfterClass
+    public static void tearDownClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before each test case.
+     */
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+    
+    /**
+     * Run after each test case.
+     */
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Test of {@link KeyedExecutor#execute} method keeping tasks with the same
+     * key in order, of class {@link KeyedExecutor}.
+     */
+    @Test
+    public void testExecuteKeepsKeyOrder() throws InterruptedException {
+        
+        final KeyedExecutor instance = new KeyedExecutor(executor);
+        final int taskCount = 500;
+        final List<Integer> first = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> second = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(taskCount * 2);
+        
+        // Interleave two keys, enough to run past a single turn of each.
+        for (int i = 0; i < taskCount; i++) {
+            instance.execute("first", new Recorder(first, i, done));
+            instance.execute("second", new Recorder(second, i, done));
+        }
+        
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < taskCount; i++) {
+            assertEquals(i, (int) first.get(i));
+            assertEquals(i, (int) second.get(i));
+        }
+        
+    }
+    
+    /**
+     * Test of {@link KeyedExecutor#execute} method running tasks with 
+     * different keys in parallel, of class {@link KeyedExecutor}.
+     */
+    @Test
+    public void testExecuteRunsKeysInParallel() throws InterruptedException {
+        
+        final KeyedExecutor instance = new KeyedExecutor(executor);
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        
+        // Each task waits for the other, so this only finishes in parallel.
+        for (String key : new String[] {"first", "second"}) {
+            instance.execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        
+    }
+    
+    /**
+     * Test of {@link KeyedExecutor#execute} method carrying on with a key 
+     * after one of its tasks throws an error, of class {@link KeyedExecutor}.
+     */
+    @Test
+    public void testExecuteSurvivesErrors() throws InterruptedException {
+        
+        final KeyedExecutor instance = new KeyedExecutor(executor);
+        final List<Integer> record = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(2);
+        
+        instance.execute("key", new Recorder(record, 0, done));
+        instance.execute("key", new Runnable() {
+            @Override
+            public void run() {
+                throw new Error("Thrown on purpose.");
+            }
+        });
+        instance.execute("key", new Recorder(record, 2, done));
+        
+        // The key is passed on to another thread rather than left stuck.
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 2), record);
+        
+    }
+    
+    /**
+     * Represents a task that records its index in a list.
+     */
+    private static class Recorder implements Runnable {
+        
+        /**
+         * The list to record into.
+         */
+        private final List<Integer> record;
+        
+        /**
+         * The index of this task.
+         */
+        private final int index;
+        
+        /**
+         * Counted down once this task has run.
+         */
+        private final CountDownLatch done;
+        
+        /**
+         * Initialises a new instance of a recording task.
+         * 
+         * @param record    the list to record into
+         * @param index     the index of this task
+         * @param done      counted down once this task has run
+         */
+        public Recorder(List<Integer> record, int index, CountDownLatch done) {
+            this.record = record;
+            this.index = index;
+            this.done = done;
+        }
+        
+        @Override
+        public void run() {
+            record.add(index);
+            done.countDown();
+        }
+        
+    }
+    
+}
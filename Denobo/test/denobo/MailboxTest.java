@@ -0,0 +1,153 @@
+package denobo;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Represents a unit test for {@link Mailbox}.
+ * 
+ * @author Saul Johnson
+ */
+public class MailboxTest {
+    
+    /**
+     * Initialises a new instance of a unit test for {@link Mailbox}.
+     */
+    public MailboxTest() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before this unit test.
+     */
+    @BeforeClass
+    public static void setUpClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after this unit test.
+     */
+    @AfterClass
+    public static void tearDownClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before each test case.
+     */
+    @Before
+    public void setUp() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after each test case.
+     */
+    @After
+    public void tearDown() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Creates a message with the specified data to submit to a mailbox.
+     * 
+     * @param data  the data to attach to the message
+     * @return      the message created
+     */
+    private static Message createMessage(String data) {
+        final Route route = new Route();
+        route.append("sender");
+        route.append("receiver");
+        return new Message(route, data);
+    }
+
+    /**
+     * Test of {@link Mailbox#offer} method with the reject policy, of class 
+     * {@link Mailbox}.
+     */
+    @Test
+    public void testOfferReject() {
+        
+        final Mailbox instance = new Mailbox(2, MailboxOverflowPolicy.REJECT);
+        
+        assertTrue(instance.offer(createMessage("1"), true));
+        assertTrue(instance.offer(createMessage("2"), true));
+        assertFalse(instance.offer(createMessage("3"), true));
+        
+        assertEquals(2, instance.size());
+        assertEquals(1, instance.getRejectedCount());
+        assertEquals(0, instance.getDroppedCount());
+        assertEquals("1", instance.poll().getData());
+        
+    }
+    
+    /**
+     * Test of {@link Mailbox#offer} method with the drop oldest policy, of 
+     * class {@link Mailbox}.
+     */
+    @Test
+    public void testOfferDropOldest() {
+        
+        final Mailbox instance = new Mailbox(2, MailboxOverflowPolicy.DROP_OLDEST);
+        
+        instance.offer(createMessage("1"), true);
+        instance.offer(createMessage("2"), true);
+        assertTrue(instance.offer(createMessage("3"), true));
+        
+        assertEquals(1, instance.getDroppedCount());
+        assertEquals("2", instance.poll().getData());
+        assertEquals("3", instance.poll().getData());
+        assertTrue(instance.isEmpty());
+        
+    }
+    
+    /**
+     * Test of {@link Mailbox#offer} method with the drop newest policy, of 
+     * class {@link Mailbox}.
+     */
+    @Test
+    public void testOfferDropNewest() {
+        
+        final Mailbox instance = new Mailbox(2, MailboxOverflowPolicy.DROP_NEWEST);
+        
+        instance.offer(createMessage("1"), true);
+        instance.offer(createMessage("2"), true);
+        assertFalse(instance.offer(createMessage("3"), true));
+        
+        assertEquals(1, instance.getDroppedCount());
+        assertEquals("1", instance.poll().getData());
+        assertEquals("2", instance.poll().getData());
+        
+    }
+    
+    /**
+     * Test of {@link Mailbox#offer} method with the block policy when the 
+     * caller may not block, of class {@link Mailbox}.
+     */
+    @Test
+    public void testOfferBlockWithoutBlocking() {
+        
+        final Mailbox instance = new Mailbox(1, MailboxOverflowPolicy.BLOCK);
+        
+        assertTrue(instance.offer(createMessage("1"), false));
+        assertFalse(instance.offer(createMessage("2"), false));
+        assertEquals(1, instance.getRejectedCount());
+        
+    }
+    
+}
@@ -0,0 +1,113 @@
+package denobo;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Represents a unit test for {@link NegativeRouteCache}.
+ * 
+ * @author Saul Johnson
+ */
+public class NegativeRouteCacheTest {
+    
+    /**
+     * Initialises a new instance of a unit test for {@link NegativeRouteCache}.
+     */
+    public NegativeRouteCacheTest() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before this unit test.
+     */
+    @BeforeClass
+    public static void setUpClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after this unit test.
+     */
+    @AfterClass
+    public static void tearDownClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before each test case.
+     */
+    @Before
+    public void setUp() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after each test case.
+     */
+    @After
+    public void tearDown() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Test of {@link NegativeRouteCache#routeFailed} method, of class 
+     * {@link NegativeRouteCache}.
+     */
+    @Test
+    public void testRouteFailedBacksOff() {
+        
+        final NegativeRouteCache instance = new NegativeRouteCache(100, 350);
+        
+        // Each failure doubles the time-to-live, up to the maximum.
+        assertEquals(100, instance.routeFailed("a"));
+        assertEquals(200, instance.routeFailed("a"));
+        assertEquals(350, instance.routeFailed("a"));
+        assertEquals(350, instance.routeFailed("a"));
+        assertEquals(4, instance.getFailureCount());
+        
+        // Finding a route starts again from scratch.
+        instance.routeFound("a");
+        assertEquals(100, instance.routeFailed("a"));
+        
+    }
+    
+    /**
+     * Test of {@link NegativeRouteCache#isUnreachable} method, of class 
+     * {@link NegativeRouteCache}.
+     */
+    @Test
+    public void testIsUnreachable() {
+        
+        final NegativeRouteCache instance = new NegativeRouteCache(60000, 60000);
+        
+        instance.routeFailed("a");
+        assertTrue(instance.isUnreachable("a"));
+        assertTrue(instance.isUnreachable("a"));
+        assertFalse(instance.isUnreachable("b"));
+        assertEquals(2, instance.getHitCount());
+        
+        instance.routeFound("a");
+        assertFalse(instance.isUnreachable("a"));
+        
+        // A zero time-to-live never caches anything.
+        final NegativeRouteCache disabled = new NegativeRouteCache(0, 60000);
+        disabled.routeFailed("a");
+        assertFalse(disabled.isUnreachable("a"));
+        
+    }
+    
+}
@@ -0,0 +1,203 @@
+package denobo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Represents a unit test for {@link RingBufferQueue}.
+ * 
+ * @author Saul Johnson
+ */
+public class RingBufferQueueTest {
+    
+    /**
+     * Initialises a new instance of a unit test for {@link RingBufferQueue}.
+     */
+    public RingBufferQueueTest() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before this unit test.
+     */
+    @BeforeClass
+    public static void setUpClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after this unit test.
+     */
+    @AfterClass
+    public static void tearDownClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before each test case.
+     */
+    @Before
+    public void setUp() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after each test case.
+     */
+    @After
+    public void tearDown() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Test of {@link RingBufferQueue#capacity} method, of class 
+     * {@link RingBufferQueue}.
+     */
+    @Test
+    public void testCapacity() {
+        
+        assertEquals(1, new RingBufferQueue<String>(1).capacity());
+        assertEquals(8, new RingBufferQueue<String>(5).capacity());
+        assertEquals(16, new RingBufferQueue<String>(16).capacity());
+        
+    }
+    
+    /**
+     * Test of {@link RingBufferQueue#offer} and {@link RingBufferQueue#poll}
+     * methods, of class {@link RingBufferQueue}.
+     */
+    @Test
+    public void testOfferPoll() {
+        
+        final RingBufferQueue<String> instance = new RingBufferQueue<>(4);
+        
+        assertTrue(instance.isEmpty());
+        assertNull(instance.poll());
+        
+        // Wrap around the ring a few times.
+        for (int i = 0; i < 10; i++) {
+            assertTrue(instance.offer("a" + i));
+            assertTrue(instance.offer("b" + i));
+            assertEquals(2, instance.size());
+            assertEquals("a" + i, instance.peek());
+            assertEquals("a" + i, instance.poll());
+            assertEquals("b" + i, instance.poll());
+        }
+        
+        // Fill it up.
+        for (int i = 0; i < 4; i++) {
+            assertTrue(instance.offer(Integer.toString(i)));
+        }
+        assertFalse(instance.offer("full"));
+        assertEquals(0, instance.remainingCapacity());
+        
+        final List<String> drained = new ArrayList<>();
+        assertEquals(3, instance.drainTo(drained, 3));
+        assertEquals("0", drained.get(0));
+        assertEquals("3", instance.poll());
+        
+    }
+    
+    /**
+     * Test of {@link RingBufferQueue#take} method with several producers, of
+     * class {@link RingBufferQueue}.
+     * 
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void testTakeWithManyProducers() throws InterruptedException {
+        
+        final RingBufferQueue<Long> instance = new RingBufferQueue<>(64);
+        final int producerCount = 4;
+        final int perProducer = 10000;
+        final AtomicLong next = new AtomicLong();
+        
+        final Thread[] producers = new Thread[producerCount];
+        for (int i = 0; i < producerCount; i++) {
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perProducer; j++) {
+                            instance.put(next.incrementAndGet());
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            producers[i].start();
+        }
+        
+        // Every value handed out must come back exactly once.
+        long sum = 0;
+        for (int i = 0; i < producerCount * perProducer; i++) {
+            sum += instance.take();
+        }
+        for (Thread current : producers) {
+            current.join();
+        }
+        
+        final long total = producerCount * perProducer;
+        assertEquals(total * (total + 1) / 2, sum);
+        assertTrue(instance.isEmpty());
+        
+    }
+    
+    /**
+     * Test of {@link RingBufferQueue#iterator} method, of class 
+     * {@link RingBufferQueue}.
+     */
+    @Test
+    public void testIterator() {
+        
+        final RingBufferQueue<String> instance = new RingBufferQueue<>(4);
+        
+        // Move the ring on so the snapshot has to wrap.
+        instance.offer("x");
+        instance.offer("y");
+        instance.poll();
+        instance.poll();
+        
+        instance.offer("a");
+        instance.offer("b");
+        instance.offer("c");
+        instance.poll();
+        instance.offer("d");
+        
+        final List<String> snapshot = new ArrayList<>();
+        for (String current : instance) {
+            snapshot.add(current);
+        }
+        assertEquals("[b, c, d]", snapshot.toString());
+        assertTrue(instance.contains("c"));
+        assertFalse(instance.contains("a"));
+        
+        // The snapshot is unaffected by later changes to the queue.
+        final Iterator<String> iterator = instance.iterator();
+        instance.clear();
+        assertEquals("b", iterator.next());
+        assertTrue(instance.isEmpty());
+        
+    }
+    
+}
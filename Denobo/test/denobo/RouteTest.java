@@ -0,0 +1,237 @@
+package denobo;
+
+import denobo.exceptions.DuplicateAgentNameException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Represents a unit test for {@link Route}.
+ * 
+ * @author Saul Johnson
+ */
+public class RouteTest {
+    
+    /**
+     * Initialises a new instance of a unit test for {@link Route}.
+     */
+    public RouteTest() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before this unit test.
+     */
+    @BeforeClass
+    public static void setUpClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after this unit test.
+     */
+    @AfterClass
+    public static void tearDownClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before each test case.
+     */
+    @Before
+    public void setUp() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after each test case.
+     */
+    @After
+    public void tearDown() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Test of {@link Route#append} method, of class {@link Route}.
+     */
+    @Test
+    public void testAppend() {
+        
+        final Route instance = new Route();
+        instance.append("a");
+        instance.append("b");
+        instance.append("c");
+        
+        assertEquals(3, instance.size());
+        assertEquals("a", instance.first());
+        assertEquals("c", instance.last());
+        assertEquals(Arrays.asList("a", "b", "c"), instance.getPath());
+        assertEquals("a -> b -> c", instance.toString());
+        
+    }
+    
+    /**
+     * Test of {@link Route#append} method with a duplicate name, of class 
+     * {@link Route}.
+     */
+    @Test(expected = DuplicateAgentNameException.class)
+    public void testAppendDuplicate() {
+        
+        final Route instance = new Route();
+        instance.append("a");
+        instance.append("b");
+        instance.append("a");
+        
+    }
+    
+    /**
+     * Test of {@link Route#has} method on routes long enough to be hashed, of 
+     * class {@link Route}.
+     */
+    @Test
+    public void testHas() {
+        
+        final Route instance = new Route();
+        for (int i = 0; i < 40; i++) {
+            instance.append("hop" + i);
+            assertTrue(instance.has("hop" + i));
+            assertFalse(instance.has("hop" + (i + 1)));
+        }
+        assertFalse(instance.has("neverSeenBefore"));
+        
+    }
+    
+    /**
+     * Test that clones sharing a prefix can be appended to independently, of 
+     * class {@link Route}.
+     */
+    @Test
+    public void testCloneSharesPrefix() {
+        
+        final Route prefix = new Route();
+        prefix.append("a");
+        prefix.append("b");
+        
+        final Route first = new Route(prefix);
+        final Route second = new Route(prefix);
+        first.append("c");
+        second.append("d");
+        prefix.append("e");
+        
+        assertEquals("a -> b -> c", first.toString());
+        assertEquals("a -> b -> d", second.toString());
+        assertEquals("a -> b -> e", prefix.toString());
+        assertFalse(first.has("d"));
+        assertFalse(second.has("c"));
+        
+    }
+    
+    /**
+     * Test of {@link Route#serialize} and {@link Route#deserialize} methods, 
+     * of class {@link Route}.
+     */
+    @Test
+    public void testSerialize() {
+        
+        final Route instance = new Route();
+        instance.append("a");
+        instance.append("b");
+        instance.append("c");
+        instance.next();
+        
+        final Route result = Route.deserialize(instance.serialize());
+        assertEquals(instance.getPath(), result.getPath());
+        assertEquals("b", result.peek());
+        assertEquals("c -> b -> a", result.reverse().toString());
+        
+    }
+    
+    /**
+     * Test of {@link Route#findLostLink} method, of class {@link Route}.
+     */
+    @Test
+    public void testFindLostLink() {
+        
+        final Route instance = new Route();
+        instance.append("lostA");
+        instance.append("lostB");
+        instance.append("lostC");
+        assertNull(instance.findLostLink());
+        
+        // Links not on the route don't affect it.
+        LinkGenerations.linkBroken("lostA", "lostC");
+        assertNull(instance.findLostLink());
+        
+        // Links on the route are found whichever way round they were lost.
+        final long generation = LinkGenerations.linkBroken("lostC", "lostB");
+        assertArrayEquals(new String[] {"lostB", "lostC"}, instance.findLostLink());
+        assertEquals(generation, LinkGenerations.getGeneration("lostB", "lostC"));
+        
+        // Routes calculated after the link was lost are unaffected.
+        final Route later = new Route(instance);
+        final Route fresh = new Route();
+        fresh.append("lostB");
+        fresh.append("lostC");
+        assertNull(fresh.findLostLink());
+        assertNotNull(later.findLostLink());
+        
+        // Reports of generations already seen are ignored.
+        final long origin = LinkGenerations.getOrigin();
+        assertFalse(LinkGenerations.linkBroken("lostB", "lostC", origin, generation, null));
+        assertTrue(LinkGenerations.linkBroken("lostB", "lostC", origin, generation + 1, null));
+        
+        // A restarted process counting from one again is still heard.
+        assertTrue(LinkGenerations.linkBroken("lostB", "lostC", origin + 1, 1, null));
+        assertFalse(LinkGenerations.linkBroken("lostB", "lostC", origin + 1, 1, null));
+        
+    }
+    
+    /**
+     * Test of {@link Route#deserialize} method with agent names this process
+     * has never given an ID, of class {@link Route}.
+     */
+    @Test
+    public void testDeserializeLeavesRemoteNamesUnregistered() {
+        
+        final Route original = new Route();
+        original.append("farA");
+        original.append("farB");
+        original.append("farC");
+        
+        // Names from remote routes are held as they are.
+        final Route instance = Route.deserialize(original.serialize());
+        assertEquals(-1, AgentNameRegistry.findId("farB"));
+        assertEquals("farA -> farB -> farC", instance.toString());
+        assertTrue(instance.has("farB"));
+        assertFalse(instance.has("farD"));
+        assertEquals("farC -> farB -> farA", instance.reverse().toString());
+        
+        // They still can't appear twice.
+        try {
+            instance.append("farA");
+            fail("Appending a name twice should throw.");
+        } catch (DuplicateAgentNameException ex) {
+            // Expected.
+        }
+        
+        // Lost links between them are still found.
+        LinkGenerations.linkBroken("farB", "farC");
+        assertArrayEquals(new String[] {"farB", "farC"}, instance.findLostLink());
+        
+    }
+    
+}
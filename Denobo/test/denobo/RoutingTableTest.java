@@ -0,0 +1,295 @@
+package denobo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Represents a unit test for {@link RoutingTable}.
+ * 
+ * @author Saul Johnson
+ */
+public class RoutingTableTest {
+    
+    /**
+     * Initialises a new instance of a unit test for {@link RoutingTable}.
+     */
+    public RoutingTableTest() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before this unit test.
+     */
+    @BeforeClass
+    public static void setUpClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after this unit test.
+     */
+    @AfterClass
+    public static void tearDownClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before each test case.
+     */
+    @Before
+    public void setUp() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after each test case.
+     */
+    @After
+    public void tearDown() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Creates a route through the specified agent names.
+     * 
+     * @param names the agent names that make up the route
+     * @return      the route created
+     */
+    private static Route createRoute(String... names) {
+        final Route route = new Route();
+        for (String current : names) {
+            route.append(current);
+        }
+        return route;
+    }
+
+    /**
+     * Test of {@link RoutingTable#addRoute} method, of class 
+     * {@link RoutingTable}.
+     */
+    @Test
+    public void testAddRoute() {
+        
+        final RoutingTable instance = new RoutingTable();
+        
+        instance.addRoute("d", createRoute("a", "b", "c", "d"));
+        assertEquals("a -> b -> c -> d", instance.getRoute("d").toString());
+        
+        // A shorter route replaces the existing one, a longer one doesn't.
+        instance.addRoute("d", createRoute("a", "d"));
+        instance.addRoute("d", createRoute("a", "e", "f", "g", "d"));
+        assertEquals("a -> d", instance.getRoute("d").toString());
+        
+        // Routing through the replaced route's agents no longer affects it.
+        instance.invalidateAgent("b");
+        assertTrue(instance.hasRoute("d"));
+        
+    }
+    
+    /**
+     * Test of {@link RoutingTable#removeRoute} method, of class 
+     * {@link RoutingTable}.
+     */
+    @Test
+    public void testRemoveRoute() {
+        
+        final RoutingTable instance = new RoutingTable();
+        
+        // A cheaper route along an old path would otherwise win.
+        instance.addRoute("d", createRoute("a", "b", "d"));
+        assertTrue(instance.removeRoute("d", createRoute("a", "b", "d")));
+        instance.addRoute("d", createRoute("a", "c", "e", "d"));
+        assertEquals("a -> c -> e -> d", instance.getRoute("d").toString());
+        
+        // Removing a path the table doesn't have changes nothing.
+        assertFalse(instance.removeRoute("d", createRoute("a", "b", "d")));
+        assertTrue(instance.removeRoute("d", createRoute("a", "c", "e", "d")));
+        assertFalse(instance.hasRoute("d"));
+        
+    }
+    
+    /**
+     * Test of {@link RoutingTable#invalidateAgent} method, of class 
+     * {@link RoutingTable}.
+     */
+    @Test
+    public void testInvalidateAgent() {
+        
+        final RoutingTable instance = new RoutingTable();
+        
+        instance.addRoute("c", createRoute("a", "b", "c"));
+        instance.addRoute("d", createRoute("a", "b", "d"));
+        instance.addRoute("f", createRoute("a", "e", "f"));
+        
+        instance.invalidateAgent("b");
+        assertFalse(instance.hasRoute("c"));
+        assertFalse(instance.hasRoute("d"));
+        assertTrue(instance.hasRoute("f"));
+        
+        // Invalidating a destination removes the route to it.
+        instance.invalidateAgent("f");
+        assertFalse(instance.hasRoute("f"));
+        assertNull(instance.getRoute("f"));
+        
+    }
+    
+    /**
+     * Test of {@link RoutingTable#getRoute} method, of class 
+     * {@link RoutingTable}.
+     */
+    @Test
+    public void testGetRouteReturnsCopy() {
+        
+        final RoutingTable instance = new RoutingTable();
+        instance.addRoute("c", createRoute("a", "b", "c"));
+        
+        // Moving along a returned route must not move the stored one.
+        instance.getRoute("c").next();
+        assertEquals("a", instance.getRoute("c").peek());
+        
+    }
+    
+    /**
+     * Test of {@link RoutingTable#getRoutes} method, of class 
+     * {@link RoutingTable}.
+     */
+    @Test
+    public void testGetRoutesKeepsNearEqualRoutes() {
+        
+        final RoutingTable instance = new RoutingTable(2, 0);
+        
+        instance.addRoute("d", createRoute("a", "b", "d"));
+        instance.addRoute("d", createRoute("a", "c", "d"));
+        instance.addRoute("d", createRoute("a", "e", "d"));
+        instance.addRoute("d", createRoute("a", "b", "c", "d"));
+        assertEquals(2, instance.getRoutes("d").size());
+        assertEquals("a -> b -> d", instance.getRoute("d").toString());
+        assertEquals("a -> c -> d", instance.getRoutes("d").get(1).toString());
+        
+        // Losing one route leaves the other in place.
+        instance.invalidateAgent("b");
+        assertEquals(1, instance.getRoutes("d").size());
+        assertEquals("a -> c -> d", instance.getRoute("d").toString());
+        
+        // A cheaper route pushes out any that are no longer near its cost.
+        instance.addRoute("d", createRoute("a", "d"));
+        assertEquals(1, instance.getRoutes("d").size());
+        assertEquals("a -> d", instance.getRoute("d").toString());
+        assertTrue(instance.getRoutes("x").isEmpty());
+        
+    }
+    
+    /**
+     * Test of {@link RoutingTable#invalidateLink} method, of class 
+     * {@link RoutingTable}.
+     */
+    @Test
+    public void testInvalidateLinkPromotesBackupRoute() {
+        
+        final RoutingTable instance = new RoutingTable();
+        
+        // Only a route sharing nothing but its ends can be a backup.
+        instance.addRoute("d", createRoute("a", "d"));
+        assertFalse(instance.setBackupRoute("d", createRoute("a", "d")));
+        assertTrue(instance.setBackupRoute("d", createRoute("a", "b", "d")));
+        instance.addRoute("d", createRoute("a", "d"));
+        assertEquals("a -> b -> d", instance.getBackupRoute("d").toString());
+        
+        // Losing a link on the route hands over to the backup straight away.
+        assertEquals(Collections.singleton("d"), instance.invalidateLink("d", "a"));
+        assertEquals("a -> b -> d", instance.getRoute("d").toString());
+        assertNull(instance.getBackupRoute("d"));
+        
+        // Routes through an agent but not across the lost link stay put.
+        assertTrue(instance.invalidateLink("a", "c").isEmpty());
+        assertTrue(instance.hasRoute("d"));
+        instance.invalidateLink("b", "d");
+        assertFalse(instance.hasRoute("d"));
+        
+    }
+    
+    /**
+     * Test of {@link RoutingTable#writeSnapshot} and 
+     * {@link RoutingTable#readSnapshot} methods, of class 
+     * {@link RoutingTable}.
+     * 
+     * @throws IOException if the snapshot could not be written or read
+     */
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        
+        final RoutingTable instance = new RoutingTable();
+        instance.addRoute("c", createRoute("a", "b", "c"));
+        instance.addRoute("d", createRoute("a", "d"));
+        final StringWriter writer = new StringWriter();
+        instance.writeSnapshot(writer);
+        
+        // Lines that don't parse or don't start here are skipped.
+        final String snapshot = writer.toString() + "garbage\n" 
+                + createRoute("x", "e").serialize() + "\n";
+        final RoutingTable reloaded = new RoutingTable();
+        assertEquals(2, reloaded.readSnapshot(new BufferedReader(
+                new StringReader(snapshot)), "a"));
+        assertEquals("a -> b -> c", reloaded.getRoute("c").toString());
+        assertFalse(reloaded.hasRoute("e"));
+        
+        // Reloaded routes are provisional until confirmed once.
+        assertTrue(reloaded.isProvisional("c"));
+        assertTrue(reloaded.confirm("c"));
+        assertFalse(reloaded.confirm("c"));
+        assertFalse(reloaded.isProvisional("c"));
+        assertFalse(instance.isProvisional("c"));
+        
+    }
+    
+    /**
+     * Test of {@link RoutingTable#resolve} method, of class 
+     * {@link RoutingTable}.
+     */
+    @Test
+    public void testResolvePrefersLongestZone() {
+        
+        final RoutingTable instance = new RoutingTable();
+        final Route wide = createRoute("a", "g");
+        wide.setZone("eu_");
+        final Route narrow = createRoute("a", "h");
+        narrow.setZone("eu_de_");
+        instance.addRoute(RoutingTable.zoneKey("eu_"), wide);
+        instance.addRoute(RoutingTable.zoneKey("eu_de_"), narrow);
+        
+        // The narrowest zone a name falls in wins, then the name itself.
+        assertEquals(RoutingTable.zoneKey("eu_"), instance.resolve("eu_fr_x"));
+        assertEquals(RoutingTable.zoneKey("eu_de_"), instance.resolve("eu_de_x"));
+        assertEquals("us_x", instance.resolve("us_x"));
+        instance.addRoute("eu_de_x", createRoute("a", "eu_de_x"));
+        assertEquals("eu_de_x", instance.resolve("eu_de_x"));
+        
+        // Routes into a zone keep the zone they lead into.
+        assertEquals("eu_de_", instance.getRoute(instance.resolve("eu_de_y")).getZone());
+        
+        // Losing the gateway falls back on the wider zone.
+        instance.invalidateAgent("h");
+        assertEquals(RoutingTable.zoneKey("eu_"), instance.resolve("eu_de_y"));
+        
+    }
+    
+}
@@ -0,0 +1,4 @@
+/**
+ * Package contains a set of JUnit tests for the core Denobo API.
+ */
+package denobo;
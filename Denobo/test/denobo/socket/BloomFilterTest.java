@@ -0,0 +1,139 @@
+package denobo.socket;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Represents a unit test for {@link BloomFilter}.
+ * 
+ * @author Saul Johnson
+ */
+public class BloomFilterTest {
+    
+    /**
+     * Initialises a new instance of a unit test for {@link BloomFilter}.
+     */
+    public BloomFilterTest() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before this unit test.
+     */
+    @BeforeClass
+    public static void setUpClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after this unit test.
+     */
+    @AfterClass
+    public static void tearDownClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before each test case.
+     */
+    @Before
+    public void setUp() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after each test case.
+     */
+    @After
+    public void tearDown() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Test of {@link BloomFilter#mightContain} method, of class 
+     * {@link BloomFilter}.
+     */
+    @Test
+    public void testMightContain() {
+        
+        final BloomFilter instance = new BloomFilter();
+        assertTrue(instance.isEmpty());
+        
+        // Names added are always found.
+        for (int i = 0; i < 100; i++) {
+            instance.add("agent" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(instance.mightContain("agent" + i));
+        }
+        
+        // Names never added are nearly always ruled out.
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (instance.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 50);
+        
+    }
+    
+    /**
+     * Test of {@link BloomFilter#serialize} method, of class 
+     * {@link BloomFilter}.
+     */
+    @Test
+    public void testSerialize() {
+        
+        final BloomFilter instance = new BloomFilter(256, 2);
+        instance.add("a");
+        instance.add("b");
+        
+        final BloomFilter copy = BloomFilter.deserialize(instance.serialize(), 2);
+        assertEquals(instance.getSize(), copy.getSize());
+        assertEquals(instance.serialize(), copy.serialize());
+        assertTrue(copy.mightContain("a"));
+        assertTrue(copy.mightContain("b"));
+        
+    }
+    
+    /**
+     * Test of {@link AttenuatedBloomFilter#addAttenuated} method, of class 
+     * {@link AttenuatedBloomFilter}.
+     */
+    @Test
+    public void testAttenuation() {
+        
+        final AttenuatedBloomFilter far = new AttenuatedBloomFilter(2, 256, 2);
+        far.add("a");
+        
+        // Names are one level further away each time they are passed on.
+        final AttenuatedBloomFilter near = new AttenuatedBloomFilter(2, 256, 2);
+        near.add("b");
+        near.addAttenuated(far);
+        assertEquals(0, near.distanceTo("b"));
+        assertEquals(1, near.distanceTo("a"));
+        
+        // Until they fall off the end.
+        final AttenuatedBloomFilter instance = new AttenuatedBloomFilter(2, 256, 2);
+        instance.addAttenuated(near);
+        assertEquals(1, instance.distanceTo("b"));
+        assertFalse(instance.mightReach("a"));
+        
+    }
+    
+}
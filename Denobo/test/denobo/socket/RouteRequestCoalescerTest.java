@@ -0,0 +1,265 @@
+package denobo.socket;
+
+import denobo.Route;
+import denobo.RoutingWorkerListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Represents a unit test for {@link RouteRequestCoalescer}.
+ * 
+ * @author Saul Johnson
+ */
+public class RouteRequestCoalescerTest {
+    
+    /**
+     * Initialises a new instance of a unit test for {@link RouteRequestCoalescer}.
+     */
+    public RouteRequestCoalescerTest() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before this unit test.
+     */
+    @BeforeClass
+    public static void setUpClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after this unit test.
+     */
+    @AfterClass
+    public static void tearDownClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before each test case.
+     */
+    @Before
+    public void setUp() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after each test case.
+     */
+    @After
+    public void tearDown() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Creates a listener that records the routes it is given.
+     * 
+     * @param found the list to add routes to
+     * @return      a list of listeners containing the new listener
+     */
+    private static List<RoutingWorkerListener> recordingListener(final List<Route> found) {
+        
+        final RoutingWorkerListener listener = new RoutingWorkerListener() {
+            @Override
+            public void routeCalculationSucceeded(String destinationAgentName, Route route) {
+                found.add(route);
+            }
+        };
+        return Collections.singletonList(listener);
+        
+    }
+    
+    /**
+     * Creates a route through the specified agents.
+     * 
+     * @param names the names of the agents on the route
+     * @return      the route
+     */
+    private static Route routeThrough(String... names) {
+        
+        final Route route = new Route();
+        for (String current : names) {
+            route.append(current, 1);
+        }
+        return route;
+        
+    }
+    
+    /**
+     * Test of {@link RouteRequestCoalescer#join} method, of class 
+     * {@link RouteRequestCoalescer}.
+     */
+    @Test
+    public void testJoinCoalescesConcurrentRequests() {
+        
+        final RouteRequestCoalescer instance = new RouteRequestCoalescer();
+        final SocketAgent gateway = new SocketAgent("gateway");
+        final List<Route> first = new ArrayList<>();
+        final List<Route> second = new ArrayList<>();
+        
+        // Only the first caller sends a request out.
+        final String firstId = instance.join(gateway, "d", routeThrough("a", "gateway"), 
+                recordingListener(first), false, Collections.<String>emptySet(), null, -1);
+        assertNotNull(firstId);
+        assertNull(instance.join(gateway, "d", routeThrough("b", "gateway"), 
+                recordingListener(second), false, Collections.<String>emptySet(), null, -1));
+        assertEquals(1, instance.getRequestCount());
+        assertEquals(1, instance.getCoalescedCount());
+        
+        // Each caller gets the remote part spliced onto its own local route.
+        assertTrue(instance.complete(gateway, firstId, "d", routeThrough("a", "gateway", "c", "d")));
+        assertEquals(1, first.size());
+        assertEquals(1, second.size());
+        assertEquals(Arrays.asList("a", "gateway", "c", "d"), first.get(0).getPath());
+        assertEquals(Arrays.asList("b", "gateway", "c", "d"), second.get(0).getPath());
+        
+        gateway.shutdown();
+        
+    }
+    
+    /**
+     * Test of {@link RouteRequestCoalescer#complete} method, of class 
+     * {@link RouteRequestCoalescer}.
+     */
+    @Test
+    public void testCompleteSkipsWaitersThatWouldLoop() {
+        
+        final RouteRequestCoalescer instance = new RouteRequestCoalescer();
+        final SocketAgent gateway = new SocketAgent("gateway");
+        final List<Route> first = new ArrayList<>();
+        final List<Route> second = new ArrayList<>();
+        
+        final String firstId = instance.join(gateway, "d", routeThrough("a", "gateway"), 
+                recordingListener(first), false, Collections.<String>emptySet(), null, -1);
+        assertNotNull(firstId);
+        assertNull(instance.join(gateway, "d", routeThrough("c", "gateway"), 
+                recordingListener(second), false, Collections.<String>emptySet(), null, -1));
+        
+        // The remote part passes back through the second caller, so it's left out.
+        assertTrue(instance.complete(gateway, firstId, "d", routeThrough("a", "gateway", "c", "d")));
+        assertEquals(1, first.size());
+        assertEquals(0, second.size());
+        
+        gateway.shutdown();
+        
+    }
+    
+    /**
+     * Test of {@link RouteRequestCoalescer#complete} method, of class 
+     * {@link RouteRequestCoalescer}.
+     */
+    @Test
+    public void testCompleteRespectsAvoidedNames() {
+        
+        final RouteRequestCoalescer instance = new RouteRequestCoalescer();
+        final SocketAgent gateway = new SocketAgent("gateway");
+        final List<Route> first = new ArrayList<>();
+        final List<Route> second = new ArrayList<>();
+        
+        // The second caller avoids c, so it sends a request of its own too.
+        final String firstId = instance.join(gateway, "d", routeThrough("a", "gateway"), 
+                recordingListener(first), false, Collections.<String>emptySet(), null, -1);
+        final String secondId = instance.join(gateway, "d", routeThrough("b", "gateway"), 
+                recordingListener(second), false, Collections.singleton("c"), null, -1);
+        assertNotNull(secondId);
+        assertEquals(2, instance.getRequestCount());
+        
+        // A route through c is no good to it, and it doesn't ask again.
+        assertTrue(instance.complete(gateway, firstId, "d", routeThrough("a", "gateway", "c", "d")));
+        assertEquals(1, first.size());
+        assertEquals(0, second.size());
+        assertEquals(2, instance.getRequestCount());
+        
+        // Its own request finds a route it can use.
+        assertTrue(instance.complete(gateway, secondId, "d", routeThrough("b", "gateway", "e", "d")));
+        assertEquals(Arrays.asList("b", "gateway", "e", "d"), second.get(0).getPath());
+        
+        gateway.shutdown();
+        
+    }
+    
+    /**
+     * Test of {@link RouteRequestCoalescer#complete} method, of class 
+     * {@link RouteRequestCoalescer}.
+     */
+    @Test
+    public void testCompleteMatchesRequestId() {
+        
+        final RouteRequestCoalescer instance = new RouteRequestCoalescer();
+        final SocketAgent gateway = new SocketAgent("gateway");
+        final List<Route> first = new ArrayList<>();
+        final List<Route> second = new ArrayList<>();
+        
+        // Different avoided agents mean the second caller sends its own request.
+        final String firstId = instance.join(gateway, "d", routeThrough("a", "gateway"), 
+                recordingListener(first), false, Collections.<String>emptySet(), null, -1);
+        final String secondId = instance.join(gateway, "d", routeThrough("b", "gateway"), 
+                recordingListener(second), false, Collections.singleton("x"), null, -1);
+        assertNotNull(firstId);
+        assertNotNull(secondId);
+        assertNotEquals(firstId, secondId);
+        
+        // A route for the second request only goes to the second caller.
+        assertTrue(instance.complete(gateway, secondId, "d", 
+                routeThrough("b", "gateway", "c", "d")));
+        assertEquals(0, first.size());
+        assertEquals(1, second.size());
+        assertEquals("b", second.get(0).first());
+        
+        // Routes for requests nobody sent are turned away.
+        assertFalse(instance.complete(gateway, "unknown", "d", routeThrough("gateway", "d")));
+        assertEquals(1, instance.getUnmatchedCount());
+        
+        gateway.shutdown();
+        
+    }
+    
+    /**
+     * Test of {@link RouteRequestCoalescer#join} method, of class 
+     * {@link RouteRequestCoalescer}.
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test
+    public void testRequestsTimeOut() throws InterruptedException {
+        
+        final RouteRequestCoalescer instance = new RouteRequestCoalescer();
+        final SocketAgentConfiguration configuration = new SocketAgentConfiguration();
+        configuration.setRouteRequestTimeout(50);
+        final SocketAgent gateway = new SocketAgent("gateway", false, configuration);
+        final List<Route> found = new ArrayList<>();
+        
+        final String id = instance.join(gateway, "d", routeThrough("a", "gateway"), 
+                recordingListener(found), false, Collections.<String>emptySet(), null, -1);
+        assertEquals(1, instance.getPendingCount());
+        
+        // Once the request has timed out, its route is no longer accepted.
+        Thread.sleep(100);
+        assertFalse(instance.complete(gateway, id, "d", routeThrough("a", "gateway", "d")));
+        assertEquals(0, found.size());
+        assertEquals(0, instance.getPendingCount());
+        assertEquals(1, instance.getExpiredCount());
+        
+        gateway.shutdown();
+        
+    }
+    
+}
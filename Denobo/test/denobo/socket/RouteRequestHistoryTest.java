@@ -0,0 +1,110 @@
+package denobo.socket;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Represents a unit test for {@link RouteRequestHistory}.
+ * 
+ * @author Saul Johnson
+ */
+public class RouteRequestHistoryTest {
+    
+    /**
+     * Initialises a new instance of a unit test for {@link RouteRequestHistory}.
+     */
+    public RouteRequestHistoryTest() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before this unit test.
+     */
+    @BeforeClass
+    public static void setUpClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after this unit test.
+     */
+    @AfterClass
+    public static void tearDownClass() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run before each test case.
+     */
+    @Before
+    public void setUp() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Run after each test case.
+     */
+    @After
+    public void tearDown() {
+        
+        // Nothing to do.
+        
+    }
+    
+    /**
+     * Test of {@link RouteRequestHistory#accept} method, of class 
+     * {@link RouteRequestHistory}.
+     */
+    @Test
+    public void testAcceptDropsDuplicates() {
+        
+        final RouteRequestHistory instance = new RouteRequestHistory();
+        
+        // Only the first copy of each request is accepted.
+        assertTrue(instance.accept("a"));
+        assertFalse(instance.accept("a"));
+        assertTrue(instance.accept("b"));
+        assertFalse(instance.accept("b"));
+        assertEquals(2, instance.getAcceptedCount());
+        assertEquals(2, instance.getSuppressedCount());
+        
+        // Requests we sent out ourselves are dropped if they come back.
+        assertTrue(instance.remember("c"));
+        assertFalse(instance.accept("c"));
+        assertEquals(3, instance.getSuppressedCount());
+        
+    }
+    
+    /**
+     * Test of {@link RouteRequestHistory#remember} method, of class 
+     * {@link RouteRequestHistory}.
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test
+    public void testRememberForgetsOldRequests() throws InterruptedException {
+        
+        final RouteRequestHistory instance = new RouteRequestHistory(50);
+        
+        assertTrue(instance.remember("a"));
+        assertFalse(instance.remember("a"));
+        
+        // Once the retention time has passed, the request is forgotten.
+        Thread.sleep(100);
+        assertTrue(instance.accept("a"));
+        
+    }
+    
+}